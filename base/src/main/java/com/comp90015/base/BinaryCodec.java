@@ -0,0 +1,391 @@
+package com.comp90015.base;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary encoding of every {@link Packet} type, an alternative to the
+ * JSON lines of {@link PacketCodec} that a client can ask for with
+ * {@link Packet.Hello}.
+ * <p>A frame is a varint body length followed by the body. The body starts with
+ * the one-byte packet type from {@link Constant} and continues with the packet's
+ * fields in a fixed order. A string is written as a varint of its UTF-8 length
+ * plus one (zero for null) and the UTF-8 bytes, a number as a varint of its
+ * value plus one (zero for null), and a list as a varint of its size plus one
+ * (zero for null) followed by its elements, a room being its id and its size
+ * and a chat message its content and identity.
+ * Lists are always native, whatever the protocol version. Fields missing at
+ * the end of a body are null. The codec holds no state and may
+ * be shared by any number of threads.
+ */
+public final class BinaryCodec {
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Encode a packet sent by the server into a complete frame.
+     * @param packet packet to be encoded
+     * @return the length-prefixed frame
+     */
+    public static byte[] encode(Packet.ToClient packet) {
+        Body body = new Body();
+        if (packet instanceof Packet.NewIdentity) {
+            Packet.NewIdentity newIdentity = (Packet.NewIdentity) packet;
+            body.code(Constant.CODE_NEW_IDENTITY).string(newIdentity.getFormer()).string(newIdentity.getIdentity());
+        } else if (packet instanceof Packet.RoomChange) {
+            Packet.RoomChange roomChange = (Packet.RoomChange) packet;
+            body.code(Constant.CODE_ROOM_CHANGE).string(roomChange.getIdentity())
+                    .string(roomChange.getFormer()).string(roomChange.getRoomid());
+        } else if (packet instanceof Packet.RoomContents) {
+            Packet.RoomContents roomContents = (Packet.RoomContents) packet;
+            body.code(Constant.CODE_ROOM_CONTENTS).string(roomContents.getRoomid())
+                    .identities(roomContents.getIdentities()).string(roomContents.getOwner())
+                    .string(roomContents.getNext());
+        } else if (packet instanceof Packet.RoomList) {
+            Packet.RoomList roomList = (Packet.RoomList) packet;
+            body.code(Constant.CODE_ROOM_LIST).rooms(roomList.getRooms()).number(roomList.getVersion())
+                    .string(roomList.getNext());
+        } else if (packet instanceof Packet.RoomListDelta) {
+            Packet.RoomListDelta roomListDelta = (Packet.RoomListDelta) packet;
+            body.code(Constant.CODE_ROOM_LIST_DELTA).number(roomListDelta.getSince())
+                    .number(roomListDelta.getVersion()).rooms(roomListDelta.getRooms())
+                    .identities(roomListDelta.getRemoved());
+        } else if (packet instanceof Packet.ToCMessage) {
+            Packet.ToCMessage toCMessage = (Packet.ToCMessage) packet;
+            body.code(Constant.CODE_TO_C_MESSAGE).string(toCMessage.getContent()).string(toCMessage.getIdentity())
+                    .number(toCMessage.getSeq());
+        } else if (packet instanceof Packet.RoomHistory) {
+            Packet.RoomHistory roomHistory = (Packet.RoomHistory) packet;
+            body.code(Constant.CODE_ROOM_HISTORY).string(roomHistory.getRoomid()).messages(roomHistory.getMessages());
+        } else if (packet instanceof Packet.SearchResult) {
+            Packet.SearchResult searchResult = (Packet.SearchResult) packet;
+            body.code(Constant.CODE_SEARCH_RESULT).string(searchResult.getRoomid()).string(searchResult.getQuery())
+                    .messages(searchResult.getMessages());
+        } else if (packet instanceof Packet.StatsReport) {
+            body.code(Constant.CODE_STATS_REPORT).string(((Packet.StatsReport) packet).getReport());
+        } else if (packet instanceof Packet.Welcome) {
+            Packet.Welcome welcome = (Packet.Welcome) packet;
+            body.code(Constant.CODE_WELCOME).string(welcome.getEncoding()).number(welcome.getVersion())
+                    .string(welcome.getToken()).string(welcome.getIdentity()).string(welcome.getRoomid())
+                    .string(welcome.getCompression());
+        } else {
+            throw new IllegalArgumentException("Unknown packet " + packet.getClass().getName());
+        }
+        return body.toFrame();
+    }
+
+    /**
+     * Encode a packet sent by the client into a complete frame.
+     * @param packet packet to be encoded
+     * @return the length-prefixed frame
+     */
+    public static byte[] encode(Packet.ToServer packet) {
+        Body body = new Body();
+        if (packet instanceof Packet.IdentityChange) {
+            body.code(Constant.CODE_IDENTITY_CHANGE).string(((Packet.IdentityChange) packet).getIdentity());
+        } else if (packet instanceof Packet.Join) {
+            body.code(Constant.CODE_JOIN).string(((Packet.Join) packet).getRoomid());
+        } else if (packet instanceof Packet.Who) {
+            Packet.Who who = (Packet.Who) packet;
+            body.code(Constant.CODE_WHO).string(who.getRoomid()).string(who.getCursor())
+                    .number(who.getLimit()).string(who.getPrefix());
+        } else if (packet instanceof Packet.List) {
+            Packet.List list = (Packet.List) packet;
+            body.code(Constant.CODE_LIST).number(list.getSince()).string(list.getCursor())
+                    .number(list.getLimit()).string(list.getPrefix());
+        } else if (packet instanceof Packet.CreateRoom) {
+            body.code(Constant.CODE_CREATE_ROOM).string(((Packet.CreateRoom) packet).getRoomid());
+        } else if (packet instanceof Packet.Delete) {
+            body.code(Constant.CODE_DELETE).string(((Packet.Delete) packet).getRoomid());
+        } else if (packet instanceof Packet.Quit) {
+            body.code(Constant.CODE_QUIT);
+        } else if (packet instanceof Packet.Stats) {
+            body.code(Constant.CODE_STATS);
+        } else if (packet instanceof Packet.ToSMessage) {
+            body.code(Constant.CODE_TO_S_MESSAGE).string(((Packet.ToSMessage) packet).getContent());
+        } else if (packet instanceof Packet.Hello) {
+            Packet.Hello hello = (Packet.Hello) packet;
+            body.code(Constant.CODE_HELLO).string(hello.getEncoding()).number(hello.getVersion())
+                    .string(hello.getToken()).number(hello.getSeq()).string(hello.getCompression());
+        } else if (packet instanceof Packet.History) {
+            Packet.History history = (Packet.History) packet;
+            body.code(Constant.CODE_HISTORY).string(history.getRoomid()).number(history.getLimit());
+        } else if (packet instanceof Packet.Search) {
+            Packet.Search search = (Packet.Search) packet;
+            body.code(Constant.CODE_SEARCH).string(search.getRoomid()).string(search.getQuery())
+                    .number(search.getLimit());
+        } else {
+            throw new IllegalArgumentException("Unknown packet " + packet.getClass().getName());
+        }
+        return body.toFrame();
+    }
+
+    /**
+     * Decode the body of a frame received by the server.
+     * @param body frame body, without the length prefix
+     * @return the packet
+     * @throws IllegalArgumentException if the body is not a known packet
+     */
+    public static Packet.ToServer decodeToServer(byte[] body) {
+        Reader reader = new Reader(body);
+        byte code = reader.code();
+        switch (code) {
+            case Constant.CODE_IDENTITY_CHANGE:
+                return new Packet.IdentityChange(reader.string());
+            case Constant.CODE_JOIN:
+                return new Packet.Join(reader.string());
+            case Constant.CODE_WHO:
+                return new Packet.Who(reader.string(), reader.string(), reader.integer(), reader.string());
+            case Constant.CODE_LIST:
+                return new Packet.List(reader.number(), reader.string(), reader.integer(), reader.string());
+            case Constant.CODE_CREATE_ROOM:
+                return new Packet.CreateRoom(reader.string());
+            case Constant.CODE_DELETE:
+                return new Packet.Delete(reader.string());
+            case Constant.CODE_QUIT:
+                return new Packet.Quit();
+            case Constant.CODE_TO_S_MESSAGE:
+                return new Packet.ToSMessage(reader.string());
+            case Constant.CODE_HELLO:
+                return new Packet.Hello(reader.string(), reader.integer(), reader.string(), reader.number(),
+                        reader.string());
+            case Constant.CODE_HISTORY:
+                return new Packet.History(reader.string(), reader.integer());
+            case Constant.CODE_SEARCH:
+                return new Packet.Search(reader.string(), reader.string(), reader.integer());
+            case Constant.CODE_STATS:
+                return new Packet.Stats();
+            default:
+                throw new IllegalArgumentException("Unknown packet code " + code);
+        }
+    }
+
+    /**
+     * Decode the body of a frame received by the client.
+     * @param body frame body, without the length prefix
+     * @return the packet
+     * @throws IllegalArgumentException if the body is not a known packet
+     */
+    public static Packet.ToClient decodeToClient(byte[] body) {
+        Reader reader = new Reader(body);
+        byte code = reader.code();
+        switch (code) {
+            case Constant.CODE_NEW_IDENTITY:
+                return new Packet.NewIdentity(reader.string(), reader.string());
+            case Constant.CODE_ROOM_CHANGE:
+                return new Packet.RoomChange(reader.string(), reader.string(), reader.string());
+            case Constant.CODE_ROOM_CONTENTS:
+                return new Packet.RoomContents(reader.string(), reader.identities(), reader.string(), reader.string());
+            case Constant.CODE_ROOM_LIST:
+                return new Packet.RoomList(reader.rooms(), reader.number(), reader.string());
+            case Constant.CODE_ROOM_LIST_DELTA:
+                return new Packet.RoomListDelta(reader.number(), reader.number(), reader.rooms(), reader.identities());
+            case Constant.CODE_TO_C_MESSAGE:
+                return new Packet.ToCMessage(reader.string(), reader.string(), reader.number());
+            case Constant.CODE_WELCOME:
+                return new Packet.Welcome(reader.string(), reader.integer(), reader.string(), reader.string(),
+                        reader.string(), reader.string());
+            case Constant.CODE_ROOM_HISTORY:
+                return new Packet.RoomHistory(reader.string(), reader.messages());
+            case Constant.CODE_SEARCH_RESULT:
+                return new Packet.SearchResult(reader.string(), reader.string(), reader.messages());
+            case Constant.CODE_STATS_REPORT:
+                return new Packet.StatsReport(reader.string());
+            default:
+                throw new IllegalArgumentException("Unknown packet code " + code);
+        }
+    }
+
+    /**
+     * Write an unsigned varint, seven bits per byte, low bits first.
+     * @param out stream to write to
+     * @param value non-negative value
+     */
+    public static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /*
+     * Builder of a frame body
+     */
+    private static final class Body {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+
+        Body code(byte code) {
+            out.write(code);
+            return this;
+        }
+
+        Body number(Integer value) {
+            return number(value == null ? null : Long.valueOf(value));
+        }
+
+        Body number(Long value) {
+            long n = value == null ? 0 : value + 1;
+            while ((n & ~0x7FL) != 0) {
+                out.write((int) (n & 0x7F) | 0x80);
+                n >>>= 7;
+            }
+            out.write((int) n);
+            return this;
+        }
+
+        Body string(String value) {
+            if (value == null) {
+                writeVarint(out, 0);
+            } else {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeVarint(out, bytes.length + 1);
+                out.write(bytes, 0, bytes.length);
+            }
+            return this;
+        }
+
+        Body rooms(List<ChatRoom> rooms) {
+            if (rooms == null) return number((Long) null);
+            number((long) rooms.size());
+            for (ChatRoom room : rooms) {
+                string(room.getRoomid()).number((long) room.getCount());
+            }
+            return this;
+        }
+
+        Body identities(List<String> identities) {
+            if (identities == null) return number((Long) null);
+            number((long) identities.size());
+            for (String identity : identities) {
+                string(identity);
+            }
+            return this;
+        }
+
+        Body messages(List<Packet.ToCMessage> messages) {
+            if (messages == null) return number((Long) null);
+            number((long) messages.size());
+            for (Packet.ToCMessage message : messages) {
+                string(message.getContent()).string(message.getIdentity());
+            }
+            return this;
+        }
+
+        byte[] toFrame() {
+            byte[] bytes = out.toByteArray();
+            int prefix = 1;
+            for (int n = bytes.length; (n & ~0x7F) != 0; n >>>= 7) prefix++;
+            byte[] frame = new byte[prefix + bytes.length];
+            int value = bytes.length;
+            for (int i = 0; i < prefix - 1; i++) {
+                frame[i] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            frame[prefix - 1] = (byte) value;
+            System.arraycopy(bytes, 0, frame, prefix, bytes.length);
+            return frame;
+        }
+    }
+
+    /*
+     * Cursor over a frame body
+     */
+    private static final class Reader {
+        private final byte[] body;
+        private int position = 0;
+
+        Reader(byte[] body) {
+            this.body = body;
+        }
+
+        byte code() {
+            if (body.length == 0) throw new IllegalArgumentException("Empty frame");
+            return body[position++];
+        }
+
+        String string() {
+            // fields added to a packet later are missing from older frames
+            if (position == body.length) return null;
+            int length = varint();
+            if (length == 0) return null;
+            length--;
+            // a varint of five bytes may overflow into a negative length
+            if (length < 0 || length > body.length - position) throw new IllegalArgumentException("Truncated frame");
+            String value = new String(body, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        Long number() {
+            if (position == body.length) return null;
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position >= body.length) throw new IllegalArgumentException("Truncated frame");
+                byte b = body[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value == 0 ? null : value - 1;
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        List<ChatRoom> rooms() {
+            Integer size = integer();
+            if (size == null) return null;
+            // every element takes at least a byte
+            if (size > body.length - position) throw new IllegalArgumentException("Truncated frame");
+            List<ChatRoom> rooms = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                String roomid = string();
+                Integer count = integer();
+                rooms.add(new ChatRoom(roomid, count == null ? 0 : count));
+            }
+            return rooms;
+        }
+
+        List<String> identities() {
+            Integer size = integer();
+            if (size == null) return null;
+            // every element takes at least a byte
+            if (size > body.length - position) throw new IllegalArgumentException("Truncated frame");
+            List<String> identities = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                identities.add(string());
+            }
+            return identities;
+        }
+
+        List<Packet.ToCMessage> messages() {
+            Integer size = integer();
+            if (size == null) return null;
+            // every element takes at least a byte
+            if (size > body.length - position) throw new IllegalArgumentException("Truncated frame");
+            List<Packet.ToCMessage> messages = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                messages.add(new Packet.ToCMessage(string(), string()));
+            }
+            return messages;
+        }
+
+        Integer integer() {
+            Long value = number();
+            if (value == null) return null;
+            if (value < 0 || value > Integer.MAX_VALUE) throw new IllegalArgumentException("Number out of range");
+            return value.intValue();
+        }
+
+        int varint() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                if (position >= body.length) throw new IllegalArgumentException("Truncated frame");
+                byte b = body[position++];
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+    }
+}
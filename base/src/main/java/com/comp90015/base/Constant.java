@@ -12,6 +12,18 @@ public class Constant {
     public static final Integer MAX_IDENTITY_LENGTH = 16;
     public static final Integer MAX_ROOM_LENGTH = 32;
 
+    // rooms or guests in one page of #list or #who, and the most a client may ask for
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    // messages in one #history, and the most a client may ask for
+    public static final int DEFAULT_HISTORY_SIZE = 20;
+    public static final int MAX_HISTORY_SIZE = 1000;
+
+    // messages found by one #search, and the most a client may ask for
+    public static final int DEFAULT_SEARCH_SIZE = 20;
+    public static final int MAX_SEARCH_SIZE = 100;
+
     public static final String TYPE = "type";
     public static final String MESSAGE = "message";
 
@@ -23,11 +35,65 @@ public class Constant {
     public static final String CREATE_ROOM = "createroom";
     public static final String DELETE = "delete";
     public static final String QUIT = "quit";
+    public static final String HELLO = "hello";
+    public static final String HISTORY = "history";
+    public static final String SEARCH = "search";
+    public static final String STATS = "stats";
 
     // S2C
     public static final String NEW_IDENTITY = "newidentity";
     public static final String ROOM_CHANGE = "roomchange";
     public static final String ROOM_CONTENTS = "roomcontents";
     public static final String ROOM_LIST = "roomlist";
+    public static final String WELCOME = "welcome";
+    public static final String ROOM_LIST_DELTA = "roomlistdelta";
+    public static final String ROOM_HISTORY = "roomhistory";
+    public static final String SEARCH_RESULT = "searchresult";
+    public static final String STATS_REPORT = "statsreport";
+
+    // wire encodings negotiated with hello
+    public static final String ENCODING_JSON = "json";
+    public static final String ENCODING_BINARY = "binary";
+
+    // compression of the frames sent by the server, negotiated with hello
+    public static final String COMPRESSION_DEFLATE = "deflate";
+
+    // protocol versions negotiated with hello, the second one sends lists as native JSON arrays,
+    // the third one lets a client resume its session after reconnecting
+    public static final int PROTOCOL_V1 = 1;
+    public static final int PROTOCOL_V2 = 2;
+    public static final int PROTOCOL_V3 = 3;
+
+    // one-byte packet types of the binary encoding
+    public static final byte CODE_IDENTITY_CHANGE = 1;
+    public static final byte CODE_JOIN = 2;
+    public static final byte CODE_WHO = 3;
+    public static final byte CODE_LIST = 4;
+    public static final byte CODE_CREATE_ROOM = 5;
+    public static final byte CODE_DELETE = 6;
+    public static final byte CODE_QUIT = 7;
+    public static final byte CODE_TO_S_MESSAGE = 8;
+    public static final byte CODE_HELLO = 9;
+    public static final byte CODE_HISTORY = 10;
+    public static final byte CODE_SEARCH = 11;
+    public static final byte CODE_STATS = 12;
+
+    public static final byte CODE_NEW_IDENTITY = 65;
+    public static final byte CODE_ROOM_CHANGE = 66;
+    public static final byte CODE_ROOM_CONTENTS = 67;
+    public static final byte CODE_ROOM_LIST = 68;
+    public static final byte CODE_TO_C_MESSAGE = 69;
+    public static final byte CODE_WELCOME = 70;
+    public static final byte CODE_ROOM_LIST_DELTA = 71;
+    public static final byte CODE_ROOM_HISTORY = 72;
+    public static final byte CODE_SEARCH_RESULT = 73;
+    public static final byte CODE_STATS_REPORT = 74;
+
+    // first byte of a compressed frame body, deflated on its own or in the connection's stream
+    public static final byte CODE_DEFLATED = 126;
+    public static final byte CODE_DEFLATED_CONTEXT = 127;
+
+    // largest binary frame accepted, in bytes
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
 
 }
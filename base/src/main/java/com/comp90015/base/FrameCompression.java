@@ -0,0 +1,186 @@
+package com.comp90015.base;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of the frames a server sends, which a client can ask
+ * for with {@link Packet.Hello}. Once the server accepts, every frame it sends
+ * is length-prefixed as in {@link BinaryCodec}, JSON ones included, and its
+ * body is either the packet as it is or one of two codes followed by the
+ * deflated packet:
+ * <ul>
+ * <li>{@link Constant#CODE_DEFLATED}, compressed on its own with a preset
+ * dictionary of the strings most packets hold, so the same bytes can be sent
+ * to every guest of a room;</li>
+ * <li>{@link Constant#CODE_DEFLATED_CONTEXT}, the next part of a deflate
+ * stream the server keeps for the connection, which may refer back to
+ * everything sent in it before.</li>
+ * </ul>
+ * A JSON packet starts with '{' and a binary one with its packet type,
+ * neither of which is one of the codes.
+ */
+public final class FrameCompression {
+
+    // what packets have in common, the most frequent last as those are the cheapest to refer to
+    private static final byte[] DICTIONARY = ("{\"query\":\"\",\"removed\":[],\"since\":,\"token\":\""
+            + "\"compression\":\"deflate\",\"encoding\":\"json\",\"type\":\"welcome\"}"
+            + "\"type\":\"searchresult\"}\"type\":\"roomhistory\"}\"type\":\"roomlistdelta\"}"
+            + "\"next\":\"\",\"owner\":\"\",\"identities\":[\"guest\"],\"type\":\"roomcontents\"}"
+            + "{\\\"content\\\":\\\"\\\",\\\"identity\\\":\\\"guest\\\"}"
+            + "{\\\"roomid\\\":\\\"\\\",\\\"count\\\":}"
+            + "\"type\":\"newidentity\"}\"former\":\"\",\"type\":\"roomchange\"}"
+            + "\"messages\":[{\"content\":\"\",\"identity\":\"guest\"},\"seq\":,\"type\":\"message\"}"
+            + "{\"rooms\":[{\"roomid\":\"MainHall\",\"count\":},\"version\":,\"type\":\"roomlist\"}"
+            + "{\"roomid\":\"\",\"count\":}").getBytes(StandardCharsets.UTF_8);
+    private static final int CHUNK_SIZE = 4096;
+
+    // deflaters for frames compressed on their own, each costs a few hundred KiB so they are shared
+    private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+
+    private FrameCompression() {
+    }
+
+    /**
+     * Length-prefix a packet that is sent as it is.
+     * @param body the encoded packet, without length prefix or newline
+     * @return the frame
+     */
+    public static byte[] frame(byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + 5);
+        BinaryCodec.writeVarint(out, body.length);
+        out.write(body, 0, body.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Compress a packet on its own, so the frame can go to any client that
+     * takes compressed frames. Safe to call from any thread.
+     * @param body the encoded packet, without length prefix or newline
+     * @param level deflate level, from 1 for the fastest to 9 for the smallest
+     * @return the frame
+     */
+    public static byte[] deflate(byte[] body, int level) {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) deflater = new Deflater();
+        try {
+            deflater.reset();
+            deflater.setLevel(level);
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(body);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2 + 16);
+            out.write(Constant.CODE_DEFLATED);
+            byte[] chunk = new byte[Math.min(CHUNK_SIZE, body.length + 64)];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                out.write(chunk, 0, n);
+            }
+            return frame(out.toByteArray());
+        } finally {
+            DEFLATERS.offer(deflater);
+        }
+    }
+
+    /**
+     * The deflate stream of one connection. Each packet is flushed to the end
+     * of a byte, so the client can inflate it as soon as it arrives, and may
+     * refer back to any packet up to 32 KiB before it. Frames must reach the
+     * client in the order they were compressed, none left out. Not thread safe.
+     */
+    public static class Context {
+        private final Deflater deflater;
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+
+        /**
+         * @param level deflate level, from 1 for the fastest to 9 for the smallest
+         */
+        public Context(int level) {
+            deflater = new Deflater(level);
+            deflater.setDictionary(DICTIONARY);
+        }
+
+        /**
+         * Compress the next packet of the connection.
+         * @param body the encoded packet, without length prefix or newline
+         * @return the frame
+         */
+        public byte[] deflate(byte[] body) {
+            deflater.setInput(body);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 16);
+            out.write(Constant.CODE_DEFLATED_CONTEXT);
+            int n;
+            do {
+                n = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+                out.write(chunk, 0, n);
+            } while (n == chunk.length);
+            return frame(out.toByteArray());
+        }
+
+        /**
+         * Free the deflater, the context takes no more packets.
+         */
+        public void end() {
+            deflater.end();
+        }
+    }
+
+    /**
+     * The client side, inflating the frames of one connection. Not thread safe.
+     */
+    public static class Receiver {
+        private final Inflater single = new Inflater();
+        private final Inflater stream = new Inflater();
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+
+        /**
+         * Inflate the body of a frame if it is compressed.
+         * @param body frame body, without the length prefix
+         * @return the encoded packet
+         * @throws IllegalArgumentException if the compressed data is corrupt
+         */
+        public byte[] inflate(byte[] body) {
+            if (body.length == 0) return body;
+            if (body[0] == Constant.CODE_DEFLATED) {
+                single.reset();
+                return inflate(single, body);
+            }
+            if (body[0] == Constant.CODE_DEFLATED_CONTEXT) return inflate(stream, body);
+            return body;
+        }
+
+        private byte[] inflate(Inflater inflater, byte[] body) {
+            inflater.setInput(body, 1, body.length - 1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 4);
+            try {
+                while (!inflater.finished()) {
+                    int n = inflater.inflate(chunk);
+                    if (n > 0) {
+                        out.write(chunk, 0, n);
+                    } else if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    } else {
+                        // the whole frame is inflated, the stream goes on with the next one
+                        break;
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalArgumentException("Corrupt compressed frame: " + e.getMessage());
+            }
+            return out.toByteArray();
+        }
+
+        /**
+         * Free the inflaters, the receiver takes no more frames.
+         */
+        public void end() {
+            single.end();
+            stream.end();
+        }
+    }
+}
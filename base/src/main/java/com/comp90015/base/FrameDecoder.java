@@ -0,0 +1,100 @@
+package com.comp90015.base;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Non-blocking counterpart of {@link FrameReader}: bytes are fed in as they
+ * arrive and a line or frame comes out once it is complete. Partial input is
+ * kept between calls. Not thread-safe, each connection owns one.
+ */
+public class FrameDecoder {
+
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+
+    // state of the binary frame being read
+    private int length = 0;
+    private int shift = 0;
+    private byte[] body;
+    private int position;
+
+    /**
+     * Consume bytes up to the end of the next line.
+     * @param buffer received bytes
+     * @return the line without its terminator, or null if the buffer ran out first
+     * @throws IllegalArgumentException if the line is longer than a frame may be
+     */
+    public String nextLine(ByteBuffer buffer) {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        for (int i = start; i < limit; i++) {
+            if (buffer.get(i) != '\n') continue;
+            checkLineLength(line.size() + i - start);
+            buffer.position(i + 1);
+            if (line.size() == 0 && buffer.hasArray()) {
+                // the whole line is in the buffer, decode it in place
+                return decode(buffer.array(), buffer.arrayOffset() + start, i - start);
+            }
+            append(buffer, start, i);
+            byte[] bytes = line.toByteArray();
+            line.reset();
+            return decode(bytes, 0, bytes.length);
+        }
+        // a client that never ends its line must not fill the heap
+        checkLineLength(line.size() + limit - start);
+        append(buffer, start, limit);
+        buffer.position(limit);
+        return null;
+    }
+
+    private static void checkLineLength(int length) {
+        if (length > Constant.MAX_FRAME_LENGTH) throw new IllegalArgumentException("Line too long");
+    }
+
+    private void append(ByteBuffer buffer, int from, int to) {
+        if (buffer.hasArray()) {
+            line.write(buffer.array(), buffer.arrayOffset() + from, to - from);
+        } else {
+            for (int i = from; i < to; i++) line.write(buffer.get(i));
+        }
+    }
+
+    private static String decode(byte[] bytes, int offset, int length) {
+        if (length > 0 && bytes[offset + length - 1] == '\r') length--;
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Consume bytes up to the end of the next binary frame.
+     * @param buffer received bytes
+     * @return the frame body, or null if the buffer ran out first
+     * @throws IllegalArgumentException if the frame length is malformed or too large
+     */
+    public byte[] nextFrame(ByteBuffer buffer) {
+        while (body == null) {
+            if (!buffer.hasRemaining()) return null;
+            int b = buffer.get() & 0xFF;
+            // the fifth byte holds the top 3 bits of an int, anything above overflows it
+            if (shift == 28 && b > 0x07) throw new IllegalArgumentException("Malformed frame length");
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+            if ((b & 0x80) == 0) {
+                if (length > Constant.MAX_FRAME_LENGTH) {
+                    throw new IllegalArgumentException("Frame too large: " + length);
+                }
+                body = new byte[length];
+                position = 0;
+            }
+        }
+        int n = Math.min(buffer.remaining(), body.length - position);
+        buffer.get(body, position, n);
+        position += n;
+        if (position < body.length) return null;
+        byte[] frame = body;
+        body = null;
+        length = 0;
+        shift = 0;
+        return frame;
+    }
+}
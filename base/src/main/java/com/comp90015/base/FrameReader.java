@@ -0,0 +1,118 @@
+package com.comp90015.base;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Blocking reader of the frames a peer sends, either JSON lines or binary
+ * length-prefixed frames. It works on bytes rather than characters, so the
+ * caller can switch from lines to binary frames right after the handshake
+ * without losing anything to read-ahead.
+ */
+public class FrameReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+
+    public FrameReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Read the next line, without its line terminator.
+     * @return the line, or null at the end of the stream
+     * @throws IOException if the stream fails or the line is longer than a frame may be
+     */
+    public String readLine() throws IOException {
+        line.reset();
+        while (true) {
+            if (position == limit && !fill()) {
+                if (line.size() == 0) return null;
+                return decode(line.toByteArray(), 0, line.size());
+            }
+            for (int i = position; i < limit; i++) {
+                if (buffer[i] != '\n') continue;
+                if (line.size() + i - position > Constant.MAX_FRAME_LENGTH) throw new IOException("Line too long");
+                String value;
+                if (line.size() == 0) {
+                    value = decode(buffer, position, i - position);
+                } else {
+                    line.write(buffer, position, i - position);
+                    value = decode(line.toByteArray(), 0, line.size());
+                }
+                position = i + 1;
+                return value;
+            }
+            // a peer that never ends its line must not fill the heap
+            if (line.size() + limit - position > Constant.MAX_FRAME_LENGTH) throw new IOException("Line too long");
+            line.write(buffer, position, limit - position);
+            position = limit;
+        }
+    }
+
+    /**
+     * Read the next binary frame.
+     * @return the frame body, or null at the end of the stream
+     * @throws IOException if the stream fails or ends inside a frame
+     */
+    public byte[] readFrame() throws IOException {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (position == limit && !fill()) {
+                if (shift == 0) return null;
+                throw new EOFException("Stream ended inside a frame");
+            }
+            int b = buffer[position++] & 0xFF;
+            // the fifth byte holds the top 3 bits of an int, anything above overflows it
+            if (shift == 28 && b > 0x07) throw new IOException("Malformed frame length");
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+        }
+        if (length > Constant.MAX_FRAME_LENGTH) throw new IOException("Frame too large: " + length);
+        byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            if (position == limit && !fill()) throw new EOFException("Stream ended inside a frame");
+            int n = Math.min(limit - position, length - read);
+            System.arraycopy(buffer, position, body, read, n);
+            position += n;
+            read += n;
+        }
+        return body;
+    }
+
+    /**
+     * @return whether bytes already read from the stream are waiting, so the
+     *         next read will not block
+     */
+    public boolean hasBuffered() {
+        return position < limit;
+    }
+
+    /*
+     * Refill the empty buffer, blocking until at least one byte arrives
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) return false;
+        position = 0;
+        limit = n;
+        return true;
+    }
+
+    private static String decode(byte[] bytes, int offset, int length) {
+        if (length > 0 && bytes[offset + length - 1] == '\r') length--;
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
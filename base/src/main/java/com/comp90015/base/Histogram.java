@@ -0,0 +1,152 @@
+package com.comp90015.base;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of recorded values in log-linear buckets, in the manner of an HDR
+ * histogram: the values below 8 have a bucket each, and every power of two
+ * above is split into 8 buckets, so a percentile is off by at most an eighth
+ * whatever the range of the values. 488 buckets cover every long.
+ * <p>Recording is lock free and costs one atomic add to a bucket and one to
+ * the sum. The counts are striped by thread, each stripe on cache lines of its
+ * own, so threads recording at the same time rarely touch the same line.
+ * Reading sums the stripes, and may miss values recorded while it runs.
+ */
+public class Histogram {
+
+    // sub-buckets per power of two, as bits
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    public static final int BUCKETS = (Long.SIZE - 1 - (SUB_BITS - 1)) * SUB_BUCKETS;
+
+    // the stripe's sum and max follow its buckets, the stripe is padded to whole cache lines
+    private static final int SUM = BUCKETS;
+    private static final int MAX = BUCKETS + 1;
+    private static final int STRIDE = (BUCKETS + 2 + 7) & ~7;
+    private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * STRIDE);
+
+    /*
+     * Enough stripes for the threads that may record at once, a power of two
+     */
+    private static int stripes(int processors) {
+        int stripes = 1;
+        while (stripes < processors && stripes < 16) stripes <<= 1;
+        return stripes;
+    }
+
+    /**
+     * Record a value, from any thread.
+     * @param value the value, negative ones count as 0
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        int base = (int) (Thread.currentThread().getId() & (STRIPES - 1)) * STRIDE;
+        counts.incrementAndGet(base + bucket(value));
+        counts.addAndGet(base + SUM, value);
+        if (value > counts.get(base + MAX)) {
+            long max;
+            do {
+                max = counts.get(base + MAX);
+            } while (value > max && !counts.compareAndSet(base + MAX, max, value));
+        }
+    }
+
+    /**
+     * The bucket a value is counted in.
+     * @param value the value, not negative
+     * @return index of the bucket
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * The largest value counted in a bucket.
+     * @param bucket index of the bucket
+     * @return the value
+     */
+    static long highest(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+        return lowest + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Sum the stripes into a view of the values recorded so far.
+     * @return the snapshot
+     */
+    public Snapshot snapshot() {
+        long[] buckets = new long[BUCKETS];
+        long sum = 0;
+        long max = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            int base = stripe * STRIDE;
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] += counts.get(base + i);
+            }
+            sum += counts.get(base + SUM);
+            max = Math.max(max, counts.get(base + MAX));
+        }
+        return new Snapshot(buckets, sum, max);
+    }
+
+    /**
+     * The counts of a histogram at one moment.
+     */
+    public static class Snapshot {
+        private final long[] buckets;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] buckets, long sum, long max) {
+            long count = 0;
+            for (long n : buckets) {
+                count += n;
+            }
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * The value that the given share of the recorded values are at or below,
+         * rounded up to the end of its bucket.
+         * @param percentile from 0 to 100
+         * @return the value, 0 if nothing was recorded
+         */
+        public long percentile(double percentile) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) return Math.min(highest(i), max);
+            }
+            return max;
+        }
+    }
+}
@@ -8,6 +8,10 @@ public class Packet {
         public ToClient(String type) {
             this.type = type;
         }
+
+        public String getType() {
+            return type;
+        }
     }
 
     public static class NewIdentity extends ToClient {
@@ -56,50 +60,122 @@ public class Packet {
 
     public static class RoomContents extends ToClient {
         private final String roomid;
-        private final String identities;
+        private final java.util.List<String> identities;
         private final String owner;
+        // cursor of the next page, null if this is the last one
+        private final String next;
+
+        public RoomContents(String roomid, java.util.List<String> identities, String owner) {
+            this(roomid, identities, owner, null);
+        }
 
-        public RoomContents(String roomid, String identities, String owner) {
+        public RoomContents(String roomid, java.util.List<String> identities, String owner, String next) {
             super(Constant.ROOM_CONTENTS);
             this.roomid = roomid;
             this.identities = identities;
             this.owner = owner;
+            this.next = next;
         }
 
         public String getRoomid() {
             return roomid;
         }
 
-        public String getIdentities() {
+        public java.util.List<String> getIdentities() {
             return identities;
         }
 
         public String getOwner() {
             return owner;
         }
+
+        public String getNext() {
+            return next;
+        }
     }
 
     public static class RoomList extends ToClient {
-        private final String rooms;
+        private final java.util.List<ChatRoom> rooms;
+        // version of the room directory the list was taken at, null if it is not a full snapshot
+        private final Long version;
+        // cursor of the next page, null if this is the last one
+        private final String next;
 
-        public RoomList(String rooms) {
+        public RoomList(java.util.List<ChatRoom> rooms) {
+            this(rooms, null, null);
+        }
+
+        public RoomList(java.util.List<ChatRoom> rooms, Long version) {
+            this(rooms, version, null);
+        }
+
+        public RoomList(java.util.List<ChatRoom> rooms, Long version, String next) {
             super(Constant.ROOM_LIST);
             this.rooms = rooms;
+            this.version = version;
+            this.next = next;
         }
 
-        public String getRooms() {
+        public java.util.List<ChatRoom> getRooms() {
             return rooms;
         }
+
+        public Long getVersion() {
+            return version;
+        }
+
+        public String getNext() {
+            return next;
+        }
+    }
+
+    public static class RoomListDelta extends ToClient {
+        private final Long since;
+        private final Long version;
+        // rooms added or resized, and the ids of the rooms removed, since the given version
+        private final java.util.List<ChatRoom> rooms;
+        private final java.util.List<String> removed;
+
+        public RoomListDelta(Long since, Long version, java.util.List<ChatRoom> rooms, java.util.List<String> removed) {
+            super(Constant.ROOM_LIST_DELTA);
+            this.since = since;
+            this.version = version;
+            this.rooms = rooms;
+            this.removed = removed;
+        }
+
+        public Long getSince() {
+            return since;
+        }
+
+        public Long getVersion() {
+            return version;
+        }
+
+        public java.util.List<ChatRoom> getRooms() {
+            return rooms;
+        }
+
+        public java.util.List<String> getRemoved() {
+            return removed;
+        }
     }
 
     public static class ToCMessage extends ToClient {
         private final String content;
         private final String identity;
+        // number of the message in its room, null until the server broadcasts it
+        private final Long seq;
 
         public ToCMessage(String content, String identity) {
+            this(content, identity, null);
+        }
+
+        public ToCMessage(String content, String identity, Long seq) {
             super(Constant.MESSAGE);
             this.content = content;
             this.identity = identity;
+            this.seq = seq;
         }
 
         public String getContent() {
@@ -109,6 +185,132 @@ public class Packet {
         public String getIdentity() {
             return identity;
         }
+
+        public Long getSeq() {
+            return seq;
+        }
+    }
+
+
+
+    public static class RoomHistory extends ToClient {
+        private final String roomid;
+        // the newest messages of the room, oldest first
+        private final java.util.List<ToCMessage> messages;
+
+        public RoomHistory(String roomid, java.util.List<ToCMessage> messages) {
+            super(Constant.ROOM_HISTORY);
+            this.roomid = roomid;
+            this.messages = messages;
+        }
+
+        public String getRoomid() {
+            return roomid;
+        }
+
+        public java.util.List<ToCMessage> getMessages() {
+            return messages;
+        }
+    }
+
+    public static class SearchResult extends ToClient {
+        private final String roomid;
+        private final String query;
+        // the newest messages holding every word of the query, oldest first
+        private final java.util.List<ToCMessage> messages;
+
+        public SearchResult(String roomid, String query, java.util.List<ToCMessage> messages) {
+            super(Constant.SEARCH_RESULT);
+            this.roomid = roomid;
+            this.query = query;
+            this.messages = messages;
+        }
+
+        public String getRoomid() {
+            return roomid;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        public java.util.List<ToCMessage> getMessages() {
+            return messages;
+        }
+    }
+
+    public static class StatsReport extends ToClient {
+        // the server's metrics as plain text, one line each
+        private final String report;
+
+        public StatsReport(String report) {
+            super(Constant.STATS_REPORT);
+            this.report = report;
+        }
+
+        public String getReport() {
+            return report;
+        }
+    }
+
+    public static class Welcome extends ToClient {
+        private final String encoding;
+        // protocol version accepted, null from a server that only speaks the first one
+        private final Integer version;
+        // token to resume the session with after reconnecting, from the third version on
+        private final String token;
+        // identity and room of a resumed session, null if the server greets a new guest instead
+        private final String identity;
+        private final String roomid;
+        // compression of the frames that follow, null if they are not compressed
+        private final String compression;
+
+        public Welcome(String encoding) {
+            this(encoding, null);
+        }
+
+        public Welcome(String encoding, Integer version) {
+            this(encoding, version, null, null, null);
+        }
+
+        public Welcome(String encoding, Integer version, String token, String identity, String roomid) {
+            this(encoding, version, token, identity, roomid, null);
+        }
+
+        public Welcome(String encoding, Integer version, String token, String identity, String roomid,
+                       String compression) {
+            super(Constant.WELCOME);
+            this.encoding = encoding;
+            this.version = version;
+            this.token = token;
+            this.identity = identity;
+            this.roomid = roomid;
+            this.compression = compression;
+        }
+
+        public String getEncoding() {
+            return encoding;
+        }
+
+        public Integer getVersion() {
+            return version;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public String getIdentity() {
+            return identity;
+        }
+
+        public String getRoomid() {
+            return roomid;
+        }
+
+        public String getCompression() {
+            return compression;
+        }
     }
 
 
@@ -119,6 +321,10 @@ public class Packet {
         public ToServer(String type) {
             this.type = type;
         }
+
+        public String getType() {
+            return type;
+        }
     }
 
     public static class IdentityChange extends ToServer {
@@ -149,20 +355,78 @@ public class Packet {
 
     public static class Who extends ToServer {
         private final String roomid;
+        // optional paging: identities after the cursor, at most limit of them, starting with prefix
+        private final String cursor;
+        private final Integer limit;
+        private final String prefix;
 
         public Who(String roomid) {
+            this(roomid, null, null, null);
+        }
+
+        public Who(String roomid, String cursor, Integer limit, String prefix) {
             super(Constant.WHO);
             this.roomid = roomid;
+            this.cursor = cursor;
+            this.limit = limit;
+            this.prefix = prefix;
         }
 
         public String getRoomid() {
             return roomid;
         }
+
+        public String getCursor() {
+            return cursor;
+        }
+
+        public Integer getLimit() {
+            return limit;
+        }
+
+        public String getPrefix() {
+            return prefix;
+        }
     }
 
     public static class List extends ToServer {
+        // version of the room list the client already holds, to be sent only the changes
+        private final Long since;
+        // optional paging: room ids after the cursor, at most limit of them, starting with prefix
+        private final String cursor;
+        private final Integer limit;
+        private final String prefix;
+
         public List() {
+            this(null);
+        }
+
+        public List(Long since) {
+            this(since, null, null, null);
+        }
+
+        public List(Long since, String cursor, Integer limit, String prefix) {
             super(Constant.LIST);
+            this.since = since;
+            this.cursor = cursor;
+            this.limit = limit;
+            this.prefix = prefix;
+        }
+
+        public Long getSince() {
+            return since;
+        }
+
+        public String getCursor() {
+            return cursor;
+        }
+
+        public Integer getLimit() {
+            return limit;
+        }
+
+        public String getPrefix() {
+            return prefix;
         }
     }
 
@@ -198,6 +462,12 @@ public class Packet {
         }
     }
 
+    public static class Stats extends ToServer {
+        public Stats() {
+            super(Constant.STATS);
+        }
+    }
+
     public static class ToSMessage extends ToServer {
         public String getContent() {
             return content;
@@ -211,4 +481,112 @@ public class Packet {
         }
     }
 
+    public static class History extends ToServer {
+        private final String roomid;
+        // most messages to send, null for the default
+        private final Integer limit;
+
+        public History(String roomid) {
+            this(roomid, null);
+        }
+
+        public History(String roomid, Integer limit) {
+            super(Constant.HISTORY);
+            this.roomid = roomid;
+            this.limit = limit;
+        }
+
+        public String getRoomid() {
+            return roomid;
+        }
+
+        public Integer getLimit() {
+            return limit;
+        }
+    }
+
+    public static class Search extends ToServer {
+        private final String roomid;
+        // words to look for, in any order
+        private final String query;
+        // most messages to send, null for the default
+        private final Integer limit;
+
+        public Search(String roomid, String query) {
+            this(roomid, query, null);
+        }
+
+        public Search(String roomid, String query, Integer limit) {
+            super(Constant.SEARCH);
+            this.roomid = roomid;
+            this.query = query;
+            this.limit = limit;
+        }
+
+        public String getRoomid() {
+            return roomid;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        public Integer getLimit() {
+            return limit;
+        }
+    }
+
+    public static class Hello extends ToServer {
+        private final String encoding;
+        // highest protocol version the client speaks, null for the first one
+        private final Integer version;
+        // token of the session to resume, null to start a new one
+        private final String token;
+        // number of the last chat message the client got in its room, null for none
+        private final Long seq;
+        // compression the client can take for the frames sent to it, null for none
+        private final String compression;
+
+        public Hello(String encoding) {
+            this(encoding, null);
+        }
+
+        public Hello(String encoding, Integer version) {
+            this(encoding, version, null, null);
+        }
+
+        public Hello(String encoding, Integer version, String token, Long seq) {
+            this(encoding, version, token, seq, null);
+        }
+
+        public Hello(String encoding, Integer version, String token, Long seq, String compression) {
+            super(Constant.HELLO);
+            this.encoding = encoding;
+            this.version = version;
+            this.token = token;
+            this.seq = seq;
+            this.compression = compression;
+        }
+
+        public String getEncoding() {
+            return encoding;
+        }
+
+        public Integer getVersion() {
+            return version;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public Long getSeq() {
+            return seq;
+        }
+
+        public String getCompression() {
+            return compression;
+        }
+    }
+
 }
@@ -0,0 +1,665 @@
+package com.comp90015.base;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hand-written streaming codec for every {@link Packet} type.
+ * Packets are written field by field with a {@link JsonWriter} and read with a
+ * {@link JsonReader}, without reflection and without building a JSON tree.
+ * The output is byte-identical to what a default {@code Gson} produces for the
+ * same packet: fields in declaration order with {@code type} last, nulls
+ * omitted and HTML characters escaped. The codec holds no state and may be
+ * shared by any number of threads.
+ * <p>Lists of rooms, identities and messages are written as JSON text embedded in a
+ * string in the first protocol version, as the original protocol did, and as
+ * native JSON arrays in the second one. Decoding accepts either form.
+ * <p>Fields added by a later protocol version are written only to the clients
+ * that speak it, so a client of the first version gets exactly the bytes the
+ * original protocol sent: the version and cursor of a room list and the cursor
+ * of a room's contents come with the second version, the sequence number of a
+ * chat message with the third.
+ */
+public final class PacketCodec {
+
+    private PacketCodec() {
+    }
+
+    /**
+     * Encode a packet sent by the server, in the first protocol version.
+     * @param packet packet to be encoded
+     * @return the JSON text of the packet
+     */
+    public static String encode(Packet.ToClient packet) {
+        return encode(packet, Constant.PROTOCOL_V1);
+    }
+
+    /**
+     * Encode a packet sent by the server.
+     * @param packet packet to be encoded
+     * @param version protocol version of the recipient
+     * @return the JSON text of the packet
+     */
+    public static String encode(Packet.ToClient packet, int version) {
+        StringWriter out = new StringWriter();
+        try (JsonWriter writer = newWriter(out)) {
+            writer.beginObject();
+            if (packet instanceof Packet.NewIdentity) {
+                Packet.NewIdentity newIdentity = (Packet.NewIdentity) packet;
+                writer.name("former").value(newIdentity.getFormer());
+                writer.name("identity").value(newIdentity.getIdentity());
+            } else if (packet instanceof Packet.RoomChange) {
+                Packet.RoomChange roomChange = (Packet.RoomChange) packet;
+                writer.name("identity").value(roomChange.getIdentity());
+                writer.name("former").value(roomChange.getFormer());
+                writer.name("roomid").value(roomChange.getRoomid());
+            } else if (packet instanceof Packet.RoomContents) {
+                Packet.RoomContents roomContents = (Packet.RoomContents) packet;
+                writer.name("roomid").value(roomContents.getRoomid());
+                writer.name("identities");
+                writeIdentities(writer, roomContents.getIdentities(), version);
+                writer.name("owner").value(roomContents.getOwner());
+                if (version >= Constant.PROTOCOL_V2) writer.name("next").value(roomContents.getNext());
+            } else if (packet instanceof Packet.RoomList) {
+                Packet.RoomList roomList = (Packet.RoomList) packet;
+                writer.name("rooms");
+                writeRooms(writer, roomList.getRooms(), version);
+                if (version >= Constant.PROTOCOL_V2) {
+                    writer.name("version").value(roomList.getVersion());
+                    writer.name("next").value(roomList.getNext());
+                }
+            } else if (packet instanceof Packet.RoomListDelta) {
+                Packet.RoomListDelta roomListDelta = (Packet.RoomListDelta) packet;
+                writer.name("since").value(roomListDelta.getSince());
+                writer.name("version").value(roomListDelta.getVersion());
+                writer.name("rooms");
+                writeRooms(writer, roomListDelta.getRooms(), version);
+                writer.name("removed");
+                writeIdentities(writer, roomListDelta.getRemoved(), version);
+            } else if (packet instanceof Packet.ToCMessage) {
+                Packet.ToCMessage toCMessage = (Packet.ToCMessage) packet;
+                writer.name("content").value(toCMessage.getContent());
+                writer.name("identity").value(toCMessage.getIdentity());
+                if (version >= Constant.PROTOCOL_V3) writer.name("seq").value(toCMessage.getSeq());
+            } else if (packet instanceof Packet.RoomHistory) {
+                Packet.RoomHistory roomHistory = (Packet.RoomHistory) packet;
+                writer.name("roomid").value(roomHistory.getRoomid());
+                writer.name("messages");
+                writeMessages(writer, roomHistory.getMessages(), version);
+            } else if (packet instanceof Packet.SearchResult) {
+                Packet.SearchResult searchResult = (Packet.SearchResult) packet;
+                writer.name("roomid").value(searchResult.getRoomid());
+                writer.name("query").value(searchResult.getQuery());
+                writer.name("messages");
+                writeMessages(writer, searchResult.getMessages(), version);
+            } else if (packet instanceof Packet.StatsReport) {
+                writer.name("report").value(((Packet.StatsReport) packet).getReport());
+            } else if (packet instanceof Packet.Welcome) {
+                Packet.Welcome welcome = (Packet.Welcome) packet;
+                writer.name("encoding").value(welcome.getEncoding());
+                writer.name("version").value(welcome.getVersion());
+                writer.name("token").value(welcome.getToken());
+                writer.name("identity").value(welcome.getIdentity());
+                writer.name("roomid").value(welcome.getRoomid());
+                writer.name("compression").value(welcome.getCompression());
+            } else {
+                throw new IllegalArgumentException("Unknown packet " + packet.getClass().getName());
+            }
+            writer.name(Constant.TYPE).value(packet.type);
+            writer.endObject();
+        } catch (IOException e) {
+            // StringWriter does not throw
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Encode a packet sent by the client.
+     * @param packet packet to be encoded
+     * @return the JSON text of the packet
+     */
+    public static String encode(Packet.ToServer packet) {
+        StringWriter out = new StringWriter();
+        try (JsonWriter writer = newWriter(out)) {
+            writer.beginObject();
+            if (packet instanceof Packet.IdentityChange) {
+                writer.name("identity").value(((Packet.IdentityChange) packet).getIdentity());
+            } else if (packet instanceof Packet.Join) {
+                writer.name("roomid").value(((Packet.Join) packet).getRoomid());
+            } else if (packet instanceof Packet.Who) {
+                Packet.Who who = (Packet.Who) packet;
+                writer.name("roomid").value(who.getRoomid());
+                writer.name("cursor").value(who.getCursor());
+                writer.name("limit").value(who.getLimit());
+                writer.name("prefix").value(who.getPrefix());
+            } else if (packet instanceof Packet.CreateRoom) {
+                writer.name("roomid").value(((Packet.CreateRoom) packet).getRoomid());
+            } else if (packet instanceof Packet.Delete) {
+                writer.name("roomid").value(((Packet.Delete) packet).getRoomid());
+            } else if (packet instanceof Packet.ToSMessage) {
+                writer.name("content").value(((Packet.ToSMessage) packet).getContent());
+            } else if (packet instanceof Packet.Hello) {
+                Packet.Hello hello = (Packet.Hello) packet;
+                writer.name("encoding").value(hello.getEncoding());
+                writer.name("version").value(hello.getVersion());
+                writer.name("token").value(hello.getToken());
+                writer.name("seq").value(hello.getSeq());
+                writer.name("compression").value(hello.getCompression());
+            } else if (packet instanceof Packet.List) {
+                Packet.List list = (Packet.List) packet;
+                writer.name("since").value(list.getSince());
+                writer.name("cursor").value(list.getCursor());
+                writer.name("limit").value(list.getLimit());
+                writer.name("prefix").value(list.getPrefix());
+            } else if (packet instanceof Packet.History) {
+                Packet.History history = (Packet.History) packet;
+                writer.name("roomid").value(history.getRoomid());
+                writer.name("limit").value(history.getLimit());
+            } else if (packet instanceof Packet.Search) {
+                Packet.Search search = (Packet.Search) packet;
+                writer.name("roomid").value(search.getRoomid());
+                writer.name("query").value(search.getQuery());
+                writer.name("limit").value(search.getLimit());
+            } else if (!(packet instanceof Packet.Quit) && !(packet instanceof Packet.Stats)) {
+                throw new IllegalArgumentException("Unknown packet " + packet.getClass().getName());
+            }
+            writer.name(Constant.TYPE).value(packet.type);
+            writer.endObject();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Decode a packet received by the server.
+     * @param json the JSON text of the packet
+     * @return the packet, or null for an empty line or a JSON null
+     * @throws JsonParseException if the text is not a known packet
+     */
+    public static Packet.ToServer decodeToServer(String json) {
+        Fields fields = read(json);
+        if (fields == null) return null;
+        switch (fields.type) {
+            case Constant.IDENTITY_CHANGE:
+                return new Packet.IdentityChange(fields.identity);
+            case Constant.JOIN:
+                return new Packet.Join(fields.roomid);
+            case Constant.WHO:
+                return new Packet.Who(fields.roomid, fields.cursor, fields.limit, fields.prefix);
+            case Constant.LIST:
+                return new Packet.List(fields.since, fields.cursor, fields.limit, fields.prefix);
+            case Constant.CREATE_ROOM:
+                return new Packet.CreateRoom(fields.roomid);
+            case Constant.DELETE:
+                return new Packet.Delete(fields.roomid);
+            case Constant.QUIT:
+                return new Packet.Quit();
+            case Constant.MESSAGE:
+                return new Packet.ToSMessage(fields.content);
+            case Constant.HELLO:
+                return new Packet.Hello(fields.encoding, toInteger(fields.version), fields.token, fields.seq,
+                        fields.compression);
+            case Constant.HISTORY:
+                return new Packet.History(fields.roomid, fields.limit);
+            case Constant.SEARCH:
+                return new Packet.Search(fields.roomid, fields.query, fields.limit);
+            case Constant.STATS:
+                return new Packet.Stats();
+            default:
+                throw new JsonParseException("Unknown packet type " + fields.type);
+        }
+    }
+
+    /**
+     * Decode a packet received by the client.
+     * @param json the JSON text of the packet
+     * @return the packet, or null for an empty line or a JSON null
+     * @throws JsonParseException if the text is not a known packet
+     */
+    public static Packet.ToClient decodeToClient(String json) {
+        Fields fields = read(json);
+        if (fields == null) return null;
+        switch (fields.type) {
+            case Constant.NEW_IDENTITY:
+                return new Packet.NewIdentity(fields.former, fields.identity);
+            case Constant.ROOM_CHANGE:
+                return new Packet.RoomChange(fields.identity, fields.former, fields.roomid);
+            case Constant.ROOM_CONTENTS:
+                return new Packet.RoomContents(fields.roomid, fields.identities, fields.owner, fields.next);
+            case Constant.ROOM_LIST:
+                return new Packet.RoomList(fields.rooms, fields.version, fields.next);
+            case Constant.ROOM_LIST_DELTA:
+                return new Packet.RoomListDelta(fields.since, fields.version, fields.rooms, fields.removed);
+            case Constant.MESSAGE:
+                return new Packet.ToCMessage(fields.content, fields.identity, fields.seq);
+            case Constant.WELCOME:
+                return new Packet.Welcome(fields.encoding, toInteger(fields.version), fields.token,
+                        fields.identity, fields.roomid, fields.compression);
+            case Constant.ROOM_HISTORY:
+                return new Packet.RoomHistory(fields.roomid, fields.messages);
+            case Constant.SEARCH_RESULT:
+                return new Packet.SearchResult(fields.roomid, fields.query, fields.messages);
+            case Constant.STATS_REPORT:
+                return new Packet.StatsReport(fields.report);
+            default:
+                throw new JsonParseException("Unknown packet type " + fields.type);
+        }
+    }
+
+    /**
+     * Encode the rooms carried by a {@link Packet.RoomList}.
+     * @param rooms rooms with their sizes
+     * @return the rooms as a JSON array
+     */
+    public static String encodeRooms(List<ChatRoom> rooms) {
+        StringWriter out = new StringWriter();
+        try (JsonWriter writer = newWriter(out)) {
+            writeRoomArray(writer, rooms);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Decode the rooms carried by a {@link Packet.RoomList}.
+     * @param json the rooms as a JSON array
+     * @return rooms with their sizes
+     */
+    public static List<ChatRoom> decodeRooms(String json) {
+        try (JsonReader reader = newReader(json)) {
+            return readRoomArray(reader);
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    /**
+     * Encode the identities carried by a {@link Packet.RoomContents}.
+     * @param identities identities of the guests
+     * @return the identities as a JSON array
+     */
+    public static String encodeIdentities(List<String> identities) {
+        StringWriter out = new StringWriter();
+        try (JsonWriter writer = newWriter(out)) {
+            writeIdentityArray(writer, identities);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Decode the identities carried by a {@link Packet.RoomContents}.
+     * @param json the identities as a JSON array
+     * @return identities of the guests
+     */
+    public static List<String> decodeIdentities(String json) {
+        try (JsonReader reader = newReader(json)) {
+            return readIdentityArray(reader);
+        } catch (IOException | IllegalStateException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    /**
+     * Encode the messages carried by a {@link Packet.RoomHistory} or a {@link Packet.SearchResult}.
+     * @param messages chat messages
+     * @return the messages as a JSON array
+     */
+    public static String encodeMessages(List<Packet.ToCMessage> messages) {
+        StringWriter out = new StringWriter();
+        try (JsonWriter writer = newWriter(out)) {
+            writeMessageArray(writer, messages);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Decode the messages carried by a {@link Packet.RoomHistory} or a {@link Packet.SearchResult}.
+     * @param json the messages as a JSON array
+     * @return chat messages
+     */
+    public static List<Packet.ToCMessage> decodeMessages(String json) {
+        try (JsonReader reader = newReader(json)) {
+            return readMessageArray(reader);
+        } catch (IOException | IllegalStateException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    private static void writeRooms(JsonWriter writer, List<ChatRoom> rooms, int version) throws IOException {
+        if (rooms == null) {
+            writer.nullValue();
+        } else if (version < Constant.PROTOCOL_V2) {
+            writer.value(encodeRooms(rooms));
+        } else {
+            writeRoomArray(writer, rooms);
+        }
+    }
+
+    private static void writeIdentities(JsonWriter writer, List<String> identities, int version) throws IOException {
+        if (identities == null) {
+            writer.nullValue();
+        } else if (version < Constant.PROTOCOL_V2) {
+            writer.value(encodeIdentities(identities));
+        } else {
+            writeIdentityArray(writer, identities);
+        }
+    }
+
+    private static void writeMessages(JsonWriter writer, List<Packet.ToCMessage> messages, int version)
+            throws IOException {
+        if (messages == null) {
+            writer.nullValue();
+        } else if (version < Constant.PROTOCOL_V2) {
+            writer.value(encodeMessages(messages));
+        } else {
+            writeMessageArray(writer, messages);
+        }
+    }
+
+    private static void writeRoomArray(JsonWriter writer, List<ChatRoom> rooms) throws IOException {
+        writer.beginArray();
+        for (ChatRoom room : rooms) {
+            writer.beginObject();
+            writer.name("roomid").value(room.getRoomid());
+            writer.name("count").value(room.getCount());
+            writer.endObject();
+        }
+        writer.endArray();
+    }
+
+    private static void writeIdentityArray(JsonWriter writer, List<String> identities) throws IOException {
+        writer.beginArray();
+        for (String identity : identities) {
+            writer.value(identity);
+        }
+        writer.endArray();
+    }
+
+    private static void writeMessageArray(JsonWriter writer, List<Packet.ToCMessage> messages) throws IOException {
+        writer.beginArray();
+        for (Packet.ToCMessage message : messages) {
+            writer.beginObject();
+            writer.name("content").value(message.getContent());
+            writer.name("identity").value(message.getIdentity());
+            writer.endObject();
+        }
+        writer.endArray();
+    }
+
+    /*
+     * A list of rooms, either a native array or one embedded in a string
+     */
+    private static List<ChatRoom> readRooms(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        if (token == JsonToken.STRING) return decodeRooms(reader.nextString());
+        return readRoomArray(reader);
+    }
+
+    /*
+     * A list of identities, either a native array or one embedded in a string
+     */
+    private static List<String> readIdentities(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        if (token == JsonToken.STRING) return decodeIdentities(reader.nextString());
+        return readIdentityArray(reader);
+    }
+
+    /*
+     * A list of messages, either a native array or one embedded in a string
+     */
+    private static List<Packet.ToCMessage> readMessages(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        if (token == JsonToken.STRING) return decodeMessages(reader.nextString());
+        return readMessageArray(reader);
+    }
+
+    private static List<ChatRoom> readRoomArray(JsonReader reader) throws IOException {
+        List<ChatRoom> rooms = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String roomid = null;
+            int count = 0;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "roomid":
+                        roomid = readString(reader);
+                        break;
+                    case "count":
+                        count = reader.nextInt();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            rooms.add(new ChatRoom(roomid, count));
+        }
+        reader.endArray();
+        return rooms;
+    }
+
+    private static List<String> readIdentityArray(JsonReader reader) throws IOException {
+        List<String> identities = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            identities.add(readString(reader));
+        }
+        reader.endArray();
+        return identities;
+    }
+
+    private static List<Packet.ToCMessage> readMessageArray(JsonReader reader) throws IOException {
+        List<Packet.ToCMessage> messages = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String content = null;
+            String identity = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "content":
+                        content = readString(reader);
+                        break;
+                    case "identity":
+                        identity = readString(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            messages.add(new Packet.ToCMessage(content, identity));
+        }
+        reader.endArray();
+        return messages;
+    }
+
+    /*
+     * The fields any packet may carry. The type may come after the other fields,
+     * so they are collected first and the packet is built once the object ends.
+     */
+    private static final class Fields {
+        String type;
+        String identity;
+        String former;
+        String roomid;
+        List<String> identities;
+        String owner;
+        List<ChatRoom> rooms;
+        String content;
+        String encoding;
+        Long since;
+        Long version;
+        List<String> removed;
+        String cursor;
+        Integer limit;
+        String prefix;
+        String next;
+        List<Packet.ToCMessage> messages;
+        String query;
+        String token;
+        Long seq;
+        String compression;
+        String report;
+    }
+
+    private static Fields read(String json) {
+        if (json == null || json.trim().isEmpty()) return null;
+        Fields fields = new Fields();
+        try (JsonReader reader = newReader(json)) {
+            // a bare null is what Gson writes for a missing packet
+            if (reader.peek() == JsonToken.NULL) return null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case Constant.TYPE:
+                        fields.type = readString(reader);
+                        break;
+                    case "identity":
+                        fields.identity = readString(reader);
+                        break;
+                    case "former":
+                        fields.former = readString(reader);
+                        break;
+                    case "roomid":
+                        fields.roomid = readString(reader);
+                        break;
+                    case "identities":
+                        fields.identities = readIdentities(reader);
+                        break;
+                    case "owner":
+                        fields.owner = readString(reader);
+                        break;
+                    case "rooms":
+                        fields.rooms = readRooms(reader);
+                        break;
+                    case "content":
+                        fields.content = readString(reader);
+                        break;
+                    case "encoding":
+                        fields.encoding = readString(reader);
+                        break;
+                    case "since":
+                        fields.since = readLong(reader);
+                        break;
+                    case "version":
+                        fields.version = readLong(reader);
+                        break;
+                    case "removed":
+                        fields.removed = readIdentities(reader);
+                        break;
+                    case "cursor":
+                        fields.cursor = readString(reader);
+                        break;
+                    case "limit":
+                        fields.limit = toInteger(readLong(reader));
+                        break;
+                    case "prefix":
+                        fields.prefix = readString(reader);
+                        break;
+                    case "next":
+                        fields.next = readString(reader);
+                        break;
+                    case "messages":
+                        fields.messages = readMessages(reader);
+                        break;
+                    case "query":
+                        fields.query = readString(reader);
+                        break;
+                    case "token":
+                        fields.token = readString(reader);
+                        break;
+                    case "seq":
+                        fields.seq = readLong(reader);
+                        break;
+                    case "compression":
+                        fields.compression = readString(reader);
+                        break;
+                    case "report":
+                        fields.report = readString(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+        if (fields.type == null) {
+            throw new JsonParseException("Packet does not define a field named " + Constant.TYPE);
+        }
+        return fields;
+    }
+
+    private static String readString(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        if (token == JsonToken.BOOLEAN) {
+            return Boolean.toString(reader.nextBoolean());
+        }
+        return reader.nextString();
+    }
+
+    private static Long readLong(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextLong();
+    }
+
+    private static Integer toInteger(Long value) {
+        if (value == null) return null;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new JsonSyntaxException("Number out of range: " + value);
+        }
+        return value.intValue();
+    }
+
+    private static JsonWriter newWriter(StringWriter out) {
+        JsonWriter writer = new JsonWriter(out);
+        // same settings as a default Gson
+        writer.setHtmlSafe(true);
+        writer.setSerializeNulls(false);
+        return writer;
+    }
+
+    private static JsonReader newReader(String json) {
+        JsonReader reader = new JsonReader(new StringReader(json));
+        reader.setLenient(true);
+        return reader;
+    }
+}
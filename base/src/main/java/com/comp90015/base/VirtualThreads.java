@@ -0,0 +1,69 @@
+package com.comp90015.base;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Access to virtual threads (Java 21+) while the project is still compiled for
+ * Java 11. The JDK methods are looked up once at class load, so on an older
+ * runtime {@link #isSupported()} is false and callers fall back to platform threads.
+ */
+public class VirtualThreads {
+
+    private static final MethodHandle NEW_EXECUTOR;
+    private static final MethodHandle START;
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        MethodHandle newExecutor = null;
+        MethodHandle start = null;
+        try {
+            newExecutor = lookup.findStatic(java.util.concurrent.Executors.class,
+                    "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+            start = lookup.findStatic(Thread.class,
+                    "startVirtualThread", MethodType.methodType(Thread.class, Runnable.class));
+        } catch (NoSuchMethodException | IllegalAccessException ignored) {
+            // running on a JDK without virtual threads
+        }
+        NEW_EXECUTOR = newExecutor;
+        START = start;
+    }
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isSupported() {
+        return NEW_EXECUTOR != null && START != null;
+    }
+
+    /**
+     * Create an executor that starts a new virtual thread for each task.
+     * @return the executor
+     * @throws UnsupportedOperationException if the runtime has no virtual threads
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (!isSupported()) throw new UnsupportedOperationException("Virtual threads require Java 21+");
+        try {
+            return (ExecutorService) NEW_EXECUTOR.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Run the task on a new virtual thread.
+     * @param task task to be run
+     * @return the started thread
+     * @throws UnsupportedOperationException if the runtime has no virtual threads
+     */
+    public static Thread start(Runnable task) {
+        if (!isSupported()) throw new UnsupportedOperationException("Virtual threads require Java 21+");
+        try {
+            return (Thread) START.invokeExact(task);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.comp90015.base;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BinaryCodecTest {
+
+    /*
+     * The body of a frame, without its varint length
+     */
+    private static byte[] body(byte[] frame) {
+        int offset = 0;
+        while ((frame[offset++] & 0x80) != 0) { }
+        return Arrays.copyOfRange(frame, offset, frame.length);
+    }
+
+    /*
+     * Packets have no equals, the latest JSON encoding compares every field
+     */
+    private static void assertRoundTrip(Packet.ToClient packet) {
+        Packet.ToClient decoded = BinaryCodec.decodeToClient(body(BinaryCodec.encode(packet)));
+        assertEquals(PacketCodec.encode(packet, Constant.PROTOCOL_V3), PacketCodec.encode(decoded, Constant.PROTOCOL_V3));
+    }
+
+    private static void assertRoundTrip(Packet.ToServer packet) {
+        Packet.ToServer decoded = BinaryCodec.decodeToServer(body(BinaryCodec.encode(packet)));
+        assertEquals(PacketCodec.encode(packet), PacketCodec.encode(decoded));
+    }
+
+    @Test
+    void roundTripsEveryPacketToClient() {
+        assertRoundTrip(new Packet.NewIdentity("guest1", "alice"));
+        assertRoundTrip(new Packet.RoomChange("alice", "MainHall", "comp90015"));
+        assertRoundTrip(new Packet.RoomContents("comp90015", Arrays.asList("alice", "bob"), "alice", "bob"));
+        assertRoundTrip(new Packet.RoomList(Arrays.asList(new ChatRoom("MainHall", 2), new ChatRoom("comp90015", 0)), 7L));
+        assertRoundTrip(new Packet.RoomListDelta(3L, 5L, Collections.singletonList(new ChatRoom("new", 1)),
+                Collections.singletonList("gone")));
+        assertRoundTrip(new Packet.ToCMessage("hello \u00e9\u4e16\ud83d\ude00", "alice", 42L));
+        // the messages of a list go without their numbers
+        assertRoundTrip(new Packet.RoomHistory("MainHall", Arrays.asList(
+                new Packet.ToCMessage("one", "alice"), new Packet.ToCMessage("two", "bob"))));
+        assertRoundTrip(new Packet.SearchResult("MainHall", "one", Collections.singletonList(
+                new Packet.ToCMessage("one", "alice"))));
+        assertRoundTrip(new Packet.StatsReport("report"));
+        assertRoundTrip(new Packet.Welcome(Constant.ENCODING_BINARY, 3, "token", "alice", "MainHall"));
+    }
+
+    @Test
+    void roundTripsEveryPacketToServer() {
+        assertRoundTrip(new Packet.IdentityChange("alice"));
+        assertRoundTrip(new Packet.Join("comp90015"));
+        assertRoundTrip(new Packet.Who("comp90015", "bob", 50, "a"));
+        assertRoundTrip(new Packet.List(4L, "room", 10, "c"));
+        assertRoundTrip(new Packet.CreateRoom("comp90015"));
+        assertRoundTrip(new Packet.Delete("comp90015"));
+        assertRoundTrip(new Packet.Quit());
+        assertRoundTrip(new Packet.Stats());
+        assertRoundTrip(new Packet.ToSMessage("hello"));
+        assertRoundTrip(new Packet.Hello(Constant.ENCODING_BINARY, 3, "token", 12L));
+        assertRoundTrip(new Packet.History("MainHall", 20));
+        assertRoundTrip(new Packet.Search("MainHall", "hello world", 5));
+    }
+
+    @Test
+    void keepsNullFieldsNull() {
+        assertRoundTrip(new Packet.RoomChange("alice", "", "MainHall"));
+        assertRoundTrip(new Packet.RoomContents("MainHall", null, null));
+        assertRoundTrip(new Packet.RoomList(null));
+        assertRoundTrip(new Packet.ToCMessage(null, "alice"));
+        assertRoundTrip(new Packet.List());
+        assertRoundTrip(new Packet.Hello(Constant.ENCODING_JSON));
+    }
+
+    @Test
+    void rejectsAnEmptyBody() {
+        assertThrows(IllegalArgumentException.class, () -> BinaryCodec.decodeToServer(new byte[0]));
+        assertThrows(IllegalArgumentException.class, () -> BinaryCodec.decodeToClient(new byte[0]));
+    }
+
+    @Test
+    void rejectsAnUnknownCode() {
+        assertThrows(IllegalArgumentException.class, () -> BinaryCodec.decodeToServer(new byte[]{127}));
+        assertThrows(IllegalArgumentException.class, () -> BinaryCodec.decodeToClient(new byte[]{Constant.CODE_JOIN}));
+    }
+
+    @Test
+    void rejectsAStringLongerThanTheBody() {
+        // a string of 9 bytes with 2 left in the body
+        byte[] body = {Constant.CODE_TO_S_MESSAGE, 10, 'h', 'i'};
+        assertThrows(IllegalArgumentException.class, () -> BinaryCodec.decodeToServer(body));
+    }
+
+    @Test
+    void rejectsANegativeStringLength() {
+        // a varint of 0xFFFFFFFF, a length of -2 once the null marker is taken off
+        byte[] body = {Constant.CODE_TO_S_MESSAGE, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F, 'h', 'i'};
+        assertThrows(IllegalArgumentException.class, () -> BinaryCodec.decodeToServer(body));
+    }
+
+    @Test
+    void rejectsANegativeCount() {
+        // a varint of ten bytes, a count of -2 once the null marker is taken off
+        byte[] body = {Constant.CODE_ROOM_CONTENTS, 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+                (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01, 2, 'a'};
+        assertThrows(IllegalArgumentException.class, () -> BinaryCodec.decodeToClient(body));
+    }
+
+    @Test
+    void rejectsAVarintThatDoesNotEnd() {
+        byte[] body = {Constant.CODE_TO_S_MESSAGE, (byte) 0x80, (byte) 0x80};
+        assertThrows(IllegalArgumentException.class, () -> BinaryCodec.decodeToServer(body));
+    }
+}
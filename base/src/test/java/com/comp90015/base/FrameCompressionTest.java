@@ -0,0 +1,97 @@
+package com.comp90015.base;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameCompressionTest {
+
+    private static byte[] json(Packet.ToClient packet) {
+        return PacketCodec.encode(packet, Constant.PROTOCOL_V3).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*
+     * The body of a frame, read as the client reads it
+     */
+    private static byte[] body(byte[] frame) throws IOException {
+        return new FrameReader(new ByteArrayInputStream(frame)).readFrame();
+    }
+
+    /*
+     * Longer than a deflate chunk, and not compressible to less than one
+     */
+    private static byte[] noise(int length) {
+        byte[] bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    void passesAnUncompressedFrameThrough() throws IOException {
+        byte[] body = json(new Packet.NewIdentity("guest1", "alice"));
+        FrameCompression.Receiver receiver = new FrameCompression.Receiver();
+        assertArrayEquals(body, receiver.inflate(body(FrameCompression.frame(body))));
+        receiver.end();
+    }
+
+    @Test
+    void roundTripsFramesCompressedOnTheirOwn() throws IOException {
+        byte[] message = json(new Packet.ToCMessage("hello hello hello hello hello", "alice", 7L));
+        FrameCompression.Receiver receiver = new FrameCompression.Receiver();
+        for (int level = 1; level <= 9; level++) {
+            byte[] frame = FrameCompression.deflate(message, level);
+            byte[] body = body(frame);
+            assertEquals(Constant.CODE_DEFLATED, body[0]);
+            // the dictionary holds what every chat message has in common
+            assertTrue(frame.length < message.length);
+            assertArrayEquals(message, receiver.inflate(body));
+        }
+        byte[] large = noise(20_000);
+        assertArrayEquals(large, receiver.inflate(body(FrameCompression.deflate(large, 6))));
+        receiver.end();
+    }
+
+    @Test
+    void roundTripsTheStreamOfAConnection() throws IOException {
+        FrameCompression.Context context = new FrameCompression.Context(6);
+        FrameCompression.Receiver receiver = new FrameCompression.Receiver();
+        byte[] first = json(new Packet.ToCMessage("the same words again", "alice", 1L));
+        byte[] second = json(new Packet.ToCMessage("the same words again", "alice", 2L));
+        byte[] firstFrame = context.deflate(first);
+        byte[] secondFrame = context.deflate(second);
+        assertEquals(Constant.CODE_DEFLATED_CONTEXT, body(firstFrame)[0]);
+        // refers back to the packet before it
+        assertTrue(secondFrame.length < firstFrame.length);
+        assertArrayEquals(first, receiver.inflate(body(firstFrame)));
+        assertArrayEquals(second, receiver.inflate(body(secondFrame)));
+        // frames compressed on their own may come in between
+        byte[] single = json(new Packet.RoomChange("alice", "MainHall", "comp90015"));
+        assertArrayEquals(single, receiver.inflate(body(FrameCompression.deflate(single, 1))));
+        byte[] large = noise(20_000);
+        assertArrayEquals(large, receiver.inflate(body(context.deflate(large))));
+        assertArrayEquals(first, receiver.inflate(body(context.deflate(first))));
+        context.end();
+        receiver.end();
+    }
+
+    @Test
+    void rejectsACorruptFrame() throws IOException {
+        byte[] body = body(FrameCompression.deflate(noise(1000), 6));
+        byte[] corrupt = Arrays.copyOf(body, body.length);
+        for (int i = 1; i < 8; i++) {
+            corrupt[i] ^= (byte) 0xff;
+        }
+        FrameCompression.Receiver receiver = new FrameCompression.Receiver();
+        assertThrows(IllegalArgumentException.class, () -> receiver.inflate(corrupt));
+        receiver.end();
+    }
+}
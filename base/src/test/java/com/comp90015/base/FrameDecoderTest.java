@@ -0,0 +1,109 @@
+package com.comp90015.base;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FrameDecoderTest {
+
+    @Test
+    void decodesLines() {
+        FrameDecoder decoder = new FrameDecoder();
+        ByteBuffer buffer = ByteBuffer.wrap("one\r\ntwo\n\npart".getBytes(StandardCharsets.UTF_8));
+        assertEquals("one", decoder.nextLine(buffer));
+        assertEquals("two", decoder.nextLine(buffer));
+        assertEquals("", decoder.nextLine(buffer));
+        assertNull(decoder.nextLine(buffer));
+        assertEquals(0, buffer.remaining());
+        // the rest of the line arrives later
+        assertEquals("partial", decoder.nextLine(ByteBuffer.wrap("ial\r\n".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    void decodesALineSplitInsideACharacter() {
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] bytes = "\u00e9\u4e16\ud83d\ude00\n".getBytes(StandardCharsets.UTF_8);
+        String line = null;
+        for (byte b : bytes) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1);
+            buffer.put(b).flip();
+            line = decoder.nextLine(buffer);
+        }
+        assertEquals("\u00e9\u4e16\ud83d\ude00", line);
+    }
+
+    @Test
+    void decodesFramesSplitAnywhere() {
+        byte[] first = BinaryCodec.encode(new Packet.ToSMessage("hello"));
+        byte[] second = BinaryCodec.encode(new Packet.ToSMessage(new String(new char[300]).replace('\0', 'x')));
+        byte[] bytes = new byte[first.length + second.length];
+        System.arraycopy(first, 0, bytes, 0, first.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        FrameDecoder decoder = new FrameDecoder();
+        byte[][] frames = new byte[2][];
+        int n = 0;
+        for (byte b : bytes) {
+            byte[] frame = decoder.nextFrame(ByteBuffer.wrap(new byte[]{b}));
+            if (frame != null) frames[n++] = frame;
+        }
+        assertEquals(2, n);
+        assertArrayEquals(Arrays.copyOfRange(first, 1, first.length), frames[0]);
+        assertArrayEquals(Arrays.copyOfRange(second, 2, second.length), frames[1]);
+    }
+
+    @Test
+    void decodesSeveralFramesFromOneBuffer() {
+        FrameDecoder decoder = new FrameDecoder();
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{0, 2, 'h', 'i', 3, 'x'});
+        assertArrayEquals(new byte[0], decoder.nextFrame(buffer));
+        assertArrayEquals(new byte[]{'h', 'i'}, decoder.nextFrame(buffer));
+        assertNull(decoder.nextFrame(buffer));
+        assertArrayEquals(new byte[]{'x', 'y', 'z'}, decoder.nextFrame(ByteBuffer.wrap(new byte[]{'y', 'z'})));
+    }
+
+    @Test
+    void rejectsALengthOverflowingAnInt() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F});
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> new FrameDecoder().nextFrame(buffer));
+        assertEquals("Malformed frame length", e.getMessage());
+    }
+
+    @Test
+    void rejectsAFrameTooLarge() {
+        // a varint of 16 MiB and one byte
+        byte[] length = {(byte) 0x81, (byte) 0x80, (byte) 0x80, 0x08};
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> new FrameDecoder().nextFrame(ByteBuffer.wrap(length)));
+        assertEquals("Frame too large: " + (Constant.MAX_FRAME_LENGTH + 1), e.getMessage());
+    }
+
+    @Test
+    void rejectsALineLongerThanAFrame() {
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] chunk = new byte[64 * 1024];
+        Arrays.fill(chunk, (byte) 'x');
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> {
+            // a client that never ends its line
+            for (int read = 0; read <= Constant.MAX_FRAME_LENGTH; read += chunk.length) {
+                assertNull(decoder.nextLine(ByteBuffer.wrap(chunk)));
+            }
+        });
+        assertEquals("Line too long", e.getMessage());
+    }
+
+    @Test
+    void decodesALineOfTheLongestLength() {
+        FrameDecoder decoder = new FrameDecoder();
+        byte[] bytes = new byte[Constant.MAX_FRAME_LENGTH + 1];
+        Arrays.fill(bytes, (byte) 'x');
+        bytes[bytes.length - 1] = '\n';
+        assertEquals(Constant.MAX_FRAME_LENGTH, decoder.nextLine(ByteBuffer.wrap(bytes)).length());
+    }
+}
@@ -0,0 +1,132 @@
+package com.comp90015.base;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FrameReaderTest {
+
+    private static FrameReader reader(byte[] bytes) {
+        return new FrameReader(new ByteArrayInputStream(bytes));
+    }
+
+    private static FrameReader reader(String text) {
+        return reader(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /*
+     * A stream handing out one byte per read, so every line and frame is split
+     */
+    private static FrameReader trickle(byte[] bytes) {
+        return new FrameReader(new InputStream() {
+            private int position = 0;
+
+            @Override
+            public int read() {
+                return position < bytes.length ? bytes[position++] & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (position == bytes.length) return -1;
+                b[off] = bytes[position++];
+                return 1;
+            }
+        });
+    }
+
+    @Test
+    void readsLines() throws IOException {
+        FrameReader reader = reader("one\r\ntwo\n\nthree");
+        assertEquals("one", reader.readLine());
+        assertEquals("two", reader.readLine());
+        assertEquals("", reader.readLine());
+        assertEquals("three", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    @Test
+    void readsLinesSplitAcrossReads() throws IOException {
+        FrameReader reader = trickle("\u00e9\u4e16\ud83d\ude00\r\nsecond\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals("\u00e9\u4e16\ud83d\ude00", reader.readLine());
+        assertEquals("second", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    @Test
+    void readsFrames() throws IOException {
+        byte[] first = BinaryCodec.encode(new Packet.ToSMessage("hello"));
+        byte[] second = BinaryCodec.encode(new Packet.ToSMessage(new String(new char[300]).replace('\0', 'x')));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(first);
+        out.write(second);
+        FrameReader reader = trickle(out.toByteArray());
+        assertArrayEquals(Arrays.copyOfRange(first, 1, first.length), reader.readFrame());
+        // a body of more than 127 bytes takes a length of two bytes
+        assertArrayEquals(Arrays.copyOfRange(second, 2, second.length), reader.readFrame());
+        assertNull(reader.readFrame());
+    }
+
+    @Test
+    void readsAnEmptyFrame() throws IOException {
+        assertArrayEquals(new byte[0], reader(new byte[]{0}).readFrame());
+    }
+
+    @Test
+    void failsWhenTheStreamEndsInsideAFrame() {
+        assertThrows(EOFException.class, () -> reader(new byte[]{5, 1, 2}).readFrame());
+        assertThrows(EOFException.class, () -> reader(new byte[]{(byte) 0x80}).readFrame());
+    }
+
+    @Test
+    void rejectsALengthOverflowingAnInt() {
+        byte[] bytes = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F};
+        IOException e = assertThrows(IOException.class, () -> reader(bytes).readFrame());
+        assertEquals("Malformed frame length", e.getMessage());
+    }
+
+    @Test
+    void rejectsAFrameTooLarge() {
+        byte[] bytes = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07};
+        IOException e = assertThrows(IOException.class, () -> reader(bytes).readFrame());
+        assertEquals("Frame too large: " + Integer.MAX_VALUE, e.getMessage());
+    }
+
+    @Test
+    void rejectsALineLongerThanAFrame() {
+        // a peer that never ends its line
+        InputStream endless = new InputStream() {
+            @Override
+            public int read() {
+                return 'x';
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                Arrays.fill(b, off, off + len, (byte) 'x');
+                return len;
+            }
+        };
+        IOException e = assertThrows(IOException.class, () -> new FrameReader(endless).readLine());
+        assertEquals("Line too long", e.getMessage());
+    }
+
+    @Test
+    void readsALineOfTheLongestLength() throws IOException {
+        byte[] bytes = new byte[Constant.MAX_FRAME_LENGTH + 1];
+        Arrays.fill(bytes, (byte) 'x');
+        bytes[bytes.length - 1] = '\n';
+        assertEquals(Constant.MAX_FRAME_LENGTH, reader(bytes).readLine().length());
+    }
+}
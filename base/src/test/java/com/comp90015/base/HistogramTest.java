@@ -0,0 +1,90 @@
+package com.comp90015.base;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistogramTest {
+
+    @Test
+    void everyValueFallsInTheBucketEndingAtOrAfterIt() {
+        List<Long> values = new ArrayList<>();
+        for (long value = 0; value < 5000; value++) {
+            values.add(value);
+        }
+        for (int shift = 12; shift < 63; shift++) {
+            values.add((1L << shift) - 1);
+            values.add(1L << shift);
+            values.add((1L << shift) + 12345);
+        }
+        values.add(Long.MAX_VALUE);
+        for (long value : values) {
+            int bucket = Histogram.bucket(value);
+            assertTrue(Histogram.highest(bucket) >= value, "bucket of " + value);
+            if (bucket > 0) assertTrue(Histogram.highest(bucket - 1) < value, "bucket of " + value);
+            // off by at most an eighth
+            assertTrue(Histogram.highest(bucket) - value <= value / 8, "bucket of " + value);
+        }
+        assertEquals(Histogram.BUCKETS - 1, Histogram.bucket(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, Histogram.highest(Histogram.BUCKETS - 1));
+    }
+
+    @Test
+    void summarisesTheRecordedValues() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.snapshot().percentile(99));
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500_500, snapshot.getSum());
+        assertEquals(500.5, snapshot.getMean());
+        assertEquals(1000, snapshot.getMax());
+        long median = snapshot.percentile(50);
+        assertTrue(median >= 500 && median <= 500 + 500 / 8, "median " + median);
+        long p99 = snapshot.percentile(99);
+        assertTrue(p99 >= 990 && p99 <= 1000, "p99 " + p99);
+        // never past the largest value recorded
+        assertEquals(1000, snapshot.percentile(100));
+        assertEquals(1, snapshot.percentile(0));
+    }
+
+    @Test
+    void countsANegativeValueAsZero() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1, snapshot.getCount());
+        assertEquals(0, snapshot.getSum());
+        assertEquals(0, snapshot.percentile(100));
+    }
+
+    @Test
+    void missesNothingRecordedFromManyThreads() throws InterruptedException {
+        Histogram histogram = new Histogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            long value = t + 1;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    histogram.record(value);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(80_000, snapshot.getCount());
+        assertEquals(10_000L * (1 + 2 + 3 + 4 + 5 + 6 + 7 + 8), snapshot.getSum());
+        assertEquals(8, snapshot.getMax());
+    }
+}
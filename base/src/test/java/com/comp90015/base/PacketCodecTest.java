@@ -0,0 +1,198 @@
+package com.comp90015.base;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PacketCodecTest {
+
+    private static final Gson GSON = new Gson();
+
+    /*
+     * The packets of the original protocol, as its server serialised them with Gson
+     */
+    private abstract static class Original {
+        protected final String type;
+
+        Original(String type) {
+            this.type = type;
+        }
+    }
+
+    private static final class OriginalRoomContents extends Original {
+        private final String roomid;
+        private final String identities;
+        private final String owner;
+
+        OriginalRoomContents(String roomid, List<String> identities, String owner) {
+            super(Constant.ROOM_CONTENTS);
+            this.roomid = roomid;
+            this.identities = GSON.toJson(identities);
+            this.owner = owner;
+        }
+    }
+
+    private static final class OriginalRoomList extends Original {
+        private final String rooms;
+
+        OriginalRoomList(List<ChatRoom> rooms) {
+            super(Constant.ROOM_LIST);
+            this.rooms = GSON.toJson(rooms);
+        }
+    }
+
+    private static final class OriginalToCMessage extends Original {
+        private final String content;
+        private final String identity;
+
+        OriginalToCMessage(String content, String identity) {
+            super(Constant.MESSAGE);
+            this.content = content;
+            this.identity = identity;
+        }
+    }
+
+    private static List<Packet.ToClient> packetsToClient() {
+        return Arrays.asList(
+                new Packet.NewIdentity("guest1", "alice"),
+                new Packet.RoomChange("alice", "MainHall", "comp90015"),
+                new Packet.RoomContents("comp90015", Arrays.asList("alice", "bob"), "alice", "bob"),
+                new Packet.RoomList(Arrays.asList(new ChatRoom("MainHall", 2), new ChatRoom("comp90015", 0)), 7L),
+                new Packet.RoomListDelta(3L, 5L, Collections.singletonList(new ChatRoom("new", 1)),
+                        Collections.singletonList("gone")),
+                new Packet.ToCMessage("say \"hi\"\n\u2028\u00e9\u4e16\ud83d\ude00", "alice", 42L),
+                new Packet.StatsReport("report"),
+                new Packet.Welcome(Constant.ENCODING_JSON, 3, "token", "alice", "MainHall"));
+    }
+
+    private static List<Packet.ToServer> packetsToServer() {
+        return Arrays.asList(
+                new Packet.IdentityChange("alice"),
+                new Packet.Join("comp90015"),
+                new Packet.Who("comp90015", "bob", 50, "a"),
+                new Packet.List(4L, "room", 10, "c"),
+                new Packet.CreateRoom("comp90015"),
+                new Packet.Delete("comp90015"),
+                new Packet.Quit(),
+                new Packet.Stats(),
+                new Packet.ToSMessage("say \"hi\"\n\u2028\u00e9\u4e16\ud83d\ude00"),
+                new Packet.Hello(Constant.ENCODING_BINARY, 3, "token", 12L),
+                new Packet.History("MainHall", 20),
+                new Packet.Search("MainHall", "hello world", 5));
+    }
+
+    @Test
+    void roundTripsEveryPacketToClientInEveryVersion() {
+        List<Packet.ToClient> packets = packetsToClient();
+        for (int version = Constant.PROTOCOL_V1; version <= Constant.PROTOCOL_V3; version++) {
+            for (Packet.ToClient packet : packets) {
+                String json = PacketCodec.encode(packet, version);
+                assertEquals(json, PacketCodec.encode(PacketCodec.decodeToClient(json), version));
+            }
+        }
+    }
+
+    @Test
+    void roundTripsMessageLists() {
+        List<Packet.ToCMessage> messages = Arrays.asList(
+                new Packet.ToCMessage("one", "alice", 1L), new Packet.ToCMessage("two", "bob", 2L));
+        for (int version = Constant.PROTOCOL_V1; version <= Constant.PROTOCOL_V3; version++) {
+            for (Packet.ToClient packet : Arrays.asList(new Packet.RoomHistory("MainHall", messages),
+                    new Packet.SearchResult("MainHall", "one", messages))) {
+                String json = PacketCodec.encode(packet, version);
+                assertEquals(json, PacketCodec.encode(PacketCodec.decodeToClient(json), version));
+            }
+        }
+        String json = PacketCodec.encodeMessages(messages);
+        assertEquals(json, PacketCodec.encodeMessages(PacketCodec.decodeMessages(json)));
+    }
+
+    @Test
+    void roundTripsEveryPacketToServer() {
+        for (Packet.ToServer packet : packetsToServer()) {
+            String json = PacketCodec.encode(packet);
+            assertEquals(json, PacketCodec.encode(PacketCodec.decodeToServer(json)));
+        }
+    }
+
+    @Test
+    void writesTheSameBytesAsGson() {
+        // clients parse with Gson, the latest version carries every field of a packet
+        for (Packet.ToClient packet : packetsToClient()) {
+            assertEquals(GSON.toJson(packet), PacketCodec.encode(packet, Constant.PROTOCOL_V3));
+        }
+        for (Packet.ToServer packet : packetsToServer()) {
+            assertEquals(GSON.toJson(packet), PacketCodec.encode(packet));
+        }
+        List<ChatRoom> rooms = Arrays.asList(new ChatRoom("MainHall", 2), new ChatRoom("comp90015", 0));
+        assertEquals(GSON.toJson(rooms), PacketCodec.encodeRooms(rooms));
+        List<String> identities = Arrays.asList("alice", "bob");
+        assertEquals(GSON.toJson(identities), PacketCodec.encodeIdentities(identities));
+    }
+
+    @Test
+    void writesTheFirstVersionAsTheOriginalServerDid() {
+        List<String> identities = Arrays.asList("alice", "bob");
+        List<ChatRoom> rooms = Arrays.asList(new ChatRoom("MainHall", 2), new ChatRoom("comp90015", 0));
+        String content = "say \"hi\"\n\u2028\u00e9\u4e16\ud83d\ude00";
+        assertEquals(GSON.toJson(new OriginalRoomContents("comp90015", identities, "alice")),
+                PacketCodec.encode(new Packet.RoomContents("comp90015", identities, "alice", "bob"),
+                        Constant.PROTOCOL_V1));
+        assertEquals(GSON.toJson(new OriginalRoomList(rooms)),
+                PacketCodec.encode(new Packet.RoomList(rooms, 7L, "comp90015"), Constant.PROTOCOL_V1));
+        assertEquals(GSON.toJson(new OriginalToCMessage(content, "alice")),
+                PacketCodec.encode(new Packet.ToCMessage(content, "alice", 42L), Constant.PROTOCOL_V1));
+    }
+
+    @Test
+    void writesTheFieldsOfEachVersionOnlyToItsClients() {
+        Packet.ToCMessage message = new Packet.ToCMessage("hi", "alice", 42L);
+        assertNull(((Packet.ToCMessage) PacketCodec.decodeToClient(
+                PacketCodec.encode(message, Constant.PROTOCOL_V2))).getSeq());
+        assertEquals(42L, ((Packet.ToCMessage) PacketCodec.decodeToClient(
+                PacketCodec.encode(message, Constant.PROTOCOL_V3))).getSeq());
+        Packet.RoomList list = (Packet.RoomList) PacketCodec.decodeToClient(PacketCodec.encode(
+                new Packet.RoomList(Collections.emptyList(), 7L, "next"), Constant.PROTOCOL_V2));
+        assertEquals(7L, list.getVersion());
+        assertEquals("next", list.getNext());
+    }
+
+    @Test
+    void embedsListsAsStringsInTheFirstVersion() {
+        Packet.RoomContents packet = new Packet.RoomContents("MainHall", Arrays.asList("alice", "bob"), "");
+        String json = PacketCodec.encode(packet, Constant.PROTOCOL_V1);
+        Packet.RoomContents decoded = (Packet.RoomContents) PacketCodec.decodeToClient(json);
+        assertEquals(Arrays.asList("alice", "bob"), decoded.getIdentities());
+        assertEquals(PacketCodec.encodeIdentities(packet.getIdentities()),
+                JsonParser.parseString(json).getAsJsonObject().get("identities").getAsString());
+    }
+
+    @Test
+    void decodesNothingFromABlankLine() {
+        assertNull(PacketCodec.decodeToServer(null));
+        assertNull(PacketCodec.decodeToServer(""));
+        assertNull(PacketCodec.decodeToServer("null"));
+        assertNull(PacketCodec.decodeToClient("  "));
+    }
+
+    @Test
+    void rejectsAnUnknownType() {
+        assertThrows(JsonParseException.class, () -> PacketCodec.decodeToServer("{\"type\":\"nonsense\"}"));
+        assertThrows(JsonParseException.class, () -> PacketCodec.decodeToClient("{\"type\":\"join\"}"));
+    }
+
+    @Test
+    void rejectsMalformedJson() {
+        assertThrows(JsonParseException.class, () -> PacketCodec.decodeToServer("{\"type\":"));
+        assertThrows(JsonParseException.class, () -> PacketCodec.decodeToServer("[1, 2]"));
+    }
+}
@@ -0,0 +1,58 @@
+package com.comp90015;
+
+import com.comp90015.base.Constant;
+import com.comp90015.base.Packet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Server#broadcast} to rooms of 10 to 100k guests, each sent to over an
+ * in-memory socket. A chat message is numbered and kept in the scrollback as
+ * well, any other packet is only sent.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    private static final String ROOMID = "bench";
+
+    @Param({"10", "100", "1000", "10000", "100000"})
+    int members;
+
+    @Param({Constant.ENCODING_JSON, Constant.ENCODING_BINARY})
+    String encoding;
+
+    private Server server;
+
+    @Setup
+    public void setUp() {
+        server = InMemoryServer.create();
+        InMemoryServer.fill(server, ROOMID, members, encoding);
+    }
+
+    @Benchmark
+    public void chatMessage() {
+        server.broadcast(new Packet.ToCMessage("the quick brown fox jumps over the lazy dog", "guest1"), ROOMID, null);
+    }
+
+    @Benchmark
+    public void roomChange() {
+        server.broadcast(new Packet.RoomChange("guest1", ROOMID, ROOMID), ROOMID, null);
+    }
+}
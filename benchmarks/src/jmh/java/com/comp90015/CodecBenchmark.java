@@ -0,0 +1,169 @@
+package com.comp90015;
+
+import com.comp90015.base.BinaryCodec;
+import com.comp90015.base.ChatRoom;
+import com.comp90015.base.Constant;
+import com.comp90015.base.Packet;
+import com.comp90015.base.PacketCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of every {@link Packet} type, as JSON text and as a
+ * binary body. The packets that carry lists carry as many entries as a page.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({
+            // sent by the server
+            "NewIdentity", "RoomChange", "RoomContents", "RoomList", "RoomListDelta", "ToCMessage",
+            "RoomHistory", "SearchResult", "StatsReport", "Welcome",
+            // sent by clients
+            "IdentityChange", "Join", "Who", "List", "CreateRoom", "Delete", "Quit", "Stats",
+            "ToSMessage", "History", "Search", "Hello"})
+    String packet;
+
+    // one of the two is set, by the direction the packet goes in
+    private Packet.ToClient toClient;
+    private Packet.ToServer toServer;
+    private String json;
+    private byte[] body;
+
+    @Setup
+    public void setUp() {
+        List<String> identities = new ArrayList<>();
+        List<ChatRoom> rooms = new ArrayList<>();
+        List<Packet.ToCMessage> messages = new ArrayList<>();
+        for (int i = 0; i < Constant.DEFAULT_PAGE_SIZE; i++) {
+            identities.add("guest" + i);
+            rooms.add(new ChatRoom("room" + i, i));
+            messages.add(new Packet.ToCMessage("the quick brown fox jumps over the lazy dog", "guest" + i, (long) i));
+        }
+        switch (packet) {
+            case "NewIdentity":
+                toClient = new Packet.NewIdentity("guest1", "alice");
+                break;
+            case "RoomChange":
+                toClient = new Packet.RoomChange("guest1", Constant.MAINHALL, "room1");
+                break;
+            case "RoomContents":
+                toClient = new Packet.RoomContents(Constant.MAINHALL, identities, "", "guest99");
+                break;
+            case "RoomList":
+                toClient = new Packet.RoomList(rooms, 42L, "room99");
+                break;
+            case "RoomListDelta":
+                toClient = new Packet.RoomListDelta(40L, 42L, rooms.subList(0, 2), Arrays.asList("room7"));
+                break;
+            case "ToCMessage":
+                toClient = messages.get(1);
+                break;
+            case "RoomHistory":
+                toClient = new Packet.RoomHistory(Constant.MAINHALL, messages);
+                break;
+            case "SearchResult":
+                toClient = new Packet.SearchResult(Constant.MAINHALL, "quick fox", messages);
+                break;
+            case "StatsReport":
+                toClient = new Packet.StatsReport(new Metrics().report(10, 2, new OutboundLimits()));
+                break;
+            case "Welcome":
+                toClient = new Packet.Welcome(Constant.ENCODING_BINARY, Constant.PROTOCOL_V3, "token", "guest1",
+                        Constant.MAINHALL, Constant.COMPRESSION_DEFLATE);
+                break;
+            case "IdentityChange":
+                toServer = new Packet.IdentityChange("alice");
+                break;
+            case "Join":
+                toServer = new Packet.Join("room1");
+                break;
+            case "Who":
+                toServer = new Packet.Who(Constant.MAINHALL, "guest9", Constant.DEFAULT_PAGE_SIZE, "guest");
+                break;
+            case "List":
+                toServer = new Packet.List(42L);
+                break;
+            case "CreateRoom":
+                toServer = new Packet.CreateRoom("room1");
+                break;
+            case "Delete":
+                toServer = new Packet.Delete("room1");
+                break;
+            case "Quit":
+                toServer = new Packet.Quit();
+                break;
+            case "Stats":
+                toServer = new Packet.Stats();
+                break;
+            case "ToSMessage":
+                toServer = new Packet.ToSMessage("the quick brown fox jumps over the lazy dog");
+                break;
+            case "History":
+                toServer = new Packet.History(Constant.MAINHALL, Constant.DEFAULT_PAGE_SIZE);
+                break;
+            case "Search":
+                toServer = new Packet.Search(Constant.MAINHALL, "quick fox", 20);
+                break;
+            case "Hello":
+                toServer = new Packet.Hello(Constant.ENCODING_BINARY, Constant.PROTOCOL_V3, "token", 42L,
+                        Constant.COMPRESSION_DEFLATE);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown packet " + packet);
+        }
+        json = toClient != null ? PacketCodec.encode(toClient, Constant.PROTOCOL_V3) : PacketCodec.encode(toServer);
+        body = body(toClient != null ? BinaryCodec.encode(toClient) : BinaryCodec.encode(toServer));
+    }
+
+    /**
+     * The body of a binary frame, as a connection hands it to the decoder.
+     * @param frame the length-prefixed frame
+     * @return the frame without its length prefix
+     */
+    static byte[] body(byte[] frame) {
+        int prefix = 1;
+        while ((frame[prefix - 1] & 0x80) != 0) prefix++;
+        return Arrays.copyOfRange(frame, prefix, frame.length);
+    }
+
+    @Benchmark
+    public String encodeJSON() {
+        return toClient != null ? PacketCodec.encode(toClient, Constant.PROTOCOL_V3) : PacketCodec.encode(toServer);
+    }
+
+    @Benchmark
+    public Object decodeJSON() {
+        return toClient != null ? PacketCodec.decodeToClient(json) : PacketCodec.decodeToServer(json);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return toClient != null ? BinaryCodec.encode(toClient) : BinaryCodec.encode(toServer);
+    }
+
+    @Benchmark
+    public Object decodeBinary() {
+        return toClient != null ? BinaryCodec.decodeToClient(body) : BinaryCodec.decodeToServer(body);
+    }
+}
@@ -0,0 +1,67 @@
+package com.comp90015;
+
+import com.comp90015.base.Constant;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Server#isValidIdentity} and claiming an identity with 10 to 100k
+ * identities in use.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdentityBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    int users;
+
+    private Server server;
+    private ServerConn conn;
+
+    @Setup
+    public void setUp() {
+        server = InMemoryServer.create();
+        conn = InMemoryServer.connect(server, Constant.ENCODING_JSON);
+        for (int i = 0; i < users; i++) {
+            server.claimIdentity("user" + i, conn).join();
+        }
+    }
+
+    @Benchmark
+    public boolean valid() {
+        return server.isValidIdentity("newcomer42");
+    }
+
+    @Benchmark
+    public boolean invalid() {
+        return server.isValidIdentity("new-comer!");
+    }
+
+    @Benchmark
+    public boolean claimTaken() {
+        return server.claimIdentity("user0", conn).join();
+    }
+
+    @Benchmark
+    public boolean claimAndRelease() {
+        boolean claimed = server.claimIdentity("newcomer42", conn).join();
+        server.releaseIdentity("newcomer42", conn);
+        return claimed;
+    }
+}
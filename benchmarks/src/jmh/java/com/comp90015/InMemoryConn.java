@@ -0,0 +1,50 @@
+package com.comp90015;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A guest for the benchmarks' large rooms. Frames go through an outbound queue
+ * and are written to an {@link InMemorySocket} on the sending thread, as a
+ * {@link BlockingServerConn} writes them on its writer, but without the write
+ * buffer each of those holds, so a room of 100k guests fits in a small heap.
+ */
+public class InMemoryConn extends ServerConn {
+
+    private final InMemorySocket socket = new InMemorySocket();
+    private final OutputStream out = socket.getOutputStream();
+    private final OutboundQueue outbound;
+
+    public InMemoryConn(Server server) {
+        super(server);
+        outbound = new OutboundQueue(server.getOutboundLimits());
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+
+    @Override
+    protected void sendFrame(Frame frame) {
+        if (!outbound.offer(frame)) return;
+        try {
+            int frames = 0;
+            while ((frame = outbound.poll()) != null) {
+                out.write(frame.bytes());
+                frames++;
+            }
+            if (frames > 0) server.getOutboundLimits().addSocketWrite(frames);
+        } catch (IOException e) {
+            // an in-memory socket does not fail
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return bytes written to the guest so far
+     */
+    public long getWritten() {
+        return socket.getWritten();
+    }
+}
@@ -0,0 +1,113 @@
+package com.comp90015;
+
+import com.comp90015.base.Constant;
+import com.comp90015.base.Packet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A server whose connections run over {@link InMemorySocket}s, set up for the
+ * benchmarks. The connections' reader threads are never started, a benchmark
+ * feeds them packets itself. Their writer tasks run on the thread sending, so
+ * the cost of a send includes writing it out. The guests filling a room are
+ * {@link InMemoryConn}s, which need less memory.
+ */
+public final class InMemoryServer {
+
+    private InMemoryServer() {
+    }
+
+    /**
+     * @return a server that does not listen, holding only the Main Hall
+     */
+    public static Server create() {
+        Server server = new Server(0, new DirectExecutorService());
+        // resuming would hand out tokens and keep dropped sessions around
+        server.setResumeLimits(new ResumeLimits(0, 0, 0));
+        return server;
+    }
+
+    /**
+     * Connect a new client, greeted and speaking the given encoding.
+     * @param server the server
+     * @param encoding {@link Constant#ENCODING_JSON} or {@link Constant#ENCODING_BINARY}
+     * @return the client's connection, in the Main Hall
+     */
+    public static BlockingServerConn connect(Server server, String encoding) {
+        try {
+            return hello(new BlockingServerConn(server, new InMemorySocket()), encoding);
+        } catch (IOException e) {
+            // an in-memory socket does not fail
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static <T extends ServerConn> T hello(T conn, String encoding) {
+        conn.handle(new Packet.Hello(encoding, Constant.PROTOCOL_V2));
+        return conn;
+    }
+
+    /**
+     * Create a room and connect the given number of clients into it. Each one
+     * leaves the Main Hall as soon as it is greeted, so setting up a large room
+     * takes time in proportion to its size.
+     * @param server the server
+     * @param roomid room to create
+     * @param members clients to connect
+     * @param encoding encoding every client speaks
+     * @return the clients' connections
+     */
+    public static List<InMemoryConn> fill(Server server, String roomid, int members, String encoding) {
+        server.createRoom(roomid, "").join();
+        List<InMemoryConn> conns = new ArrayList<>(members);
+        for (int i = 0; i < members; i++) {
+            InMemoryConn conn = hello(new InMemoryConn(server), encoding);
+            server.joinRoom(conn, roomid);
+            conns.add(conn);
+        }
+        return conns;
+    }
+
+    /**
+     * Runs every task on the thread submitting it.
+     */
+    private static class DirectExecutorService extends AbstractExecutorService {
+        private volatile boolean shutdown = false;
+
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return shutdown;
+        }
+    }
+}
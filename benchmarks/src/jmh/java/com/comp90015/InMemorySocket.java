@@ -0,0 +1,62 @@
+package com.comp90015;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * A socket that never touches the network, for the benchmarks. Reading finds
+ * the end of the stream at once, and what is written is only counted, so a
+ * benchmark measures the server's work and not the kernel's.
+ */
+public class InMemorySocket extends Socket {
+
+    private final CountingOutputStream out = new CountingOutputStream();
+    private volatile boolean closed = false;
+
+    @Override
+    public InputStream getInputStream() {
+        return InputStream.nullInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    /**
+     * @return bytes written to the socket so far
+     */
+    public long getWritten() {
+        return out.written;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long written = 0;
+
+        @Override
+        public void write(int b) {
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            written += len;
+        }
+    }
+}
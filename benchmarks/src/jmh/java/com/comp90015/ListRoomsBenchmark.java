@@ -0,0 +1,66 @@
+package com.comp90015;
+
+import com.comp90015.base.Constant;
+import com.comp90015.base.Packet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Server#listRooms()} and its pages with 10 to 100k rooms, both when the
+ * cached list can be reused and when a room changed since it was taken.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListRoomsBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    int rooms;
+
+    private Server server;
+
+    @Setup
+    public void setUp() {
+        server = InMemoryServer.create();
+        for (int i = 0; i < rooms; i++) {
+            server.createRoom("room" + i, "").join();
+        }
+    }
+
+    @Benchmark
+    public RoomDirectory.Snapshot cached() {
+        return server.listRooms();
+    }
+
+    @Benchmark
+    public RoomDirectory.Snapshot changed() {
+        server.getDirectory().changed("room0");
+        return server.listRooms();
+    }
+
+    @Benchmark
+    public EncodedPacket changedFirstPage() {
+        server.getDirectory().changed("room0");
+        return server.getDirectory().firstPage(Constant.DEFAULT_PAGE_SIZE);
+    }
+
+    @Benchmark
+    public Packet.RoomList page() {
+        return server.listRooms("room5", Constant.DEFAULT_PAGE_SIZE, null);
+    }
+}
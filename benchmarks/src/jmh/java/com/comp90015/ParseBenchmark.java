@@ -0,0 +1,86 @@
+package com.comp90015;
+
+import com.comp90015.base.BinaryCodec;
+import com.comp90015.base.Constant;
+import com.comp90015.base.Packet;
+import com.comp90015.base.PacketCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A packet from a client through {@link ServerConn#parseJSON} or
+ * {@link ServerConn#parseBinary}, decoded and handled, with the answer sent
+ * over an in-memory socket. The sender is in a room with the given number of
+ * other guests, which a chat message goes out to.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+    private static final String ROOMID = "bench";
+
+    @Param({"10", "1000"})
+    int members;
+
+    @Param({Constant.MESSAGE, Constant.LIST, Constant.WHO, Constant.HISTORY})
+    String type;
+
+    private BlockingServerConn json;
+    private BlockingServerConn binary;
+    private String jsonText;
+    private byte[] body;
+
+    @Setup
+    public void setUp() {
+        Server server = InMemoryServer.create();
+        InMemoryServer.fill(server, ROOMID, members, Constant.ENCODING_JSON);
+        json = InMemoryServer.connect(server, Constant.ENCODING_JSON);
+        binary = InMemoryServer.connect(server, Constant.ENCODING_BINARY);
+        server.joinRoom(json, ROOMID);
+        server.joinRoom(binary, ROOMID);
+        Packet.ToServer packet = packet(type);
+        jsonText = PacketCodec.encode(packet);
+        body = CodecBenchmark.body(BinaryCodec.encode(packet));
+    }
+
+    private static Packet.ToServer packet(String type) {
+        switch (type) {
+            case Constant.MESSAGE:
+                return new Packet.ToSMessage("the quick brown fox jumps over the lazy dog");
+            case Constant.LIST:
+                return new Packet.List();
+            case Constant.WHO:
+                return new Packet.Who(ROOMID);
+            case Constant.HISTORY:
+                return new Packet.History(ROOMID);
+            default:
+                throw new IllegalArgumentException("Unknown packet type " + type);
+        }
+    }
+
+    @Benchmark
+    public void parseJSON() {
+        json.parseJSON(jsonText);
+    }
+
+    @Benchmark
+    public void parseBinary() {
+        binary.parseBinary(body);
+    }
+}
@@ -1,11 +1,24 @@
 package com.comp90015;
 
+import com.comp90015.base.ChatRoom;
+import com.comp90015.base.Constant;
+import com.comp90015.base.Packet;
+import com.comp90015.base.VirtualThreads;
+
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 
 public class Client {
 
+    // tries to reconnect after the connection drops, and the pause between them
+    private static final int RECONNECT_ATTEMPTS = 10;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+
     private final String host;
     private final int port;
 
@@ -20,9 +33,48 @@ public class Client {
     private volatile boolean quitting = false;
 
 
+    // run the two connection threads as virtual threads
+    private final boolean virtual;
+
+    // wire encoding asked from the server, and the one in use after its welcome
+    private final String requestedEncoding;
+    private volatile String encoding = Constant.ENCODING_JSON;
+    private volatile boolean welcomed = false;
+    // protocol version asked from the server, lists arrive in either form so no need to track the answer
+    private final int requestedProtocol;
+    // compression asked from the server, null for none, and the one it accepted
+    private final String requestedCompression;
+    private volatile String compression = null;
+
+    // token to resume the session with after a drop, and the number of the last chat message received
+    private volatile String token = null;
+    private volatile Long lastSeq = null;
+    private volatile ClientConsole console;
+
+    // the last room list from the server and its version, to ask only for the changes
+    private final Map<String, Integer> rooms = new LinkedHashMap<>();
+    private volatile Long roomsVersion = null;
+
     public Client(String host, int port) {
+        this(host, port, false, Constant.ENCODING_JSON);
+    }
+
+    public Client(String host, int port, boolean virtual, String requestedEncoding) {
+        this(host, port, virtual, requestedEncoding, Constant.PROTOCOL_V1);
+    }
+
+    public Client(String host, int port, boolean virtual, String requestedEncoding, int requestedProtocol) {
+        this(host, port, virtual, requestedEncoding, requestedProtocol, null);
+    }
+
+    public Client(String host, int port, boolean virtual, String requestedEncoding, int requestedProtocol,
+                  String requestedCompression) {
         this.host = host;
         this.port = port;
+        this.virtual = virtual;
+        this.requestedEncoding = requestedEncoding;
+        this.requestedProtocol = requestedProtocol;
+        this.requestedCompression = requestedCompression;
     }
 
     public void connect() {
@@ -35,14 +87,50 @@ public class Client {
              * and one is listening console input from the end user
              * */
             Thread clientConn = new ClientConn(this, socket);
-            Thread clientConsole = new ClientConsole(this, socket);
-            clientConsole.start();
-            clientConn.start();
+            ClientConsole clientConsole = new ClientConsole(this, socket);
+            console = clientConsole;
+            if (virtual) {
+                VirtualThreads.start(clientConsole);
+                VirtualThreads.start(clientConn);
+            } else {
+                clientConsole.start();
+                clientConn.start();
+            }
         } catch (IOException e) {
             System.err.println(e.getMessage());
         }
     }
 
+    /**
+     * Open a new connection after the old one dropped, and ask the server to
+     * resume the session on it. Nothing else is sent until the server welcomes
+     * the new connection.
+     * @return the new socket, or null if the server could not be reached
+     */
+    public Socket reconnect() {
+        // back to JSON until the new welcome, and hold the console's messages until then
+        welcomed = false;
+        encoding = Constant.ENCODING_JSON;
+        compression = null;
+        for (int attempt = 0; attempt < RECONNECT_ATTEMPTS && !quitting; attempt++) {
+            try {
+                Socket socket = new Socket(host, port);
+                console.reconnected(socket,
+                        new Packet.Hello(requestedEncoding, requestedProtocol, token, lastSeq, requestedCompression));
+                return socket;
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return null;
+    }
+
     public String getHost() {
         return host;
     }
@@ -71,6 +159,108 @@ public class Client {
         this.creatingRoom = creatingRoom;
     }
 
+    public String getRequestedEncoding() {
+        return requestedEncoding;
+    }
+
+    public int getRequestedProtocol() {
+        return requestedProtocol;
+    }
+
+    public String getRequestedCompression() {
+        return requestedCompression;
+    }
+
+    /**
+     * @return whether the client still waits for the server to answer its hello
+     */
+    public boolean isNegotiating() {
+        boolean asking = !Constant.ENCODING_JSON.equals(requestedEncoding)
+                || requestedProtocol > Constant.PROTOCOL_V1 || requestedCompression != null;
+        return asking && !welcomed;
+    }
+
+    public boolean isBinary() {
+        return Constant.ENCODING_BINARY.equals(encoding);
+    }
+
+    /**
+     * @return whether the server sends length-prefixed frames, as it does in the
+     *         binary encoding or once it compresses them
+     */
+    public boolean isFramed() {
+        return isBinary() || compression != null;
+    }
+
+    /**
+     * Switch to the encoding and compression the server accepted in its welcome.
+     * @param encoding the accepted encoding
+     * @param compression the accepted compression, null for none
+     */
+    public void welcome(String encoding, String compression) {
+        this.encoding = encoding;
+        this.compression = compression;
+        this.welcomed = true;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public void setToken(String token) {
+        this.token = token;
+    }
+
+    public Long getLastSeq() {
+        return lastSeq;
+    }
+
+    public void setLastSeq(Long lastSeq) {
+        this.lastSeq = lastSeq;
+    }
+
+    public Long getRoomsVersion() {
+        return roomsVersion;
+    }
+
+    /**
+     * Keep a full room list from the server.
+     * @param data rooms with their sizes
+     * @param version version of the list
+     */
+    public synchronized void setRooms(List<ChatRoom> data, Long version) {
+        rooms.clear();
+        for (ChatRoom room : data) {
+            rooms.put(room.getRoomid(), room.getCount());
+        }
+        roomsVersion = version;
+    }
+
+    /**
+     * Apply the changes to the room list sent by the server.
+     * @param since version the changes start from
+     * @param version version after the changes
+     * @param updated rooms added or resized
+     * @param removed ids of the rooms removed
+     * @return the room list after the changes
+     */
+    public synchronized List<ChatRoom> updateRooms(Long since, Long version, List<ChatRoom> updated, List<String> removed) {
+        for (ChatRoom room : updated) {
+            rooms.put(room.getRoomid(), room.getCount());
+        }
+        for (String roomid : removed) {
+            rooms.remove(roomid);
+        }
+        // another full list arrived meanwhile, ask for a fresh one next time
+        roomsVersion = since != null && since.equals(roomsVersion) ? version : null;
+
+        List<ChatRoom> data = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : rooms.entrySet()) {
+            data.add(new ChatRoom(entry.getKey(), entry.getValue()));
+        }
+        return data;
+    }
+
     public boolean isQuitting() {
         return quitting;
     }
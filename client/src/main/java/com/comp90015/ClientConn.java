@@ -1,17 +1,18 @@
 package com.comp90015;
 
+import com.comp90015.base.BinaryCodec;
 import com.comp90015.base.ChatRoom;
 import com.comp90015.base.Constant;
+import com.comp90015.base.FrameCompression;
+import com.comp90015.base.FrameReader;
 import com.comp90015.base.Packet;
-import com.comp90015.base.RuntimeTypeAdapterFactory;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.comp90015.base.PacketCodec;
 
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
 
 
 /*
@@ -19,53 +20,97 @@ import java.nio.charset.StandardCharsets;
  * */
 public class ClientConn extends Thread {
 
-    RuntimeTypeAdapterFactory<Packet.ToClient> runtimeTypeAdapterFactory = RuntimeTypeAdapterFactory
-            .of(Packet.ToClient.class, Constant.TYPE)
-            .registerSubtype(Packet.NewIdentity.class, Constant.NEW_IDENTITY)
-            .registerSubtype(Packet.RoomChange.class, Constant.ROOM_CHANGE)
-            .registerSubtype(Packet.RoomContents.class, Constant.ROOM_CONTENTS)
-            .registerSubtype(Packet.RoomList.class, Constant.ROOM_LIST)
-            .registerSubtype(Packet.ToCMessage.class, Constant.MESSAGE);
-
-    Gson gson = new GsonBuilder().registerTypeAdapterFactory(runtimeTypeAdapterFactory).create();
-
     private final Client client;
-    private final Socket socket;
+    // replaced when the client reconnects
+    private Socket socket;
 
-    private final BufferedReader reader; // read from server
+    private FrameReader reader; // read from server
+    // inflates the compressed frames of the connection, a new one for each connection
+    private FrameCompression.Receiver receiver = new FrameCompression.Receiver();
 
     public ClientConn(Client client, Socket socket) throws IOException {
         this.client = client;
         this.socket = socket;
-        this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        this.reader = new FrameReader(socket.getInputStream());
     }
 
     @Override
     public void run() {
         boolean connectionAlive = true;
-        String serverMessage;
         while (connectionAlive) {
             try {
                 if (client.isQuitting() || socket.isClosed()) return;
-                serverMessage  = reader.readLine();
-                if (serverMessage != null) {
-                    parseJSON(serverMessage);
+                // the encoding switches right after the welcome, so check it for each packet
+                if (client.isFramed()) {
+                    byte[] body = reader.readFrame();
+                    connectionAlive = body != null;
+                    if (connectionAlive) handleFrame(receiver.inflate(body));
                 } else {
-                    connectionAlive = false;
+                    String serverMessage = reader.readLine();
+                    connectionAlive = serverMessage != null;
+                    if (connectionAlive) parseJSON(serverMessage);
                 }
             } catch (IOException e) {
                 connectionAlive = false;
                 System.err.println(e.getMessage());
-                close();
             }
+            if (!connectionAlive) connectionAlive = reconnect();
         }
         close();
     }
 
+    /*
+     * Resume the session on a new connection if the server gave a token for it
+     * */
+    private boolean reconnect() {
+        if (client.isQuitting() || client.getToken() == null) return false;
+        System.out.println("Connection lost, reconnecting...");
+        Socket fresh = client.reconnect();
+        if (fresh == null) return false;
+        try {
+            close();
+            socket = fresh;
+            reader = new FrameReader(fresh.getInputStream());
+            receiver = new FrameCompression.Receiver();
+            return true;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+    }
+
 
     public void parseJSON(String jsonText) {
+        handle(PacketCodec.decodeToClient(jsonText));
+    }
+
+    /*
+     * Handle the body of a frame, a JSON text if the encoding is JSON but frames are compressed
+     * */
+    private void handleFrame(byte[] body) {
+        if (client.isBinary()) {
+            handle(BinaryCodec.decodeToClient(body));
+        } else {
+            parseJSON(new String(body, StandardCharsets.UTF_8));
+        }
+    }
 
-        Packet.ToClient serverMessage = gson.fromJson(jsonText, Packet.ToClient.class);
+    public void handle(Packet.ToClient serverMessage) {
+
+        if (serverMessage instanceof Packet.Welcome) {
+            Packet.Welcome welcomeMessage = (Packet.Welcome) serverMessage;
+            if (welcomeMessage.getIdentity() != null) {
+                // the session is resumed, the missed messages follow
+                client.setIdentity(welcomeMessage.getIdentity());
+                client.setRoomid(welcomeMessage.getRoomid());
+                System.out.format("Reconnected as %s in %s\n", welcomeMessage.getIdentity(), welcomeMessage.getRoomid());
+            } else if (client.getToken() != null) {
+                // too late to resume, the server greets the client as a new guest
+                client.setLastSeq(null);
+            }
+            client.setToken(welcomeMessage.getToken());
+            client.welcome(welcomeMessage.getEncoding(), welcomeMessage.getCompression());
+        }
 
         if (serverMessage instanceof Packet.NewIdentity) {
             Packet.NewIdentity newIdentityMessage = (Packet.NewIdentity) serverMessage;
@@ -85,6 +130,7 @@ public class ClientConn extends Thread {
 
         if (serverMessage instanceof Packet.ToCMessage) {
             Packet.ToCMessage toCMessage = (Packet.ToCMessage) serverMessage;
+            if (toCMessage.getSeq() != null) client.setLastSeq(toCMessage.getSeq());
             System.out.format("%s: %s\n", toCMessage.getIdentity(), toCMessage.getContent());
         }
 
@@ -93,6 +139,8 @@ public class ClientConn extends Thread {
             if (!roomChangeMessage.getFormer().equals(roomChangeMessage.getRoomid())) {
                 if (roomChangeMessage.getIdentity().equals(client.getIdentity())) {
                     client.setRoomid(roomChangeMessage.getRoomid());
+                    // messages are numbered per room
+                    client.setLastSeq(null);
                 }
                 if (roomChangeMessage.getFormer().length() > 0) {
                     if (roomChangeMessage.getRoomid().equals("")) {
@@ -111,11 +159,47 @@ public class ClientConn extends Thread {
             }
         }
 
+        if (serverMessage instanceof Packet.RoomHistory) {
+            Packet.RoomHistory roomHistoryMessage = (Packet.RoomHistory) serverMessage;
+            List<Packet.ToCMessage> messages = orEmpty(roomHistoryMessage.getMessages());
+
+            if (messages.isEmpty()) {
+                System.out.format("%s has no history.\n", roomHistoryMessage.getRoomid());
+                return;
+            }
+
+            System.out.format("History of %s:\n", roomHistoryMessage.getRoomid());
+            for (Packet.ToCMessage message : messages) {
+                System.out.format("  %s: %s\n", message.getIdentity(), message.getContent());
+            }
+        }
+
+        if (serverMessage instanceof Packet.StatsReport) {
+            System.out.println(((Packet.StatsReport) serverMessage).getReport());
+            return;
+        }
+
+        if (serverMessage instanceof Packet.SearchResult) {
+            Packet.SearchResult searchResultMessage = (Packet.SearchResult) serverMessage;
+            List<Packet.ToCMessage> messages = orEmpty(searchResultMessage.getMessages());
+
+            if (messages.isEmpty()) {
+                System.out.format("Nothing in %s matches \"%s\".\n",
+                        searchResultMessage.getRoomid(), searchResultMessage.getQuery());
+                return;
+            }
+
+            System.out.format("Found in %s:\n", searchResultMessage.getRoomid());
+            for (Packet.ToCMessage message : messages) {
+                System.out.format("  %s: %s\n", message.getIdentity(), message.getContent());
+            }
+        }
+
         if (serverMessage instanceof Packet.RoomContents) {
             Packet.RoomContents roomContentsMessage = (Packet.RoomContents) serverMessage;
-            String[] data = gson.fromJson(roomContentsMessage.getIdentities(), String[].class);
+            List<String> data = orEmpty(roomContentsMessage.getIdentities());
 
-            if (data.length == 0) {
+            if (data.isEmpty()) {
                 System.out.format("%s is empty.\n", roomContentsMessage.getRoomid());
                 return;
             }
@@ -127,31 +211,61 @@ public class ClientConn extends Thread {
                     System.out.print("*");
                 }
             }
+            if (roomContentsMessage.getNext() != null) {
+                System.out.format(" ... (more after %s)", roomContentsMessage.getNext());
+            }
             System.out.print("\n");
         }
 
         if (serverMessage instanceof Packet.RoomList) {
 
             Packet.RoomList roomListMessage = (Packet.RoomList) serverMessage;
-            ChatRoom[] data = gson.fromJson(roomListMessage.getRooms(), ChatRoom[].class);
-
-            if (client.getCreatingRoom()!=null) {
-                // the client requested a room creation
-                for (ChatRoom chatRoom : data) {
-                    if (chatRoom.getRoomid().equals(client.getCreatingRoom())) {
-                        System.out.format("Room %s created.\n", client.getCreatingRoom());
-                        client.setCreatingRoom(null);
-                        return;
-                    }
-                }
-                System.out.format("Room %s is invalid or already in use.\n", client.getCreatingRoom());
-                client.setCreatingRoom(null);
-            } else {
-                // display the relevant information only when the client isn't requesting creating room
-                for (ChatRoom chatRoom : data) {
-                    System.out.format("%s: %d guests\n", chatRoom.getRoomid(), chatRoom.getCount());
+            List<ChatRoom> data = orEmpty(roomListMessage.getRooms());
+            if (roomListMessage.getVersion() != null) {
+                // a full list, keep it to ask only for the changes next time
+                client.setRooms(data, roomListMessage.getVersion());
+            }
+            boolean creating = client.getCreatingRoom() != null;
+            showRooms(data);
+            if (roomListMessage.getNext() != null && !creating) {
+                System.out.format("... (more after %s)\n", roomListMessage.getNext());
+            }
+        }
+
+        if (serverMessage instanceof Packet.RoomListDelta) {
+            Packet.RoomListDelta roomListDeltaMessage = (Packet.RoomListDelta) serverMessage;
+            List<ChatRoom> data = client.updateRooms(roomListDeltaMessage.getSince(),
+                    roomListDeltaMessage.getVersion(),
+                    orEmpty(roomListDeltaMessage.getRooms()),
+                    orEmpty(roomListDeltaMessage.getRemoved()));
+            showRooms(data);
+        }
+    }
+
+    private static <T> List<T> orEmpty(List<T> list) {
+        return list == null ? Collections.emptyList() : list;
+    }
+
+    /*
+     * Show a room list, or the outcome of a room creation
+     * */
+    private void showRooms(List<ChatRoom> data) {
+        if (client.getCreatingRoom()!=null) {
+            // the client requested a room creation
+            for (ChatRoom chatRoom : data) {
+                if (chatRoom.getRoomid().equals(client.getCreatingRoom())) {
+                    System.out.format("Room %s created.\n", client.getCreatingRoom());
+                    client.setCreatingRoom(null);
+                    return;
                 }
             }
+            System.out.format("Room %s is invalid or already in use.\n", client.getCreatingRoom());
+            client.setCreatingRoom(null);
+        } else {
+            // display the relevant information only when the client isn't requesting creating room
+            for (ChatRoom chatRoom : data) {
+                System.out.format("%s: %d guests\n", chatRoom.getRoomid(), chatRoom.getCount());
+            }
         }
     }
 
@@ -162,6 +276,7 @@ public class ClientConn extends Thread {
         try {
             socket.close();
             reader.close();
+            receiver.end();
         } catch (IOException e) {
             System.err.println(e.getMessage());
         }
@@ -1,12 +1,14 @@
 package com.comp90015;
 
+import com.comp90015.base.BinaryCodec;
 import com.comp90015.base.Constant;
 import com.comp90015.base.Packet;
-import com.google.gson.Gson;
+import com.comp90015.base.PacketCodec;
 
 import java.io.*;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 
 /*
@@ -16,22 +18,18 @@ import java.nio.charset.StandardCharsets;
  * */
 public class ClientConsole extends Thread {
 
-    // JSON Parser
-    // No need to deserialize JSON string in this class, only serialize
-    private final Gson gson = new Gson();
-
     private final Client client;
-    private final Socket socket;
+    // replaced when the client reconnects
+    private volatile Socket socket;
 
     // write to the socket
     private final BufferedReader reader; // read from console
-    private final PrintWriter writer; // write to the server
+    private volatile OutputStream writer; // write to the server
 
     public ClientConsole(Client client, Socket socket) throws IOException {
         this.client = client;
         this.socket = socket;
-        this.writer = new PrintWriter(new OutputStreamWriter
-                (socket.getOutputStream(), StandardCharsets.UTF_8), true);
+        this.writer = new BufferedOutputStream(socket.getOutputStream());
         this.reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
     }
 
@@ -40,9 +38,15 @@ public class ClientConsole extends Thread {
         boolean connectionAlive = true;
         String consoleMessage;
 
+        // ask for another encoding or protocol version first, nothing else may be sent until the server answers
+        if (client.isNegotiating()) {
+            sendMessage(new Packet.Hello(client.getRequestedEncoding(), client.getRequestedProtocol(), null, null,
+                    client.getRequestedCompression()));
+        }
+
         // wait until has been assigned an identity by the server (handled by the ClientConn class)
         while (true) {
-            if (client.getIdentity()!=null) {
+            if (client.getIdentity()!=null && !client.isNegotiating()) {
                 System.out.format("Connected to %s as %s\n", client.getHost(), client.getIdentity());
                 break;
             }
@@ -88,7 +92,7 @@ public class ClientConsole extends Thread {
 
     public void parseMessage(String text) {
         Packet.ToSMessage clientMessage = new Packet.ToSMessage(text);
-        sendMessage(gson.toJson(clientMessage));
+        sendMessage(clientMessage);
     }
 
     /*
@@ -116,14 +120,47 @@ public class ClientConsole extends Thread {
                 }
                 break;
             case Constant.WHO:
-                if (words.length > 1) {
+                // #who roomid [limit [prefix [after]]], "-" for no prefix
+                if (words.length == 2) {
                     toServerMessage = new Packet.Who(words[1]);
+                } else if (words.length > 2 && pageSize(words[2]) != null) {
+                    toServerMessage = new Packet.Who(words[1], word(words, 4), pageSize(words[2]), word(words, 3));
                 } else {
                     System.out.println("Invalid command");
                 }
                 break;
             case Constant.LIST:
-                toServerMessage = new Packet.List();
+                // #list [limit [prefix [after]]], "-" for no prefix
+                if (words.length == 1) {
+                    // a server that keeps no versions ignores it and sends the full list
+                    toServerMessage = new Packet.List(client.getRoomsVersion());
+                } else if (pageSize(words[1]) != null) {
+                    toServerMessage = new Packet.List(null, word(words, 3), pageSize(words[1]), word(words, 2));
+                } else {
+                    System.out.println("Invalid command");
+                }
+                break;
+            case Constant.HISTORY:
+                // #history roomid [count]
+                if (words.length == 2) {
+                    toServerMessage = new Packet.History(words[1]);
+                } else if (words.length > 2 && pageSize(words[2]) != null) {
+                    toServerMessage = new Packet.History(words[1], pageSize(words[2]));
+                } else {
+                    System.out.println("Invalid command");
+                }
+                break;
+            case Constant.SEARCH:
+                // #search roomid words...
+                if (words.length > 2) {
+                    String query = String.join(" ", Arrays.copyOfRange(words, 2, words.length));
+                    toServerMessage = new Packet.Search(words[1], query);
+                } else {
+                    System.out.println("Invalid command");
+                }
+                break;
+            case Constant.STATS:
+                toServerMessage = new Packet.Stats();
                 break;
             case Constant.CREATE_ROOM:
                 if (words.length > 1) {
@@ -147,14 +184,73 @@ public class ClientConsole extends Thread {
             default:
                 System.out.println("Invalid command");
         }
-        sendMessage(gson.toJson(toServerMessage));
+        if (toServerMessage != null) {
+            sendMessage(toServerMessage);
+        }
+    }
+
+    /*
+     * A page size typed by the user, null if it is not a positive number
+     * */
+    private static Integer pageSize(String word) {
+        try {
+            int size = Integer.parseInt(word);
+            return size > 0 ? size : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /*
+     * An optional argument, null if missing or "-"
+     * */
+    private static String word(String[] words, int index) {
+        if (index >= words.length || words[index].equals("-")) return null;
+        return words[index];
+    }
+
+    /**
+     * Switch to the connection the client reconnected on, and say hello on it first.
+     * @param socket the new connection
+     * @param hello the hello asking to resume the session
+     * @throws IOException if the new connection cannot be written to
+     */
+    public synchronized void reconnected(Socket socket, Packet.Hello hello) throws IOException {
+        Socket former = this.socket;
+        this.writer = new BufferedOutputStream(socket.getOutputStream());
+        this.socket = socket;
+        write(hello);
+        former.close();
     }
 
     /*
-     * Send the message to the server
+     * Send the message to the server in the negotiated encoding, once the
+     * server has answered the hello of a new connection
      * */
-    private void sendMessage(String message) {
-        writer.println(message);
+    private void sendMessage(Packet.ToServer message) {
+        try {
+            while (!(message instanceof Packet.Hello) && client.isNegotiating()
+                    && !socket.isClosed() && !client.isQuitting()) {
+                Thread.sleep(10);
+            }
+            synchronized (this) {
+                write(message);
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(Packet.ToServer message) throws IOException {
+        if (client.isBinary()) {
+            writer.write(BinaryCodec.encode(message));
+        } else {
+            writer.write(PacketCodec.encode(message).getBytes(StandardCharsets.UTF_8));
+            writer.write('\n');
+        }
+        writer.flush();
     }
 
     /*
@@ -1,6 +1,7 @@
 package com.comp90015;
 
 import com.comp90015.base.Constant;
+import com.comp90015.base.VirtualThreads;
 
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
@@ -11,12 +12,23 @@ public class ClientEntry {
 
     static String HOST = Constant.HOST;
     static int PORT = Constant.PORT;
+    static boolean VIRTUAL = false;
+    static boolean BINARY = false;
+    static int PROTOCOL = Constant.PROTOCOL_V1;
+    static boolean COMPRESS = false;
 
     public static void main(String[] args) {
 
         new CommandLine(new ServerCommandLineParser()).execute(args);
 
-        Client client = new Client(HOST, PORT);
+        if (VIRTUAL && !VirtualThreads.isSupported()) {
+            System.err.println("Virtual threads require Java 21 or later");
+            return;
+        }
+
+        Client client = new Client(HOST, PORT, VIRTUAL,
+                BINARY ? Constant.ENCODING_BINARY : Constant.ENCODING_JSON, PROTOCOL,
+                COMPRESS ? Constant.COMPRESSION_DEFLATE : null);
         client.connect();
 
     }
@@ -27,6 +39,18 @@ public class ClientEntry {
         @Option(names = { "-p", "--port" }, description = "Port Number")
         private int port = Constant.PORT;
 
+        @Option(names = { "--virtual" }, description = "Run the connection threads as virtual threads")
+        private boolean virtual = false;
+
+        @Option(names = { "--binary" }, description = "Ask the server for the compact binary encoding")
+        private boolean binary = false;
+
+        @Option(names = { "--protocol" }, description = "Protocol version to ask the server for, 2 sends lists as native JSON arrays, 3 also resumes the session after a dropped connection")
+        private int protocol = Constant.PROTOCOL_V1;
+
+        @Option(names = { "--compress" }, description = "Ask the server to compress large packets")
+        private boolean compress = false;
+
         @Parameters(paramLabel = "hostname", description = "Host IP Address", defaultValue = Constant.HOST)
         private String host = Constant.HOST;
 
@@ -34,6 +58,10 @@ public class ClientEntry {
         public void run() {
             PORT = port;
             HOST = host;
+            VIRTUAL = virtual;
+            BINARY = binary;
+            PROTOCOL = protocol;
+            COMPRESS = compress;
         }
     }
 
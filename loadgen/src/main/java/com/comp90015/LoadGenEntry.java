@@ -0,0 +1,125 @@
+package com.comp90015;
+
+import com.comp90015.base.Constant;
+import com.comp90015.base.VirtualThreads;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class LoadGenEntry {
+
+    static String HOST = Constant.HOST;
+    static int PORT = Constant.PORT;
+    static int CLIENTS = LoadGenerator.DEFAULT_CLIENTS;
+    static double RATE = LoadGenerator.DEFAULT_RATE;
+    static LoadMix MIX = LoadMix.parse(LoadMix.DEFAULT_MIX);
+    static int ROOMS = LoadGenerator.DEFAULT_ROOMS;
+    static int CONTENT_BYTES = LoadGenerator.DEFAULT_CONTENT_BYTES;
+    static int CONNECT_RATE = LoadGenerator.DEFAULT_CONNECT_RATE;
+    static long WARMUP = LoadGenerator.DEFAULT_WARMUP_SECONDS;
+    static long DURATION = LoadGenerator.DEFAULT_DURATION_SECONDS;
+    static boolean BINARY = false;
+    static boolean VIRTUAL = false;
+    static Path REPORT = null;
+
+    public static void main(String[] args) {
+
+        // a run takes a while, so not after a mistyped option or a help message
+        CommandLine commandLine = new CommandLine(new LoadGenCommandLineParser());
+        if (commandLine.execute(args) != 0 || commandLine.isUsageHelpRequested()
+                || commandLine.isVersionHelpRequested()) return;
+
+        if (VIRTUAL && !VirtualThreads.isSupported()) {
+            System.err.println("Virtual threads require Java 21 or later");
+            return;
+        }
+
+        LoadGenerator generator = new LoadGenerator(HOST, PORT, CLIENTS, RATE, MIX, ROOMS,
+                CONTENT_BYTES, BINARY, VIRTUAL, CONNECT_RATE);
+        try {
+            LoadReport report = generator.run(WARMUP, DURATION);
+            if (REPORT == null) {
+                report.write(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            } else {
+                try (Writer out = Files.newBufferedWriter(REPORT, StandardCharsets.UTF_8)) {
+                    report.write(out);
+                }
+                System.out.println(report.summary());
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        } catch (InterruptedException e) {
+            System.err.println(e.getMessage());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Command(name = "LoadGenCommandLineParser", mixinStandardHelpOptions = true)
+    static class LoadGenCommandLineParser implements Runnable {
+
+        @Option(names = { "-p", "--port" }, description = "Port Number")
+        private int port = Constant.PORT;
+
+        @Option(names = { "-c", "--clients" }, description = "Connections to open")
+        private int clients = LoadGenerator.DEFAULT_CLIENTS;
+
+        @Option(names = { "-r", "--rate" }, description = "Packets each client sends per second")
+        private double rate = LoadGenerator.DEFAULT_RATE;
+
+        @Option(names = { "--mix" }, description = "Relative weights of what the clients send, as chat=n,join=n,create=n,rename=n")
+        private String mix = LoadMix.DEFAULT_MIX;
+
+        @Option(names = { "--rooms" }, description = "Rooms the clients create and join, besides the Main Hall")
+        private int rooms = LoadGenerator.DEFAULT_ROOMS;
+
+        @Option(names = { "--content-bytes" }, description = "Bytes of padding in each chat message, after its send time")
+        private int contentBytes = LoadGenerator.DEFAULT_CONTENT_BYTES;
+
+        @Option(names = { "--connect-rate" }, description = "Most connections opened per second")
+        private int connectRate = LoadGenerator.DEFAULT_CONNECT_RATE;
+
+        @Option(names = { "--warmup" }, description = "Seconds the clients send before anything is measured")
+        private long warmup = LoadGenerator.DEFAULT_WARMUP_SECONDS;
+
+        @Option(names = { "-d", "--duration" }, description = "Seconds measured")
+        private long duration = LoadGenerator.DEFAULT_DURATION_SECONDS;
+
+        @Option(names = { "--binary" }, description = "Ask the server for the compact binary encoding")
+        private boolean binary = false;
+
+        @Option(names = { "--virtual" }, description = "Run the connection threads as virtual threads")
+        private boolean virtual = false;
+
+        @Option(names = { "--report" }, description = "File to write the JSON report to, standard output by default")
+        private Path report = null;
+
+        @Parameters(paramLabel = "hostname", description = "Host IP Address", defaultValue = Constant.HOST)
+        private String host = Constant.HOST;
+
+        @Override
+        public void run() {
+            HOST = host;
+            PORT = port;
+            CLIENTS = clients;
+            RATE = rate;
+            MIX = LoadMix.parse(mix);
+            ROOMS = rooms;
+            CONTENT_BYTES = contentBytes;
+            CONNECT_RATE = connectRate;
+            WARMUP = warmup;
+            DURATION = duration;
+            BINARY = binary;
+            VIRTUAL = virtual;
+            REPORT = report;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.comp90015;
+
+import com.comp90015.base.Histogram;
+import com.comp90015.base.VirtualThreads;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A load test run: connects the simulated clients to a server, lets each of
+ * them tick at the given rate for the warmup and the measured duration, and
+ * counts what was sent and delivered. Only what is sent in the measured
+ * duration is counted, and the latency of a message is that from it being
+ * sent to another guest of its room receiving it.
+ */
+public class LoadGenerator {
+
+    public static final int DEFAULT_CLIENTS = 100;
+    public static final double DEFAULT_RATE = 1.0;
+    public static final int DEFAULT_ROOMS = 10;
+    public static final int DEFAULT_CONTENT_BYTES = 64;
+    public static final int DEFAULT_CONNECT_RATE = 1000;
+    public static final long DEFAULT_WARMUP_SECONDS = 5;
+    public static final long DEFAULT_DURATION_SECONDS = 30;
+    // how long the messages still on their way are waited for once sending stops
+    private static final long DRAIN_MILLIS = 2000;
+
+    private final String host;
+    private final int port;
+    private final int clients;
+    private final double rate;
+    private final LoadMix mix;
+    private final int rooms;
+    private final String padding;
+    private final boolean binary;
+    private final boolean virtual;
+    private final int connectRate;
+
+    private final List<SimulatedClient> connected = new ArrayList<>();
+    private final LongAdder[] sent = new LongAdder[LoadMix.Action.values().length];
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final Histogram latency = new Histogram();
+    // the measured duration, nothing is counted until it starts
+    private volatile long measureStart = Long.MAX_VALUE;
+    private volatile long measureEnd = Long.MAX_VALUE;
+
+    /**
+     * @param host host of the server
+     * @param port port of the server
+     * @param clients connections to open
+     * @param rate ticks per second of each client
+     * @param mix what each tick does
+     * @param rooms load rooms the clients join and create
+     * @param contentBytes length of a chat message
+     * @param binary whether the clients speak the binary encoding
+     * @param virtual whether the clients' reading threads are virtual threads
+     * @param connectRate most connections opened per second
+     */
+    public LoadGenerator(String host, int port, int clients, double rate, LoadMix mix, int rooms,
+                         int contentBytes, boolean binary, boolean virtual, int connectRate) {
+        if (clients <= 0 || rate <= 0 || rooms <= 0 || contentBytes < 0 || connectRate <= 0) {
+            throw new IllegalArgumentException("Invalid load generator settings");
+        }
+        this.host = host;
+        this.port = port;
+        this.clients = clients;
+        this.rate = rate;
+        this.mix = mix;
+        this.rooms = rooms;
+        this.padding = "x".repeat(contentBytes);
+        this.binary = binary;
+        this.virtual = virtual;
+        this.connectRate = connectRate;
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Run the load test.
+     * @param warmupSeconds seconds the clients tick before anything is counted
+     * @param durationSeconds seconds counted
+     * @return what the run measured
+     * @throws InterruptedException if the run is interrupted
+     */
+    public LoadReport run(long warmupSeconds, long durationSeconds) throws InterruptedException {
+        long connectStart = System.nanoTime();
+        long connectInterval = TimeUnit.SECONDS.toNanos(1) / connectRate;
+        for (int i = 0; i < clients; i++) {
+            long due = connectStart + i * connectInterval;
+            long wait = due - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            try {
+                SimulatedClient client = new SimulatedClient(i, this, host, port);
+                if (virtual) {
+                    VirtualThreads.start(client::read);
+                } else {
+                    Thread thread = new Thread(client::read, "loadgen-reader-" + i);
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+                connected.add(client);
+            } catch (IOException e) {
+                connectFailures.increment();
+                System.err.println(e.getMessage());
+            }
+        }
+
+        ScheduledExecutorService ticker = Executors.newScheduledThreadPool(
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2), runnable -> {
+                    Thread thread = new Thread(runnable, "loadgen-ticker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        long period = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        for (SimulatedClient client : connected) {
+            // spread over the period, or every client would tick at once
+            ticker.scheduleAtFixedRate(client::tick, ThreadLocalRandom.current().nextLong(period),
+                    period, TimeUnit.NANOSECONDS);
+        }
+
+        TimeUnit.SECONDS.sleep(warmupSeconds);
+        measureStart = System.nanoTime();
+        TimeUnit.SECONDS.sleep(durationSeconds);
+        measureEnd = System.nanoTime();
+        ticker.shutdownNow();
+        Thread.sleep(DRAIN_MILLIS);
+        for (SimulatedClient client : connected) {
+            client.close();
+        }
+        return new LoadReport(this, connected.size(), (measureEnd - measureStart) / 1e9);
+    }
+
+    /*
+     * Count a packet sent by a client
+     */
+    void sent(LoadMix.Action action) {
+        long now = System.nanoTime();
+        if (now >= measureStart && now < measureEnd) sent[action.ordinal()].increment();
+    }
+
+    /*
+     * Count a chat message received by a client
+     */
+    void delivered(long sentNanos, long receivedNanos) {
+        if (sentNanos < measureStart || sentNanos >= measureEnd) return;
+        delivered.increment();
+        latency.record(receivedNanos - sentNanos);
+    }
+
+    void disconnected() {
+        disconnects.increment();
+    }
+
+    void failed(Exception e) {
+        errors.increment();
+        System.err.println(e.getMessage());
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getClients() {
+        return clients;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public LoadMix getMix() {
+        return mix;
+    }
+
+    public int getRooms() {
+        return rooms;
+    }
+
+    public String getPadding() {
+        return padding;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public long getSent(LoadMix.Action action) {
+        return sent[action.ordinal()].sum();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getConnectFailures() {
+        return connectFailures.sum();
+    }
+
+    public long getDisconnects() {
+        return disconnects.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public Histogram.Snapshot getLatency() {
+        return latency.snapshot();
+    }
+}
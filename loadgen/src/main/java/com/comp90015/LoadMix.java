@@ -0,0 +1,98 @@
+package com.comp90015;
+
+import java.util.Random;
+
+/**
+ * How often a simulated client does each of the things a guest does, as
+ * weights relative to each other. Each tick of a client picks one of them at
+ * random by its weight.
+ */
+public class LoadMix {
+
+    /**
+     * The things a simulated client does.
+     */
+    public enum Action {
+        // send a chat message, which the other guests of its room receive
+        CHAT,
+        // join one of the load rooms or the Main Hall
+        JOIN,
+        // create one of the load rooms, if it does not exist
+        CREATE,
+        // change to a new identity
+        RENAME
+    }
+
+    public static final String DEFAULT_MIX = "chat=90,join=5,create=2,rename=3";
+
+    private final int[] weights = new int[Action.values().length];
+    private final int total;
+
+    /**
+     * @param chat weight of chat messages
+     * @param join weight of joining a room
+     * @param create weight of creating a room
+     * @param rename weight of identity changes
+     */
+    public LoadMix(int chat, int join, int create, int rename) {
+        if (chat < 0 || join < 0 || create < 0 || rename < 0 || chat + join + create + rename == 0) {
+            throw new IllegalArgumentException("Load mix weights must not be negative, and not all 0");
+        }
+        weights[Action.CHAT.ordinal()] = chat;
+        weights[Action.JOIN.ordinal()] = join;
+        weights[Action.CREATE.ordinal()] = create;
+        weights[Action.RENAME.ordinal()] = rename;
+        this.total = chat + join + create + rename;
+    }
+
+    /**
+     * Read a mix written as comma separated action=weight pairs, the actions
+     * left out weigh 0.
+     * @param text the mix, such as {@value #DEFAULT_MIX}
+     * @return the mix
+     * @throws IllegalArgumentException if the text is not a mix
+     */
+    public static LoadMix parse(String text) {
+        int[] parsed = new int[Action.values().length];
+        for (String pair : text.split(",")) {
+            String[] parts = pair.trim().split("=");
+            if (parts.length != 2) throw new IllegalArgumentException("Invalid load mix entry " + pair);
+            try {
+                Action action = Action.valueOf(parts[0].trim().toUpperCase());
+                parsed[action.ordinal()] = Integer.parseInt(parts[1].trim());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid load mix entry " + pair);
+            }
+        }
+        return new LoadMix(parsed[Action.CHAT.ordinal()], parsed[Action.JOIN.ordinal()],
+                parsed[Action.CREATE.ordinal()], parsed[Action.RENAME.ordinal()]);
+    }
+
+    /**
+     * Pick an action by the weights.
+     * @param random source of randomness of the calling thread
+     * @return the action
+     */
+    public Action pick(Random random) {
+        int ticket = random.nextInt(total);
+        for (Action action : Action.values()) {
+            ticket -= weights[action.ordinal()];
+            if (ticket < 0) return action;
+        }
+        return Action.CHAT;
+    }
+
+    public int getWeight(Action action) {
+        return weights[action.ordinal()];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Action action : Action.values()) {
+            if (text.length() > 0) text.append(',');
+            text.append(action.name().toLowerCase()).append('=').append(weights[action.ordinal()]);
+        }
+        return text.toString();
+    }
+}
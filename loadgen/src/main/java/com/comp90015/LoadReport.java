@@ -0,0 +1,127 @@
+package com.comp90015;
+
+import com.comp90015.base.Constant;
+import com.comp90015.base.Histogram;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+
+/**
+ * What a load test run measured, written out as JSON so that runs can be
+ * compared with each other by a script. Rates are per second of the measured
+ * duration, latencies are in microseconds.
+ */
+public class LoadReport {
+
+    private final LoadGenerator generator;
+    private final int connected;
+    private final double seconds;
+    private final Histogram.Snapshot latency;
+    private final Instant finished = Instant.now();
+
+    /**
+     * @param generator the run, finished
+     * @param connected clients that connected
+     * @param seconds length of the measured duration
+     */
+    public LoadReport(LoadGenerator generator, int connected, double seconds) {
+        this.generator = generator;
+        this.connected = connected;
+        this.seconds = seconds;
+        this.latency = generator.getLatency();
+    }
+
+    /**
+     * Write the report.
+     * @param out where to write it, left open
+     * @throws IOException if it cannot be written
+     */
+    public void write(Writer out) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.setIndent("  ");
+        writer.beginObject();
+        writer.name("finished").value(finished.toString());
+        writer.name("seconds").value(seconds);
+
+        writer.name("settings").beginObject();
+        writer.name("host").value(generator.getHost());
+        writer.name("port").value(generator.getPort());
+        writer.name("clients").value(generator.getClients());
+        writer.name("rate").value(generator.getRate());
+        writer.name("mix").value(generator.getMix().toString());
+        writer.name("rooms").value(generator.getRooms());
+        writer.name("contentBytes").value(generator.getPadding().length());
+        writer.name("encoding").value(generator.isBinary() ? Constant.ENCODING_BINARY : Constant.ENCODING_JSON);
+        writer.endObject();
+
+        writer.name("connections").beginObject();
+        writer.name("connected").value(connected);
+        writer.name("failed").value(generator.getConnectFailures());
+        writer.name("dropped").value(generator.getDisconnects());
+        writer.name("errors").value(generator.getErrors());
+        writer.endObject();
+
+        long total = totalSent();
+        writer.name("sent").beginObject();
+        for (LoadMix.Action action : LoadMix.Action.values()) {
+            writer.name(action.name().toLowerCase()).value(generator.getSent(action));
+        }
+        writer.name("total").value(total);
+        writer.endObject();
+
+        writer.name("throughput").beginObject();
+        writer.name("sentPerSecond").value(perSecond(total));
+        writer.name("chatPerSecond").value(perSecond(generator.getSent(LoadMix.Action.CHAT)));
+        writer.name("deliveredPerSecond").value(perSecond(generator.getDelivered()));
+        writer.endObject();
+
+        writer.name("latencyMicros").beginObject();
+        writer.name("count").value(latency.getCount());
+        writer.name("mean").value(micros(latency.getMean()));
+        writer.name("p50").value(micros(latency.percentile(50)));
+        writer.name("p90").value(micros(latency.percentile(90)));
+        writer.name("p99").value(micros(latency.percentile(99)));
+        writer.name("p999").value(micros(latency.percentile(99.9)));
+        writer.name("max").value(micros(latency.getMax()));
+        writer.endObject();
+
+        writer.endObject();
+        writer.flush();
+        out.write(System.lineSeparator());
+        out.flush();
+    }
+
+    /**
+     * A line for people to read, the report's main numbers.
+     * @return the summary
+     */
+    public String summary() {
+        return String.format("%d clients, %.0f sent/s, %.0f delivered/s, latency p50 %.0fus p99 %.0fus max %.0fus",
+                connected, perSecond(totalSent()), perSecond(generator.getDelivered()),
+                micros(latency.percentile(50)), micros(latency.percentile(99)), micros(latency.getMax()));
+    }
+
+    private long totalSent() {
+        long total = 0;
+        for (LoadMix.Action action : LoadMix.Action.values()) {
+            total += generator.getSent(action);
+        }
+        return total;
+    }
+
+    private double perSecond(long count) {
+        return seconds > 0 ? round(count / seconds) : 0;
+    }
+
+    private static double micros(double nanos) {
+        return round(nanos / 1e3);
+    }
+
+    // one decimal is as precise as the histogram
+    private static double round(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+}
@@ -0,0 +1,155 @@
+package com.comp90015;
+
+import com.comp90015.base.BinaryCodec;
+import com.comp90015.base.Constant;
+import com.comp90015.base.FrameReader;
+import com.comp90015.base.Packet;
+import com.comp90015.base.PacketCodec;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * One connection of the load generator, acting as a guest without a console.
+ * Its ticks, run by the generator's scheduler, each send one packet picked by
+ * the load mix. A thread of its own reads what the server sends, and times
+ * every chat message of the load generator it receives.
+ * <p>A chat message carries the {@link System#nanoTime()} it was sent at, so
+ * its delivery latency is known on receipt. All the clients run in the same
+ * process, and so read the same clock.
+ */
+public class SimulatedClient {
+
+    // start of the content of a message sent by the load generator, the send time follows
+    public static final String PREFIX = "lg";
+    // start of the load rooms' ids, and of the identities the clients change to
+    public static final String ROOM_PREFIX = "lg";
+    public static final String IDENTITY_PREFIX = "u";
+
+    private final int index;
+    private final LoadGenerator generator;
+    private final Socket socket;
+    private final FrameReader reader;
+    private final OutputStream writer;
+    private final boolean binary;
+    // the encoding switches to binary once the welcome is read
+    private boolean framed = false;
+    private int renames = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * Connect to the server and say hello.
+     * @param index number of the client, unique in the run
+     * @param generator the run the client belongs to
+     * @param host host of the server
+     * @param port port of the server
+     * @throws IOException if the server cannot be reached
+     */
+    public SimulatedClient(int index, LoadGenerator generator, String host, int port) throws IOException {
+        this.index = index;
+        this.generator = generator;
+        this.socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        this.reader = new FrameReader(socket.getInputStream());
+        this.writer = new BufferedOutputStream(socket.getOutputStream());
+        this.binary = generator.isBinary();
+        // the hello is always JSON, what follows it is in the encoding it asks for
+        String encoding = binary ? Constant.ENCODING_BINARY : Constant.ENCODING_JSON;
+        write((PacketCodec.encode(new Packet.Hello(encoding, Constant.PROTOCOL_V2)) + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    /*
+     * Read the server's packets until the connection closes
+     */
+    public void read() {
+        try {
+            while (!closed) {
+                if (framed) {
+                    byte[] body = reader.readFrame();
+                    if (body == null) break;
+                    handle(BinaryCodec.decodeToClient(body));
+                } else {
+                    String line = reader.readLine();
+                    if (line == null) break;
+                    handle(PacketCodec.decodeToClient(line));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!closed) generator.failed(e);
+        }
+        if (!closed) generator.disconnected();
+        close();
+    }
+
+    private void handle(Packet.ToClient packet) {
+        long now = System.nanoTime();
+        if (packet instanceof Packet.Welcome) {
+            framed = Constant.ENCODING_BINARY.equals(((Packet.Welcome) packet).getEncoding());
+        } else if (packet instanceof Packet.ToCMessage) {
+            String content = ((Packet.ToCMessage) packet).getContent();
+            if (content != null && content.startsWith(PREFIX)) {
+                int end = content.indexOf(' ', PREFIX.length());
+                try {
+                    long sent = Long.parseLong(content.substring(PREFIX.length(), end < 0 ? content.length() : end));
+                    generator.delivered(sent, now);
+                } catch (NumberFormatException e) {
+                    // a guest of another run, or typed by a person
+                }
+            }
+        }
+    }
+
+    /*
+     * Send one packet picked by the load mix, run on the scheduler
+     */
+    public void tick() {
+        if (closed) return;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        LoadMix.Action action = generator.getMix().pick(random);
+        Packet.ToServer packet;
+        switch (action) {
+            case JOIN:
+                int room = random.nextInt(generator.getRooms() + 1);
+                packet = new Packet.Join(room == 0 ? Constant.MAINHALL : ROOM_PREFIX + room);
+                break;
+            case CREATE:
+                packet = new Packet.CreateRoom(ROOM_PREFIX + (1 + random.nextInt(generator.getRooms())));
+                break;
+            case RENAME:
+                packet = new Packet.IdentityChange(IDENTITY_PREFIX + index + "n" + (renames++ % 1000));
+                break;
+            default:
+                packet = new Packet.ToSMessage(PREFIX + System.nanoTime() + " " + generator.getPadding());
+        }
+        try {
+            write(binary ? BinaryCodec.encode(packet)
+                    : (PacketCodec.encode(packet) + "\n").getBytes(StandardCharsets.UTF_8));
+            generator.sent(action);
+        } catch (IOException e) {
+            if (!closed) generator.failed(e);
+            close();
+        }
+    }
+
+    private synchronized void write(byte[] bytes) throws IOException {
+        writer.write(bytes);
+        writer.flush();
+    }
+
+    /*
+     * Close the connection without saying goodbye, as a guest that goes away does
+     */
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.comp90015;
+
+import com.comp90015.base.FrameReader;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thread-per-connection transport, blocking on the socket reader until the
+ * client sends a line. Outgoing frames go through a bounded queue drained by a
+ * writer task, so a client that reads slowly never blocks whoever sends to it.
+ * The writer task hands everything queued to the socket in one flush, after
+ * the flush delay if there is one. Writer tasks for the frames a reader thread
+ * sends are only started once it has handled all the input it has read, so a
+ * burst from one client becomes one write per recipient.
+ */
+public class BlockingServerConn extends ServerConn implements Runnable {
+
+    // a drain of frames this size or less is a single socket write
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    // connections the current reader thread has frames waiting for, drained once its input is handled
+    private static final ThreadLocal<List<BlockingServerConn>> DEFERRED = new ThreadLocal<>();
+
+    private final Socket socket;
+    private final FrameReader reader;
+    private final OutputStream writer;
+
+    private final Executor writerExecutor;
+    private final OutboundLimits limits;
+    private final OutboundQueue outbound;
+    // whether a writer task is running or about to run
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private volatile boolean closing = false;
+
+    public BlockingServerConn(Server server, Socket socket) throws IOException {
+        super(server);
+        this.socket = socket;
+        this.reader = new FrameReader(socket.getInputStream());
+        this.writer = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
+        this.writerExecutor = server.getClientThreadPool();
+        this.limits = server.getOutboundLimits();
+        this.outbound = new OutboundQueue(limits);
+    }
+
+    @Override
+    /*
+     * Run method keeps listening on the reader of the socket for the message sent
+     * from the client, as JSON lines or as binary frames once negotiated
+     */
+    public void run() {
+        boolean connectionAlive = true;
+        List<BlockingServerConn> deferred = new ArrayList<>();
+        DEFERRED.set(deferred);
+        try {
+            while (connectionAlive) {
+                try {
+                    // about to block for more input, write what the last packets sent
+                    if (!reader.hasBuffered()) drainDeferred(deferred);
+                    if (isBinary()) {
+                        byte[] body = reader.readFrame();
+                        connectionAlive = body != null;
+                        if (connectionAlive) parseBinary(body);
+                    } else {
+                        String clientMessage = reader.readLine();
+                        connectionAlive = clientMessage != null;
+                        if (connectionAlive) parseJSON(clientMessage);
+                    }
+                    // detect if the client disconnected without sending the quit command
+                    if (!connectionAlive) {
+                        connectionLost();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // a packet that could not be decoded or handled leaves the stream out of step, drop it
+                    connectionAlive = false;
+                    System.err.println(e.getMessage());
+                    connectionLost();
+                }
+            }
+        } finally {
+            // the writer tasks deferred for other connections run whatever ended this one
+            close();
+            drainDeferred(deferred);
+            DEFERRED.remove();
+        }
+    }
+
+    private static void drainDeferred(List<BlockingServerConn> deferred) {
+        for (BlockingServerConn conn : deferred) {
+            conn.writerExecutor.execute(conn::drain);
+        }
+        deferred.clear();
+    }
+
+    /*
+     * Close the connection once the queued frames have been written
+     */
+    @Override
+    public void close() {
+        closing = true;
+        scheduleDrain();
+    }
+
+    /*
+     * Queue the frame for the writer, may be called from any thread
+     */
+    @Override
+    protected void sendFrame(Frame frame) {
+        if (closing) return;
+        if (!outbound.offer(frame)) {
+            System.err.println("Disconnecting slow client " + getIdentity());
+            close();
+            return;
+        }
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            List<BlockingServerConn> deferred = DEFERRED.get();
+            if (deferred != null) {
+                deferred.add(this);
+            } else {
+                writerExecutor.execute(this::drain);
+            }
+        }
+    }
+
+    /*
+     * Write everything queued so far, then close the socket if the connection is closing
+     */
+    private void drain() {
+        long delay = limits.getFlushDelayMicros();
+        // let more frames gather, unless the connection is closing
+        if (delay > 0 && !closing) LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(delay));
+        try {
+            Frame frame;
+            int frames = 0;
+            while ((frame = outbound.poll()) != null) {
+                writer.write(frame.bytes());
+                frames++;
+            }
+            writer.flush();
+            if (frames > 0) limits.addSocketWrite(frames);
+        } catch (IOException e) {
+            // the reader thread notices the broken connection and cleans up
+            outbound.clear();
+            closing = true;
+        } finally {
+            draining.set(false);
+        }
+        if (!outbound.isEmpty()) {
+            scheduleDrain();
+        } else if (closing) {
+            closeSocket();
+        }
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+            reader.close();
+            writer.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
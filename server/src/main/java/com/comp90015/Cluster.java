@@ -0,0 +1,556 @@
+package com.comp90015;
+
+import com.comp90015.base.Constant;
+import com.comp90015.base.Packet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This node's part of a cluster of servers sharing one room namespace. Every
+ * node knows every room and every guest: the guests of the other nodes are
+ * {@link RemoteGuest}s in this node's rooms, kept up to date by the join,
+ * rename and leave messages the nodes send each other over their
+ * {@link PeerLink}s. #list, #who and #history are answered by any node alone.
+ * A guest joining a room may be heard of before the room itself, whose news
+ * comes from its home node over another link, and is put in it once it comes.
+ * <p>Each room has a home node, picked by consistent hashing of its id. The
+ * home node decides whether the room may be created, deletes it, and numbers
+ * its chat messages: a guest's message goes to the home node, which sends it
+ * to its own guests and relays it to every other node, so every node sees the
+ * messages of a room in the same order and keeps the same history.
+ * <p>Each identity has a home node too, which decides who may change to it.
+ * The home node of "guestx" is the one handing out the number x, each node
+ * handing out every n-th number, so a new guest never waits for another node.
+ * <p>A node that goes down takes its guests with it. The other nodes go on,
+ * the rooms homed on it without a home: their messages are numbered by the
+ * node their sender is on until it is back.
+ */
+public class Cluster {
+
+    public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 2000;
+    // milliseconds a peer that dialed has to name itself
+    private static final int HELLO_TIMEOUT_MILLIS = 5000;
+
+    private final Server server;
+    private final String self;
+    private final HashRing ring;
+    private final long requestTimeoutMillis;
+    // the links to every other node, by node id
+    private final Map<String, PeerLink> links = new TreeMap<>();
+    // the guests of the other nodes, by identity
+    private final ConcurrentHashMap<String, RemoteGuest> guests = new ConcurrentHashMap<>();
+    // guests of the other nodes that joined a room before its home node's news of it came, and the room
+    private final ConcurrentHashMap<RemoteGuest, String> waiting = new ConcurrentHashMap<>();
+    // requests waiting for the home node's reply, by request id
+    private final ConcurrentHashMap<Long, CompletableFuture<Boolean>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    // held to send a change of this node's state to the peers, and exclusively to send the
+    // whole state to a peer whose link came up, so no change is missing from it or sent before it
+    private final ReentrantReadWriteLock state = new ReentrantReadWriteLock();
+    private ServerSocket serverSocket;
+
+    /**
+     * @param server the server of this node
+     * @param self id of this node, the host and port it listens to its peers on
+     * @param peers ids of the other nodes
+     * @param requestTimeoutMillis milliseconds to wait for the home node of an identity or a room to answer
+     */
+    public Cluster(Server server, String self, Collection<String> peers, long requestTimeoutMillis) {
+        this.server = server;
+        this.self = self;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        Set<String> nodes = new TreeSet<>(peers);
+        nodes.add(self);
+        for (String node : nodes) {
+            // a node's id must be an address its peers can dial
+            address(node);
+        }
+        this.ring = new HashRing(nodes, HashRing.DEFAULT_POINTS);
+        for (String node : nodes) {
+            if (!node.equals(self)) links.put(node, new PeerLink(this, node, self.compareTo(node) < 0));
+        }
+    }
+
+    /**
+     * The address of a node.
+     * @param node id of the node, as host:port
+     * @return the address, not resolved
+     * @throws IllegalArgumentException if the id is not host:port
+     */
+    public static InetSocketAddress address(String node) {
+        int colon = node.lastIndexOf(':');
+        if (colon <= 0) throw new IllegalArgumentException("Invalid cluster node " + node + ", expected host:port");
+        try {
+            return InetSocketAddress.createUnresolved(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cluster node " + node + ", expected host:port");
+        }
+    }
+
+    /**
+     * Listen to the peers, and dial those this node is the one to dial.
+     * @throws IOException if the port cannot be listened on
+     */
+    public void start() throws IOException {
+        InetSocketAddress address = address(self);
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(address.getHostString(), address.getPort()));
+        Thread acceptor = new Thread(this::accept, "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink link : links.values()) {
+            link.start();
+        }
+        System.out.println("Cluster node " + self + ", " + ring.getNodes().size() + " nodes");
+    }
+
+    /*
+     * Hand every connection a peer dialed to the peer's link, once it named itself
+     */
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(HELLO_TIMEOUT_MILLIS);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String line = reader.readLine();
+                ClusterMessage hello = line == null ? null : ClusterMessage.decode(line);
+                PeerLink link = hello == null || !ClusterMessage.HELLO.equals(hello.getType())
+                        ? null : links.get(hello.getNode());
+                if (link == null) {
+                    System.err.println("Unknown cluster node at " + socket.getRemoteSocketAddress());
+                    socket.close();
+                    continue;
+                }
+                socket.setSoTimeout(0);
+                link.accepted(socket, reader);
+            } catch (IOException | RuntimeException e) {
+                if (!serverSocket.isClosed()) System.err.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stop listening to the peers and drop the links.
+     */
+    public void close() {
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+        for (PeerLink link : links.values()) {
+            link.close();
+        }
+    }
+
+    /**
+     * Whether a room is homed on this node.
+     * @param roomid the room
+     * @return true if this node decides about the room and numbers its messages
+     */
+    public boolean isHome(String roomid) {
+        return self.equals(ring.nodeFor(roomid));
+    }
+
+    /**
+     * Whether an identity is homed on this node.
+     * @param identity the identity
+     * @return true if this node decides who may change to it
+     */
+    public boolean isIdentityHome(String identity) {
+        return self.equals(identityHome(identity));
+    }
+
+    /*
+     * The node handing out the number of a "guestx", the ring's pick for any other identity
+     */
+    private String identityHome(String identity) {
+        int guestNumber = Server.guestNumber(identity);
+        if (guestNumber > 0) return ring.getNodes().get(guestNumber % ring.getNodes().size());
+        return ring.nodeFor(identity);
+    }
+
+    /**
+     * The position of this node among the nodes sorted by id, the remainder of the
+     * guest numbers it hands out.
+     * @return the index
+     */
+    public int getIndex() {
+        return ring.getNodes().indexOf(self);
+    }
+
+    public int size() {
+        return ring.getNodes().size();
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    /**
+     * Send a chat message of a room homed on another node there, to be numbered
+     * and relayed back.
+     * @param chat the message
+     * @param roomid the room
+     * @return false if the room is homed here, or its home node is down
+     */
+    public boolean forward(Packet.ToCMessage chat, String roomid) {
+        String home = ring.nodeFor(roomid);
+        if (self.equals(home)) return false;
+        // the home node being down, the room goes on without it
+        return links.get(home).send(ClusterMessage.relay(ClusterMessage.CHAT, roomid, chat, chat.getIdentity()));
+    }
+
+    /**
+     * Relay a packet broadcast in a room to the guests of the room on other nodes.
+     * @param roomid the room
+     * @param packet the packet
+     * @param ignored the guest the packet is not sent to, or null
+     * @param peers the links of the nodes with guests in the room, or null for every node
+     */
+    public void relay(String roomid, Packet.ToClient packet, ServerConn ignored, Collection<PeerLink> peers) {
+        String line = ClusterMessage.relay(ClusterMessage.RELAY, roomid, packet,
+                ignored == null ? null : ignored.getIdentity()).encode();
+        for (PeerLink link : peers == null ? links.values() : peers) {
+            link.send(line);
+        }
+    }
+
+    /**
+     * Tell the other nodes a guest of this node is in a room.
+     * @param guest the guest
+     */
+    public void joined(ServerConn guest) {
+        announce(ClusterMessage.join(guest.getIdentity(), guest.getRoomid()));
+    }
+
+    /**
+     * Tell the other nodes a guest of this node changed its identity.
+     * @param former the guest's former identity
+     * @param guest the guest, holding its new identity
+     */
+    public void renamed(String former, ServerConn guest) {
+        announce(ClusterMessage.rename(former, guest.getIdentity()));
+    }
+
+    /**
+     * Tell the other nodes a guest of this node disconnected.
+     * @param guest the guest
+     */
+    public void left(ServerConn guest) {
+        announce(ClusterMessage.identity(ClusterMessage.LEAVE, guest.getIdentity()));
+    }
+
+    /**
+     * Tell the other nodes a room homed here was created.
+     * @param roomid the room
+     * @param owner identity of its owner
+     */
+    public void roomCreated(String roomid, String owner) {
+        announce(ClusterMessage.room(roomid, owner));
+    }
+
+    /**
+     * Have a room deleted on the other nodes, by telling them if it is homed here
+     * or its home node otherwise.
+     * @param roomid the room, deleted on this node
+     */
+    public void roomDeleted(String roomid) {
+        if (isHome(roomid)) {
+            announce(ClusterMessage.deleted(ClusterMessage.DELETED, roomid));
+        } else {
+            links.get(ring.nodeFor(roomid)).send(ClusterMessage.deleted(ClusterMessage.DELETE, roomid));
+        }
+    }
+
+    /**
+     * Ask the home node of an identity to hold it for a guest of this node.
+     * @param identity identity the guest changes to
+     * @param former the guest's current identity
+     * @return whether the identity is the guest's now, completed once the home node replied or timed out
+     */
+    public CompletableFuture<Boolean> claim(String identity, String former) {
+        PeerLink home = links.get(identityHome(identity));
+        return request(home, ClusterMessage.claim(identity, former)).thenApply(ok -> {
+            // no answer in time, the home may have held it for the guest anyway
+            if (ok == null) release(identity);
+            return Boolean.TRUE.equals(ok);
+        });
+    }
+
+    /**
+     * Give back an identity the home node held for a guest of this node that did not take it.
+     * @param identity the identity
+     */
+    public void release(String identity) {
+        links.get(identityHome(identity)).send(ClusterMessage.identity(ClusterMessage.RELEASE, identity));
+    }
+
+    /**
+     * Ask the home node of a room to create it. It tells every node of the new room.
+     * @param roomid the room
+     * @param owner identity of its owner
+     * @return whether the room was created, completed once the home node replied or timed out
+     */
+    public CompletableFuture<Boolean> create(String roomid, String owner) {
+        return request(links.get(ring.nodeFor(roomid)), ClusterMessage.create(roomid, owner))
+                .thenApply(Boolean.TRUE::equals);
+    }
+
+    /*
+     * Send a request without waiting for the reply, which completes the result on the
+     * thread reading the node's link. Null if the node is down or does not reply in time.
+     */
+    private CompletableFuture<Boolean> request(PeerLink link, ClusterMessage message) {
+        long id = requests.incrementAndGet();
+        message.setId(id);
+        CompletableFuture<Boolean> reply = new CompletableFuture<>();
+        pending.put(id, reply);
+        reply.whenComplete((ok, e) -> pending.remove(id));
+        if (link.send(message)) {
+            reply.completeOnTimeout(null, requestTimeoutMillis, TimeUnit.MILLISECONDS);
+        } else {
+            reply.complete(null);
+        }
+        return reply;
+    }
+
+    /*
+     * Send a change of this node's state to every peer
+     */
+    private void announce(ClusterMessage message) {
+        String line = message.encode();
+        state.readLock().lock();
+        try {
+            for (PeerLink link : links.values()) {
+                link.send(line);
+            }
+        } finally {
+            state.readLock().unlock();
+        }
+    }
+
+    /**
+     * Start sending to a peer over a new connection, beginning with every room and
+     * every guest of this node.
+     * @param link the peer's link
+     * @param outbox queue of the new connection
+     */
+    void linkUp(PeerLink link, BlockingQueue<String> outbox) {
+        state.writeLock().lock();
+        try {
+            // replacing a connection the peer dropped, its guests come again with its state
+            if (link.getOutbox() != null) dropGuests(link);
+            link.setOutbox(outbox);
+            // a peer that stops taking the state is dropped at once, every announcement waits meanwhile
+            for (Room room : server.getRooms().values()) {
+                if (Constant.MAINHALL.equals(room.getRoomid())) continue;
+                String owner = server.getOwners().get(room.getRoomid());
+                if (!link.sendState(ClusterMessage.room(room.getRoomid(), owner == null ? "" : owner))) return;
+            }
+            for (Room room : server.getRooms().values()) {
+                for (ServerConn guest : room.snapshot()) {
+                    if (!(guest instanceof RemoteGuest)
+                            && !link.sendState(ClusterMessage.join(guest.getIdentity(), room.getRoomid()))) {
+                        return;
+                    }
+                }
+            }
+        } finally {
+            state.writeLock().unlock();
+        }
+        System.out.println("Cluster link to " + link.getNode() + " is up");
+    }
+
+    /**
+     * Stop sending to a peer whose connection dropped, and let its guests go.
+     * @param link the peer's link
+     * @param outbox queue of the dropped connection
+     */
+    void linkDown(PeerLink link, BlockingQueue<String> outbox) {
+        state.writeLock().lock();
+        try {
+            // unless a new connection took over meanwhile
+            if (link.getOutbox() != outbox) return;
+            link.setOutbox(null);
+            dropGuests(link);
+        } finally {
+            state.writeLock().unlock();
+        }
+        System.out.println("Cluster link to " + link.getNode() + " is down");
+    }
+
+    private void dropGuests(PeerLink link) {
+        for (RemoteGuest guest : guests.values()) {
+            if (guest.getLink() == link) left(link, guest.getIdentity());
+        }
+    }
+
+    /**
+     * Apply a message of a peer, on the thread reading its link.
+     * @param link the peer's link
+     * @param message the message
+     */
+    void receive(PeerLink link, ClusterMessage message) {
+        switch (message.getType()) {
+            case ClusterMessage.ROOM:
+                server.addRoom(message.getRoomid(), message.getOwner() == null ? "" : message.getOwner());
+                joinWaiting(message.getRoomid());
+                break;
+            case ClusterMessage.DELETE:
+                // a request to the home node, which tells every node
+                deleted(message.getRoomid());
+                announce(ClusterMessage.deleted(ClusterMessage.DELETED, message.getRoomid()));
+                break;
+            case ClusterMessage.DELETED:
+                deleted(message.getRoomid());
+                break;
+            case ClusterMessage.JOIN:
+                joined(link, message.getIdentity(), message.getRoomid());
+                break;
+            case ClusterMessage.RENAME:
+                renamed(link, message.getFormer(), message.getIdentity());
+                break;
+            case ClusterMessage.LEAVE:
+                left(link, message.getIdentity());
+                break;
+            case ClusterMessage.RELAY:
+                server.deliver(message.getPacket(), message.getRoomid(), message.getIdentity());
+                break;
+            case ClusterMessage.CHAT:
+                // numbered here, the home node, and relayed to every node
+                server.broadcast(message.getPacket(), message.getRoomid(), guests.get(message.getIdentity()));
+                break;
+            case ClusterMessage.CLAIM:
+                link.send(ClusterMessage.reply(message.getId(), claimed(link, message.getIdentity(), message.getFormer())));
+                break;
+            case ClusterMessage.CREATE:
+                if (server.isValidRoomid(message.getRoomid())) {
+                    // homed here, so decided at once
+                    server.createRoom(message.getRoomid(), message.getOwner())
+                            .thenAccept(created -> link.send(ClusterMessage.reply(message.getId(), created)));
+                } else {
+                    link.send(ClusterMessage.reply(message.getId(), false));
+                }
+                break;
+            case ClusterMessage.REPLY:
+                CompletableFuture<Boolean> reply = pending.get(message.getId());
+                if (reply != null) reply.complete(message.isOk());
+                break;
+            case ClusterMessage.RELEASE:
+                ServerConn holder = server.getIdentities().get(message.getIdentity());
+                // held for a guest of the peer that did not change to it
+                if (holder instanceof RemoteGuest && ((RemoteGuest) holder).getLink() == link
+                        && !message.getIdentity().equals(holder.getIdentity())) {
+                    server.releaseIdentity(message.getIdentity(), holder);
+                }
+                break;
+            default:
+                // sent by a newer node, nothing this one knows to do
+        }
+    }
+
+    /*
+     * Delete a room on this node, moving this node's guests in it to the Main Hall
+     */
+    private void deleted(String roomid) {
+        ServerConn[] members = server.removeRoom(roomid);
+        if (members != null) server.evacuate(roomid, members);
+    }
+
+    /*
+     * Hold an identity homed here for a guest of a peer, if it is free
+     */
+    private boolean claimed(PeerLink link, String identity, String former) {
+        RemoteGuest guest = former == null ? null : guests.get(former);
+        if (guest == null || guest.getLink() != link) return false;
+        return server.isValidIdentity(identity) && server.holdIdentity(identity, guest);
+    }
+
+    private void joined(PeerLink link, String identity, String roomid) {
+        RemoteGuest guest = guests.computeIfAbsent(identity, id -> new RemoteGuest(server, link, id));
+        // a guest of another node holds the identity, which only a node coming back after a split does
+        if (guest.getLink() != link) return;
+        if (server.getIdentities().get(identity) != guest) server.holdIdentity(identity, guest);
+        synchronized (guest) {
+            waiting.remove(guest);
+            if (server.joinRoom(guest, roomid) || server.getRooms().containsKey(roomid)) return;
+            // the home node's news of the room comes over its own link, which may not have been read yet
+            waiting.put(guest, roomid);
+        }
+        // unless it was read meanwhile
+        if (server.getRooms().containsKey(roomid)) joinWaiting(roomid);
+    }
+
+    /*
+     * Put the guests that joined a room before this node heard of it in the room
+     */
+    private void joinWaiting(String roomid) {
+        for (Map.Entry<RemoteGuest, String> entry : waiting.entrySet()) {
+            if (!entry.getValue().equals(roomid)) continue;
+            RemoteGuest guest = entry.getKey();
+            synchronized (guest) {
+                if (waiting.remove(guest, roomid)) server.joinRoom(guest, roomid);
+            }
+        }
+    }
+
+    private void renamed(PeerLink link, String former, String identity) {
+        RemoteGuest guest = guests.get(former);
+        if (guest == null || guest.getLink() != link) return;
+        // held already if the identity is homed here
+        if (server.getIdentities().get(identity) != guest) server.holdIdentity(identity, guest);
+        server.getOwners().rename(former, identity);
+        guest.setIdentity(identity);
+        server.renamed(former, guest);
+        server.releaseIdentity(former, guest);
+        guests.remove(former, guest);
+        guests.put(identity, guest);
+    }
+
+    private void left(PeerLink link, String identity) {
+        RemoteGuest guest = guests.get(identity);
+        if (guest == null || guest.getLink() != link) return;
+        guests.remove(identity, guest);
+        waiting.remove(guest);
+        server.quit(guest.getRoomid(), guest);
+        server.releaseIdentity(identity, guest);
+    }
+
+    /**
+     * The cluster's part of the stats report.
+     * @return a line for the report
+     */
+    public String report() {
+        int up = 0;
+        for (PeerLink link : links.values()) {
+            if (link.isUp()) up++;
+        }
+        return String.format("cluster: node %s, %d of %d peers up, %d remote guests",
+                self, up, links.size(), guests.size());
+    }
+
+    public Map<String, PeerLink> getLinks() {
+        return Collections.unmodifiableMap(links);
+    }
+}
@@ -0,0 +1,317 @@
+package com.comp90015;
+
+import com.comp90015.base.Constant;
+import com.comp90015.base.Packet;
+import com.comp90015.base.PacketCodec;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+/**
+ * A message between two nodes of a cluster, sent as one line of JSON over
+ * their peer link, or from a primary server to its standby. Only the fields
+ * its type needs are set, the others are null and left out of the line. A
+ * packet relayed to the guests of another node is carried as the JSON text of
+ * the newest protocol version.
+ */
+public class ClusterMessage {
+
+    // first line of a link, names the node that dialed, or carries the secret of a standby
+    public static final String HELLO = "hello";
+    // a room exists, with its owner
+    public static final String ROOM = "room";
+    // a room was deleted, its guests go to the Main Hall
+    public static final String DELETED = "deleted";
+    // a guest of the sending node is in a room
+    public static final String JOIN = "join";
+    // a guest of the sending node changed its identity
+    public static final String RENAME = "rename";
+    // a guest of the sending node disconnected
+    public static final String LEAVE = "leave";
+    // a packet for the guests of a room on the receiving node
+    public static final String RELAY = "relay";
+    // a chat message for the room's home node to number and relay
+    public static final String CHAT = "chat";
+    // requests to the home node of an identity or a room, each answered by a reply
+    public static final String CLAIM = "claim";
+    public static final String CREATE = "create";
+    public static final String REPLY = "reply";
+    // requests to the home node that are not answered
+    public static final String RELEASE = "release";
+    public static final String DELETE = "delete";
+    // from a primary to its standby: the whole state was sent, and the primary is still there
+    public static final String SYNCED = "synced";
+    public static final String PING = "ping";
+
+    private String type;
+    private Long id;
+    private String node;
+    private String roomid;
+    private String identity;
+    private String former;
+    private String owner;
+    private String packet;
+    private Boolean ok;
+    private String token;
+    // microseconds since the epoch when a primary sent it, for the standby's lag
+    private Long time;
+
+    public ClusterMessage(String type) {
+        this.type = type;
+    }
+
+    public static ClusterMessage hello(String node) {
+        ClusterMessage message = new ClusterMessage(HELLO);
+        message.node = node;
+        return message;
+    }
+
+    /**
+     * The first line from a standby, before the primary sends it anything.
+     * @param secret the secret shared with the primary
+     * @return the message
+     */
+    public static ClusterMessage standbyHello(String secret) {
+        ClusterMessage message = new ClusterMessage(HELLO);
+        message.token = secret;
+        return message;
+    }
+
+    public static ClusterMessage room(String roomid, String owner) {
+        ClusterMessage message = new ClusterMessage(ROOM);
+        message.roomid = roomid;
+        message.owner = owner;
+        return message;
+    }
+
+    public static ClusterMessage deleted(String type, String roomid) {
+        ClusterMessage message = new ClusterMessage(type);
+        message.roomid = roomid;
+        return message;
+    }
+
+    public static ClusterMessage join(String identity, String roomid) {
+        ClusterMessage message = new ClusterMessage(JOIN);
+        message.identity = identity;
+        message.roomid = roomid;
+        return message;
+    }
+
+    /**
+     * A guest of a primary server is in a room.
+     * @param identity identity of the guest
+     * @param roomid the room
+     * @param token the guest's resume token, or null if its session cannot be resumed
+     * @return the message
+     */
+    public static ClusterMessage session(String identity, String roomid, String token) {
+        ClusterMessage message = join(identity, roomid);
+        message.token = token;
+        return message;
+    }
+
+    public static ClusterMessage rename(String former, String identity) {
+        ClusterMessage message = new ClusterMessage(RENAME);
+        message.former = former;
+        message.identity = identity;
+        return message;
+    }
+
+    public static ClusterMessage identity(String type, String identity) {
+        ClusterMessage message = new ClusterMessage(type);
+        message.identity = identity;
+        return message;
+    }
+
+    /**
+     * A packet for the guests of a room on the receiving node.
+     * @param type RELAY, or CHAT for the room's home node
+     * @param roomid the room
+     * @param packet the packet
+     * @param except identity of the guest the packet is not sent to, or null
+     * @return the message
+     */
+    public static ClusterMessage relay(String type, String roomid, Packet.ToClient packet, String except) {
+        ClusterMessage message = new ClusterMessage(type);
+        message.roomid = roomid;
+        message.packet = PacketCodec.encode(packet, Constant.PROTOCOL_V3);
+        message.identity = except;
+        return message;
+    }
+
+    public static ClusterMessage claim(String identity, String former) {
+        ClusterMessage message = new ClusterMessage(CLAIM);
+        message.identity = identity;
+        message.former = former;
+        return message;
+    }
+
+    public static ClusterMessage create(String roomid, String owner) {
+        ClusterMessage message = new ClusterMessage(CREATE);
+        message.roomid = roomid;
+        message.owner = owner;
+        return message;
+    }
+
+    public static ClusterMessage reply(Long id, boolean ok) {
+        ClusterMessage message = new ClusterMessage(REPLY);
+        message.id = id;
+        message.ok = ok;
+        return message;
+    }
+
+    /**
+     * Encode the message as one line of JSON, without the line break.
+     * @return the JSON text
+     */
+    public String encode() {
+        StringWriter out = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(out)) {
+            writer.setSerializeNulls(false);
+            writer.beginObject();
+            writer.name("type").value(type);
+            writer.name("id").value(id);
+            writer.name("node").value(node);
+            writer.name("roomid").value(roomid);
+            writer.name("identity").value(identity);
+            writer.name("former").value(former);
+            writer.name("owner").value(owner);
+            writer.name("packet").value(packet);
+            writer.name("ok").value(ok);
+            writer.name("token").value(token);
+            writer.name("time").value(time);
+            writer.endObject();
+        } catch (IOException e) {
+            // a StringWriter does not throw
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Decode a line of JSON sent by another node.
+     * @param json the JSON text
+     * @return the message
+     * @throws JsonParseException if the text is not a cluster message
+     */
+    public static ClusterMessage decode(String json) {
+        ClusterMessage message = new ClusterMessage(null);
+        try (JsonReader reader = new JsonReader(new StringReader(json))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "type":
+                        message.type = reader.nextString();
+                        break;
+                    case "id":
+                        message.id = reader.nextLong();
+                        break;
+                    case "node":
+                        message.node = reader.nextString();
+                        break;
+                    case "roomid":
+                        message.roomid = reader.nextString();
+                        break;
+                    case "identity":
+                        message.identity = reader.nextString();
+                        break;
+                    case "former":
+                        message.former = reader.nextString();
+                        break;
+                    case "owner":
+                        message.owner = reader.nextString();
+                        break;
+                    case "packet":
+                        message.packet = reader.nextString();
+                        break;
+                    case "ok":
+                        message.ok = reader.nextBoolean();
+                        break;
+                    case "token":
+                        message.token = reader.nextString();
+                        break;
+                    case "time":
+                        message.time = reader.nextLong();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+        if (message.type == null) {
+            throw new JsonParseException("Cluster message does not define a field named type");
+        }
+        return message;
+    }
+
+    /**
+     * The relayed packet.
+     * @return the packet, or null if the message carries none
+     */
+    public Packet.ToClient getPacket() {
+        return packet == null ? null : PacketCodec.decodeToClient(packet);
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public String getRoomid() {
+        return roomid;
+    }
+
+    public String getIdentity() {
+        return identity;
+    }
+
+    public String getFormer() {
+        return former;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public boolean isOk() {
+        return Boolean.TRUE.equals(ok);
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public Long getTime() {
+        return time;
+    }
+
+    public void setTime(Long time) {
+        this.time = time;
+    }
+}
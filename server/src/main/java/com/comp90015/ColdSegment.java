@@ -0,0 +1,221 @@
+package com.comp90015;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A full segment of a room's message log, compressed once nothing more is
+ * appended to it. The records are those of the {@link LogSegment} it replaced,
+ * grouped into blocks of about {@link #BLOCK_BYTES} that are each deflated on
+ * their own, so a read inflates only the blocks holding the records it wants.
+ * <p>A block is an int of its compressed length, an int of its record count
+ * and the compressed records. The offset and first sequence number of every
+ * block are kept in memory. Reads open the file for each call, so the segment
+ * holds no file handle and may be read by any number of threads.
+ */
+public class ColdSegment implements Segment {
+
+    // uncompressed records in a block, the most a read inflates to reach a record
+    public static final int BLOCK_BYTES = 32 * 1024;
+    // compressed length and record count in front of every block
+    private static final int BLOCK_HEADER_BYTES = 8;
+    private static final int RECORDS_PER_READ = 1024;
+    private static final int READ_BUFFER_BYTES = 8192;
+
+    private final Path path;
+    private final long baseSeq;
+    private final long nextSeq;
+    // first sequence number and file offset of every block
+    private final long[] blockSeqs;
+    private final long[] blockOffsets;
+
+    private ColdSegment(Path path, long baseSeq, long nextSeq, long[] blockSeqs, long[] blockOffsets) {
+        this.path = path;
+        this.baseSeq = baseSeq;
+        this.nextSeq = nextSeq;
+        this.blockSeqs = blockSeqs;
+        this.blockOffsets = blockOffsets;
+    }
+
+    /**
+     * Compress the records of a full segment into a new file. The file is
+     * written under a temporary name and moved into place once it is on disk,
+     * so a crash leaves either no file or a complete one.
+     * @param path the compressed segment's file
+     * @param source the full segment, not appended to any more
+     * @return the compressed segment
+     * @throws IOException if the file cannot be written
+     */
+    public static ColdSegment write(Path path, Segment source) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream file = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), BLOCK_BYTES));
+            ByteArrayOutputStream raw = new ByteArrayOutputStream(BLOCK_BYTES + BLOCK_BYTES / 4);
+            DataOutputStream block = new DataOutputStream(raw);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(BLOCK_BYTES);
+            Deflater deflater = new Deflater();
+            try {
+                int records = 0;
+                long seq = source.getBaseSeq();
+                while (seq < source.getNextSeq()) {
+                    byte[][] batch = source.read(seq, RECORDS_PER_READ);
+                    if (batch.length == 0) break;
+                    for (byte[] record : batch) {
+                        CRC32 crc = new CRC32();
+                        crc.update(record, 0, record.length);
+                        block.writeInt(record.length);
+                        block.writeInt((int) crc.getValue());
+                        block.write(record);
+                        records++;
+                        if (raw.size() >= BLOCK_BYTES) {
+                            writeBlock(file, raw, records, compressed, deflater);
+                            records = 0;
+                        }
+                    }
+                    seq += batch.length;
+                }
+                if (records > 0) writeBlock(file, raw, records, compressed, deflater);
+            } finally {
+                deflater.end();
+            }
+            file.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+        return open(path, source.getBaseSeq());
+    }
+
+    /*
+     * Deflate the records gathered so far and write them out as a block
+     */
+    private static void writeBlock(DataOutputStream file, ByteArrayOutputStream raw, int records,
+                                   ByteArrayOutputStream compressed, Deflater deflater) throws IOException {
+        compressed.reset();
+        deflater.reset();
+        DeflaterOutputStream deflating = new DeflaterOutputStream(compressed, deflater);
+        raw.writeTo(deflating);
+        deflating.finish();
+        raw.reset();
+        file.writeInt(compressed.size());
+        file.writeInt(records);
+        compressed.writeTo(file);
+    }
+
+    /**
+     * Open a compressed segment, reading the header of every block.
+     * @param path the compressed segment's file
+     * @param baseSeq sequence number of the first record in the file
+     * @return the segment
+     * @throws IOException if the file cannot be read
+     */
+    public static ColdSegment open(Path path, long baseSeq) throws IOException {
+        long[] seqs = new long[16];
+        long[] offsets = new long[16];
+        int blocks = 0;
+        long seq = baseSeq;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+            long offset = 0;
+            while (offset + BLOCK_HEADER_BYTES <= channel.size()) {
+                header.clear();
+                while (header.hasRemaining()) {
+                    if (channel.read(header, offset + header.position()) < 0) throw new EOFException(path.toString());
+                }
+                if (blocks == seqs.length) {
+                    seqs = Arrays.copyOf(seqs, blocks * 2);
+                    offsets = Arrays.copyOf(offsets, blocks * 2);
+                }
+                seqs[blocks] = seq;
+                offsets[blocks] = offset;
+                blocks++;
+                seq += header.getInt(4);
+                offset += BLOCK_HEADER_BYTES + header.getInt(0);
+            }
+        }
+        return new ColdSegment(path, baseSeq, seq, Arrays.copyOf(seqs, blocks), Arrays.copyOf(offsets, blocks));
+    }
+
+    @Override
+    public byte[][] read(long seq, int max) throws IOException {
+        seq = Math.max(seq, baseSeq);
+        int n = (int) Math.max(0, Math.min(max, nextSeq - seq));
+        byte[][] records = new byte[n][];
+        if (n == 0) return records;
+        // the last block starting at or before the sequence number
+        int block = Arrays.binarySearch(blockSeqs, seq);
+        if (block < 0) block = -block - 2;
+        int taken = 0;
+        Inflater inflater = new Inflater();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (; block < blockSeqs.length && taken < n; block++) {
+                // inflate as the records are read, stopping as soon as there are enough
+                channel.position(blockOffsets[block] + BLOCK_HEADER_BYTES);
+                inflater.reset();
+                // buffered on both sides, the inflater costs a native call per read however small
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(
+                        Channels.newInputStream(channel), inflater, READ_BUFFER_BYTES), READ_BUFFER_BYTES));
+                long blockEnd = block + 1 < blockSeqs.length ? blockSeqs[block + 1] : nextSeq;
+                for (long current = blockSeqs[block]; current < blockEnd && taken < n; current++) {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if (current < seq) {
+                        skip(in, length);
+                        continue;
+                    }
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+                    CRC32 crc = new CRC32();
+                    crc.update(data, 0, length);
+                    if ((int) crc.getValue() != checksum) throw new IOException("Corrupt record in " + path);
+                    records[taken++] = data;
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+        return taken == n ? records : Arrays.copyOf(records, taken);
+    }
+
+    private static void skip(DataInputStream in, int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0) throw new EOFException();
+            length -= skipped;
+        }
+    }
+
+    @Override
+    public void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    @Override
+    public long getBaseSeq() {
+        return baseSeq;
+    }
+
+    @Override
+    public long getNextSeq() {
+        return nextSeq;
+    }
+}
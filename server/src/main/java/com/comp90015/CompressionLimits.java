@@ -0,0 +1,52 @@
+package com.comp90015;
+
+/**
+ * Server-wide settings for compressing the frames sent to the clients that
+ * ask for it. Packets shorter than the threshold are sent as they are, as
+ * deflate would barely shrink them. Packets sent to many clients are
+ * compressed once and shared, those sent to one client are compressed in the
+ * connection's own deflate stream, where they can refer back to the packets
+ * sent before them.
+ */
+public class CompressionLimits {
+
+    public static final int DEFAULT_THRESHOLD_BYTES = 512;
+    public static final int DEFAULT_LEVEL = 6;
+
+    // shortest packet that is compressed, 0 turns compression off
+    private final int thresholdBytes;
+    // deflate level, from 1 for the fastest to 9 for the smallest
+    private final int level;
+
+    public CompressionLimits() {
+        this(DEFAULT_THRESHOLD_BYTES, DEFAULT_LEVEL);
+    }
+
+    public CompressionLimits(int thresholdBytes, int level) {
+        if (thresholdBytes < 0 || level < 1 || level > 9) {
+            throw new IllegalArgumentException("Invalid compression settings");
+        }
+        this.thresholdBytes = thresholdBytes;
+        this.level = level;
+    }
+
+    public int getThresholdBytes() {
+        return thresholdBytes;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public boolean isEnabled() {
+        return thresholdBytes > 0;
+    }
+
+    /**
+     * @param length bytes of an encoded packet
+     * @return whether the packet is long enough to be compressed
+     */
+    public boolean compresses(int length) {
+        return isEnabled() && length >= thresholdBytes;
+    }
+}
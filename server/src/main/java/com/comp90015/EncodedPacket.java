@@ -0,0 +1,162 @@
+package com.comp90015;
+
+import com.comp90015.base.BinaryCodec;
+import com.comp90015.base.Constant;
+import com.comp90015.base.FrameCompression;
+import com.comp90015.base.Packet;
+import com.comp90015.base.PacketCodec;
+
+import java.util.Arrays;
+
+/**
+ * A packet on its way to one or more clients, together with its frames.
+ * Each wire format (encoding and protocol version) is produced the first time
+ * a recipient asks for it and then shared, so a broadcast costs one encoding
+ * per format in use rather than one per recipient. Compressed frames are
+ * shared the same way, so a broadcast is compressed once as well.
+ */
+public final class EncodedPacket {
+
+    private final Packet.ToClient packet;
+    // chat messages may be dropped for slow clients
+    private final boolean droppable;
+
+    // a racing second encoding is harmless, both frames are identical
+    private volatile Frame json;
+    private volatile Frame jsonV2;
+    private volatile Frame jsonV3;
+    private volatile Frame binary;
+    // the same for the clients that take compressed frames
+    private volatile Frame compressedJson;
+    private volatile Frame compressedJsonV2;
+    private volatile Frame compressedJsonV3;
+    private volatile Frame compressedBinary;
+
+    public EncodedPacket(Packet.ToClient packet) {
+        this.packet = packet;
+        this.droppable = packet instanceof Packet.ToCMessage;
+    }
+
+    public Packet.ToClient getPacket() {
+        return packet;
+    }
+
+    public boolean isDroppable() {
+        return droppable;
+    }
+
+    /**
+     * The frame of the packet in the given encoding, in the first protocol version.
+     * @param encoding one of the encodings in {@link Constant}
+     * @return the frame
+     */
+    public Frame frame(String encoding) {
+        return frame(encoding, Constant.PROTOCOL_V1);
+    }
+
+    /**
+     * The frame of the packet in the given format.
+     * @param encoding one of the encodings in {@link Constant}
+     * @param version protocol version of the recipient
+     * @return the frame
+     */
+    public Frame frame(String encoding, int version) {
+        if (Constant.ENCODING_BINARY.equals(encoding)) {
+            // binary frames are the same in every version
+            Frame frame = binary;
+            if (frame == null) {
+                frame = Frame.wrap(BinaryCodec.encode(packet), droppable);
+                binary = frame;
+            }
+            return frame;
+        }
+        if (version >= Constant.PROTOCOL_V3) {
+            Frame frame = jsonV3;
+            if (frame == null) {
+                frame = Frame.of(PacketCodec.encode(packet, Constant.PROTOCOL_V3), droppable);
+                jsonV3 = frame;
+            }
+            return frame;
+        }
+        if (version >= Constant.PROTOCOL_V2) {
+            Frame frame = jsonV2;
+            if (frame == null) {
+                frame = Frame.of(PacketCodec.encode(packet, Constant.PROTOCOL_V2), droppable);
+                jsonV2 = frame;
+            }
+            return frame;
+        }
+        Frame frame = json;
+        if (frame == null) {
+            frame = Frame.of(PacketCodec.encode(packet), droppable);
+            json = frame;
+        }
+        return frame;
+    }
+
+    /**
+     * The frame of the packet in the given format for a client that takes
+     * compressed frames, deflated on its own if it is long enough.
+     * @param encoding one of the encodings in {@link Constant}
+     * @param version protocol version of the recipient
+     * @param limits when and how much to compress
+     * @return the frame
+     */
+    public Frame frame(String encoding, int version, CompressionLimits limits) {
+        if (Constant.ENCODING_BINARY.equals(encoding)) {
+            Frame frame = compressedBinary;
+            if (frame == null) {
+                frame = compress(encoding, version, limits);
+                compressedBinary = frame;
+            }
+            return frame;
+        }
+        if (version >= Constant.PROTOCOL_V3) {
+            Frame frame = compressedJsonV3;
+            if (frame == null) {
+                frame = compress(encoding, version, limits);
+                compressedJsonV3 = frame;
+            }
+            return frame;
+        }
+        if (version >= Constant.PROTOCOL_V2) {
+            Frame frame = compressedJsonV2;
+            if (frame == null) {
+                frame = compress(encoding, version, limits);
+                compressedJsonV2 = frame;
+            }
+            return frame;
+        }
+        Frame frame = compressedJson;
+        if (frame == null) {
+            frame = compress(encoding, version, limits);
+            compressedJson = frame;
+        }
+        return frame;
+    }
+
+    private Frame compress(String encoding, int version, CompressionLimits limits) {
+        byte[] body = body(encoding, version);
+        if (limits.compresses(body.length)) {
+            return Frame.wrap(FrameCompression.deflate(body, limits.getLevel()), droppable);
+        }
+        // short binary frames are the same either way
+        if (Constant.ENCODING_BINARY.equals(encoding)) return frame(encoding, version);
+        return Frame.wrap(FrameCompression.frame(body), droppable);
+    }
+
+    /**
+     * The encoded packet in the given format, without the length prefix of a
+     * binary frame or the newline of a JSON one.
+     * @param encoding one of the encodings in {@link Constant}
+     * @param version protocol version of the recipient
+     * @return the bytes of the packet
+     */
+    public byte[] body(String encoding, int version) {
+        byte[] bytes = frame(encoding, version).bytes();
+        if (!Constant.ENCODING_BINARY.equals(encoding)) return Arrays.copyOf(bytes, bytes.length - 1);
+        int prefix = 1;
+        while ((bytes[prefix - 1] & 0x80) != 0) prefix++;
+        return Arrays.copyOfRange(bytes, prefix, bytes.length);
+    }
+}
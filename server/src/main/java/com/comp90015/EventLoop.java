@@ -0,0 +1,193 @@
+package com.comp90015;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single selector thread serving many non-blocking connections.
+ * Work submitted from other threads is queued and run by the loop itself,
+ * so a connection's channel and buffers are only ever touched by its loop.
+ * <p>Connections with frames to write are flushed at the end of each round,
+ * after every ready key and queued task, so a burst of input becomes one write
+ * per recipient. With a flush delay they wait that long from their first frame.
+ */
+public class EventLoop implements Runnable {
+
+    // shortest wait the selector can time
+    private static final long SELECT_GRANULARITY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Server server;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // connections waiting to be flushed, by deadline, only touched by the loop
+    private final ArrayDeque<NioServerConn> flushes = new ArrayDeque<>();
+
+    private volatile boolean alive = true;
+    private Thread thread;
+
+    public EventLoop(Server server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Start the loop on its own thread.
+     * @param name name of the loop thread
+     */
+    public void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (alive) {
+            try {
+                select();
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioServerConn conn = (NioServerConn) key.attachment();
+                    if (!key.isValid()) continue;
+                    try {
+                        if (key.isWritable()) conn.onWritable();
+                        if (key.isValid() && key.isReadable()) conn.onReadable();
+                    } catch (RuntimeException e) {
+                        // a bad packet must not take down every connection on the loop
+                        System.err.println(e.getMessage());
+                    }
+                }
+                // what the keys queued for other connections goes out in the same round
+                runTasks();
+                flushDue();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+        close();
+    }
+
+    /**
+     * Hand a freshly accepted channel over to this loop.
+     * @param channel accepted client channel
+     */
+    public void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioServerConn conn = new NioServerConn(server, this, channel, key);
+                key.attach(conn);
+                server.accepted(conn);
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Run the task on the loop thread, immediately if already on it.
+     * @param task task to be run
+     */
+    public void execute(Runnable task) {
+        if (inLoop()) {
+            task.run();
+        } else {
+            submit(task);
+        }
+    }
+
+    /**
+     * Queue the task for the loop thread, even when called from the loop itself.
+     * @param task task to be run
+     */
+    public void submit(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Have the loop flush the connection once its flush delay is over, at the
+     * end of the current round if there is none.
+     * @param conn connection with frames queued
+     */
+    public void flushLater(NioServerConn conn) {
+        execute(() -> {
+            conn.flushDeadline = System.nanoTime()
+                    + TimeUnit.MICROSECONDS.toNanos(server.getOutboundLimits().getFlushDelayMicros());
+            flushes.add(conn);
+        });
+    }
+
+    /*
+     * Wait for ready keys, but no longer than until the next flush is due. The
+     * selector only takes whole milliseconds, a flush due sooner is done right
+     * away rather than holding up every connection of the loop for it.
+     */
+    private void select() throws IOException {
+        NioServerConn next = flushes.peek();
+        if (next == null) {
+            selector.select();
+            return;
+        }
+        long wait = next.flushDeadline - System.nanoTime();
+        if (wait >= SELECT_GRANULARITY_NANOS) {
+            selector.select(TimeUnit.NANOSECONDS.toMillis(wait));
+        } else {
+            selector.selectNow();
+        }
+    }
+
+    /*
+     * Flush the connections whose delay is over or ends within the selector's
+     * granularity, the delay is the same for all so they come in order
+     */
+    private void flushDue() {
+        long now = System.nanoTime();
+        NioServerConn conn;
+        while ((conn = flushes.peek()) != null && conn.flushDeadline - now < SELECT_GRANULARITY_NANOS) {
+            flushes.poll();
+            conn.flush();
+        }
+    }
+
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void shutdown() {
+        alive = false;
+        selector.wakeup();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+    }
+
+    private void close() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
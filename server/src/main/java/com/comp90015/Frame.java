@@ -0,0 +1,79 @@
+package com.comp90015;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One encoded packet as it goes on the wire: either the UTF-8 bytes of its JSON
+ * text followed by the newline, or a length-prefixed binary frame. A frame is
+ * immutable, so a broadcast encodes the packet once and hands the same frame to
+ * every recipient.
+ */
+public final class Frame {
+
+    private final byte[] bytes;
+    // a chat message that may be dropped for a slow client
+    private final boolean droppable;
+
+    private Frame(byte[] bytes, boolean droppable) {
+        this.bytes = bytes;
+        this.droppable = droppable;
+    }
+
+    /**
+     * Encode a JSON text line into a frame.
+     * @param json the JSON text of a packet, without newline
+     * @return the frame
+     */
+    public static Frame of(String json) {
+        return of(json, false);
+    }
+
+    /**
+     * Encode a JSON text line into a frame.
+     * @param json the JSON text of a packet, without newline
+     * @param droppable whether the frame may be dropped for a slow client
+     * @return the frame
+     */
+    public static Frame of(String json, boolean droppable) {
+        byte[] text = json.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = new byte[text.length + 1];
+        System.arraycopy(text, 0, bytes, 0, text.length);
+        bytes[text.length] = '\n';
+        return new Frame(bytes, droppable);
+    }
+
+    /**
+     * Wrap bytes that are already a complete frame.
+     * @param bytes the frame, not to be modified afterwards
+     * @param droppable whether the frame may be dropped for a slow client
+     * @return the frame
+     */
+    public static Frame wrap(byte[] bytes, boolean droppable) {
+        return new Frame(bytes, droppable);
+    }
+
+    /**
+     * The encoded bytes, shared by every holder of the frame and not to be modified.
+     * @return the bytes of the whole frame
+     */
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    /**
+     * A fresh read-only view over the bytes, with its own position.
+     * @return the buffer
+     */
+    public ByteBuffer buffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    public boolean isDroppable() {
+        return droppable;
+    }
+}
@@ -0,0 +1,145 @@
+package com.comp90015;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Hands out the numbers of the default "guestx" identities, always the smallest
+ * one not in use. Numbers are bits in a bitmap, with a second bitmap marking the
+ * words that are full and a hint to the lowest word that may have a free bit, so
+ * finding the smallest free number skips 4096 numbers per summary word instead of
+ * testing them one by one. Numbers far above anything the allocator would hand
+ * out (a client may rename itself to "guest99999999") are kept in a side set.
+ * <p>A node of a cluster only hands out the numbers of its own residue class,
+ * every stride-th number from its offset, so nodes never hand out the same one.
+ * The bitmap then holds the number divided by the stride.
+ */
+public class GuestIdAllocator {
+
+    // numbers from here on are never handed out, only claimed by renames
+    private static final int BITMAP_LIMIT = 1 << 24;
+
+    private long[] words = new long[64];
+    // bit w is set when words[w] has no free bit
+    private long[] full = new long[1];
+    // no free number below this word
+    private int lowestFreeWord = 0;
+    private final Set<Integer> overflow = new HashSet<>();
+    // the numbers handed out are offset modulo stride
+    private final int offset;
+    private final int stride;
+
+    public GuestIdAllocator() {
+        this(0, 1);
+    }
+
+    /**
+     * @param offset remainder of the numbers handed out, divided by the stride
+     * @param stride distance between the numbers handed out, the number of nodes
+     */
+    public GuestIdAllocator(int offset, int stride) {
+        if (stride < 1 || offset < 0 || offset >= stride) {
+            throw new IllegalArgumentException("Invalid guest number offset or stride");
+        }
+        this.offset = offset;
+        this.stride = stride;
+        // there is no guest0
+        if (offset == 0) words[0] = 1L;
+    }
+
+    /**
+     * Take the smallest number not in use.
+     * @return the number, at least 1
+     */
+    public synchronized int allocate() {
+        int word = findFreeWord(lowestFreeWord);
+        int id = (word << 6) + Long.numberOfTrailingZeros(~words[word]);
+        if (id >= BITMAP_LIMIT) throw new IllegalStateException("Out of guest numbers");
+        set(id);
+        lowestFreeWord = word;
+        return id * stride + offset;
+    }
+
+    /**
+     * Whether the number is one this allocator hands out, the other nodes keep track of the rest.
+     * @param id the number
+     * @return true if it is of this allocator's residue class
+     */
+    public boolean isOwned(int id) {
+        return id > 0 && id % stride == offset;
+    }
+
+    /**
+     * Take a given number, for a client renaming itself to "guestx".
+     * @param id the number
+     * @return false if the number is in use
+     */
+    public synchronized boolean claim(int id) {
+        if (!isOwned(id)) return false;
+        id /= stride;
+        if (id >= BITMAP_LIMIT) return overflow.add(id);
+        if (isSet(id)) return false;
+        set(id);
+        return true;
+    }
+
+    /**
+     * Give a number back.
+     * @param id the number
+     */
+    public synchronized void release(int id) {
+        if (!isOwned(id)) return;
+        id /= stride;
+        if (id >= BITMAP_LIMIT) {
+            overflow.remove(id);
+            return;
+        }
+        if (!isSet(id)) return;
+        int word = id >>> 6;
+        words[word] &= ~(1L << id);
+        full[word >>> 6] &= ~(1L << word);
+        if (word < lowestFreeWord) lowestFreeWord = word;
+    }
+
+    public synchronized boolean contains(int id) {
+        if (!isOwned(id)) return false;
+        id /= stride;
+        if (id >= BITMAP_LIMIT) return overflow.contains(id);
+        return isSet(id);
+    }
+
+    private boolean isSet(int id) {
+        int word = id >>> 6;
+        return word < words.length && (words[word] & (1L << id)) != 0;
+    }
+
+    private void set(int id) {
+        int word = id >>> 6;
+        ensureCapacity(word);
+        words[word] |= 1L << id;
+        if (words[word] == -1L) full[word >>> 6] |= 1L << word;
+    }
+
+    /*
+     * The first word at or after the given one with a free bit, scanning the summary
+     */
+    private int findFreeWord(int from) {
+        for (int summary = from >>> 6; ; summary++) {
+            ensureCapacity(summary << 6);
+            long free = ~full[summary];
+            if (summary == from >>> 6) free &= -1L << (from & 63);
+            if (free != 0) return (summary << 6) + Long.numberOfTrailingZeros(free);
+        }
+    }
+
+    private void ensureCapacity(int word) {
+        if (word >= words.length) {
+            words = Arrays.copyOf(words, Math.max(words.length * 2, word + 1));
+        }
+        int summary = word >>> 6;
+        if (summary >= full.length) {
+            full = Arrays.copyOf(full, Math.max(full.length * 2, summary + 1));
+        }
+    }
+}
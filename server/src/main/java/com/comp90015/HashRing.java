@@ -0,0 +1,82 @@
+package com.comp90015;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of room ids and identities onto the nodes of a cluster.
+ * Every node stands at many points of a ring of 64 bit hashes, and a key
+ * belongs to the node of the first point at or after the key's own hash. The
+ * points spread the keys evenly over the nodes, and a node joining or leaving
+ * moves only the keys next to its own points.
+ * <p>The hash is computed the same way by every node, whatever its JVM, so
+ * the nodes agree on the home of every key without asking each other.
+ */
+public class HashRing {
+
+    public static final int DEFAULT_POINTS = 128;
+
+    private final TreeMap<Long, String> points = new TreeMap<>();
+    // sorted, the same list on every node
+    private final List<String> nodes;
+
+    /**
+     * @param nodes ids of every node of the cluster, this one included
+     * @param pointsPerNode points each node stands at on the ring
+     */
+    public HashRing(Collection<String> nodes, int pointsPerNode) {
+        if (nodes.isEmpty() || pointsPerNode < 1) {
+            throw new IllegalArgumentException("A hash ring needs nodes and points");
+        }
+        List<String> sorted = new ArrayList<>(nodes);
+        Collections.sort(sorted);
+        this.nodes = Collections.unmodifiableList(sorted);
+        for (String node : sorted) {
+            for (int i = 0; i < pointsPerNode; i++) {
+                points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * The node a key belongs to.
+     * @param key a room id or an identity
+     * @return id of the node
+     */
+    public String nodeFor(String key) {
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(key));
+        return (point != null ? point : points.firstEntry()).getValue();
+    }
+
+    /**
+     * Every node of the ring, sorted by id.
+     * @return the nodes, not modifiable
+     */
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * FNV-1a of the key's characters, mixed by the finalizer of MurmurHash3 as
+     * FNV alone leaves similar keys, such as "room1" and "room2", close together.
+     * @param key key to be hashed
+     * @return the hash
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
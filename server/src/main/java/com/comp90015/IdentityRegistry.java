@@ -0,0 +1,60 @@
+package com.comp90015;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Server-wide index of the identities in use. Names are claimed and released
+ * atomically, so uniqueness checks take constant time no matter how many
+ * clients are connected, and two clients can never end up with the same name.
+ */
+public class IdentityRegistry {
+
+    private final Map<String, ServerConn> identities = new ConcurrentHashMap<>();
+
+    /**
+     * Claim an identity for a connection.
+     * @param identity identity to be claimed
+     * @param conn the claiming connection
+     * @return false if the identity is already in use
+     */
+    public boolean claim(String identity, ServerConn conn) {
+        return identities.putIfAbsent(identity, conn) == null;
+    }
+
+    /**
+     * Release an identity, only if the given connection holds it.
+     * @param identity identity to be released
+     * @param conn the connection holding it
+     */
+    public void release(String identity, ServerConn conn) {
+        if (identity != null) identities.remove(identity, conn);
+    }
+
+    /**
+     * Hand an identity over to another connection, only if the given one holds it.
+     * @param identity identity to be handed over
+     * @param from the connection holding it
+     * @param to the connection taking it
+     * @return whether the identity now belongs to the new connection
+     */
+    public boolean transfer(String identity, ServerConn from, ServerConn to) {
+        return identity != null && identities.replace(identity, from, to);
+    }
+
+    public boolean contains(String identity) {
+        return identities.containsKey(identity);
+    }
+
+    /**
+     * @param identity identity to be looked up
+     * @return the connection holding the identity, or null
+     */
+    public ServerConn get(String identity) {
+        return identities.get(identity);
+    }
+
+    public int size() {
+        return identities.size();
+    }
+}
@@ -0,0 +1,225 @@
+package com.comp90015;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * One file of a room's message log, mapped into memory. The file holds
+ * consecutive records, each an int length, an int CRC32 of the data and the
+ * data itself, and ends at the first zero length. The sequence number of a
+ * record is implied by its place in the file, the first one being the base
+ * sequence in the file name.
+ * <p>Every {@link #INDEX_INTERVAL}th record's offset is kept in memory, so a
+ * record is found from its sequence number by hopping over fewer than that
+ * many records. Not thread safe, the room's log serializes access.
+ */
+public class LogSegment implements Segment {
+
+    // one index entry per this many records
+    public static final int INDEX_INTERVAL = 64;
+    // length and checksum in front of every record
+    public static final int HEADER_BYTES = 8;
+    // granularity of the pages touched ahead of the appends
+    private static final int PAGE_BYTES = 4096;
+
+    private final Path path;
+    private final long baseSeq;
+    private final MappedByteBuffer buffer;
+
+    // offset of the next record to be written
+    private int position;
+    private int count;
+    // offsets of records 0, INDEX_INTERVAL, 2 * INDEX_INTERVAL...
+    private int[] index = new int[16];
+    // written since the last force
+    private boolean dirty;
+    // offset of the furthest page touched ahead of the appends
+    private int touched;
+
+    private LogSegment(Path path, long baseSeq, MappedByteBuffer buffer) {
+        this.path = path;
+        this.baseSeq = baseSeq;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Map a segment file, creating it at the given size if it does not exist,
+     * and find the end of the records already in it. A record cut short by a
+     * crash fails its checksum and ends the segment.
+     * @param path the segment file
+     * @param baseSeq sequence number of the first record in the file
+     * @param capacity size of a new file in bytes
+     * @return the segment, positioned after its last complete record
+     * @throws IOException if the file cannot be mapped
+     */
+    public static LogSegment open(Path path, long baseSeq, int capacity) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // an existing file keeps its size, the segment size may have changed since
+            long size = Math.max(channel.size(), capacity);
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Log segment too large: " + path);
+            }
+            // the mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        LogSegment segment = new LogSegment(path, baseSeq, buffer);
+        segment.recover();
+        return segment;
+    }
+
+    private void recover() {
+        CRC32 crc = new CRC32();
+        while (position + HEADER_BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > buffer.capacity() - position - HEADER_BYTES) break;
+            ByteBuffer data = buffer.duplicate();
+            data.position(position + HEADER_BYTES).limit(position + HEADER_BYTES + length);
+            crc.reset();
+            crc.update(data);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) break;
+            indexRecord();
+            position += HEADER_BYTES + length;
+            count++;
+        }
+        // clear what a torn write left behind, so the next record ends where it should
+        if (position + HEADER_BYTES <= buffer.capacity()) buffer.putInt(position, 0);
+    }
+
+    private void indexRecord() {
+        if (count % INDEX_INTERVAL != 0) return;
+        int slot = count / INDEX_INTERVAL;
+        if (slot == index.length) index = Arrays.copyOf(index, slot * 2);
+        index[slot] = position;
+    }
+
+    /**
+     * Append a record if it fits in the rest of the segment.
+     * @param data bytes of the record
+     * @return false if the segment is too full to take it
+     */
+    public boolean append(byte[] data) {
+        // room for the record and for the zero length that ends the segment
+        if ((long) position + HEADER_BYTES + data.length + 4 > buffer.capacity()) return false;
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        int start = position + HEADER_BYTES;
+        buffer.putInt(position + 4, (int) crc.getValue());
+        ByteBuffer view = buffer.duplicate();
+        view.position(start);
+        view.put(data);
+        buffer.putInt(start + data.length, 0);
+        // the length goes last, a record is complete once it is set
+        buffer.putInt(position, data.length);
+        indexRecord();
+        position = start + data.length;
+        count++;
+        dirty = true;
+        return true;
+    }
+
+    /**
+     * Read the records from the given sequence number on.
+     * @param seq sequence number of the first record, within the segment
+     * @param max most records to read
+     * @return the records in order, fewer than max if the segment ends first
+     */
+    @Override
+    public byte[][] read(long seq, int max) {
+        int n = (int) Math.max(0, Math.min(max, baseSeq + count - seq));
+        byte[][] records = new byte[n][];
+        if (n == 0) return records;
+        int relative = (int) (seq - baseSeq);
+        int offset = index[relative / INDEX_INTERVAL];
+        // hop from the indexed record to the one asked for
+        for (int i = relative % INDEX_INTERVAL; i > 0; i--) {
+            offset += HEADER_BYTES + buffer.getInt(offset);
+        }
+        ByteBuffer view = buffer.duplicate();
+        for (int i = 0; i < n; i++) {
+            byte[] data = new byte[buffer.getInt(offset)];
+            view.position(offset + HEADER_BYTES);
+            view.get(data);
+            records[i] = data;
+            offset += HEADER_BYTES + data.length;
+        }
+        return records;
+    }
+
+    /**
+     * Write to the next page not yet touched, if it is within the given distance
+     * of the end of the records. The first write to a page of the file faults it
+     * in, which is better done by the flusher than by a broadcast.
+     * @param ahead how far past the last record to touch pages
+     * @return false if every page that far ahead has been touched
+     */
+    public boolean touchAhead(int ahead) {
+        int page = (Math.max(touched, position + 4) / PAGE_BYTES + 1) * PAGE_BYTES;
+        if (page >= buffer.capacity() || page > (long) position + ahead) return false;
+        // past the zero length that ends the records, nothing there is read
+        buffer.put(page, (byte) 0);
+        touched = page;
+        return true;
+    }
+
+    /**
+     * Take the segment's pending writes, for {@link #force()} to be called
+     * outside the log's lock.
+     * @return whether anything was written since the last call
+     */
+    public boolean takeDirty() {
+        boolean wasDirty = dirty;
+        dirty = false;
+        // the force cleans the pages touched ahead too, their next write faults again
+        if (wasDirty) touched = 0;
+        return wasDirty;
+    }
+
+    /**
+     * Write the mapped pages back to the file, may run alongside appends.
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    /**
+     * Delete the file. The segment must not be used afterwards.
+     * @throws IOException if the file cannot be deleted
+     */
+    @Override
+    public void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    @Override
+    public long getBaseSeq() {
+        return baseSeq;
+    }
+
+    /**
+     * @return sequence number the next record appended would get
+     */
+    @Override
+    public long getNextSeq() {
+        return baseSeq + count;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return bytes taken by the records so far
+     */
+    public int getSize() {
+        return position;
+    }
+}
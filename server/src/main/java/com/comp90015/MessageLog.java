@@ -0,0 +1,246 @@
+package com.comp90015;
+
+import com.comp90015.base.BinaryCodec;
+import com.comp90015.base.Constant;
+import com.comp90015.base.Packet;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable history of the chat messages of every room, one {@link RoomLog} per
+ * room in a subdirectory named after the room. A record is the binary frame of
+ * the message, the one already encoded for the broadcast, so logging costs a
+ * copy into mapped memory rather than another encoding.
+ * <p>The mapped pages are written back to disk by a background thread every
+ * flush interval, each flush covering every message appended since the last
+ * one. Messages survive a crash of the server as soon as they are appended,
+ * and a crash of the machine once they are flushed. The same thread
+ * compresses the segments that are full, so older history takes less disk
+ * and is read back a block at a time.
+ */
+public class MessageLog {
+
+    public static final int DEFAULT_SEGMENT_BYTES = 8 * 1024 * 1024;
+    public static final long DEFAULT_FLUSH_MILLIS = 100;
+    // how often full segments are looked for when every message is flushed as it comes
+    private static final long COMPACT_MILLIS = 1000;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long flushMillis;
+
+    private final ConcurrentHashMap<String, RoomLog> logs = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * @param directory directory holding a subdirectory per room
+     * @param segmentBytes size of a segment file, a new one is started when it is full
+     * @param flushMillis milliseconds between flushes to disk, 0 to flush every message
+     * @throws IOException if the directory cannot be created
+     */
+    public MessageLog(Path directory, int segmentBytes, long flushMillis) throws IOException {
+        if (segmentBytes <= LogSegment.HEADER_BYTES || flushMillis < 0) {
+            throw new IllegalArgumentException("Invalid message log settings");
+        }
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.flushMillis = flushMillis;
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "message-log-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = flushMillis > 0 ? flushMillis : COMPACT_MILLIS;
+        flusher.scheduleWithFixedDelay(() -> {
+            if (flushMillis > 0) flush();
+            compact();
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * The log of a room, opened from its directory the first time it is used.
+     * Room ids are letters and digits only, so they are safe as directory names.
+     */
+    private RoomLog log(String roomid) throws IOException {
+        RoomLog log = logs.get(roomid);
+        if (log != null) return log;
+        try {
+            return logs.computeIfAbsent(roomid, id -> {
+                try {
+                    return RoomLog.open(directory.resolve(id), segmentBytes);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch (IllegalStateException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /*
+     * Whether the room has a log, without creating one for it
+     */
+    private boolean exists(String roomid) {
+        return logs.containsKey(roomid) || Files.isDirectory(directory.resolve(roomid));
+    }
+
+    /**
+     * Append a chat message to the log of its room.
+     * @param roomid room the message was sent in
+     * @param message the message
+     * @return the message's sequence number in the room, or -1 if it could not be logged
+     */
+    public long append(String roomid, EncodedPacket message) {
+        try {
+            RoomLog log = log(roomid);
+            long seq = log.append(message.frame(Constant.ENCODING_BINARY).bytes());
+            if (flushMillis == 0) log.flush();
+            return seq;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Log the room's next message under a number given elsewhere, by the room's
+     * home node or by the primary of a standby, skipping over what never reached
+     * this log.
+     * @param roomid room the message was sent in
+     * @param seq the message's sequence number
+     * @return false if the log holds a message of that number already, or cannot log it
+     */
+    public boolean advanceSeq(String roomid, long seq) {
+        try {
+            RoomLog log = log(roomid);
+            if (seq < log.getNextSeq()) return false;
+            log.advanceSeq(seq);
+            return true;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Read a room's messages by sequence number.
+     * @param roomid room to read
+     * @param seq sequence number of the first message, earlier ones are no longer kept
+     * @param max most messages to read
+     * @return the messages in order, empty if the room has none from the sequence number on
+     */
+    public List<Packet.ToClient> read(String roomid, long seq, int max) {
+        List<Packet.ToClient> messages = new ArrayList<>();
+        try {
+            for (byte[] frame : log(roomid).read(seq, max)) {
+                messages.add(decode(frame));
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+        return messages;
+    }
+
+    /**
+     * Read the newest messages of a room.
+     * @param roomid room to read
+     * @param max most messages to read
+     * @return the messages, oldest first
+     */
+    public List<Packet.ToClient> latest(String roomid, int max) {
+        if (!exists(roomid)) return new ArrayList<>();
+        try {
+            return read(roomid, Math.max(1, log(roomid).getNextSeq() - max), max);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Sequence number the room's next message will get.
+     * @param roomid room to look up
+     * @return the sequence number, 1 for a room without messages
+     */
+    public long nextSeq(String roomid) {
+        if (!exists(roomid)) return 1;
+        try {
+            return log(roomid).getNextSeq();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return 1;
+        }
+    }
+
+    /*
+     * A record is a complete binary frame, its varint length in front of the body
+     */
+    private static Packet.ToClient decode(byte[] frame) {
+        int offset = 0;
+        while ((frame[offset++] & 0x80) != 0) { }
+        return BinaryCodec.decodeToClient(Arrays.copyOfRange(frame, offset, frame.length));
+    }
+
+    /**
+     * Delete the log of a room, including the room's files.
+     * @param roomid room whose log is deleted
+     */
+    public void delete(String roomid) {
+        if (!exists(roomid)) return;
+        try {
+            RoomLog log = log(roomid);
+            logs.remove(roomid, log);
+            log.delete();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Write every room's new messages back to disk.
+     */
+    public void flush() {
+        for (RoomLog log : logs.values()) {
+            log.flush();
+        }
+    }
+
+    /**
+     * Compress every room's full segments.
+     */
+    public void compact() {
+        for (RoomLog log : logs.values()) {
+            log.compact();
+        }
+    }
+
+    /**
+     * Stop the background flushes and flush one last time.
+     */
+    public void close() {
+        flusher.shutdown();
+        flush();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public int getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    public long getFlushMillis() {
+        return flushMillis;
+    }
+}
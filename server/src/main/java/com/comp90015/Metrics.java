@@ -0,0 +1,97 @@
+package com.comp90015;
+
+import com.comp90015.base.Histogram;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the server counts about itself while it runs: how long each type of
+ * packet takes to be decoded and handled, how many guests a broadcast reaches
+ * and how long it takes, and how many connections are accepted. Recording
+ * takes a few atomic adds and no lock, so it is left on for every packet.
+ * <p>The report is plain text, sent to clients asking with #stats and printed
+ * by the server every stats interval.
+ */
+public class Metrics {
+
+    private final long startNanos = System.nanoTime();
+
+    // nanoseconds from a packet arriving to it being handled, by packet type
+    private final ConcurrentHashMap<String, Histogram> handling = new ConcurrentHashMap<>();
+    // guests each broadcast was sent to, and the nanoseconds it took
+    private final Histogram fanOut = new Histogram();
+    private final Histogram broadcasting = new Histogram();
+    private final LongAdder accepted = new LongAdder();
+
+    // where the last report left off, for the rates since
+    private long lastReportNanos = startNanos;
+    private long lastAccepted = 0;
+
+    /**
+     * Record a packet from a client.
+     * @param type type of the packet
+     * @param nanos nanoseconds it took to decode and handle
+     */
+    public void recordHandled(String type, long nanos) {
+        Histogram histogram = handling.get(type);
+        if (histogram == null) histogram = handling.computeIfAbsent(type, t -> new Histogram());
+        histogram.record(nanos);
+    }
+
+    /**
+     * Record a broadcast to a room.
+     * @param recipients guests the packet was sent to
+     * @param nanos nanoseconds it took to send it to all of them
+     */
+    public void recordBroadcast(int recipients, long nanos) {
+        fanOut.record(recipients);
+        broadcasting.record(nanos);
+    }
+
+    public void recordAccepted() {
+        accepted.increment();
+    }
+
+    /**
+     * Write out everything recorded so far.
+     * @param guests guests connected now
+     * @param rooms rooms open now
+     * @param outbound limits of the outbound queues, whose counters they hold
+     * @return the report, a line each
+     */
+    public synchronized String report(int guests, int rooms, OutboundLimits outbound) {
+        long now = System.nanoTime();
+        long acceptedNow = accepted.sum();
+        double interval = Math.max(1, now - lastReportNanos) / 1e9;
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("uptime %ds, %d guests in %d rooms%n",
+                TimeUnit.NANOSECONDS.toSeconds(now - startNanos), guests, rooms));
+        report.append(String.format("accepted %d connections, %.1f/s over the last %.1fs%n",
+                acceptedNow, (acceptedNow - lastAccepted) / interval, interval));
+        report.append(String.format("%-14s %10s %9s %9s %9s %9s%n", "packet", "count", "p50 us", "p90 us", "p99 us", "max us"));
+        // sorted so that reports line up with each other
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(handling).entrySet()) {
+            appendLatencies(report, entry.getKey(), entry.getValue().snapshot());
+        }
+        appendLatencies(report, "broadcast", broadcasting.snapshot());
+        Histogram.Snapshot sizes = fanOut.snapshot();
+        report.append(String.format("fan-out mean %.1f, p50 %d, p99 %d, max %d guests%n",
+                sizes.getMean(), sizes.percentile(50), sizes.percentile(99), sizes.getMax()));
+        report.append(String.format("outbound %d bytes queued, %d frames in %d writes, %d dropped, %d evicted",
+                outbound.getQueuedBytes(), outbound.getWrittenFrames(), outbound.getSocketWrites(),
+                outbound.getDroppedFrames(), outbound.getEvictions()));
+        lastReportNanos = now;
+        lastAccepted = acceptedNow;
+        return report.toString();
+    }
+
+    private static void appendLatencies(StringBuilder report, String name, Histogram.Snapshot snapshot) {
+        report.append(String.format("%-14s %10d %9.1f %9.1f %9.1f %9.1f%n", name, snapshot.getCount(),
+                snapshot.percentile(50) / 1e3, snapshot.percentile(90) / 1e3,
+                snapshot.percentile(99) / 1e3, snapshot.getMax() / 1e3));
+    }
+}
@@ -0,0 +1,80 @@
+package com.comp90015;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Event-loop engine for the chatroom server. Instead of one thread per client,
+ * a small fixed set of {@link EventLoop}s (one per core by default) multiplexes
+ * every connection with a selector, while the protocol handling is shared with
+ * the blocking engine through {@link ServerConn}.
+ */
+public class NioServer {
+
+    private final Server server;
+    private final int port;
+    private final EventLoop[] loops;
+
+    private boolean alive;
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * @param server the server whose connections are served
+     * @param port port to listen on
+     * @param threads number of event loops, at least 1
+     * @throws IOException if a selector cannot be opened
+     */
+    public NioServer(Server server, int port, int threads) throws IOException {
+        if (threads < 1) throw new IllegalArgumentException("An nio server needs at least one event loop");
+        this.server = server;
+        this.port = port;
+        this.loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop(server);
+        }
+    }
+
+    /**
+     * Accept connections and spread them over the event loops in turn.
+     */
+    public void handle() {
+        System.out.println("Server running on port: " + port + " with " + loops.length + " event loops");
+        alive = true;
+        for (int i = 0; i < loops.length; i++) {
+            loops[i].start("event-loop-" + i);
+        }
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            int next = 0;
+            while (alive) {
+                SocketChannel channel = serverChannel.accept();
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Close the server channel and stop every event loop, closing their connections.
+     */
+    public void close() {
+        try {
+            alive = false;
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.comp90015;
+
+import com.comp90015.base.FrameDecoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking transport owned by a single {@link EventLoop}. Incoming bytes
+ * are split into lines or frames as they arrive, outgoing frames are queued by any thread
+ * and written by the loop whenever the socket can take them. The loop flushes a
+ * connection once per round rather than once per frame, handing every frame
+ * queued meanwhile to the socket in a single gathering write.
+ */
+public class NioServerConn extends ServerConn {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    // most frames handed to the socket in one write
+    private static final int MAX_GATHERED_FRAMES = 64;
+
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    // keeps the partial line or frame between reads
+    private final FrameDecoder decoder = new FrameDecoder();
+
+    private final OutboundLimits limits;
+    private final OutboundQueue outbound;
+    // frames taken from the queue, those from gatheredStart on not fully written yet
+    private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHERED_FRAMES];
+    private int gatheredStart = 0;
+    private int gatheredEnd = 0;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    // when the loop is due to flush the connection, as System.nanoTime()
+    long flushDeadline;
+
+    private boolean closed = false;
+
+    public NioServerConn(Server server, EventLoop loop, SocketChannel channel, SelectionKey key) {
+        super(server);
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.limits = server.getOutboundLimits();
+        this.outbound = new OutboundQueue(limits);
+    }
+
+    /*
+     * Read whatever is available and dispatch every complete line
+     */
+    void onReadable() {
+        int n;
+        try {
+            n = channel.read(readBuffer);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            connectionLost();
+            return;
+        }
+        // detect if the client disconnected without sending the quit command
+        if (n < 0) {
+            connectionLost();
+            return;
+        }
+        readBuffer.flip();
+        // the encoding may switch after any packet, so check it for each one
+        try {
+            while (readBuffer.hasRemaining() && !closed) {
+                if (isBinary()) {
+                    byte[] body = decoder.nextFrame(readBuffer);
+                    if (body != null) parseBinary(body);
+                } else {
+                    String line = decoder.nextLine(readBuffer);
+                    if (line != null) parseJSON(line);
+                }
+            }
+        } catch (RuntimeException e) {
+            // a malformed frame or line, or a packet that could not be handled: the stream is
+            // out of sync, nothing after it can be trusted
+            System.err.println(e.getMessage());
+            closeConnection();
+        } finally {
+            readBuffer.clear();
+        }
+    }
+
+    /*
+     * The socket has room again, continue with the pending writes
+     */
+    void onWritable() {
+        flush();
+    }
+
+    /*
+     * Send the frame to the client, may be called from any thread
+     */
+    @Override
+    protected void sendFrame(Frame frame) {
+        if (!outbound.offer(frame)) {
+            // leave the room from the loop, not from inside the sender's broadcast
+            System.err.println("Disconnecting slow client " + getIdentity());
+            loop.submit(this::closeConnection);
+            return;
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.flushLater(this);
+        }
+    }
+
+    /*
+     * Write queued messages until the queue is empty or the socket is full,
+     * must run on the loop thread
+     */
+    void flush() {
+        flushScheduled.set(false);
+        if (closed) return;
+        try {
+            if (!writePending()) {
+                // wait for the socket to become writable again
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            connectionLost();
+        }
+    }
+
+    /*
+     * Write queued frames while the socket takes them, as many at a time as it will take
+     * @return true if everything queued has been written
+     */
+    private boolean writePending() throws IOException {
+        while (true) {
+            if (gatheredStart == gatheredEnd) {
+                gatheredStart = 0;
+                gatheredEnd = 0;
+                Frame frame;
+                while (gatheredEnd < gathered.length && (frame = outbound.poll()) != null) {
+                    gathered[gatheredEnd++] = frame.buffer();
+                }
+                if (gatheredEnd == 0) return true;
+            }
+            channel.write(gathered, gatheredStart, gatheredEnd - gatheredStart);
+            int written = 0;
+            while (gatheredStart < gatheredEnd && !gathered[gatheredStart].hasRemaining()) {
+                gathered[gatheredStart++] = null;
+                written++;
+            }
+            limits.addSocketWrite(written);
+            if (gatheredStart < gatheredEnd) return false;
+        }
+    }
+
+    /*
+     * Close the channel once the pending messages have been handed to the socket
+     */
+    @Override
+    public void close() {
+        loop.execute(() -> {
+            if (closed) return;
+            closed = true;
+            try {
+                writePending();
+            } catch (IOException ignored) {
+                // closing anyway
+            }
+            outbound.clear();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        });
+    }
+}
@@ -0,0 +1,168 @@
+package com.comp90015;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide settings for the per-connection outbound queues, together with
+ * the counters every queue reports into.
+ * <p>Frames queued for a connection are written together, in as few socket
+ * writes as possible: those queued while the server handles a batch of input
+ * go out once it is done, and a flush delay holds them a little longer to
+ * gather more, trading latency for fewer writes.
+ */
+public class OutboundLimits {
+
+    /**
+     * What to do with a client whose queue grows past the high watermark.
+     */
+    public enum Policy {
+        // drop the oldest queued chat messages, down to the low watermark
+        DROP_OLDEST,
+        // disconnect the client at once
+        DISCONNECT
+    }
+
+    public static final int DEFAULT_HIGH_WATERMARK = 1024 * 1024;
+    public static final int DEFAULT_LOW_WATERMARK = 256 * 1024;
+    public static final long DEFAULT_GRACE_MILLIS = 5000;
+    public static final long DEFAULT_FLUSH_DELAY_MICROS = 0;
+
+    private final int highWatermark;
+    private final int lowWatermark;
+    // bytes a queue never grows past, the client is evicted at once instead
+    private final int maxQueuedBytes;
+    private final Policy policy;
+    // how long a queue may stay above the high watermark with nothing left to drop before the client is evicted
+    private final long graceMillis;
+    // how long the first frame queued may wait for more to be written with it, 0 for no wait
+    private final long flushDelayMicros;
+
+    private final LongAdder queuedBytes = new LongAdder();
+    private final LongAdder droppedFrames = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder socketWrites = new LongAdder();
+    private final LongAdder writtenFrames = new LongAdder();
+
+    public OutboundLimits() {
+        this(DEFAULT_HIGH_WATERMARK, DEFAULT_LOW_WATERMARK, Policy.DROP_OLDEST, DEFAULT_GRACE_MILLIS);
+    }
+
+    public OutboundLimits(int highWatermark, int lowWatermark, Policy policy, long graceMillis) {
+        this(highWatermark, lowWatermark, defaultMaxQueuedBytes(highWatermark), policy, graceMillis,
+                DEFAULT_FLUSH_DELAY_MICROS);
+    }
+
+    /**
+     * @param highWatermark bytes queued for a client before it counts as slow
+     * @param lowWatermark bytes a slow client's queue is trimmed down to
+     * @param maxQueuedBytes bytes a client's queue may never pass, at least the high watermark
+     * @param policy what to do with a client past the high watermark
+     * @param graceMillis how long a queue may stay past the high watermark with nothing left to drop
+     * @param flushDelayMicros how long the first frame queued may wait for more, 0 for no wait
+     */
+    public OutboundLimits(int highWatermark, int lowWatermark, int maxQueuedBytes, Policy policy, long graceMillis,
+                          long flushDelayMicros) {
+        if (lowWatermark < 0 || lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("Low watermark must be between 0 and the high watermark");
+        }
+        if (maxQueuedBytes < highWatermark) {
+            throw new IllegalArgumentException("Maximum queued bytes must not be below the high watermark");
+        }
+        if (graceMillis < 0) {
+            throw new IllegalArgumentException("Grace period must not be negative");
+        }
+        if (flushDelayMicros < 0) {
+            throw new IllegalArgumentException("Flush delay must not be negative");
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.policy = policy;
+        this.graceMillis = graceMillis;
+        this.flushDelayMicros = flushDelayMicros;
+    }
+
+    /**
+     * @param highWatermark the high watermark
+     * @return the hard limit on a client's queue when none is given, four times the high watermark
+     */
+    public static int defaultMaxQueuedBytes(int highWatermark) {
+        return (int) Math.min(Integer.MAX_VALUE, 4L * highWatermark);
+    }
+
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    public int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public int getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public long getGraceMillis() {
+        return graceMillis;
+    }
+
+    public long getFlushDelayMicros() {
+        return flushDelayMicros;
+    }
+
+    /**
+     * @return bytes currently waiting in all outbound queues
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.sum();
+    }
+
+    /**
+     * @return chat messages dropped from slow clients' queues so far
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    /**
+     * @return clients disconnected for being too slow so far
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return batches of frames written to client sockets so far, each usually a single write
+     */
+    public long getSocketWrites() {
+        return socketWrites.sum();
+    }
+
+    /**
+     * @return frames written to client sockets so far
+     */
+    public long getWrittenFrames() {
+        return writtenFrames.sum();
+    }
+
+    void addQueuedBytes(long bytes) {
+        queuedBytes.add(bytes);
+    }
+
+    void addDroppedFrame() {
+        droppedFrames.increment();
+    }
+
+    void addEviction() {
+        evictions.increment();
+    }
+
+    void addSocketWrite(int frames) {
+        socketWrites.increment();
+        writtenFrames.add(frames);
+    }
+}
@@ -0,0 +1,113 @@
+package com.comp90015;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Bounded queue of frames waiting to be written to one client. Once the queued
+ * bytes pass the high watermark the queue sheds its oldest chat messages (if the
+ * policy allows) down to the low watermark, and a queue that stays above the high
+ * watermark for longer than the grace period marks its client for eviction. Under
+ * the disconnect policy, or past the hard limit whatever the policy, the client
+ * is evicted at once.
+ */
+public class OutboundQueue {
+
+    private final OutboundLimits limits;
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+
+    private long bytes = 0;
+    // when the queue last went above the high watermark, -1 if below
+    private long overSince = -1;
+    private boolean evicted = false;
+
+    public OutboundQueue(OutboundLimits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Queue a frame for writing.
+     * @param frame frame to be queued
+     * @return false if the client is too slow and must be disconnected
+     */
+    public synchronized boolean offer(Frame frame) {
+        if (evicted) return false;
+        frames.add(frame);
+        bytes += frame.length();
+        limits.addQueuedBytes(frame.length());
+        if (bytes <= limits.getHighWatermark()) return true;
+
+        if (limits.getPolicy() == OutboundLimits.Policy.DISCONNECT) return evict();
+        long now = System.currentTimeMillis();
+        if (overSince < 0) overSince = now;
+        dropOldest();
+        // what cannot be dropped may only pile up so far, and for so long
+        if (bytes > limits.getMaxQueuedBytes()
+                || (bytes > limits.getHighWatermark() && now - overSince >= limits.getGraceMillis())) {
+            return evict();
+        }
+        return true;
+    }
+
+    /*
+     * Give up on the client, nothing more is queued for it
+     */
+    private boolean evict() {
+        evicted = true;
+        limits.addEviction();
+        clear();
+        return false;
+    }
+
+    /**
+     * Take the oldest frame out of the queue.
+     * @return the frame, or null if empty
+     */
+    public synchronized Frame poll() {
+        Frame frame = frames.poll();
+        if (frame != null) {
+            bytes -= frame.length();
+            limits.addQueuedBytes(-frame.length());
+        }
+        if (bytes <= limits.getLowWatermark()) overSince = -1;
+        return frame;
+    }
+
+    public synchronized boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+    /**
+     * @return bytes currently waiting in this queue
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Discard every queued frame.
+     */
+    public synchronized void clear() {
+        limits.addQueuedBytes(-bytes);
+        frames.clear();
+        bytes = 0;
+    }
+
+    /*
+     * Drop chat messages from the head until the queue is back at the low watermark,
+     * other packets are kept as the client's state depends on them
+     */
+    private void dropOldest() {
+        Iterator<Frame> iterator = frames.iterator();
+        while (bytes > limits.getLowWatermark() && iterator.hasNext()) {
+            Frame frame = iterator.next();
+            if (frame.isDroppable()) {
+                iterator.remove();
+                bytes -= frame.length();
+                limits.addQueuedBytes(-frame.length());
+                limits.addDroppedFrame();
+            }
+        }
+        if (bytes <= limits.getLowWatermark()) overSince = -1;
+    }
+}
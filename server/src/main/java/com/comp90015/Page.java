@@ -0,0 +1,70 @@
+package com.comp90015;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * One page of a sorted index, for the paged #list and #who. A page is found
+ * with one seek into the index plus one step per entry returned, so its cost
+ * does not grow with the size of the index.
+ * @param <V> type of the entries
+ */
+public final class Page<V> {
+
+    private final List<V> items;
+    private final String next;
+
+    private Page(List<V> items, String next) {
+        this.items = items;
+        this.next = next;
+    }
+
+    /**
+     * Take a page from a sorted index.
+     * @param index entries by key
+     * @param cursor only keys after it, or null to start from the first one
+     * @param limit most entries in the page
+     * @param prefix only keys starting with it, or null for all keys
+     * @param <V> type of the entries
+     * @return the page
+     */
+    public static <V> Page<V> of(NavigableMap<String, V> index, String cursor, int limit, String prefix) {
+        NavigableMap<String, V> view;
+        if (cursor != null && (prefix == null || cursor.compareTo(prefix) >= 0)) {
+            view = index.tailMap(cursor, false);
+        } else if (prefix != null) {
+            view = index.tailMap(prefix, true);
+        } else {
+            view = index;
+        }
+
+        List<V> items = new ArrayList<>(Math.min(limit, 64));
+        String last = null;
+        String next = null;
+        for (Map.Entry<String, V> entry : view.entrySet()) {
+            // keys sharing a prefix are next to each other, the first one without it ends the page
+            if (prefix != null && !entry.getKey().startsWith(prefix)) break;
+            if (items.size() == limit) {
+                next = last;
+                break;
+            }
+            items.add(entry.getValue());
+            last = entry.getKey();
+        }
+        return new Page<>(Collections.unmodifiableList(items), next);
+    }
+
+    public List<V> getItems() {
+        return items;
+    }
+
+    /**
+     * @return the cursor to ask for the next page with, null if this is the last page
+     */
+    public String getNext() {
+        return next;
+    }
+}
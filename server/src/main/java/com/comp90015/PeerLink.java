@@ -0,0 +1,238 @@
+package com.comp90015;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The persistent link of a node to one other node of its cluster. Of the two
+ * nodes, the one with the smaller id dials the other and dials again whenever
+ * the link drops, the other waits for it to. Messages are lines of JSON, read
+ * by a thread of the link and written by another one from a queue, so a node
+ * sending to a peer never waits for the network. What is queued is written in
+ * one go and flushed once.
+ * <p>Nothing is queued while the link is down. The nodes send each other
+ * their whole state when the link comes back up instead.
+ */
+public class PeerLink {
+
+    // lines queued for a peer before it counts as stuck, and the link is dropped
+    public static final int OUTBOX_CAPACITY = 100_000;
+    // milliseconds between attempts to dial a peer
+    public static final long REDIAL_MILLIS = 1000;
+    // milliseconds the state sent when the link comes up may wait for room in the queue
+    private static final long STATE_TIMEOUT_MILLIS = 5000;
+
+    private final Cluster cluster;
+    private final String node;
+    private final boolean dialing;
+
+    // the lines to write over the current connection, null while the link is down
+    private volatile BlockingQueue<String> outbox;
+    private Socket socket;
+    private volatile boolean closed = false;
+
+    /**
+     * @param cluster the cluster of this node
+     * @param node id of the peer, its host and cluster port
+     * @param dialing whether this node dials the peer, or waits for the peer to dial
+     */
+    public PeerLink(Cluster cluster, String node, boolean dialing) {
+        this.cluster = cluster;
+        this.node = node;
+        this.dialing = dialing;
+    }
+
+    /**
+     * Dial the peer on a thread of the link, if this node is the one to.
+     */
+    public void start() {
+        if (!dialing) return;
+        Thread thread = new Thread(this::dial, "cluster-dialer-" + node);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /*
+     * Dial the peer until it answers, serve the link until it drops, and so on
+     */
+    private void dial() {
+        InetSocketAddress address = Cluster.address(node);
+        while (!closed) {
+            try {
+                Socket socket = new Socket(address.getHostString(), address.getPort());
+                socket.setTcpNoDelay(true);
+                Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                writer.write(ClusterMessage.hello(cluster.getSelf()).encode() + "\n");
+                writer.flush();
+                serve(socket, new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)));
+            } catch (IOException e) {
+                // the peer is not up yet, or went away
+            }
+            try {
+                Thread.sleep(REDIAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Serve a connection the peer dialed, on a thread of the link.
+     * @param socket the connection
+     * @param reader reader of the connection, past the peer's hello
+     */
+    public void accepted(Socket socket, BufferedReader reader) {
+        Thread thread = new Thread(() -> serve(socket, reader), "cluster-reader-" + node);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /*
+     * Read the peer's messages until the connection drops. A new connection of the
+     * peer replaces the former one, which the peer may have dropped unnoticed.
+     */
+    private void serve(Socket socket, BufferedReader reader) {
+        BlockingQueue<String> queue = new LinkedBlockingQueue<>(OUTBOX_CAPACITY);
+        synchronized (this) {
+            if (closed) {
+                closeQuietly(socket);
+                return;
+            }
+            if (this.socket != null) closeQuietly(this.socket);
+            this.socket = socket;
+        }
+        Thread writer = new Thread(() -> write(socket, queue), "cluster-writer-" + node);
+        writer.setDaemon(true);
+        // started first, it writes the state while it is queued
+        writer.start();
+        cluster.linkUp(this, queue);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                cluster.receive(this, ClusterMessage.decode(line));
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!socket.isClosed()) System.err.println(e.getMessage());
+        } finally {
+            writer.interrupt();
+            closeQuietly(socket);
+            cluster.linkDown(this, queue);
+        }
+    }
+
+    /*
+     * Write the queued lines, flushing once the queue is empty
+     */
+    private void write(Socket socket, BlockingQueue<String> queue) {
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            while (true) {
+                String line = queue.take();
+                do {
+                    writer.write(line);
+                    writer.write('\n');
+                } while ((line = queue.poll()) != null);
+                writer.flush();
+            }
+        } catch (IOException e) {
+            closeQuietly(socket);
+        } catch (InterruptedException e) {
+            // the connection is done
+        }
+    }
+
+    /**
+     * Queue a message for the peer, dropped if the link is down.
+     * @param message message to be sent
+     * @return whether it was queued
+     */
+    public boolean send(ClusterMessage message) {
+        return send(message.encode());
+    }
+
+    /**
+     * Queue an encoded message for the peer, dropped if the link is down.
+     * @param line the message's JSON text, without the line break
+     * @return whether it was queued
+     */
+    public boolean send(String line) {
+        BlockingQueue<String> queue = outbox;
+        if (queue == null) return false;
+        if (queue.offer(line)) return true;
+        // the peer stopped reading, start over with a new connection and the whole state
+        System.err.println("Peer " + node + " is not keeping up, dropping the link");
+        drop();
+        return false;
+    }
+
+    /**
+     * Queue a message of the state sent when the link comes up, waiting for room in
+     * the queue as the whole state may not fit in it at once.
+     * @param message message to be sent
+     * @return false if the link is down, or was dropped as the peer stopped taking the state
+     */
+    boolean sendState(ClusterMessage message) {
+        BlockingQueue<String> queue = outbox;
+        if (queue == null) return false;
+        try {
+            if (queue.offer(message.encode(), STATE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) return true;
+            System.err.println("Peer " + node + " is not taking the state, dropping the link");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        drop();
+        return false;
+    }
+
+    public boolean isUp() {
+        return outbox != null;
+    }
+
+    BlockingQueue<String> getOutbox() {
+        return outbox;
+    }
+
+    /*
+     * Queue what is sent to the peer from now on, null while the link is down
+     */
+    void setOutbox(BlockingQueue<String> outbox) {
+        this.outbox = outbox;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    /*
+     * Close the current connection, the dialing side dials again
+     */
+    private synchronized void drop() {
+        if (socket != null) closeQuietly(socket);
+    }
+
+    /**
+     * Close the link for good.
+     */
+    public void close() {
+        closed = true;
+        drop();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
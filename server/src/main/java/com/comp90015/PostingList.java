@@ -0,0 +1,130 @@
+package com.comp90015;
+
+import java.util.Arrays;
+
+/**
+ * The ascending sequence numbers of the messages of one room holding one
+ * token, written as varints of the difference to the previous number. Most
+ * messages of a busy room are close together, so an entry usually takes a
+ * single byte.
+ * <p>The entries are split into blocks of {@link #BLOCK_ENTRIES}, the offset
+ * of every block and the number before it kept on the side, so a search can
+ * decode the newest blocks first and jump to the block holding a number
+ * without decoding the ones before it. Not thread safe, the room's index
+ * serializes access.
+ */
+public class PostingList {
+
+    public static final int BLOCK_ENTRIES = 128;
+
+    private byte[] bytes = new byte[4];
+    private int length = 0;
+    private int count = 0;
+    private long last = 0;
+    // byte offset of every block, and the number its first entry is the difference to
+    private int[] blockOffsets = new int[1];
+    private long[] blockBases = new long[1];
+
+    /**
+     * Add a message, after every message already in the list.
+     * @param seq sequence number of the message, larger than the last one added
+     */
+    public void add(long seq) {
+        if (seq <= last) return;
+        if (count % BLOCK_ENTRIES == 0) {
+            int block = count / BLOCK_ENTRIES;
+            if (block == blockOffsets.length) {
+                blockOffsets = Arrays.copyOf(blockOffsets, block * 2);
+                blockBases = Arrays.copyOf(blockBases, block * 2);
+            }
+            blockOffsets[block] = length;
+            blockBases[block] = last;
+        }
+        long delta = seq - last;
+        if (length + 10 > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 10));
+        while ((delta & ~0x7FL) != 0) {
+            bytes[length++] = (byte) ((delta & 0x7F) | 0x80);
+            delta >>>= 7;
+        }
+        bytes[length++] = (byte) delta;
+        last = seq;
+        count++;
+    }
+
+    /**
+     * Decode the entries of one block.
+     * @param block index of the block, from 0 to {@link #getBlocks()}
+     * @return its sequence numbers, ascending
+     */
+    public long[] block(int block) {
+        int n = Math.min(BLOCK_ENTRIES, count - block * BLOCK_ENTRIES);
+        long[] seqs = new long[n];
+        long seq = blockBases[block];
+        int position = blockOffsets[block];
+        for (int i = 0; i < n; i++) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[position++];
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            seq += delta;
+            seqs[i] = seq;
+        }
+        return seqs;
+    }
+
+    /**
+     * The block that holds the given number, if the list has it at all.
+     * @param seq sequence number to look for
+     * @return index of the block, or -1 if the number is before every entry
+     */
+    public int blockOf(long seq) {
+        // the last block whose entries come after its base
+        int low = 0;
+        int high = getBlocks() - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (blockBases[middle] < seq) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param block index of the block
+     * @return the number before the block's first entry, 0 for the first block
+     */
+    public long blockBase(int block) {
+        return blockBases[block];
+    }
+
+    public int getBlocks() {
+        return (count + BLOCK_ENTRIES - 1) / BLOCK_ENTRIES;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return bytes taken by the encoded entries, without the spare capacity
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return bytes allocated for the entries and the blocks
+     */
+    public int getCapacity() {
+        return bytes.length + blockOffsets.length * (Integer.BYTES + Long.BYTES);
+    }
+}
@@ -0,0 +1,45 @@
+package com.comp90015;
+
+import com.comp90015.base.Packet;
+
+/**
+ * A guest connected to another node of the cluster. It stands in for the guest
+ * in this node's rooms and identities, so that #who, #list and the identity
+ * checks see the guests of the whole cluster. Nothing is sent to it: a packet
+ * for a room goes to the guest's node once, which sends it to its own guests.
+ */
+public class RemoteGuest extends ServerConn {
+
+    private final PeerLink link;
+
+    /**
+     * @param server the server of this node
+     * @param link link to the node the guest is connected to
+     * @param identity identity of the guest
+     */
+    public RemoteGuest(Server server, PeerLink link, String identity) {
+        super(server);
+        this.link = link;
+        setIdentity(identity);
+    }
+
+    public PeerLink getLink() {
+        return link;
+    }
+
+    @Override
+    public void send(Packet.ToClient packet) {
+    }
+
+    @Override
+    public void send(EncodedPacket packet) {
+    }
+
+    @Override
+    protected void sendFrame(Frame frame) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
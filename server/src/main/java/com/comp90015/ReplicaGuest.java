@@ -0,0 +1,48 @@
+package com.comp90015;
+
+import com.comp90015.base.Packet;
+
+/**
+ * A guest of the primary server, as a standby knows it. It holds the guest's
+ * identity and room on the standby, and once the standby takes over, the
+ * guest's session until the client resumes it or the grace window is over.
+ * Nothing is sent to it: the client is not connected to the standby.
+ */
+public class ReplicaGuest extends ServerConn {
+
+    // resume token of the guest's session on the primary, null if it cannot be resumed
+    private String sessionToken;
+
+    /**
+     * @param server the standby's server
+     * @param identity identity of the guest
+     */
+    public ReplicaGuest(Server server, String identity) {
+        super(server);
+        setIdentity(identity);
+    }
+
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
+    public void setSessionToken(String sessionToken) {
+        this.sessionToken = sessionToken;
+    }
+
+    @Override
+    public void send(Packet.ToClient packet) {
+    }
+
+    @Override
+    public void send(EncodedPacket packet) {
+    }
+
+    @Override
+    protected void sendFrame(Frame frame) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,339 @@
+package com.comp90015;
+
+import com.comp90015.base.Constant;
+import com.comp90015.base.Packet;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Streams the state of a primary server to its standbys. A standby that
+ * connects first proves it holds the secret shared with the primary, nothing
+ * is sent to it before. It is then sent a snapshot: every room with its owner
+ * and its scrollback, and every guest with its room and resume token. Every
+ * change follows in the order it was made: rooms created and deleted, guests
+ * joining, renaming and leaving, and chat messages with their numbers.
+ * <p>Messages are lines of JSON, stamped with the time they were sent so the
+ * standby can tell how far behind it is. A standby that stops reading is
+ * dropped once its queue is full, and gets a new snapshot when it connects
+ * again. A ping goes out whenever nothing else did for the heartbeat interval,
+ * so a standby hearing nothing knows the primary is gone.
+ */
+public class Replicator {
+
+    public static final long HEARTBEAT_MILLIS = 500;
+    // lines queued for a standby before it counts as stuck, and is dropped
+    public static final int OUTBOX_CAPACITY = 100_000;
+    // standbys are only reached from the same host unless told otherwise
+    public static final String DEFAULT_ADDRESS = "127.0.0.1";
+    // milliseconds a standby has to send its secret
+    private static final int HELLO_TIMEOUT_MILLIS = 5000;
+
+    private final Server server;
+    private final String address;
+    private final int port;
+    private final byte[] secret;
+    private final List<Follower> followers = new CopyOnWriteArrayList<>();
+    // held to send a change, and exclusively to take a snapshot, so no change is
+    // missing from a snapshot or sent before it
+    private final ReentrantReadWriteLock state = new ReentrantReadWriteLock();
+    private ServerSocket serverSocket;
+
+    /**
+     * @param server the primary server
+     * @param address address to listen for standbys on
+     * @param port port to listen for standbys on
+     * @param secret secret a standby sends before it is sent anything
+     * @throws IllegalArgumentException if the secret is empty
+     */
+    public Replicator(Server server, String address, int port, String secret) {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("Replication requires a secret shared with the standbys");
+        }
+        this.server = server;
+        this.address = address;
+        this.port = port;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Listen for standbys on a thread of the replicator.
+     * @throws IOException if the address cannot be listened on
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName(address));
+        Thread acceptor = new Thread(this::accept, "replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("Replicating to standbys on " + address + ":" + serverSocket.getLocalPort());
+    }
+
+    /**
+     * @return the port standbys connect to, once started
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                if (!authenticated(socket)) {
+                    System.err.println("Standby " + socket.getRemoteSocketAddress() + " did not send the secret");
+                    socket.close();
+                    continue;
+                }
+                Follower follower = new Follower(socket);
+                follower.start(snapshot(follower));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) System.err.println(e.getMessage());
+            }
+        }
+    }
+
+    /*
+     * Whether the first line of the connection carries the secret, compared in constant time
+     */
+    private boolean authenticated(Socket socket) throws IOException {
+        socket.setSoTimeout(HELLO_TIMEOUT_MILLIS);
+        // not buffered, nothing past the line is read
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            // far longer than a hello, not a standby
+            if (line.size() > 2 * secret.length + 1024) return false;
+            line.write(b);
+        }
+        socket.setSoTimeout(0);
+        String token;
+        try {
+            ClusterMessage hello = ClusterMessage.decode(line.toString(StandardCharsets.UTF_8.name()));
+            token = ClusterMessage.HELLO.equals(hello.getType()) ? hello.getToken() : null;
+        } catch (RuntimeException e) {
+            return false;
+        }
+        return token != null && MessageDigest.isEqual(secret, token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Stop listening for standbys and drop them.
+     */
+    public void close() {
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+        for (Follower follower : followers) {
+            follower.close();
+        }
+    }
+
+    /*
+     * The whole state for a new standby, which gets every change from then on.
+     * Only encoded under the lock, the standby's writer sends it once the chat goes on.
+     */
+    private List<String> snapshot(Follower follower) {
+        List<String> lines = new ArrayList<>();
+        state.writeLock().lock();
+        try {
+            ScrollbackLimits limits = server.getScrollbackLimits();
+            for (Room room : server.getRooms().values()) {
+                String roomid = room.getRoomid();
+                if (!Constant.MAINHALL.equals(roomid)) {
+                    String owner = server.getOwners().get(roomid);
+                    lines.add(ClusterMessage.room(roomid, owner == null ? "" : owner).encode());
+                }
+                for (EncodedPacket message : room.getScrollback().latest(limits.getCapacity())) {
+                    lines.add(ClusterMessage.relay(ClusterMessage.RELAY, roomid, message.getPacket(), null).encode());
+                }
+            }
+            for (Room room : server.getRooms().values()) {
+                for (ServerConn guest : room.snapshot()) {
+                    if (!(guest instanceof RemoteGuest)) {
+                        lines.add(ClusterMessage.session(guest.getIdentity(), room.getRoomid(), guest.getToken()).encode());
+                    }
+                }
+            }
+            lines.add(new ClusterMessage(ClusterMessage.SYNCED).encode());
+            followers.add(follower);
+        } finally {
+            state.writeLock().unlock();
+        }
+        return lines;
+    }
+
+    /**
+     * The lock a chat message is numbered and sent to the standbys under, taken
+     * before the room's scrollback as a snapshot takes them in that order.
+     * @return the lock
+     */
+    public Lock readLock() {
+        return state.readLock();
+    }
+
+    /**
+     * Tell the standbys a room was created.
+     * @param roomid the room
+     * @param owner identity of its owner
+     */
+    public void roomCreated(String roomid, String owner) {
+        replicate(ClusterMessage.room(roomid, owner));
+    }
+
+    /**
+     * Tell the standbys a room was deleted.
+     * @param roomid the room
+     */
+    public void roomDeleted(String roomid) {
+        replicate(ClusterMessage.deleted(ClusterMessage.DELETED, roomid));
+    }
+
+    /**
+     * A guest joined a room, or its session got a resume token.
+     * @param guest the guest
+     * @param token the guest's resume token, or null
+     */
+    public void joined(ServerConn guest, String token) {
+        replicate(ClusterMessage.session(guest.getIdentity(), guest.getRoomid(), token));
+    }
+
+    /**
+     * Tell the standbys a guest changed its identity.
+     * @param former the guest's former identity
+     * @param guest the guest, holding its new identity
+     */
+    public void renamed(String former, ServerConn guest) {
+        replicate(ClusterMessage.rename(former, guest.getIdentity()));
+    }
+
+    /**
+     * Tell the standbys a guest disconnected.
+     * @param guest the guest
+     */
+    public void left(ServerConn guest) {
+        replicate(ClusterMessage.identity(ClusterMessage.LEAVE, guest.getIdentity()));
+    }
+
+    /**
+     * A chat message was numbered and kept, called holding the room's scrollback.
+     * @param roomid the room
+     * @param message the message, with its number
+     */
+    public void chat(String roomid, Packet.ToClient message) {
+        replicate(ClusterMessage.relay(ClusterMessage.RELAY, roomid, message, null));
+    }
+
+    private void replicate(ClusterMessage message) {
+        if (followers.isEmpty()) return;
+        Instant now = Instant.now();
+        message.setTime(TimeUnit.SECONDS.toMicros(now.getEpochSecond()) + now.getNano() / 1000);
+        String line = message.encode();
+        state.readLock().lock();
+        try {
+            for (Follower follower : followers) {
+                follower.send(line);
+            }
+        } finally {
+            state.readLock().unlock();
+        }
+    }
+
+    /**
+     * The replicator's part of the stats report.
+     * @return a line for the report
+     */
+    public String report() {
+        int queued = 0;
+        for (Follower follower : followers) {
+            queued += follower.queue.size();
+        }
+        return String.format("replication: %d standbys, %d messages queued", followers.size(), queued);
+    }
+
+    /*
+     * A connected standby, written to by a thread of its own, its snapshot first and then its queue
+     */
+    private class Follower {
+
+        private final Socket socket;
+        private final BlockingQueue<String> queue = new LinkedBlockingQueue<>(OUTBOX_CAPACITY);
+
+        Follower(Socket socket) {
+            this.socket = socket;
+        }
+
+        void start(List<String> snapshot) {
+            Thread writer = new Thread(() -> write(snapshot), "replication-writer-" + socket.getRemoteSocketAddress());
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        /*
+         * Write the snapshot, then the queued lines, flushing once the queue is empty, and a ping when there were none
+         */
+        private void write(List<String> snapshot) {
+            String ping = new ClusterMessage(ClusterMessage.PING).encode();
+            try {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                for (String line : snapshot) {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+                writer.flush();
+                System.out.println("Standby " + socket.getRemoteSocketAddress() + " is in sync");
+                while (!socket.isClosed()) {
+                    String line = queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                    if (line == null) line = ping;
+                    do {
+                        writer.write(line);
+                        writer.write('\n');
+                    } while ((line = queue.poll()) != null);
+                    writer.flush();
+                }
+            } catch (IOException e) {
+                System.out.println("Standby " + socket.getRemoteSocketAddress() + " is gone");
+            } catch (InterruptedException e) {
+                // the replicator is closing
+            }
+            close();
+        }
+
+        void send(String line) {
+            if (queue.offer(line)) return;
+            // the standby stopped reading, it gets a new snapshot if it comes back
+            System.err.println("Standby " + socket.getRemoteSocketAddress() + " is not keeping up, dropping it");
+            close();
+        }
+
+        void close() {
+            followers.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.comp90015;
+
+/**
+ * Server-wide settings for resuming sessions. A client speaking the third
+ * protocol version gets a token in its welcome. When its connection drops, it
+ * keeps its identity and its place in its room for the grace window, and may
+ * take them back by saying hello with the token and the number of the last
+ * chat message it got. Only the messages it missed are replayed.
+ * <p>A client that resumes must not be greeted as a new guest first, so the
+ * greeting waits for the client's first packet, or for the greet delay if it
+ * sends none. Resuming is off unless a grace window is set, and every client
+ * is then greeted as soon as it connects.
+ */
+public class ResumeLimits {
+
+    public static final long DEFAULT_GRACE_MILLIS = 0;
+    public static final long DEFAULT_GREET_DELAY_MILLIS = 200;
+    public static final int DEFAULT_MAX_REPLAY = 1000;
+
+    // how long a dropped session is kept, 0 turns resuming off
+    private final long graceMillis;
+    // how long a new client that says nothing waits to be greeted
+    private final long greetDelayMillis;
+    // most missed messages replayed to a resumed session
+    private final int maxReplay;
+
+    public ResumeLimits() {
+        this(DEFAULT_GRACE_MILLIS, DEFAULT_GREET_DELAY_MILLIS, DEFAULT_MAX_REPLAY);
+    }
+
+    public ResumeLimits(long graceMillis, long greetDelayMillis, int maxReplay) {
+        if (graceMillis < 0 || greetDelayMillis < 0 || maxReplay < 0) {
+            throw new IllegalArgumentException("Resume limits must not be negative");
+        }
+        this.graceMillis = graceMillis;
+        this.greetDelayMillis = greetDelayMillis;
+        this.maxReplay = maxReplay;
+    }
+
+    public long getGraceMillis() {
+        return graceMillis;
+    }
+
+    public long getGreetDelayMillis() {
+        return greetDelayMillis;
+    }
+
+    public int getMaxReplay() {
+        return maxReplay;
+    }
+
+    public boolean isEnabled() {
+        return graceMillis > 0;
+    }
+}
@@ -0,0 +1,191 @@
+package com.comp90015;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The members of one chat room. Joins and leaves are O(1) on a concurrent set,
+ * and fan-out iterates an immutable snapshot array that is rebuilt only after
+ * the membership changed, so broadcasting never locks or races with joins.
+ * Members are also indexed by identity in sorted order, for the paged #who.
+ */
+public class Room {
+
+    private static final ServerConn[] EMPTY = new ServerConn[0];
+
+    private final String roomid;
+    private final Set<ServerConn> members = ConcurrentHashMap.newKeySet();
+    // updated under the lock of the room, so a rename cannot race with a leave
+    private final ConcurrentSkipListMap<String, ServerConn> byIdentity = new ConcurrentSkipListMap<>();
+
+    // bumped after every change to the members
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(0, EMPTY);
+
+    // a deleted room takes no new members
+    private volatile boolean closed = false;
+
+    // the newest chat messages, replayed to joining guests
+    private final Scrollback scrollback = new Scrollback();
+    // number of the next chat message, taken under the scrollback's lock
+    private long nextSeq = 1;
+
+    public Room(String roomid) {
+        this.roomid = roomid;
+    }
+
+    public String getRoomid() {
+        return roomid;
+    }
+
+    public Scrollback getScrollback() {
+        return scrollback;
+    }
+
+    /**
+     * Add a member, nothing happens if it already is one.
+     * @param conn member to be added
+     * @return false if the room has been deleted
+     */
+    public boolean add(ServerConn conn) {
+        if (closed) return false;
+        synchronized (this) {
+            if (members.add(conn)) {
+                byIdentity.put(conn.getIdentity(), conn);
+                version.incrementAndGet();
+            }
+        }
+        if (closed) {
+            // lost a race with the deletion, whoever deleted may or may not have seen us
+            remove(conn);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remove a member.
+     * @param conn member to be removed
+     * @return whether it was a member
+     */
+    public synchronized boolean remove(ServerConn conn) {
+        if (!members.remove(conn)) return false;
+        if (!byIdentity.remove(conn.getIdentity(), conn)) {
+            // renamed while moving between rooms, indexed under its former identity
+            byIdentity.values().remove(conn);
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Put a member's new connection in the place of its former one, as one
+     * change, so the room's size stays the same throughout.
+     * @param former the member's former connection
+     * @param conn the new connection, holding the same identity
+     * @return false if the former connection is not a member
+     */
+    public synchronized boolean replace(ServerConn former, ServerConn conn) {
+        if (closed || !members.remove(former)) return false;
+        members.add(conn);
+        byIdentity.remove(former.getIdentity(), former);
+        byIdentity.put(conn.getIdentity(), conn);
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Number the next chat message of the room, called holding the scrollback's lock.
+     * @return the message's sequence number
+     */
+    public long takeSeq() {
+        return nextSeq++;
+    }
+
+    /**
+     * Number the following chat messages of the room after one numbered by another
+     * server, called holding the scrollback's lock.
+     * @param seq sequence number of the message
+     */
+    public void advanceSeq(long seq) {
+        if (seq >= nextSeq) nextSeq = seq + 1;
+    }
+
+    /**
+     * Index a member under its new identity.
+     * @param former the member's former identity
+     * @param conn the member, already holding its new identity
+     */
+    public synchronized void rename(String former, ServerConn conn) {
+        if (members.contains(conn) && byIdentity.remove(former, conn)) {
+            byIdentity.put(conn.getIdentity(), conn);
+        }
+    }
+
+    /**
+     * One page of the members, sorted by identity.
+     * @param cursor only identities after it, or null to start from the first one
+     * @param limit most members in the page
+     * @param prefix only identities starting with it, or null for all
+     * @return the page
+     */
+    public Page<ServerConn> page(String cursor, int limit, String prefix) {
+        return Page.of(byIdentity, cursor, limit, prefix);
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    public boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stop taking members, the room is being deleted.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Stop taking members if there are none.
+     * @return whether the room was empty and is now closed
+     */
+    public boolean closeIfEmpty() {
+        closed = true;
+        if (members.isEmpty()) return true;
+        closed = false;
+        return false;
+    }
+
+    /**
+     * The current members, for iterating without locks.
+     * @return an array that must not be modified
+     */
+    public ServerConn[] snapshot() {
+        long current = version.get();
+        Snapshot cached = snapshot;
+        if (cached.version == current) return cached.members;
+        // tagged with the version read before copying, so a concurrent change forces another rebuild
+        ServerConn[] copy = members.toArray(EMPTY);
+        snapshot = new Snapshot(current, copy);
+        return copy;
+    }
+
+    private static final class Snapshot {
+        final long version;
+        final ServerConn[] members;
+
+        Snapshot(long version, ServerConn[] members) {
+            this.version = version;
+            this.members = members;
+        }
+    }
+}
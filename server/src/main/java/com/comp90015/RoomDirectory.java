@@ -0,0 +1,211 @@
+package com.comp90015;
+
+import com.comp90015.base.ChatRoom;
+import com.comp90015.base.Packet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Versioned view of the room list. Every change to the set of rooms or to the
+ * membership of a room bumps the version and is recorded in a bounded change
+ * log. The encoded room list is cached together with the version it was taken
+ * at and only rebuilt once the version moved, and a client that already holds
+ * an older version can be sent just the rooms that changed since. Rooms are
+ * kept sorted by id, so one page of them costs the same however many there are.
+ */
+public class RoomDirectory {
+
+    // number of changes a delta can reach back, a power of two
+    private static final int LOG_SIZE = 4096;
+
+    private final ConcurrentNavigableMap<String, Room> rooms;
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicReferenceArray<Change> log = new AtomicReferenceArray<>(LOG_SIZE);
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+    // the first page every new client is greeted with
+    private final AtomicReference<FirstPage> firstPage = new AtomicReference<>();
+
+    /**
+     * @param rooms the rooms of the server, sorted by room id
+     */
+    public RoomDirectory(ConcurrentNavigableMap<String, Room> rooms) {
+        this.rooms = rooms;
+    }
+
+    /**
+     * Record that a room was created, deleted, joined or left.
+     * Call it after the change is made.
+     * @param roomid the room that changed
+     */
+    public void changed(String roomid) {
+        long next = version.incrementAndGet();
+        log.set(slot(next), new Change(next, roomid));
+    }
+
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * The full room list, rebuilt only if anything changed since it was last taken.
+     * @return the room list and its version
+     */
+    public Snapshot snapshot() {
+        Snapshot current = snapshot.get();
+        long taken = version.get();
+        if (current != null && current.version == taken) return current;
+        // read the version first, so the rooms are at least as new as it says
+        List<ChatRoom> data = new ArrayList<>();
+        for (Room room : rooms.values()) {
+            data.add(new ChatRoom(room.getRoomid(), room.size()));
+        }
+        Snapshot built = new Snapshot(taken, data);
+        return snapshot.accumulateAndGet(built, (a, b) -> a == null || b.version > a.version ? b : a);
+    }
+
+    /**
+     * One page of the rooms, sorted by room id. A page that happens to hold every
+     * room carries the version, so the client can ask for changes later.
+     * @param cursor only rooms after it, or null to start from the first one
+     * @param limit most rooms in the page
+     * @param prefix only rooms whose id starts with it, or null for all
+     * @return the page
+     */
+    public Packet.RoomList page(String cursor, int limit, String prefix) {
+        // read the version first, as for the snapshot
+        long taken = version.get();
+        Page<Room> page = Page.of(rooms, cursor, limit, prefix);
+        List<ChatRoom> data = new ArrayList<>();
+        for (Room room : page.getItems()) {
+            data.add(new ChatRoom(room.getRoomid(), room.size()));
+        }
+        boolean complete = cursor == null && prefix == null && page.getNext() == null;
+        return new Packet.RoomList(data, complete ? taken : null, page.getNext());
+    }
+
+    /**
+     * The first page of rooms, rebuilt only if anything changed since it was last taken.
+     * @param limit most rooms in the page
+     * @return the page, encoded once for every client
+     */
+    public EncodedPacket firstPage(int limit) {
+        FirstPage current = firstPage.get();
+        long taken = version.get();
+        if (current != null && current.version == taken && current.limit == limit) return current.packet;
+        FirstPage built = new FirstPage(taken, limit, new EncodedPacket(page(null, limit, null)));
+        firstPage.set(built);
+        return built.packet;
+    }
+
+    /**
+     * The rooms that changed since a version the client holds.
+     * @param since version of the room list the client holds
+     * @return the changes, or null if they are no longer known or no smaller than the full list
+     */
+    public Packet.RoomListDelta delta(long since) {
+        long current = version.get();
+        if (since < 0 || since > current || current - since > LOG_SIZE) return null;
+
+        Set<String> changed = new LinkedHashSet<>();
+        for (long v = since + 1; v <= current; v++) {
+            Change change = log.get(slot(v));
+            // overwritten by a newer change, or not written yet
+            if (change == null || change.version != v) return null;
+            changed.add(change.roomid);
+        }
+        // counting the rooms walks them all, the last snapshot is close enough
+        Snapshot last = snapshot.get();
+        if (last != null && changed.size() >= last.rooms.size()) return null;
+
+        List<ChatRoom> updated = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (String roomid : changed) {
+            Room room = rooms.get(roomid);
+            if (room == null) {
+                removed.add(roomid);
+            } else {
+                updated.add(new ChatRoom(roomid, room.size()));
+            }
+        }
+        return new Packet.RoomListDelta(since, current,
+                updated, removed);
+    }
+
+    private static int slot(long version) {
+        return (int) (version & (LOG_SIZE - 1));
+    }
+
+    /*
+     * One entry of the change log
+     */
+    private static final class Change {
+        final long version;
+        final String roomid;
+
+        Change(long version, String roomid) {
+            this.version = version;
+            this.roomid = roomid;
+        }
+    }
+
+    /*
+     * The cached first page, with what it was built for
+     */
+    private static final class FirstPage {
+        final long version;
+        final int limit;
+        final EncodedPacket packet;
+
+        FirstPage(long version, int limit, EncodedPacket packet) {
+            this.version = version;
+            this.limit = limit;
+            this.packet = packet;
+        }
+    }
+
+    /**
+     * The room list at one version, with its packet encoded once for every client.
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final List<ChatRoom> rooms;
+        private final EncodedPacket packet;
+
+        Snapshot(long version, List<ChatRoom> rooms) {
+            this.version = version;
+            this.rooms = Collections.unmodifiableList(rooms);
+            this.packet = new EncodedPacket(new Packet.RoomList(this.rooms, version));
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public List<ChatRoom> getRooms() {
+            return rooms;
+        }
+
+        public EncodedPacket getPacket() {
+            return packet;
+        }
+
+        /**
+         * @param roomid room id
+         * @return whether the room is in the list
+         */
+        public boolean contains(String roomid) {
+            for (ChatRoom room : rooms) {
+                if (room.getRoomid().equals(roomid)) return true;
+            }
+            return false;
+        }
+    }
+}
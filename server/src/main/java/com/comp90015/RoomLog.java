@@ -0,0 +1,281 @@
+package com.comp90015;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The message log of one room, a directory of segments named after the
+ * sequence number of their first record. Records are numbered from 1 and
+ * appended to the newest segment, a mapped {@link LogSegment}, a new one
+ * being started when it is full. Full segments are compressed into
+ * {@link ColdSegment}s in the background.
+ * All methods are thread safe.
+ */
+public class RoomLog {
+
+    private static final String SUFFIX = ".log";
+    private static final String COLD_SUFFIX = ".z";
+    // bounds on how far past the newest record each flush faults in pages
+    private static final int MIN_TOUCH_AHEAD_BYTES = 64 * 1024;
+    private static final int MAX_TOUCH_AHEAD_BYTES = 4 * 1024 * 1024;
+
+    private final Path directory;
+    private final int segmentBytes;
+
+    // by base sequence number, the last one taking the appends
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private LogSegment active;
+    private boolean deleted;
+    // bytes appended since the last flush
+    private long appended;
+    // held while compressing, so a segment is only compressed once
+    private final Object compaction = new Object();
+
+    private RoomLog(Path directory, int segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Open the log in the given directory, creating it if it does not exist.
+     * @param directory directory of the room's segments
+     * @param segmentBytes size of a new segment
+     * @return the log, positioned after its last complete record
+     * @throws IOException if the directory or a segment cannot be opened
+     */
+    public static RoomLog open(Path directory, int segmentBytes) throws IOException {
+        Files.createDirectories(directory);
+        RoomLog log = new RoomLog(directory, segmentBytes);
+        List<Long> bases = new ArrayList<>();
+        List<Long> coldBases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(SUFFIX)) {
+                    bases.add(base(name, SUFFIX));
+                } else if (name.endsWith(COLD_SUFFIX)) {
+                    coldBases.add(base(name, COLD_SUFFIX));
+                } else if (name.endsWith(".tmp")) {
+                    // a compression cut short, its segment is still there
+                    Files.delete(file);
+                }
+            }
+        }
+        for (long base : coldBases) {
+            if (base >= 0) log.segments.put(base, ColdSegment.open(log.coldPath(base), base));
+        }
+        for (long base : bases) {
+            if (base < 0) continue;
+            if (log.segments.containsKey(base)) {
+                // compressed, the server stopped before deleting it
+                Files.delete(log.segmentPath(base));
+            } else {
+                log.segments.put(base, LogSegment.open(log.segmentPath(base), base, segmentBytes));
+            }
+        }
+        long next = log.segments.isEmpty() ? 1 : log.segments.lastEntry().getValue().getNextSeq();
+        if (log.segments.isEmpty() || !(log.segments.lastEntry().getValue() instanceof LogSegment)) {
+            log.segments.put(next, LogSegment.open(log.segmentPath(next), next, segmentBytes));
+        }
+        log.active = (LogSegment) log.segments.lastEntry().getValue();
+        return log;
+    }
+
+    private static long base(String name, String suffix) {
+        try {
+            return Long.parseLong(name.substring(0, name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private Path segmentPath(long base) {
+        return directory.resolve(String.format("%020d%s", base, SUFFIX));
+    }
+
+    private Path coldPath(long base) {
+        return directory.resolve(String.format("%020d%s", base, COLD_SUFFIX));
+    }
+
+    /**
+     * Append a record to the log, starting a new segment if the newest is full.
+     * @param data bytes of the record
+     * @return the record's sequence number
+     * @throws IOException if a new segment cannot be created or the log was deleted
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        if (deleted) throw new IOException("Log deleted: " + directory);
+        long seq = active.getNextSeq();
+        if (!active.append(data)) {
+            // a record larger than a segment gets a segment of its own
+            int size = Math.max(segmentBytes, data.length + LogSegment.HEADER_BYTES + 4);
+            LogSegment next = LogSegment.open(segmentPath(seq), seq, size);
+            segments.put(seq, next);
+            active = next;
+            active.append(data);
+        }
+        appended += LogSegment.HEADER_BYTES + data.length;
+        return seq;
+    }
+
+    /**
+     * Number the next record appended from the given sequence number on, the
+     * records before it were numbered elsewhere and never reached this log.
+     * The records it holds already keep their numbers.
+     * @param seq sequence number of the next record, ignored unless past the newest
+     * @throws IOException if a new segment cannot be created or the log was deleted
+     */
+    public synchronized void advanceSeq(long seq) throws IOException {
+        if (deleted) throw new IOException("Log deleted: " + directory);
+        if (seq <= active.getNextSeq()) return;
+        if (active.getCount() == 0) {
+            // an empty segment holds nothing to keep
+            segments.remove(active.getBaseSeq());
+            active.delete();
+        }
+        active = LogSegment.open(segmentPath(seq), seq, segmentBytes);
+        segments.put(seq, active);
+    }
+
+    /**
+     * Read the records from the given sequence number on, across segments.
+     * Only the newest segment is read under the lock, full segments no longer
+     * change, so reading them from disk does not hold up the appends.
+     * @param seq sequence number of the first record, records before the
+     *            start of the log are skipped
+     * @param max most records to read
+     * @return the records in order
+     * @throws IOException if a compressed segment cannot be read
+     */
+    public List<byte[]> read(long seq, int max) throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        List<Segment> parts;
+        synchronized (this) {
+            if (deleted) return records;
+            Map.Entry<Long, Segment> entry = segments.floorEntry(seq);
+            parts = new ArrayList<>(segments.tailMap(entry == null ? segments.firstKey() : entry.getKey()).values());
+        }
+        long next = seq;
+        for (Segment segment : parts) {
+            if (records.size() >= max) break;
+            next = Math.max(next, segment.getBaseSeq());
+            byte[][] read;
+            if (segment == parts.get(parts.size() - 1)) {
+                synchronized (this) {
+                    read = segment.read(next, max - records.size());
+                }
+            } else {
+                read = segment.read(next, max - records.size());
+            }
+            for (byte[] record : read) {
+                records.add(record);
+            }
+            next = segment.getNextSeq();
+        }
+        return records;
+    }
+
+    /**
+     * @return sequence number of the oldest record still in the log
+     */
+    public synchronized long getFirstSeq() {
+        return segments.isEmpty() ? active.getNextSeq() : segments.firstKey();
+    }
+
+    /**
+     * @return sequence number the next record appended would get
+     */
+    public synchronized long getNextSeq() {
+        return active.getNextSeq();
+    }
+
+    /**
+     * Write back every segment appended to since the last flush, then fault in
+     * the pages the next appends will write to. The writes happen outside the
+     * lock, so appends carry on while the disk catches up.
+     */
+    public void flush() {
+        List<LogSegment> dirty = new ArrayList<>();
+        int ahead;
+        synchronized (this) {
+            if (deleted) return;
+            for (Segment segment : segments.values()) {
+                if (segment instanceof LogSegment && ((LogSegment) segment).takeDirty()) {
+                    dirty.add((LogSegment) segment);
+                }
+            }
+            // enough for twice what the last interval appended
+            ahead = (int) Math.max(MIN_TOUCH_AHEAD_BYTES, Math.min(MAX_TOUCH_AHEAD_BYTES, 2 * appended));
+            appended = 0;
+        }
+        for (LogSegment segment : dirty) {
+            segment.force();
+        }
+        // one page at a time, so appends wait for at most one page fault
+        boolean touching = true;
+        while (touching) {
+            synchronized (this) {
+                touching = !deleted && active.touchAhead(ahead);
+            }
+        }
+    }
+
+    /**
+     * Compress the segments that are full, off the lock. Each replaces its
+     * mapped segment once it is on disk, reads that already hold the mapped
+     * segment carry on with it.
+     */
+    public void compact() {
+        synchronized (compaction) {
+            compactFull();
+        }
+    }
+
+    private void compactFull() {
+        List<LogSegment> full = new ArrayList<>();
+        synchronized (this) {
+            if (deleted) return;
+            for (Segment segment : segments.values()) {
+                if (segment instanceof LogSegment && segment != active) full.add((LogSegment) segment);
+            }
+        }
+        for (LogSegment segment : full) {
+            try {
+                ColdSegment cold = ColdSegment.write(coldPath(segment.getBaseSeq()), segment);
+                synchronized (this) {
+                    if (deleted) {
+                        cold.delete();
+                        Files.deleteIfExists(directory);
+                        return;
+                    }
+                    segments.put(segment.getBaseSeq(), cold);
+                }
+                segment.delete();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Delete every segment and the directory, the log takes no more records.
+     */
+    public synchronized void delete() {
+        deleted = true;
+        try {
+            for (Segment segment : segments.values()) {
+                segment.delete();
+            }
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+        segments.clear();
+    }
+}
@@ -0,0 +1,93 @@
+package com.comp90015;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Who owns which room, indexed both ways. Looking up the owner of a room is a
+ * lock-free map read, and renaming or disconnecting an owner only touches the
+ * rooms that owner holds instead of walking every room on the server.
+ * A room whose owner has left has the empty string as its owner.
+ */
+public class RoomOwnership {
+
+    private final Map<String, String> ownerOf = new ConcurrentHashMap<>();
+    // guarded by this, empty owners are not indexed
+    private final Map<String, Set<String>> roomsOf = new HashMap<>();
+
+    /**
+     * @param roomid room id
+     * @return the owner of the room, "" if the owner has left, or null if there is no such room
+     */
+    public String get(String roomid) {
+        return ownerOf.get(roomid);
+    }
+
+    /**
+     * Record the owner of a room.
+     * @param roomid room id
+     * @param owner owner's identity, or "" for none
+     */
+    public synchronized void put(String roomid, String owner) {
+        String former = ownerOf.put(roomid, owner);
+        unindex(former, roomid);
+        if (!owner.isEmpty()) roomsOf.computeIfAbsent(owner, k -> new HashSet<>()).add(roomid);
+    }
+
+    /**
+     * Forget a room.
+     * @param roomid room id
+     */
+    public synchronized void remove(String roomid) {
+        unindex(ownerOf.remove(roomid), roomid);
+    }
+
+    /**
+     * Move every room of an owner to its new identity.
+     * @param former the owner's former identity
+     * @param identity the owner's new identity
+     */
+    public synchronized void rename(String former, String identity) {
+        Set<String> owned = roomsOf.remove(former);
+        if (owned == null) return;
+        for (String roomid : owned) {
+            ownerOf.put(roomid, identity);
+        }
+        roomsOf.computeIfAbsent(identity, k -> new HashSet<>()).addAll(owned);
+    }
+
+    /**
+     * Leave every room of an owner without an owner.
+     * @param owner the owner's identity
+     * @return the rooms the owner held
+     */
+    public synchronized List<String> disown(String owner) {
+        Set<String> owned = roomsOf.remove(owner);
+        if (owned == null) return Collections.emptyList();
+        for (String roomid : owned) {
+            ownerOf.put(roomid, "");
+        }
+        return new ArrayList<>(owned);
+    }
+
+    /**
+     * @param owner the owner's identity
+     * @return the rooms the owner holds
+     */
+    public synchronized List<String> roomsOwnedBy(String owner) {
+        Set<String> owned = roomsOf.get(owner);
+        return owned == null ? Collections.emptyList() : new ArrayList<>(owned);
+    }
+
+    private void unindex(String owner, String roomid) {
+        if (owner == null || owner.isEmpty()) return;
+        Set<String> owned = roomsOf.get(owner);
+        if (owned != null && owned.remove(roomid) && owned.isEmpty()) roomsOf.remove(owner);
+    }
+}
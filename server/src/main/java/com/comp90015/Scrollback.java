@@ -0,0 +1,148 @@
+package com.comp90015;
+
+import com.comp90015.base.Packet;
+
+/**
+ * The newest chat messages of one room, kept as the already encoded packets
+ * that were broadcast, in a fixed-size ring. Appending only stores a reference
+ * and evicts the oldest message once the ring is full, and the ring itself is
+ * only allocated when the room gets its first message.
+ * The lock of the scrollback also orders joins against broadcasts in its room.
+ */
+public class Scrollback {
+
+    private static final EncodedPacket[] EMPTY = new EncodedPacket[0];
+
+    private EncodedPacket[] ring;
+    private long[] sizes;
+    // index of the oldest message
+    private int head = 0;
+    private int count = 0;
+    private long bytes = 0;
+    // what the ring was sized with and is accounted against
+    private ScrollbackLimits limits;
+    // when the messages were last replayed or asked for, read without the lock
+    private volatile long lastRead;
+
+    /**
+     * Keep a message, evicting the oldest one if the ring is full.
+     * @param packet the broadcast message
+     * @param limits the server's current limits
+     */
+    public synchronized void append(EncodedPacket packet, ScrollbackLimits limits) {
+        if (!limits.isEnabled()) return;
+        if (this.limits != limits) {
+            // the limits were replaced, start over with the new ones
+            clear();
+            this.limits = limits;
+            ring = new EncodedPacket[limits.getCapacity()];
+            sizes = new long[limits.getCapacity()];
+        }
+        if (count == ring.length) evictOldest();
+
+        long size = sizeOf(packet);
+        int slot = (head + count) % ring.length;
+        ring[slot] = packet;
+        sizes[slot] = size;
+        if (count == 0) limits.addRoom();
+        count++;
+        bytes += size;
+        limits.addBytes(size);
+    }
+
+    /**
+     * The newest messages, oldest first. Marks the scrollback as read.
+     * @param n most messages to return
+     * @return the messages
+     */
+    public synchronized EncodedPacket[] latest(int n) {
+        int taken = Math.min(n, count);
+        if (taken <= 0) return EMPTY;
+        lastRead = System.currentTimeMillis();
+        EncodedPacket[] packets = new EncodedPacket[taken];
+        int first = head + count - taken;
+        for (int i = 0; i < taken; i++) {
+            packets[i] = ring[(first + i) % ring.length];
+        }
+        return packets;
+    }
+
+    /**
+     * The messages after the given sequence number, oldest first. Marks the
+     * scrollback as read.
+     * @param seq sequence number of the last message already sent
+     * @param n most messages to return, the newest ones if there are more
+     * @return the messages, fewer than missed if the oldest were evicted
+     */
+    public synchronized EncodedPacket[] since(long seq, int n) {
+        int taken = 0;
+        while (taken < Math.min(n, count) && seqOf(ring[(head + count - 1 - taken) % ring.length]) > seq) {
+            taken++;
+        }
+        return latest(taken);
+    }
+
+    private static long seqOf(EncodedPacket packet) {
+        Long seq = ((Packet.ToCMessage) packet.getPacket()).getSeq();
+        return seq == null ? 0 : seq;
+    }
+
+    /**
+     * Evict the oldest messages until at most the given bytes are kept.
+     * @param maxBytes bytes to keep
+     */
+    public synchronized void trim(long maxBytes) {
+        while (count > 0 && bytes > maxBytes) {
+            evictOldest();
+        }
+    }
+
+    /**
+     * Forget every message, the room is gone.
+     */
+    public synchronized void clear() {
+        trim(-1);
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return {@link System#currentTimeMillis()} of the last read, 0 if never read
+     */
+    public long getLastRead() {
+        return lastRead;
+    }
+
+    private void evictOldest() {
+        long size = sizes[head];
+        ring[head] = null;
+        head = (head + 1) % ring.length;
+        count--;
+        bytes -= size;
+        limits.addBytes(-size);
+        if (count == 0) limits.removeRoom();
+    }
+
+    /*
+     * Rough heap cost of a kept message: its strings, and about one frame
+     */
+    private static long sizeOf(EncodedPacket packet) {
+        long size = 96;
+        Packet.ToClient message = packet.getPacket();
+        if (message instanceof Packet.ToCMessage) {
+            Packet.ToCMessage toCMessage = (Packet.ToCMessage) message;
+            size += 3L * (length(toCMessage.getContent()) + length(toCMessage.getIdentity()));
+        }
+        return size;
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+}
@@ -0,0 +1,93 @@
+package com.comp90015;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-wide settings for the per-room scrollback, together with the memory
+ * budget every room's scrollback is accounted against. When the rooms hold
+ * more than the budget, the scrollback of the rooms read the longest ago is
+ * dropped until they are back under the low watermark.
+ */
+public class ScrollbackLimits {
+
+    public static final int DEFAULT_CAPACITY = 100;
+    public static final int DEFAULT_REPLAY = 20;
+    public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+    // messages kept per room, 0 turns the scrollback off
+    private final int capacity;
+    // newest messages replayed to a guest joining a room
+    private final int replay;
+    // bytes all the rooms' scrollback may hold together
+    private final long budget;
+
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicInteger rooms = new AtomicInteger();
+
+    public ScrollbackLimits() {
+        this(DEFAULT_CAPACITY, DEFAULT_REPLAY, DEFAULT_BUDGET);
+    }
+
+    public ScrollbackLimits(int capacity, int replay, long budget) {
+        if (capacity < 0 || replay < 0 || budget < 0) {
+            throw new IllegalArgumentException("Scrollback limits must not be negative");
+        }
+        this.capacity = capacity;
+        this.replay = Math.min(replay, capacity);
+        this.budget = budget;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getReplay() {
+        return replay;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * @return bytes currently held by all the rooms' scrollback
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * @return rooms currently holding any scrollback
+     */
+    public int getRooms() {
+        return rooms.get();
+    }
+
+    public boolean isOverBudget() {
+        return usedBytes.get() > budget;
+    }
+
+    /**
+     * @return the bytes the rooms are brought back down to once over the budget
+     */
+    public long getLowWatermark() {
+        return budget - budget / 4;
+    }
+
+    void addBytes(long bytes) {
+        usedBytes.addAndGet(bytes);
+    }
+
+    void addRoom() {
+        rooms.incrementAndGet();
+    }
+
+    void removeRoom() {
+        rooms.decrementAndGet();
+    }
+}
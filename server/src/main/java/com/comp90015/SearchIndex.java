@@ -0,0 +1,322 @@
+package com.comp90015;
+
+import com.comp90015.base.Packet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Inverted index of the chat messages in the {@link MessageLog}, mapping every
+ * token of a room to the {@link PostingList} of the sequence numbers of the
+ * room's messages holding it. A search finds the newest messages holding all
+ * of its terms, which are then read back from the log.
+ * <p>Broadcasts only queue their message, a background thread tokenizes it
+ * and adds it to the index within a few milliseconds, so a busy room is never
+ * held up by the index. A message arriving while the queue is full is left
+ * out of the index rather than waiting. The index is kept in memory, the log
+ * of a room restored after a restart is indexed again in the background.
+ */
+public class SearchIndex {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 64 * 1024;
+    // shorter tokens are in nearly every message, longer ones are hardly ever searched for
+    public static final int MIN_TOKEN_LENGTH = 2;
+    public static final int MAX_TOKEN_LENGTH = 32;
+    // most tokens of a query that are looked up
+    public static final int MAX_QUERY_TOKENS = 8;
+    private static final int BACKFILL_BATCH = 1024;
+    // how long the indexer sleeps once it has emptied the queue
+    private static final long IDLE_MILLIS = 10;
+
+    private final MessageLog messageLog;
+    private final ConcurrentHashMap<String, RoomIndex> rooms = new ConcurrentHashMap<>();
+    private final BlockingQueue<Runnable> pending;
+    private final Thread indexer;
+    private final AtomicLong indexed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * The tokens of one room. Added to by the indexer and read by searches, both
+     * holding the index's lock.
+     */
+    private static class RoomIndex {
+        private final HashMap<String, PostingList> postings = new HashMap<>();
+    }
+
+    /**
+     * @param messageLog the log the indexed messages are read back from
+     * @param queueCapacity most messages waiting to be indexed
+     */
+    public SearchIndex(MessageLog messageLog, int queueCapacity) {
+        if (queueCapacity <= 0) throw new IllegalArgumentException("Invalid search index settings");
+        this.messageLog = messageLog;
+        this.pending = new ArrayBlockingQueue<>(queueCapacity);
+        indexer = new Thread(this::index, "search-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /*
+     * Index what is queued, then sleep. Waiting on the queue instead would have
+     * every broadcast wake the indexer, a system call on the hot path each time.
+     */
+    private void index() {
+        List<Runnable> batch = new ArrayList<>();
+        try {
+            while (true) {
+                pending.drainTo(batch);
+                for (Runnable task : batch) {
+                    task.run();
+                }
+                if (batch.isEmpty()) Thread.sleep(IDLE_MILLIS);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Queue a chat message to be indexed, without waiting for room in the queue.
+     * @param roomid room the message was sent in
+     * @param seq the message's sequence number in the room's log
+     * @param content text of the message
+     * @return false if the queue is full and the message is left out of the index
+     */
+    public boolean add(String roomid, long seq, String content) {
+        if (pending.offer(() -> addNow(roomid, seq, content))) return true;
+        skipped.incrementAndGet();
+        return false;
+    }
+
+    /*
+     * Add a message to the index, run on the indexer thread
+     */
+    private void addNow(String roomid, long seq, String content) {
+        Set<String> tokens = tokens(content);
+        RoomIndex room = rooms.computeIfAbsent(roomid, id -> new RoomIndex());
+        synchronized (room) {
+            for (String token : tokens) {
+                room.postings.computeIfAbsent(token, t -> new PostingList()).add(seq);
+            }
+        }
+        indexed.incrementAndGet();
+    }
+
+    /**
+     * Queue the messages a room logged before the index was started, to be
+     * indexed ahead of any sent from now on. Called before the room takes messages.
+     * @param roomid room whose log is read
+     */
+    public void backfill(String roomid) {
+        long end = messageLog.nextSeq(roomid);
+        if (end <= 1) return;
+        enqueue(() -> {
+            long seq = 1;
+            while (seq < end) {
+                List<Packet.ToClient> messages = messageLog.read(roomid, seq, (int) Math.min(BACKFILL_BATCH, end - seq));
+                if (messages.isEmpty()) break;
+                for (Packet.ToClient message : messages) {
+                    if (message instanceof Packet.ToCMessage) addNow(roomid, seq, ((Packet.ToCMessage) message).getContent());
+                    seq++;
+                }
+            }
+        });
+    }
+
+    /**
+     * Drop the index of a room, after the messages queued for it so far.
+     * @param roomid room whose index is dropped
+     */
+    public void remove(String roomid) {
+        enqueue(() -> rooms.remove(roomid));
+    }
+
+    /*
+     * Queue a task that must not be skipped, waiting for room in the queue
+     */
+    private void enqueue(Runnable task) {
+        try {
+            pending.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Find the newest messages of a room holding every token of the query. The
+     * lists are walked from their newest entries back, each step jumping every
+     * list to the newest entry not after the others', so a search only decodes
+     * the blocks near its matches and stops as soon as it has enough of them.
+     * @param roomid room to search
+     * @param query words to look for, in any order
+     * @param limit most messages to find
+     * @return sequence numbers of the messages, ascending
+     */
+    public long[] search(String roomid, String query, int limit) {
+        RoomIndex room = rooms.get(roomid);
+        Set<String> tokens = tokens(query);
+        if (room == null || tokens.isEmpty()) return new long[0];
+        long[] found = new long[limit];
+        int n = 0;
+        synchronized (room) {
+            List<PostingList> lists = new ArrayList<>();
+            for (String token : tokens) {
+                if (lists.size() == MAX_QUERY_TOKENS) break;
+                PostingList postings = room.postings.get(token);
+                if (postings == null) return new long[0];
+                lists.add(postings);
+            }
+            // the rarest list first, it makes the longest jumps
+            lists.sort((a, b) -> Integer.compare(a.size(), b.size()));
+            Cursor[] cursors = new Cursor[lists.size()];
+            for (int i = 0; i < cursors.length; i++) {
+                cursors[i] = new Cursor(lists.get(i));
+            }
+            long candidate = cursors[0].floor(Long.MAX_VALUE);
+            while (candidate > 0 && n < limit) {
+                long agreed = candidate;
+                for (int i = 1; i < cursors.length && agreed == candidate; i++) {
+                    agreed = cursors[i].floor(candidate);
+                }
+                if (agreed == candidate) {
+                    found[n++] = candidate;
+                    candidate = cursors[0].floor(candidate - 1);
+                } else {
+                    candidate = cursors[0].floor(agreed);
+                }
+            }
+        }
+        // found newest first
+        long[] ascending = new long[n];
+        for (int i = 0; i < n; i++) {
+            ascending[i] = found[n - 1 - i];
+        }
+        return ascending;
+    }
+
+    /**
+     * Looks up numbers in a posting list, keeping the last block it decoded.
+     * Searches ask for descending numbers, so most lookups hit that block.
+     */
+    private static class Cursor {
+        private final PostingList postings;
+        private int block = -1;
+        private long[] seqs;
+
+        Cursor(PostingList postings) {
+            this.postings = postings;
+        }
+
+        /*
+         * The largest entry not after the given number, 0 if there is none
+         */
+        long floor(long seq) {
+            int wanted = postings.blockOf(seq);
+            if (wanted < 0) return 0;
+            if (wanted != block) {
+                block = wanted;
+                seqs = postings.block(wanted);
+            }
+            int index = Arrays.binarySearch(seqs, seq);
+            if (index >= 0) return seq;
+            index = -index - 2;
+            // before the block's first entry, that is the previous block's last
+            return index >= 0 ? seqs[index] : postings.blockBase(wanted);
+        }
+    }
+
+    /**
+     * Split text into its distinct tokens, runs of letters and digits in lower
+     * case. Tokens too short or too long to be worth indexing are left out.
+     * @param text text to split
+     * @return the tokens in the order they first appear
+     */
+    public static Set<String> tokens(String text) {
+        if (text == null) return Collections.emptySet();
+        Set<String> tokens = new LinkedHashSet<>();
+        StringBuilder token = new StringBuilder();
+        int i = 0;
+        while (i <= text.length()) {
+            int codePoint = i < text.length() ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(codePoint)) {
+                token.appendCodePoint(Character.toLowerCase(codePoint));
+            } else {
+                if (token.length() >= MIN_TOKEN_LENGTH && token.length() <= MAX_TOKEN_LENGTH) {
+                    tokens.add(token.toString());
+                }
+                token.setLength(0);
+            }
+            i += Character.charCount(codePoint);
+        }
+        return tokens;
+    }
+
+    /**
+     * Stop the indexer, dropping the messages still queued.
+     */
+    public void close() {
+        indexer.interrupt();
+    }
+
+    /**
+     * @return messages added to the index so far
+     */
+    public long getIndexed() {
+        return indexed.get();
+    }
+
+    /**
+     * @return messages left out of the index because the queue was full
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * @return messages waiting to be indexed
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * Bytes allocated for the posting lists of every room, not counting the
+     * tokens and maps that lead to them.
+     * @return the bytes
+     */
+    public long getPostingBytes() {
+        long bytes = 0;
+        for (RoomIndex room : rooms.values()) {
+            synchronized (room) {
+                for (Map.Entry<String, PostingList> entry : room.postings.entrySet()) {
+                    bytes += entry.getValue().getCapacity();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return distinct tokens of every room together
+     */
+    public long getTokens() {
+        long tokens = 0;
+        for (RoomIndex room : rooms.values()) {
+            synchronized (room) {
+                tokens += room.postings.size();
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,32 @@
+package com.comp90015;
+
+import java.io.IOException;
+
+/**
+ * A file of a room's message log, holding the records with consecutive
+ * sequence numbers from its base sequence on.
+ */
+public interface Segment {
+
+    long getBaseSeq();
+
+    /**
+     * @return sequence number after the segment's last record
+     */
+    long getNextSeq();
+
+    /**
+     * Read the records from the given sequence number on.
+     * @param seq sequence number of the first record, within the segment
+     * @param max most records to read
+     * @return the records in order, fewer than max if the segment ends first
+     * @throws IOException if the file cannot be read
+     */
+    byte[][] read(long seq, int max) throws IOException;
+
+    /**
+     * Delete the file. The segment must not be used afterwards.
+     * @throws IOException if the file cannot be deleted
+     */
+    void delete() throws IOException;
+}
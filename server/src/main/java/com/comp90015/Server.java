@@ -1,15 +1,15 @@
 package com.comp90015;
 
-import com.comp90015.base.ChatRoom;
 import com.comp90015.base.Constant;
 import com.comp90015.base.Packet;
-import com.google.gson.Gson;
 
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 
@@ -25,41 +25,232 @@ public class Server {
     private boolean alive;
     private ServerSocket serverSocket;
 
-    // JSON Parser
-    private final Gson gson = new Gson();
-
-    public Map<String, List<ServerConn>> getRooms() {
+    public ConcurrentNavigableMap<String, Room> getRooms() {
         return rooms;
     }
 
-    private final Map<String, List<ServerConn>> rooms = new ConcurrentHashMap<>();
+    // sorted by room id, for the paged room list
+    private final ConcurrentNavigableMap<String, Room> rooms = new ConcurrentSkipListMap<>();
+
+    public RoomDirectory getDirectory() {
+        return directory;
+    }
 
-    public Map<String, String> getOwners() {
+    // version and cached list of the rooms above
+    private final RoomDirectory directory = new RoomDirectory(rooms);
+
+    public RoomOwnership getOwners() {
         return owners;
     }
 
-    private final Map<String, String> owners = new ConcurrentHashMap<>();
+    private final RoomOwnership owners = new RoomOwnership();
 
-    public Set<Integer> getIds() {
+    public GuestIdAllocator getIds() {
         return ids;
     }
 
-    // Concurrent hashset to store the ids
-    private final Set<Integer> ids = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    // numbers of the "guestx" identities in use, of this node's share of them in a cluster
+    private volatile GuestIdAllocator ids = new GuestIdAllocator();
+
+    public IdentityRegistry getIdentities() {
+        return identities;
+    }
+
+    // every identity in use, whichever room its client is in
+    private final IdentityRegistry identities = new IdentityRegistry();
+
+    // identities and room ids may only contain letters and digits
+    private static final Pattern SPECIAL_CHAR = Pattern.compile("[^a-zA-Z0-9]");
 
     public Server(int port) {
+        this(port, newClientThreadPool());
+    }
+
+    /**
+     * @param port port to listen on
+     * @param clientThreadPool executor running one blocking task per connection
+     */
+    public Server(int port, ExecutorService clientThreadPool) {
         this.port = port;
+        this.clientThreadPool = clientThreadPool;
         // initialize MainHall
-        rooms.put(Constant.MAINHALL, new ArrayList<>());
+        rooms.put(Constant.MAINHALL, new Room(Constant.MAINHALL));
         owners.put(Constant.MAINHALL, "");
     }
 
-    ExecutorService clientThreadPool = new ThreadPoolExecutor
-            (5, Integer.MAX_VALUE, 5,
-                    TimeUnit.MINUTES,
-                    new SynchronousQueue<>(),
-                    new ThreadPoolExecutor.AbortPolicy()
-            );
+    private final ExecutorService clientThreadPool;
+
+    public CompressionLimits getCompressionLimits() {
+        return compressionLimits;
+    }
+
+    public void setCompressionLimits(CompressionLimits compressionLimits) {
+        this.compressionLimits = compressionLimits;
+    }
+
+    private volatile CompressionLimits compressionLimits = new CompressionLimits();
+
+    public OutboundLimits getOutboundLimits() {
+        return outboundLimits;
+    }
+
+    public void setOutboundLimits(OutboundLimits outboundLimits) {
+        this.outboundLimits = outboundLimits;
+    }
+
+    // limits shared by every connection's outbound queue
+    private volatile OutboundLimits outboundLimits = new OutboundLimits();
+
+    public ScrollbackLimits getScrollbackLimits() {
+        return scrollbackLimits;
+    }
+
+    public void setScrollbackLimits(ScrollbackLimits scrollbackLimits) {
+        this.scrollbackLimits = scrollbackLimits;
+    }
+
+    // size of every room's scrollback, and the memory they share
+    private volatile ScrollbackLimits scrollbackLimits = new ScrollbackLimits();
+
+    public MessageLog getMessageLog() {
+        return messageLog;
+    }
+
+    /**
+     * Keep every chat message in the given log, and fill the Main Hall's
+     * scrollback from what it logged before. Set after the scrollback limits.
+     * @param messageLog the log, or null to keep messages in memory only
+     */
+    public void setMessageLog(MessageLog messageLog) {
+        this.messageLog = messageLog;
+        Room mainHall = rooms.get(Constant.MAINHALL);
+        if (mainHall != null) restoreScrollback(mainHall);
+    }
+
+    // durable history of the chat messages, null when there is none
+    private volatile MessageLog messageLog;
+
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    /**
+     * Index every chat message for search, starting with what the Main Hall
+     * logged before. Set after the message log the index reads from.
+     * @param searchIndex the index, or null to not index messages
+     */
+    public void setSearchIndex(SearchIndex searchIndex) {
+        this.searchIndex = searchIndex;
+        if (searchIndex != null && rooms.containsKey(Constant.MAINHALL)) searchIndex.backfill(Constant.MAINHALL);
+    }
+
+    // index of the logged chat messages, null when search is off
+    private volatile SearchIndex searchIndex;
+
+    // one broadcast at a time brings the scrollback back under its budget
+    private final AtomicBoolean trimming = new AtomicBoolean(false);
+
+    public ResumeLimits getResumeLimits() {
+        return resumeLimits;
+    }
+
+    public void setResumeLimits(ResumeLimits resumeLimits) {
+        this.resumeLimits = resumeLimits;
+    }
+
+    // how long dropped sessions are kept, and how long greetings wait for a resume
+    private volatile ResumeLimits resumeLimits = new ResumeLimits();
+
+    // the connection currently holding each session, by resume token
+    private final ConcurrentHashMap<String, ServerConn> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom tokens = new SecureRandom();
+
+    // delayed greetings, the expiry of dropped sessions and the stats dump
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "server-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    // latencies and counts of the hot paths, recorded all the time
+    private final Metrics metrics = new Metrics();
+
+    /**
+     * The server's metrics as plain text.
+     * @return the report, a line each
+     */
+    public String statsReport() {
+        String report = metrics.report(identities.size(), rooms.size(), outboundLimits);
+        Cluster cluster = this.cluster;
+        if (cluster != null) report += System.lineSeparator() + cluster.report();
+        Replicator replicator = this.replicator;
+        if (replicator != null) report += System.lineSeparator() + replicator.report();
+        return report;
+    }
+
+    /**
+     * Print the stats report to standard output at a fixed interval.
+     * @param intervalSeconds seconds between reports, 0 prints none
+     */
+    public void dumpStats(long intervalSeconds) {
+        if (intervalSeconds <= 0) return;
+        timer.scheduleAtFixedRate(() -> System.out.println(statsReport()),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    /**
+     * Share the room namespace with the other nodes of a cluster. Set before
+     * any client connects, as it changes the guest numbers handed out.
+     * @param cluster this node's part of the cluster, or null to serve alone
+     */
+    public void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+        ids = cluster == null ? new GuestIdAllocator() : new GuestIdAllocator(cluster.getIndex(), cluster.size());
+    }
+
+    // the other nodes sharing the rooms, null when serving alone
+    private volatile Cluster cluster;
+
+    public Replicator getReplicator() {
+        return replicator;
+    }
+
+    /**
+     * Stream every change of the server's state to standbys. Set before any
+     * client connects, a standby's snapshot holds what came before.
+     * @param replicator the standbys' replicator, or null for none
+     */
+    public void setReplicator(Replicator replicator) {
+        this.replicator = replicator;
+    }
+
+    // the standbys of this server, null without any
+    private volatile Replicator replicator;
+
+    public ExecutorService getClientThreadPool() {
+        return clientThreadPool;
+    }
+
+    /**
+     * The default pool of platform threads, growing with the number of connections.
+     * @return the executor
+     */
+    public static ExecutorService newClientThreadPool() {
+        return new ThreadPoolExecutor
+                (5, Integer.MAX_VALUE, 5,
+                        TimeUnit.MINUTES,
+                        new SynchronousQueue<>(),
+                        new ThreadPoolExecutor.AbortPolicy()
+                );
+    }
 
     /**
      * Handle method for listening for connections made by the client,
@@ -75,44 +266,186 @@ public class Server {
                 // received new connection and make a new thread for it
                 Socket socket = serverSocket.accept();
 
-                ServerConn serverConn = new ServerConn(this, socket);
+                BlockingServerConn serverConn = new BlockingServerConn(this, socket);
                 clientThreadPool.execute(serverConn);
 
-                // a new guest is connected
-                // make a new thread and assign a new identity
-                String newId;
-                for (int i=1;;i++) {
-                    if (!ids.contains(i)) {
-                        newId = Constant.GUEST + i;
-                        serverConn.setIdentity(newId);
-                        ids.add(i);
-                        break;
-                    }
-                }
+                accepted(serverConn);
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Greet a newly connected client, once it had the chance to resume a session
+     * instead. A client that sends nothing is greeted after the greet delay, any
+     * packet it sends first greets it at once.
+     * @param serverConn the newly connected client
+     */
+    public void accepted(ServerConn serverConn) {
+        metrics.recordAccepted();
+        ResumeLimits limits = resumeLimits;
+        if (!limits.isEnabled() || limits.getGreetDelayMillis() == 0) {
+            serverConn.greetOnce();
+        } else {
+            timer.schedule(serverConn::greetOnce, limits.getGreetDelayMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Assign a fresh guest identity to a newly connected client, let it join
+     * the Main Hall and send it the initial messages.
+     * @param serverConn the newly connected client
+     */
+    public void greet(ServerConn serverConn) {
+        // a new guest is connected, assign a new identity
+        String newId;
+        do {
+            // the smallest free number, claimed atomically as event loops may greet at the same time
+            newId = Constant.GUEST + ids.allocate();
+        } while (!identities.claim(newId, serverConn));
+        serverConn.setIdentity(newId);
+
+        // the server sends some initial messages to the client
+        Packet.ToClient serverMessage;
+        serverMessage = new Packet.NewIdentity("", newId);
+        serverConn.send(serverMessage);
+
+        // let the guest join Main Hall by default
+        EncodedPacket[] history = joinRoomWithHistory(serverConn, Constant.MAINHALL);
+
+        // the server send some initial messages to the client
+        serverMessage = new Packet.RoomChange(newId, "", Constant.MAINHALL);
+        serverConn.send(serverMessage);
+        if (history != null) {
+            for (EncodedPacket message : history) {
+                serverConn.send(message);
+            }
+        }
 
-                // the server sends some initial messages to the client
-                Packet.ToClient serverMessage;
-                serverMessage = new Packet.NewIdentity("", newId);
-                serverConn.sendMessage(gson.toJson(serverMessage));
+        // only the first page of guests and rooms, however many there are
+        serverMessage = listGuests(Constant.MAINHALL, null, Constant.DEFAULT_PAGE_SIZE, null);
+        if (serverMessage != null) serverConn.send(serverMessage);
 
-                // let the guest join Main Hall by default
-                joinRoom(serverConn, Constant.MAINHALL);
+        serverConn.send(directory.firstPage(Constant.DEFAULT_PAGE_SIZE));
+    }
 
-                // the server send some initial messages to the client
-                serverMessage = new Packet.RoomChange(newId, "", Constant.MAINHALL);
-                serverConn.sendMessage(gson.toJson(serverMessage));
+    /**
+     * Start a session that the client may resume after reconnecting.
+     * @param serverConn the client's connection
+     * @return the resume token of the session
+     */
+    public String openSession(ServerConn serverConn) {
+        byte[] bytes = new byte[16];
+        tokens.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, serverConn);
+        Replicator replicator = this.replicator;
+        // a guest greeted already, resumable on a standby from now on
+        if (replicator != null && serverConn.getRoomid() != null) replicator.joined(serverConn, token);
+        return token;
+    }
 
-                serverMessage = new Packet.RoomContents(Constant.MAINHALL, listGuests(Constant.MAINHALL), "");
-                serverConn.sendMessage(gson.toJson(serverMessage));
+    /**
+     * Hold a session a standby took over from its primary, for the client to resume.
+     * @param token the session's resume token
+     * @param serverConn the stand-in of the session's connection
+     */
+    public void restoreSession(String token, ServerConn serverConn) {
+        sessions.put(token, serverConn);
+    }
 
-                serverMessage = new Packet.RoomList(listRooms());
-                serverConn.sendMessage(gson.toJson(serverMessage));
+    /**
+     * End a session, it can no longer be resumed.
+     * @param token the session's resume token
+     * @param serverConn the connection holding the session
+     */
+    public void closeSession(String token, ServerConn serverConn) {
+        if (token != null) sessions.remove(token, serverConn);
+    }
+
+    /**
+     * Keep the session of a client whose connection dropped for the grace
+     * window, it stays in its room and keeps its identity meanwhile. The
+     * client leaves for good when the window is over, unless it resumed.
+     * @param serverConn the dropped connection, no longer sent anything
+     */
+    public void suspend(ServerConn serverConn) {
+        timer.schedule(serverConn::closeConnection, resumeLimits.getGraceMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hand a session over to the client's new connection, which takes its
+     * identity and its room. The former connection is closed if the server had
+     * not noticed it dropped yet.
+     * @param token the session's resume token
+     * @param serverConn the new connection
+     * @return the former connection, or null if there is no such session or it expired
+     */
+    public ServerConn takeOver(String token, ServerConn serverConn) {
+        ServerConn former = token == null ? null : sessions.get(token);
+        // either this or the expiry of the session detaches it, whichever is first
+        if (former == null || !former.detach()) return null;
+        serverConn.setIdentity(former.getIdentity());
+        serverConn.setRoomid(former.getRoomid());
+        identities.transfer(former.getIdentity(), former, serverConn);
+        sessions.replace(token, former, serverConn);
+        return former;
+    }
 
+    /**
+     * Put a resumed session's new connection in the place of the former one in
+     * its room, and send it the chat messages it missed. What is still in the
+     * log is sent first, then the newest from the scrollback in the same step as
+     * the rejoin, so the client gets each message once and in order.
+     * @param former the session's former connection
+     * @param serverConn the new connection, holding the session's identity and room
+     * @param seq number of the last chat message the client got, null for none
+     */
+    public void resume(ServerConn former, ServerConn serverConn, Long seq) {
+        String roomid = serverConn.getRoomid();
+        Room room = rooms.get(roomid);
+        int max = resumeLimits.getMaxReplay();
+        long last = seq == null ? 0 : seq;
+        MessageLog log = messageLog;
+        if (room != null && log != null && seq != null) {
+            long next = log.nextSeq(roomid);
+            long from = Math.max(last + 1, next - max);
+            if (from < next) {
+                for (Packet.ToClient message : log.read(roomid, from, (int) (next - from))) {
+                    serverConn.send(message);
+                    // a standby's log starts where its first snapshot did, the numbers skip what came before
+                    Long logged = ((Packet.ToCMessage) message).getSeq();
+                    last = logged != null ? logged : from;
+                    from++;
+                }
+            }
+        }
+        if (room != null) {
+            Scrollback scrollback = room.getScrollback();
+            synchronized (scrollback) {
+                if (room.replace(former, serverConn)) {
+                    EncodedPacket[] missed = seq == null
+                            ? scrollback.latest(scrollbackLimits.getReplay()) : scrollback.since(last, max);
+                    for (EncodedPacket message : missed) {
+                        serverConn.send(message);
+                    }
+                    return;
+                }
+            }
+        }
+        // the room was deleted meanwhile, move to the Main Hall as its guests were
+        Room left = rooms.get(former.getRoomid());
+        if (left != null && left.remove(former)) directory.changed(former.getRoomid());
+        EncodedPacket[] history = joinRoomWithHistory(serverConn, Constant.MAINHALL);
+        serverConn.setRoomid(Constant.MAINHALL);
+        broadcast(new Packet.RoomChange(serverConn.getIdentity(), roomid, Constant.MAINHALL), Constant.MAINHALL, null);
+        if (history != null) {
+            for (EncodedPacket message : history) {
+                serverConn.send(message);
             }
-        } catch (IOException e) {
-            System.err.println(e.getMessage());
-        } finally {
-            close();
         }
     }
 
@@ -126,6 +459,11 @@ public class Server {
                 serverSocket.close();
             }
             clientThreadPool.shutdown();
+            timer.shutdown();
+            Cluster cluster = this.cluster;
+            if (cluster != null) cluster.close();
+            Replicator replicator = this.replicator;
+            if (replicator != null) replicator.close();
         } catch (IOException e) {
             System.err.println(e.getMessage());
         }
@@ -138,37 +476,314 @@ public class Server {
      * @param ignored the client who send the message, should be ignored when broadcast
      */
     public void broadcast(Packet.ToClient toClientMessage, String roomid, ServerConn ignored) {
-        for (ServerConn conn : rooms.get(roomid)) {
-            if (ignored == null || !ignored.equals(conn))
-                conn.sendMessage(gson.toJson(toClientMessage));
+        // encode once per encoding, every recipient shares the same frames
+        Room room = rooms.get(roomid);
+        if (room == null) return;
+        Cluster cluster = this.cluster;
+        // a chat message of a room homed on another node is numbered there, and relayed back
+        if (cluster != null && toClientMessage instanceof Packet.ToCMessage
+                && cluster.forward((Packet.ToCMessage) toClientMessage, roomid)) return;
+        long start = System.nanoTime();
+        if (!(toClientMessage instanceof Packet.ToCMessage)) {
+            // the nodes of the guests of other nodes, sent the packet once each
+            Set<PeerLink> peers = cluster == null ? null : new HashSet<>();
+            int recipients = fanOut(room, new EncodedPacket(toClientMessage), ignored, peers);
+            if (peers != null && !peers.isEmpty()) cluster.relay(roomid, toClientMessage, ignored, peers);
+            metrics.recordBroadcast(recipients, System.nanoTime() - start);
+            return;
+        }
+        int recipients;
+        ScrollbackLimits limits = scrollbackLimits;
+        MessageLog log = messageLog;
+        Packet.ToCMessage chat = (Packet.ToCMessage) toClientMessage;
+        // chat messages are numbered and kept for guests joining later, in the same step as
+        // they are sent so that a joining guest gets each one either live or replayed
+        Scrollback scrollback = room.getScrollback();
+        Replicator replicator = this.replicator;
+        // taken before the scrollback, so the standbys get the messages in the order they are numbered
+        if (replicator != null) replicator.readLock().lock();
+        try {
+            synchronized (scrollback) {
+                // the number the log gives the message, so a resumed session can be replayed from it
+                long next = log != null ? log.nextSeq(roomid) : room.takeSeq();
+                EncodedPacket packet = new EncodedPacket(new Packet.ToCMessage(chat.getContent(), chat.getIdentity(), next));
+                recipients = fanOut(room, packet, ignored, null);
+                // to every node, even those without guests in the room, so each keeps its history
+                if (cluster != null) cluster.relay(roomid, packet.getPacket(), ignored, null);
+                keep(room, packet, chat.getContent(), limits, log);
+            }
+        } finally {
+            if (replicator != null) replicator.readLock().unlock();
         }
+        metrics.recordBroadcast(recipients, System.nanoTime() - start);
+        if (limits.isOverBudget()) trimScrollback(limits);
     }
 
     /**
-     * List all the current active chat rooms.
-     * @return all the rooms with size in JSON format string
+     * Send a packet relayed by another node of the cluster, or by the primary to
+     * a standby, to this node's guests of the room. A chat message, numbered by
+     * the room's home node, is kept as one broadcast here is.
+     * @param packet the packet
+     * @param roomid the room
+     * @param except identity of the guest the packet is not sent to, or null
+     */
+    public void deliver(Packet.ToClient packet, String roomid, String except) {
+        Room room = rooms.get(roomid);
+        if (room == null) return;
+        long start = System.nanoTime();
+        ServerConn ignored = except == null ? null : identities.get(except);
+        EncodedPacket encoded = new EncodedPacket(packet);
+        int recipients;
+        if (!(packet instanceof Packet.ToCMessage)) {
+            recipients = fanOut(room, encoded, ignored, null);
+        } else {
+            ScrollbackLimits limits = scrollbackLimits;
+            Scrollback scrollback = room.getScrollback();
+            Long seq = ((Packet.ToCMessage) packet).getSeq();
+            Replicator replicator = this.replicator;
+            if (replicator != null) replicator.readLock().lock();
+            try {
+                synchronized (scrollback) {
+                    // numbered on, should this node number the room's messages one day
+                    if (seq != null) room.advanceSeq(seq);
+                    MessageLog log = messageLog;
+                    // logged under the number its clients know, and once though a new snapshot sends it again
+                    if (seq != null && log != null && !log.advanceSeq(roomid, seq)) log = null;
+                    recipients = fanOut(room, encoded, ignored, null);
+                    keep(room, encoded, ((Packet.ToCMessage) packet).getContent(), limits, log);
+                }
+            } finally {
+                if (replicator != null) replicator.readLock().unlock();
+            }
+            if (limits.isOverBudget()) trimScrollback(limits);
+        }
+        metrics.recordBroadcast(recipients, System.nanoTime() - start);
+    }
+
+    /*
+     * Send the packet to every guest of the room but the ignored one, returning how many it went to.
+     * The guests of other nodes are left to their node, whose link is added to the given peers.
+     */
+    private static int fanOut(Room room, EncodedPacket packet, ServerConn ignored, Set<PeerLink> peers) {
+        int recipients = 0;
+        for (ServerConn conn : room.snapshot()) {
+            if (conn instanceof RemoteGuest) {
+                if (peers != null) peers.add(((RemoteGuest) conn).getLink());
+            } else if (ignored == null || !ignored.equals(conn)) {
+                conn.send(packet);
+                recipients++;
+            }
+        }
+        return recipients;
+    }
+
+    /*
+     * Keep a chat message sent in the room for the guests joining later and in the log,
+     * called holding the room's scrollback
+     */
+    private void keep(Room room, EncodedPacket packet, String content, ScrollbackLimits limits, MessageLog log) {
+        // a deleted room drops its history after closing, keep nothing for it
+        if (room.isClosed()) return;
+        if (limits.isEnabled()) room.getScrollback().append(packet, limits);
+        // the binary frame is written as is, encoded already if any recipient is binary
+        long seq = log != null ? log.append(room.getRoomid(), packet) : -1;
+        // only queued here, the indexer thread does the work
+        SearchIndex index = searchIndex;
+        if (index != null && seq > 0) {
+            index.add(room.getRoomid(), seq, content);
+        }
+        Replicator replicator = this.replicator;
+        if (replicator != null) replicator.chat(room.getRoomid(), packet.getPacket());
+    }
+
+    /*
+     * Bring the scrollback back under its budget, dropping that of the rooms read the
+     * longest ago first. What the log holds of a dropped room is still in its history.
+     */
+    private void trimScrollback(ScrollbackLimits limits) {
+        if (!trimming.compareAndSet(false, true)) return;
+        try {
+            // the read times are taken once, they keep changing while the rooms are sorted
+            List<Map.Entry<Long, Scrollback>> held = new ArrayList<>();
+            for (Room room : rooms.values()) {
+                Scrollback scrollback = room.getScrollback();
+                if (scrollback.size() > 0) {
+                    held.add(new AbstractMap.SimpleEntry<>(scrollback.getLastRead(), scrollback));
+                }
+            }
+            held.sort(Map.Entry.comparingByKey());
+            for (Map.Entry<Long, Scrollback> entry : held) {
+                if (limits.getUsedBytes() <= limits.getLowWatermark()) break;
+                entry.getValue().clear();
+            }
+        } finally {
+            trimming.set(false);
+        }
+    }
+
+    /**
+     * The newest chat messages of a room, from its scrollback in memory while that
+     * holds enough of them, otherwise from the message log.
+     * @param roomid room id to be look up
+     * @param limit most messages to return
+     * @return the messages, or null if there is no such room
+     */
+    public Packet.RoomHistory history(String roomid, int limit) {
+        Room room = rooms.get(roomid);
+        if (room == null) return null;
+        List<Packet.ToCMessage> messages = new ArrayList<>();
+        EncodedPacket[] kept = room.getScrollback().latest(limit);
+        MessageLog log = messageLog;
+        if (kept.length < limit && log != null) {
+            // older than the scrollback goes, or dropped from memory, the log has all of it
+            for (Packet.ToClient message : log.latest(roomid, limit)) {
+                if (message instanceof Packet.ToCMessage) messages.add((Packet.ToCMessage) message);
+            }
+        } else {
+            for (EncodedPacket packet : kept) {
+                messages.add((Packet.ToCMessage) packet.getPacket());
+            }
+        }
+        return new Packet.RoomHistory(roomid, messages);
+    }
+
+    /**
+     * The newest chat messages of a room holding every word of a query, read
+     * back from the message log.
+     * @param roomid room id to be look up
+     * @param query words to look for
+     * @param limit most messages to return
+     * @return the messages, oldest first, or null if there is no such room
+     */
+    public Packet.SearchResult search(String roomid, String query, int limit) {
+        Room room = rooms.get(roomid);
+        if (room == null) return null;
+        List<Packet.ToCMessage> messages = new ArrayList<>();
+        SearchIndex index = searchIndex;
+        MessageLog log = messageLog;
+        if (index != null && log != null) {
+            for (long seq : index.search(roomid, query, limit)) {
+                for (Packet.ToClient message : log.read(roomid, seq, 1)) {
+                    if (message instanceof Packet.ToCMessage) messages.add((Packet.ToCMessage) message);
+                }
+            }
+        }
+        return new Packet.SearchResult(roomid, query, messages);
+    }
+
+    /**
+     * The number of search results a client asked for.
+     * @param limit the number asked for, or null
+     * @return the number to send, within the allowed range
+     */
+    public static int searchSize(Integer limit) {
+        if (limit == null) return Constant.DEFAULT_SEARCH_SIZE;
+        return Math.max(1, Math.min(limit, Constant.MAX_SEARCH_SIZE));
+    }
+
+    /**
+     * The number of messages a client asked for.
+     * @param limit the number asked for, or null
+     * @return the number to send, within the allowed range
+     */
+    public static int historySize(Integer limit) {
+        if (limit == null) return Constant.DEFAULT_HISTORY_SIZE;
+        return Math.max(1, Math.min(limit, Constant.MAX_HISTORY_SIZE));
+    }
+
+    /*
+     * Fill a new room's scrollback and search index from its log, a room of the
+     * same id having kept one before the server restarted
+     */
+    private void restoreScrollback(Room room) {
+        MessageLog log = messageLog;
+        SearchIndex index = searchIndex;
+        if (index != null) index.backfill(room.getRoomid());
+        ScrollbackLimits limits = scrollbackLimits;
+        if (log == null || !limits.isEnabled()) return;
+        Scrollback scrollback = room.getScrollback();
+        synchronized (scrollback) {
+            for (Packet.ToClient message : log.latest(room.getRoomid(), limits.getCapacity())) {
+                scrollback.append(new EncodedPacket(message), limits);
+            }
+        }
+    }
+
+    /*
+     * Drop the history of a closed room, in memory and on disk. Done before the
+     * room is removed, so a new room of the same id starts with none.
      */
-    public String listRooms() {
-        List<ChatRoom> data = new ArrayList<>();
-        for (Map.Entry<String, List<ServerConn>> entry: rooms.entrySet()) {
-            ChatRoom room = new ChatRoom(entry.getKey(), entry.getValue().size());
-            data.add(room);
+    private void dropHistory(Room room) {
+        Scrollback scrollback = room.getScrollback();
+        synchronized (scrollback) {
+            scrollback.clear();
+            MessageLog log = messageLog;
+            if (log != null) log.delete(room.getRoomid());
+            SearchIndex index = searchIndex;
+            if (index != null) index.remove(room.getRoomid());
         }
-        return gson.toJson(data);
     }
 
     /**
-     * List all the guests connected in the given room.
+     * List all the current active chat rooms.
+     * @return all the rooms with size, cached until any of them changes
+     */
+    public RoomDirectory.Snapshot listRooms() {
+        return directory.snapshot();
+    }
+
+    /**
+     * List one page of the active chat rooms, sorted by room id.
+     * @param cursor only rooms after it, or null to start from the first one
+     * @param limit most rooms in the page
+     * @param prefix only rooms whose id starts with it, or null for all
+     * @return the page
+     */
+    public Packet.RoomList listRooms(String cursor, int limit, String prefix) {
+        return directory.page(cursor, limit, prefix);
+    }
+
+    /**
+     * List one page of the guests connected in the given room, sorted by identity.
      * @param roomid room id to be look up
-     * @return all the guests in the given room in JSON format string
+     * @param cursor only identities after it, or null to start from the first one
+     * @param limit most guests in the page
+     * @param prefix only identities starting with it, or null for all
+     * @return the guests in the given room, or null if there is no such room
      */
-    public String listGuests(String roomid) {
-        if (!rooms.containsKey(roomid)) return "";
+    public Packet.RoomContents listGuests(String roomid, String cursor, int limit, String prefix) {
+        Room room = rooms.get(roomid);
+        if (room == null) return null;
+        Page<ServerConn> page = room.page(cursor, limit, prefix);
         List<String> data = new ArrayList<>();
-        for (ServerConn serverConn: rooms.get(roomid)) {
+        for (ServerConn serverConn : page.getItems()) {
             data.add(serverConn.getIdentity());
         }
-        return gson.toJson(data);
+        return new Packet.RoomContents(roomid, data, owners.get(roomid), page.getNext());
+    }
+
+    /**
+     * The size of a page a client asked for.
+     * @param limit the size asked for, or null
+     * @return the size to use, within the allowed range
+     */
+    public static int pageSize(Integer limit) {
+        if (limit == null) return Constant.DEFAULT_PAGE_SIZE;
+        return Math.max(1, Math.min(limit, Constant.MAX_PAGE_SIZE));
+    }
+
+    /**
+     * Index a guest under its new identity in the room it is in.
+     * @param former the guest's former identity
+     * @param guest the guest, already holding its new identity
+     */
+    public void renamed(String former, ServerConn guest) {
+        Room room = rooms.get(guest.getRoomid());
+        if (room != null) room.rename(former, guest);
+        Cluster cluster = this.cluster;
+        if (cluster != null && !(guest instanceof RemoteGuest)) cluster.renamed(former, guest);
+        Replicator replicator = this.replicator;
+        if (replicator != null) replicator.renamed(former, guest);
     }
 
     /**
@@ -178,91 +793,242 @@ public class Server {
      * @return whether the guest joined the room successfully
      */
     public boolean joinRoom(ServerConn guest, String roomid) {
+        return join(guest, roomid, 0) != null;
+    }
 
-        if (!rooms.containsKey(roomid)) return false;
+    /**
+     * Let the given guest join the given room, and take the newest chat messages of
+     * the room to replay to it. The messages are taken in the same step as the join,
+     * so the guest gets every message either replayed or live, never both.
+     * @param guest guest to be joined
+     * @param roomid room id to be joined
+     * @return the messages to replay, oldest first, or null if the guest could not join
+     */
+    public EncodedPacket[] joinRoomWithHistory(ServerConn guest, String roomid) {
+        return join(guest, roomid, scrollbackLimits.getReplay());
+    }
 
-        if (guest.getRoomid() != null) {
-            // remove guest from the previous room
-            List<ServerConn> former = rooms.get(guest.getRoomid());
-            former.remove(guest);
+    private EncodedPacket[] join(ServerConn guest, String roomid, int replay) {
+
+        Room room = rooms.get(roomid);
+        if (room == null) return null;
+        EncodedPacket[] history;
+        Scrollback scrollback = room.getScrollback();
+        synchronized (scrollback) {
+            if (!room.add(guest)) return null;
+            history = scrollback.latest(replay);
         }
+        directory.changed(roomid);
 
-        List<ServerConn> guests = rooms.get(roomid);
-        guests.add(guest);
+        String former = guest.getRoomid();
+        if (former != null && !former.equals(roomid)) {
+            // remove guest from the previous room
+            Room formerRoom = rooms.get(former);
+            if (formerRoom != null && formerRoom.remove(guest)) directory.changed(former);
+        }
 
-        rooms.put(roomid, guests);
         guest.setRoomid(roomid);
 
-        return true;
+        Cluster cluster = this.cluster;
+        if (cluster != null && !(guest instanceof RemoteGuest)) cluster.joined(guest);
+        Replicator replicator = this.replicator;
+        if (replicator != null) replicator.joined(guest, guest.getToken());
+
+        return history;
     }
 
     /**
-     * Validate if a string is valid for an identity.
+     * Validate if a string is well-formed for an identity.
      * @param newIdentity given identity for checking
      * @return valid or not
      */
     public boolean isValidIdentity(String newIdentity) {
+        return newIdentity != null &&
+                !SPECIAL_CHAR.matcher(newIdentity).find() &&
+                newIdentity.length() <= Constant.MAX_IDENTITY_LENGTH &&
+                newIdentity.length() >= Constant.MIN_NAME_LENGTH;
+    }
 
-        Pattern p = Pattern.compile("[^a-zA-Z0-9]");
-        boolean hasSpecialChar = p.matcher(newIdentity).find();
-        if (hasSpecialChar ||
-                newIdentity.length() > Constant.MAX_IDENTITY_LENGTH ||
-                newIdentity.length() < Constant.MIN_NAME_LENGTH)
-            return false;
-        for (var entry : rooms.entrySet()) {
-            for (ServerConn serverConn : entry.getValue()) {
-                if (serverConn.getIdentity().equals(newIdentity)) {
-                    return false;
-                }
-            }
+    /**
+     * Claim a new identity for a client if it is valid and not in use.
+     * The client keeps its former identity too, until it releases it.
+     * Decided at once unless another node of a cluster decides, whose reply
+     * completes the result on the thread that receives it.
+     * @param newIdentity given identity to be claimed
+     * @param guest the client asking for it
+     * @return whether the identity now belongs to the client
+     */
+    public CompletableFuture<Boolean> claimIdentity(String newIdentity, ServerConn guest) {
+        if (!isValidIdentity(newIdentity)) return CompletableFuture.completedFuture(false);
+
+        Cluster cluster = this.cluster;
+        if (cluster != null && !cluster.isIdentityHome(newIdentity)) {
+            // another node decides, asked only if no guest this node knows of holds it
+            if (identities.contains(newIdentity)) return CompletableFuture.completedFuture(false);
+            return cluster.claim(newIdentity, guest.getIdentity()).thenApply(claimed -> {
+                if (!claimed) return false;
+                if (identities.claim(newIdentity, guest)) return true;
+                cluster.release(newIdentity);
+                return false;
+            });
         }
+        return CompletableFuture.completedFuture(holdIdentity(newIdentity, guest));
+    }
 
-        // make sure new identity cannot be the same as "guestx"
-        if (newIdentity.startsWith(Constant.GUEST)) {
-            if (newIdentity.length() > Constant.GUEST.length()) {
-                String tail = newIdentity.substring(Constant.GUEST.length());
-                try {
-                    int newIdentityInt = Integer.parseInt(tail);
-                    if (ids.contains(newIdentityInt)) {
-                        return false;
-                    } else {
-                        // if changing to guestx
-                        ids.add(newIdentityInt);
-                    }
-                } catch (NumberFormatException ignored) { }
-            }
+    /**
+     * Claim an identity for a client on this node only, with the number of a
+     * "guestx" if this node hands it out.
+     * @param newIdentity identity to be claimed
+     * @param guest the client asking for it
+     * @return whether the identity now belongs to the client
+     */
+    boolean holdIdentity(String newIdentity, ServerConn guest) {
+        // make sure new identity cannot be the same as a "guestx" in use,
+        // and reserve the number if changing to a free guestx
+        int guestNumber = guestNumber(newIdentity);
+        GuestIdAllocator ids = this.ids;
+        boolean numbered = guestNumber > 0 && ids.isOwned(guestNumber);
+        if (numbered && !ids.claim(guestNumber)) return false;
+
+        if (!identities.claim(newIdentity, guest)) {
+            if (numbered) ids.release(guestNumber);
+            return false;
         }
         return true;
     }
 
+    /**
+     * Release an identity held by a client, along with its guest number.
+     * @param identity identity to be released
+     * @param guest the client holding it
+     */
+    public void releaseIdentity(String identity, ServerConn guest) {
+        if (identity == null || identities.get(identity) != guest) return;
+        identities.release(identity, guest);
+        int guestNumber = guestNumber(identity);
+        if (guestNumber > 0) ids.release(guestNumber);
+    }
+
+    /*
+     * The number x of an identity "guestx", or -1 for any other identity
+     */
+    static int guestNumber(String identity) {
+        if (identity.startsWith(Constant.GUEST) && identity.length() > Constant.GUEST.length()) {
+            try {
+                return Integer.parseInt(identity.substring(Constant.GUEST.length()));
+            } catch (NumberFormatException ignored) { }
+        }
+        return -1;
+    }
+
     /**
      * Validate if a string is valid for a room id.
      * @param newRoomid given room id for checking
      * @return valid or not
      */
     public boolean isValidRoomid(String newRoomid) {
-        Pattern p = Pattern.compile("[^a-zA-Z0-9]");
-        boolean hasSpecialChar = p.matcher(newRoomid).find();
+        boolean hasSpecialChar = SPECIAL_CHAR.matcher(newRoomid).find();
         if (hasSpecialChar ||
                 newRoomid.length() > Constant.MAX_ROOM_LENGTH ||
                 newRoomid.length() < Constant.MIN_NAME_LENGTH)
             return false;
-        for (var entry : rooms.entrySet()) {
-            if (newRoomid.equals(entry.getKey())) {
-                return false;
-            }
+        return !rooms.containsKey(newRoomid);
+    }
+
+    /**
+     * Create a room, asking its home node first in a cluster. Decided at once
+     * on the home node, elsewhere the home node's reply completes the result on
+     * the thread that receives it.
+     * @param roomid room id to be created
+     * @param owner the name of the creator
+     * @return false if a room with the id already exists
+     */
+    public CompletableFuture<Boolean> createRoom(String roomid, String owner) {
+        Cluster cluster = this.cluster;
+        if (cluster != null && !cluster.isHome(roomid)) {
+            return cluster.create(roomid, owner).thenApply(created -> {
+                // unless the home node's news of it came first
+                if (created) addRoom(roomid, owner);
+                return created;
+            });
         }
-        return true;
+        if (!addRoom(roomid, owner)) return CompletableFuture.completedFuture(false);
+        if (cluster != null) cluster.roomCreated(roomid, owner);
+        return CompletableFuture.completedFuture(true);
     }
 
     /**
-     * Create a room
+     * Create a room on this node only.
      * @param roomid room id to be created
      * @param owner the name of the creator
+     * @return false if a room with the id already exists
      */
-    public void createRoom(String roomid, String owner) {
-        rooms.put(roomid, new ArrayList<>());
+    boolean addRoom(String roomid, String owner) {
+        Room room = new Room(roomid);
+        synchronized (room.getScrollback()) {
+            // only the call that made the room fills its history, held so no guest joins it empty
+            if (rooms.putIfAbsent(roomid, room) != null) return false;
+            restoreScrollback(room);
+        }
         owners.put(roomid, owner);
+        directory.changed(roomid);
+        Replicator replicator = this.replicator;
+        if (replicator != null) replicator.roomCreated(roomid, owner);
+        return true;
+    }
+
+    /**
+     * Delete a room, and have the other nodes of a cluster delete it.
+     * Its members are left for the caller to move elsewhere.
+     * @param roomid room id to be deleted
+     * @return the members of the room, or null if there is no such room
+     */
+    public ServerConn[] deleteRoom(String roomid) {
+        ServerConn[] members = removeRoom(roomid);
+        Cluster cluster = this.cluster;
+        if (members != null && cluster != null) cluster.roomDeleted(roomid);
+        return members;
+    }
+
+    /**
+     * Delete a room on this node only.
+     * @param roomid room id to be deleted
+     * @return the members of the room, or null if there is no such room
+     */
+    ServerConn[] removeRoom(String roomid) {
+        if (Constant.MAINHALL.equals(roomid)) return null;
+        Room room = rooms.get(roomid);
+        if (room == null) return null;
+        // only the owner deletes a room, nothing races to remove it
+        room.close();
+        dropRoom(room);
+        return room.snapshot();
+    }
+
+    /*
+     * Remove a closed room and its history
+     */
+    private void dropRoom(Room room) {
+        dropHistory(room);
+        rooms.remove(room.getRoomid(), room);
+        owners.remove(room.getRoomid());
+        directory.changed(room.getRoomid());
+        Replicator replicator = this.replicator;
+        if (replicator != null) replicator.roomDeleted(room.getRoomid());
+    }
+
+    /**
+     * Move this node's guests of a deleted room to the Main Hall.
+     * @param roomid the deleted room
+     * @param guests its members
+     */
+    public void evacuate(String roomid, ServerConn[] guests) {
+        for (ServerConn guest : guests) {
+            // the guests of other nodes are moved by their node
+            if (guest instanceof RemoteGuest) continue;
+            guest.send(new Packet.RoomChange(guest.getIdentity(), roomid, Constant.MAINHALL));
+            joinRoom(guest, Constant.MAINHALL);
+        }
     }
 
     /**
@@ -272,15 +1038,21 @@ public class Server {
      * @param guest guest to be removed
      */
     public void quit(String roomid, ServerConn guest) {
-        rooms.get(roomid).remove(guest);
-        for (Map.Entry<String, String> entry: owners.entrySet()) {
-            if (entry.getValue().equals(guest.getIdentity())) {
-                entry.setValue("");
-                if (rooms.get(entry.getKey()).size() == 0) {
-                    rooms.remove(entry.getKey());
-                    owners.remove(entry.getKey());
-                }
+        Room room = roomid == null ? null : rooms.get(roomid);
+        if (room != null && room.remove(guest)) directory.changed(roomid);
+        Cluster cluster = this.cluster;
+        // only the rooms this guest owns are left without an owner
+        for (String ownedRoomid : owners.disown(guest.getIdentity())) {
+            // in a cluster the room's home node closes it, once the guest's leaving reaches it
+            if (cluster != null && !cluster.isHome(ownedRoomid)) continue;
+            Room owned = rooms.get(ownedRoomid);
+            if (owned != null && owned.closeIfEmpty()) {
+                dropRoom(owned);
+                if (cluster != null) cluster.roomDeleted(ownedRoomid);
             }
         }
+        if (cluster != null && !(guest instanceof RemoteGuest)) cluster.left(guest);
+        Replicator replicator = this.replicator;
+        if (replicator != null) replicator.left(guest);
     }
 }
@@ -1,161 +1,205 @@
 package com.comp90015;
 
+import com.comp90015.base.BinaryCodec;
 import com.comp90015.base.ChatRoom;
 import com.comp90015.base.Constant;
+import com.comp90015.base.FrameCompression;
 import com.comp90015.base.Packet;
-import com.comp90015.base.RuntimeTypeAdapterFactory;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.comp90015.base.PacketCodec;
 
-import java.io.*;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-
-public class ServerConn extends Thread {
-
-    private final Server server;
-    private final Socket socket;
-    private final BufferedReader reader;
-    private final PrintWriter writer;
-
-    private String identity;
-    private String roomid;
-
-    RuntimeTypeAdapterFactory<Packet.ToServer> runtimeTypeAdapterFactory = RuntimeTypeAdapterFactory
-            .of(Packet.ToServer.class, Constant.TYPE)
-            .registerSubtype(Packet.IdentityChange.class, Constant.IDENTITY_CHANGE)
-            .registerSubtype(Packet.Join.class, Constant.JOIN)
-            .registerSubtype(Packet.Who.class, Constant.WHO)
-            .registerSubtype(Packet.List.class, Constant.LIST)
-            .registerSubtype(Packet.CreateRoom.class, Constant.CREATE_ROOM)
-            .registerSubtype(Packet.Delete.class, Constant.DELETE)
-            .registerSubtype(Packet.Quit.class, Constant.QUIT)
-            .registerSubtype(Packet.ToSMessage.class, Constant.MESSAGE);
-
-    Gson gson = new GsonBuilder().registerTypeAdapterFactory(runtimeTypeAdapterFactory).create();
-
-    public ServerConn(Server server, Socket socket) throws IOException {
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Protocol state of a single connected client, independent of how the bytes
+ * reach the server. Subclasses provide the transport, either a blocking socket
+ * served by its own thread or a non-blocking channel served by an event loop.
+ */
+public abstract class ServerConn {
+
+    protected final Server server;
+
+    private volatile String identity;
+    private volatile String roomid;
+
+    // wire encoding of the frames sent to the client, switched by hello
+    private volatile String encoding = Constant.ENCODING_JSON;
+    // protocol version of the client, raised by hello
+    private volatile int protocol = Constant.PROTOCOL_V1;
+    // compression of the frames sent to the client, null until it asks for it in a hello
+    private volatile CompressionLimits compression;
+    // deflate stream of the packets sent to this client only, started by the first one
+    private FrameCompression.Context context;
+
+    // the client has left and has been removed from the server
+    private final AtomicBoolean disconnected = new AtomicBoolean(false);
+
+    // resume token of the client's session, null if it cannot be resumed
+    private volatile String token;
+    // the client has been greeted as a new guest or has resumed a session
+    private volatile boolean greeted = false;
+    private final Object greeting = new Object();
+    // the connection dropped or was taken over, nothing is sent to it any more
+    private volatile boolean suspended = false;
+    // identity changes are applied one at a time, as the claims complete
+    private final Object renaming = new Object();
+
+    protected ServerConn(Server server) {
         this.server = server;
-        this.socket = socket;
-        this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-        this.writer = new PrintWriter(new OutputStreamWriter
-                (socket.getOutputStream(), StandardCharsets.UTF_8), true);
     }
 
-    @Override
     /*
-     * Run method keeps listening on the reader of the socket for the message sent
-     * from the client
+     * Close the underlying transport of the connection
      */
-    public void run() {
-        boolean connectionAlive = true;
-        String clientMessage;
-        while (connectionAlive) {
-            try {
-                clientMessage = reader.readLine();
-                // detect if the client disconnected without sending the quit command
-                if (clientMessage == null) {
-                    closeConnection();
-                }
-                parseJSON(clientMessage);
-            } catch (IOException e) {
-                connectionAlive = false;
-                System.err.println(e.getMessage());
-                close();
-            }
-        }
-        close();
+    public abstract void close();
+
+    /*
+     * Send the packet to the client
+     */
+    public void send(Packet.ToClient packet) {
+        send(new EncodedPacket(packet), false);
     }
 
     /*
-     * Close the server connection thread
+     * Send the packet to the client in the encoding it asked for, may be called from any thread
      */
-    public void close() {
-        try {
-            socket.close();
-            reader.close();
-            writer.close();
-        } catch (IOException e) {
-            System.err.println(e.getMessage());
+    public void send(EncodedPacket packet) {
+        send(packet, true);
+    }
+
+    private void send(EncodedPacket packet, boolean shared) {
+        if (suspended) return;
+        // the lock keeps frames in order with an encoding switch, and with the deflate stream
+        synchronized (this) {
+            sendFrame(frame(packet, shared));
         }
     }
 
     /*
-     * Send the message to the client
+     * The frame of the packet in the client's format. A packet for this client only goes
+     * through the connection's deflate stream, unless it is a chat message that a slow
+     * client may miss, which would leave the client unable to inflate what follows
      */
-    public void sendMessage(String message) {
-        writer.println(message);
+    private Frame frame(EncodedPacket packet, boolean shared) {
+        CompressionLimits limits = compression;
+        if (limits == null) return packet.frame(encoding, protocol);
+        if (shared || packet.isDroppable()) return packet.frame(encoding, protocol, limits);
+        byte[] body = packet.body(encoding, protocol);
+        if (!limits.compresses(body.length)) return packet.frame(encoding, protocol, limits);
+        if (context == null) context = new FrameCompression.Context(limits.getLevel());
+        return Frame.wrap(context.deflate(body), false);
     }
 
+    /*
+     * Send an already encoded frame to the client, may be called from any thread
+     */
+    protected abstract void sendFrame(Frame frame);
+
     public void parseJSON(String jsonText) {
+        long start = System.nanoTime();
+        Packet.ToServer clientMessage = PacketCodec.decodeToServer(jsonText);
+        // a blank line or a null decodes to no packet, which is ignored
+        if (clientMessage == null) return;
+        handle(clientMessage);
+        server.getMetrics().recordHandled(clientMessage.getType(), System.nanoTime() - start);
+    }
 
-        Packet.ToServer clientMessage = gson.fromJson(jsonText, Packet.ToServer.class);
+    public void parseBinary(byte[] body) {
+        long start = System.nanoTime();
+        Packet.ToServer clientMessage = BinaryCodec.decodeToServer(body);
+        // a blank line or a null decodes to no packet, which is ignored
+        if (clientMessage == null) return;
+        handle(clientMessage);
+        server.getMetrics().recordHandled(clientMessage.getType(), System.nanoTime() - start);
+    }
+
+    /**
+     * Whether the client sends binary frames rather than JSON lines.
+     * Only the connection's reading thread switches it, so the reader may check it without locking.
+     * @return true after the client negotiated the binary encoding
+     */
+    public boolean isBinary() {
+        return Constant.ENCODING_BINARY.equals(encoding);
+    }
+
+    public void handle(Packet.ToServer clientMessage) {
 
         Packet.ToClient serverMessage;
 
+        if (clientMessage instanceof Packet.Hello) {
+            hello((Packet.Hello) clientMessage);
+        } else if (!greeted) {
+            // anything else the client sends first needs an identity and a room
+            greetOnce();
+        }
+
         if (clientMessage instanceof Packet.IdentityChange) {
             Packet.IdentityChange identityChangeMessage = (Packet.IdentityChange) clientMessage;
             String newIdentity = identityChangeMessage.getIdentity();
-            if (server.isValidIdentity(newIdentity)) {
-                serverMessage = new Packet.NewIdentity(identity, newIdentity);
-                server.broadcast(serverMessage, roomid, null);
-
-                // check if there is any room owned by this client
-                // if so change the corresponding owner name to the new one
-                for (Map.Entry<String, String> entry : server.getOwners().entrySet()) {
-                    if (entry.getValue().equals(identity)) {
-                        entry.setValue(newIdentity);
-                    }
-                }
-
-                // if former identity is default ones, remove from the set
-                handleGuestId();
-                this.identity = identityChangeMessage.getIdentity();
-
-            } else {
-                serverMessage = new Packet.NewIdentity(identity, identity);
-                sendMessage(gson.toJson(serverMessage));
-            }
+            // in a cluster another node may decide, the client is answered once it did
+            server.claimIdentity(newIdentity, this).thenAccept(claimed -> changeIdentity(newIdentity, claimed));
         }
 
         if (clientMessage instanceof Packet.Join) {
             Packet.Join joinMessage = (Packet.Join) clientMessage;
             String former = this.roomid;
-            boolean success = server.joinRoom(this, joinMessage.getRoomid());
-            if (success) {
+            EncodedPacket[] history = server.joinRoomWithHistory(this, joinMessage.getRoomid());
+            if (history != null) {
                 this.roomid = joinMessage.getRoomid();
                 // send room change message to all the connected clients in the room
-                for (ServerConn serverConn : server.getRooms().get(roomid)) {
-                    serverMessage = new Packet.RoomChange(identity, former, roomid);
-                    serverConn.sendMessage(gson.toJson(serverMessage));
+                serverMessage = new Packet.RoomChange(identity, former, roomid);
+                server.broadcast(serverMessage, roomid, null);
+                // then what was said in the room before the client came in
+                if (!former.equals(roomid)) {
+                    for (EncodedPacket message : history) {
+                        send(message);
+                    }
                 }
             } else {
                 serverMessage = new Packet.RoomChange(identity, former, roomid);
-                sendMessage(gson.toJson(serverMessage));
+                send(serverMessage);
             }
-            // if changing to main hall, send additional information
+            // if changing to main hall, send additional information, the first pages as in the greeting
             if (roomid.equals(Constant.MAINHALL) && !former.equals(roomid)) {
-                serverMessage = new Packet.RoomContents(Constant.MAINHALL,
-                        server.listGuests(Constant.MAINHALL),
-                        "");
-                sendMessage(gson.toJson(serverMessage));
+                serverMessage = server.listGuests(Constant.MAINHALL, null, Constant.DEFAULT_PAGE_SIZE, null);
+                if (serverMessage != null) send(serverMessage);
 
-                serverMessage = new Packet.RoomList(server.listRooms());
-                sendMessage(gson.toJson(serverMessage));
+                send(server.getDirectory().firstPage(Constant.DEFAULT_PAGE_SIZE));
             }
         }
 
         if (clientMessage instanceof Packet.Who) {
             Packet.Who whoMessage = (Packet.Who) clientMessage;
-            String guests = server.listGuests(whoMessage.getRoomid());
-            if (guests.length() == 0)
+            // everyone unless the client asks for a page
+            boolean paged = whoMessage.getCursor() != null || whoMessage.getLimit() != null
+                    || whoMessage.getPrefix() != null;
+            serverMessage = server.listGuests(whoMessage.getRoomid(), whoMessage.getCursor(),
+                    paged ? Server.pageSize(whoMessage.getLimit()) : Integer.MAX_VALUE, whoMessage.getPrefix());
+            if (serverMessage == null)
                 return;
-            serverMessage = new Packet.RoomContents(whoMessage.getRoomid(), guests,
-                    server.getOwners().get(whoMessage.getRoomid()));
-            sendMessage(gson.toJson(serverMessage));
+            send(serverMessage);
+        }
+
+        if (clientMessage instanceof Packet.History) {
+            Packet.History historyMessage = (Packet.History) clientMessage;
+            serverMessage = server.history(historyMessage.getRoomid(), Server.historySize(historyMessage.getLimit()));
+            if (serverMessage == null)
+                return;
+            send(serverMessage);
+        }
+
+        if (clientMessage instanceof Packet.Stats) {
+            send(new Packet.StatsReport(server.statsReport()));
+        }
+
+        if (clientMessage instanceof Packet.Search) {
+            Packet.Search searchMessage = (Packet.Search) clientMessage;
+            serverMessage = server.search(searchMessage.getRoomid(), searchMessage.getQuery(),
+                    Server.searchSize(searchMessage.getLimit()));
+            if (serverMessage == null)
+                return;
+            send(serverMessage);
         }
 
         if (clientMessage instanceof Packet.ToSMessage) {
@@ -165,31 +209,33 @@ public class ServerConn extends Thread {
         }
 
         if (clientMessage instanceof Packet.List) {
-            // query server for room list
-            String roomList = server.listRooms();
-            serverMessage = new Packet.RoomList(roomList);
-            sendMessage(gson.toJson(serverMessage));
+            Packet.List listMessage = (Packet.List) clientMessage;
+            Long since = listMessage.getSince();
+            if (listMessage.getCursor() != null || listMessage.getLimit() != null
+                    || listMessage.getPrefix() != null) {
+                // one page of the rooms
+                send(server.listRooms(listMessage.getCursor(), Server.pageSize(listMessage.getLimit()),
+                        listMessage.getPrefix()));
+            } else {
+                // query server for room list, only the changes if the client holds an earlier one
+                Packet.RoomListDelta delta = since == null ? null : server.getDirectory().delta(since);
+                if (delta != null) {
+                    send(delta);
+                } else {
+                    send(server.listRooms().getPacket());
+                }
+            }
         }
 
         if (clientMessage instanceof Packet.CreateRoom) {
             Packet.CreateRoom createRoomMessage = (Packet.CreateRoom) clientMessage;
             String roomid = createRoomMessage.getRoomid();
             if (server.isValidRoomid(roomid)) {
-                server.createRoom(roomid, this.identity);
-                serverMessage = new Packet.RoomList(server.listRooms());
+                // in a cluster the room's home node may decide, the client is answered once it did
+                server.createRoom(roomid, this.identity).thenAccept(created -> roomCreated(roomid, created));
             } else {
-                // if the room is not valid (especially already in use)
-                // adopt Luke's suggestion to firstly remove it from the list and then send
-                List<ChatRoom> data = new ArrayList<>();
-                for (Map.Entry<String, List<ServerConn>> entry : server.getRooms().entrySet()) {
-                    if (!entry.getKey().equals(roomid)) {
-                        ChatRoom room = new ChatRoom(entry.getKey(), entry.getValue().size());
-                        data.add(room);
-                    }
-                }
-                serverMessage = new Packet.RoomList(gson.toJson(data));
+                roomCreated(roomid, false);
             }
-            sendMessage(gson.toJson(serverMessage));
         }
 
         if (clientMessage instanceof Packet.Quit) {
@@ -200,52 +246,184 @@ public class ServerConn extends Thread {
             Packet.Delete deleteMessage = (Packet.Delete) clientMessage;
             // only delete the room if the request client is the owner
             String toDelete = deleteMessage.getRoomid();
-            if (!server.getOwners().get(toDelete).equals(identity)) {
+            if (!identity.equals(server.getOwners().get(toDelete))) {
                 return;
             }
+            // remove the room first, so nobody can join it any more
+            ServerConn[] guests = server.deleteRoom(toDelete);
+            if (guests == null) {
+                return;
+            }
+
             // join each guest in the given room to MainHall
-            for (ServerConn guest : server.getRooms().get(toDelete)) {
-                guest.setRoomid(Constant.MAINHALL);
-                serverMessage = new Packet.RoomChange(guest.getIdentity(), toDelete, Constant.MAINHALL);
-                guest.sendMessage(gson.toJson(serverMessage));
-                server.joinRoom(guest, Constant.MAINHALL);
+            server.evacuate(toDelete, guests);
+
+            send(server.listRooms().getPacket());
+        }
+    }
+
+    /*
+     * Take the identity claimed for the client, or tell it that it keeps its own
+     */
+    private void changeIdentity(String newIdentity, boolean claimed) {
+        synchronized (renaming) {
+            if (!claimed) {
+                send(new Packet.NewIdentity(identity, identity));
+                return;
             }
+            if (disconnected.get()) {
+                // gone while the claim was decided, the identity it left with is released already
+                server.releaseIdentity(newIdentity, this);
+                return;
+            }
+            server.broadcast(new Packet.NewIdentity(identity, newIdentity), roomid, null);
+
+            // the rooms owned by this client follow it to the new name
+            server.getOwners().rename(identity, newIdentity);
 
-            // remove the room
-            server.getRooms().remove(toDelete);
+            // give up the former identity, and its number if it was a default one
+            String former = identity;
+            this.identity = newIdentity;
+            server.renamed(former, this);
+            server.releaseIdentity(former, this);
+        }
+    }
 
-            serverMessage = new Packet.RoomList(server.listRooms());
-            sendMessage(gson.toJson(serverMessage));
+    /*
+     * Send the client the rooms once its room was created, or without the room if it could not be
+     */
+    private void roomCreated(String roomid, boolean created) {
+        if (created) {
+            send(server.listRooms().getPacket());
+            return;
+        }
+        // if the room is not valid (especially already in use)
+        // adopt Luke's suggestion to firstly remove it from the list and then send
+        RoomDirectory.Snapshot snapshot = server.listRooms();
+        if (snapshot.contains(roomid)) {
+            List<ChatRoom> data = new ArrayList<>();
+            for (ChatRoom room : snapshot.getRooms()) {
+                if (!room.getRoomid().equals(roomid)) {
+                    data.add(room);
+                }
+            }
+            // no version, this is not the real list
+            send(new Packet.RoomList(data));
+        } else {
+            send(snapshot.getPacket());
         }
     }
 
-    private void handleGuestId() {
-        if (identity.startsWith(Constant.GUEST)) {
-            if (identity.length() > Constant.GUEST.length()) {
-                String tail = identity.substring(Constant.GUEST.length());
-                try {
-                    int identityInt = Integer.parseInt(tail);
-                    server.getIds().remove(identityInt);
-                } catch (NumberFormatException ignored) {
+    /*
+     * Answer a hello with the encoding and version both sides speak. A client of
+     * the third version may resume a session with it, and gets a token to resume
+     * this one with. A client not greeted yet is greeted right after the welcome.
+     */
+    private void hello(Packet.Hello helloMessage) {
+        // the highest version both sides speak
+        int version = helloMessage.getVersion() == null ? Constant.PROTOCOL_V1
+                : Math.max(Constant.PROTOCOL_V1, Math.min(helloMessage.getVersion(), Constant.PROTOCOL_V3));
+        String accepted = Constant.ENCODING_BINARY.equals(helloMessage.getEncoding())
+                ? Constant.ENCODING_BINARY : Constant.ENCODING_JSON;
+        CompressionLimits limits = server.getCompressionLimits();
+        boolean compressing = limits.isEnabled() && Constant.COMPRESSION_DEFLATE.equals(helloMessage.getCompression());
+        synchronized (greeting) {
+            boolean resumable = version >= Constant.PROTOCOL_V3 && server.getResumeLimits().isEnabled();
+            ServerConn former = null;
+            if (resumable && !greeted && !disconnected.get()) former = server.takeOver(helloMessage.getToken(), this);
+            if (resumable && token == null) {
+                token = former != null ? helloMessage.getToken() : server.openSession(this);
+            }
+            synchronized (this) {
+                // the welcome still goes out as JSON, everything after it in the accepted encoding
+                send(new Packet.Welcome(accepted, version, token,
+                        former != null ? identity : null, former != null ? roomid : null,
+                        compressing ? Constant.COMPRESSION_DEFLATE : null));
+                encoding = accepted;
+                protocol = version;
+                compression = compressing ? limits : null;
+            }
+            if (!greeted && !disconnected.get()) {
+                greeted = true;
+                if (former != null) {
+                    server.resume(former, this, helloMessage.getSeq());
+                } else {
+                    server.greet(this);
                 }
             }
         }
     }
 
-    private void closeConnection() {
+    /**
+     * Greet the client as a new guest, unless it has been greeted already, has
+     * resumed a session or has gone. Safe to call from any thread.
+     */
+    public void greetOnce() {
+        synchronized (greeting) {
+            if (greeted || disconnected.get()) return;
+            greeted = true;
+            server.greet(this);
+        }
+    }
+
+    /**
+     * Give the session up to a new connection of the same client, closing this one.
+     * @return false if the client has left already
+     */
+    public boolean detach() {
+        if (!disconnected.compareAndSet(false, true)) return false;
+        suspended = true;
+        close();
+        return true;
+    }
+
+    /*
+     * The transport broke or reached its end. A session that can be resumed is
+     * kept for the grace window, any other client leaves at once.
+     */
+    protected void connectionLost() {
+        if (token == null || disconnected.get() || !server.getResumeLimits().isEnabled()) {
+            closeConnection();
+            return;
+        }
+        suspended = true;
+        close();
+        server.suspend(this);
+    }
+
+    /**
+     * Take the place of a session of a primary server whose connection dropped with
+     * the primary. The client may resume it with its token for the grace window, as
+     * any dropped session, and leaves once the window is over.
+     * @param token the session's resume token, or null if it cannot be resumed
+     */
+    public void restore(String token) {
+        synchronized (greeting) {
+            greeted = true;
+            this.token = token;
+        }
+        if (token != null) server.restoreSession(token, this);
+        connectionLost();
+    }
+
+    protected void closeConnection() {
+        if (!disconnected.compareAndSet(false, true)) return;
+        synchronized (greeting) {
+            // gone before it was greeted, it never had an identity or a room
+            if (!greeted) {
+                greeted = true;
+                close();
+                return;
+            }
+        }
+        server.closeSession(token, this);
         Packet.ToClient serverMessage;
         serverMessage = new Packet.RoomChange(identity, roomid, "");
         server.broadcast(serverMessage, roomid, null);
+        // also leaves the rooms owned by this client without an owner
         server.quit(roomid, this);
-        // check if there is any room owned by this client
-        // if so change the corresponding owner name to empty string
-        for (Map.Entry<String, String> entry : server.getOwners().entrySet()) {
-            if (entry.getValue().equals(identity)) {
-                entry.setValue("");
-            }
-        }
-        // if former identity is default ones, remove from the set
-        handleGuestId();
+        // give up the identity, and its number if it was a default one
+        server.releaseIdentity(identity, this);
         close();
     }
 
@@ -261,6 +439,10 @@ public class ServerConn extends Thread {
         return roomid;
     }
 
+    public String getToken() {
+        return token;
+    }
+
     public void setRoomid(String roomid) {
         this.roomid = roomid;
     }
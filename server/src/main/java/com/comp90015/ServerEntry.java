@@ -1,22 +1,154 @@
 package com.comp90015;
 
 import com.comp90015.base.Constant;
+import com.comp90015.base.VirtualThreads;
 
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Model.CommandSpec;
 import picocli.CommandLine.Option;
+import picocli.CommandLine.ParameterException;
+import picocli.CommandLine.Spec;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 
 public class ServerEntry {
 
     static int PORT = Constant.PORT;
+    static Engine ENGINE = Engine.BLOCKING;
+    static int THREADS = Runtime.getRuntime().availableProcessors();
+    static OutboundLimits OUTBOUND_LIMITS = new OutboundLimits();
+    static ScrollbackLimits SCROLLBACK_LIMITS = new ScrollbackLimits();
+    static ResumeLimits RESUME_LIMITS = new ResumeLimits();
+    static CompressionLimits COMPRESSION_LIMITS = new CompressionLimits();
+    static Path LOG_DIR = null;
+    static int LOG_SEGMENT_BYTES = MessageLog.DEFAULT_SEGMENT_BYTES;
+    static long LOG_FLUSH_MILLIS = MessageLog.DEFAULT_FLUSH_MILLIS;
+    static boolean SEARCH = false;
+    static int SEARCH_QUEUE = SearchIndex.DEFAULT_QUEUE_CAPACITY;
+    static long STATS_INTERVAL = 0;
+    static String CLUSTER_NODE = null;
+    static List<String> CLUSTER_PEERS = new ArrayList<>();
+    static long CLUSTER_TIMEOUT_MILLIS = Cluster.DEFAULT_REQUEST_TIMEOUT_MILLIS;
+    static int REPLICATION_PORT = 0;
+    static String REPLICATION_ADDRESS = Replicator.DEFAULT_ADDRESS;
+    static String REPLICATION_SECRET = null;
+    static String STANDBY_OF = null;
+    static long FAILOVER_MILLIS = Standby.DEFAULT_FAILOVER_MILLIS;
+
+    /**
+     * The ways the server can serve its connections.
+     */
+    enum Engine {
+        // one pooled thread blocking on each connection
+        BLOCKING,
+        // one virtual thread blocking on each connection (Java 21+)
+        VIRTUAL,
+        // a few selector threads multiplexing all connections
+        NIO
+    }
 
     public static void main(String[] args) {
 
-        new CommandLine(new ServerCommandLineParser()).execute(args);
+        CommandLine commandLine = new CommandLine(new ServerCommandLineParser())
+                .setCaseInsensitiveEnumValuesAllowed(true);
+        int exitCode = commandLine.execute(args);
+        // an invalid option must not start a server with the defaults in its place
+        if (exitCode != 0) System.exit(exitCode);
+        if (commandLine.isUsageHelpRequested() || commandLine.isVersionHelpRequested()) return;
 
-        Server server = new Server(PORT);
-        server.handle();
+        Server server;
+        if (ENGINE == Engine.VIRTUAL) {
+            if (!VirtualThreads.isSupported()) {
+                System.err.println("The virtual engine requires Java 21 or later");
+                return;
+            }
+            server = new Server(PORT, VirtualThreads.newVirtualThreadPerTaskExecutor());
+        } else {
+            server = new Server(PORT);
+        }
+        server.setOutboundLimits(OUTBOUND_LIMITS);
+        server.setScrollbackLimits(SCROLLBACK_LIMITS);
+        server.setResumeLimits(RESUME_LIMITS);
+        server.setCompressionLimits(COMPRESSION_LIMITS);
+        server.dumpStats(STATS_INTERVAL);
+
+        if (SEARCH && LOG_DIR == null) {
+            System.err.println("Search reads its results from the message log, it requires --log-dir");
+            return;
+        }
+
+        if (LOG_DIR != null) {
+            try {
+                MessageLog messageLog = new MessageLog(LOG_DIR, LOG_SEGMENT_BYTES, LOG_FLUSH_MILLIS);
+                server.setMessageLog(messageLog);
+                if (SEARCH) server.setSearchIndex(new SearchIndex(messageLog, SEARCH_QUEUE));
+                // flush what the last interval appended when the server is stopped
+                Runtime.getRuntime().addShutdownHook(new Thread(messageLog::close));
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                return;
+            }
+        }
+
+        if (CLUSTER_NODE != null) {
+            try {
+                Cluster cluster = new Cluster(server, CLUSTER_NODE, CLUSTER_PEERS, CLUSTER_TIMEOUT_MILLIS);
+                server.setCluster(cluster);
+                cluster.start();
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                return;
+            }
+        } else if (!CLUSTER_PEERS.isEmpty()) {
+            System.err.println("A cluster node needs its own address, --cluster-node");
+            return;
+        }
+
+        if (STANDBY_OF != null) {
+            if (CLUSTER_NODE != null) {
+                System.err.println("A cluster node cannot be a standby, its peers hold its rooms already");
+                return;
+            }
+            try {
+                // serves once the primary is gone, on the port the primary's clients come back to
+                Standby standby = new Standby(server, STANDBY_OF, REPLICATION_SECRET, FAILOVER_MILLIS, STATS_INTERVAL);
+                standby.follow();
+                standby.takeOver();
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                return;
+            }
+        }
+
+        if (REPLICATION_PORT > 0) {
+            if (CLUSTER_NODE != null) {
+                System.err.println("A cluster node cannot have a standby, its peers hold its rooms already");
+                return;
+            }
+            try {
+                Replicator replicator = new Replicator(server, REPLICATION_ADDRESS, REPLICATION_PORT, REPLICATION_SECRET);
+                server.setReplicator(replicator);
+                replicator.start();
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                return;
+            }
+        }
+
+        if (ENGINE == Engine.NIO) {
+            try {
+                new NioServer(server, PORT, THREADS).handle();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        } else {
+            server.handle();
+        }
 
     }
 
@@ -26,9 +158,144 @@ public class ServerEntry {
         @Option(names = { "-p", "--port" }, description = "Port Number")
         int port = Constant.PORT;
 
+        @Option(names = { "-e", "--engine" }, description = "Connection engine: ${COMPLETION-CANDIDATES}")
+        Engine engine = Engine.BLOCKING;
+
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        @Spec
+        CommandSpec spec;
+
+        @Option(names = { "-t", "--threads" }, description = "Number of event loops for the nio engine")
+        void setThreads(int threads) {
+            if (threads < 1) {
+                throw new ParameterException(spec.commandLine(), "--threads must be at least 1, was " + threads);
+            }
+            this.threads = threads;
+        }
+
+        @Option(names = { "--high-watermark" }, description = "Bytes queued for a client before it counts as slow")
+        int highWatermark = OutboundLimits.DEFAULT_HIGH_WATERMARK;
+
+        @Option(names = { "--low-watermark" }, description = "Bytes a slow client's queue is trimmed down to")
+        int lowWatermark = OutboundLimits.DEFAULT_LOW_WATERMARK;
+
+        @Option(names = { "--max-queued-bytes" }, description = "Bytes queued for a client before it is disconnected at once, four times the high watermark by default")
+        Integer maxQueuedBytes = null;
+
+        @Option(names = { "--slow-consumer" }, description = "Policy for slow clients: ${COMPLETION-CANDIDATES}")
+        OutboundLimits.Policy policy = OutboundLimits.Policy.DROP_OLDEST;
+
+        @Option(names = { "--slow-consumer-grace" }, description = "Milliseconds a client may stay slow with nothing left to drop before it is disconnected")
+        long graceMillis = OutboundLimits.DEFAULT_GRACE_MILLIS;
+
+        @Option(names = { "--flush-delay-micros" }, description = "Microseconds a client's outgoing messages may wait to be written together, 0 writes them once each round of input is handled")
+        long flushDelayMicros = OutboundLimits.DEFAULT_FLUSH_DELAY_MICROS;
+
+        @Option(names = { "--scrollback" }, description = "Chat messages kept per room, 0 keeps none")
+        int scrollback = ScrollbackLimits.DEFAULT_CAPACITY;
+
+        @Option(names = { "--scrollback-replay" }, description = "Newest messages replayed to a guest joining a room")
+        int scrollbackReplay = ScrollbackLimits.DEFAULT_REPLAY;
+
+        @Option(names = { "--scrollback-budget" }, description = "Bytes the scrollback of all rooms may hold together")
+        long scrollbackBudget = ScrollbackLimits.DEFAULT_BUDGET;
+
+        @Option(names = { "--resume-grace-millis" }, description = "Milliseconds a dropped session may be resumed in, 0 by default turns resuming off")
+        long resumeGraceMillis = ResumeLimits.DEFAULT_GRACE_MILLIS;
+
+        @Option(names = { "--greet-delay-millis" }, description = "Milliseconds a new client that sends nothing waits to be greeted while resuming is on")
+        long greetDelayMillis = ResumeLimits.DEFAULT_GREET_DELAY_MILLIS;
+
+        @Option(names = { "--resume-replay" }, description = "Most missed messages replayed to a resumed session")
+        int resumeReplay = ResumeLimits.DEFAULT_MAX_REPLAY;
+
+        @Option(names = { "--compression-threshold" }, description = "Bytes from which a packet is compressed for the clients that ask for it, 0 turns compression off")
+        int compressionThreshold = CompressionLimits.DEFAULT_THRESHOLD_BYTES;
+
+        @Option(names = { "--compression-level" }, description = "Deflate level, from 1 for the fastest to 9 for the smallest")
+        int compressionLevel = CompressionLimits.DEFAULT_LEVEL;
+
+        @Option(names = { "--log-dir" }, description = "Directory to keep every room's chat messages in, none by default")
+        Path logDir = null;
+
+        @Option(names = { "--log-segment-bytes" }, description = "Size of a message log file before the next one is started")
+        int logSegmentBytes = MessageLog.DEFAULT_SEGMENT_BYTES;
+
+        @Option(names = { "--log-flush-millis" }, description = "Milliseconds between flushes of the message log to disk, 0 flushes every message")
+        long logFlushMillis = MessageLog.DEFAULT_FLUSH_MILLIS;
+
+        @Option(names = { "--search" }, description = "Index the logged chat messages for #search")
+        boolean search = false;
+
+        @Option(names = { "--search-queue" }, description = "Messages waiting to be indexed before new ones are left out")
+        int searchQueue = SearchIndex.DEFAULT_QUEUE_CAPACITY;
+
+        @Option(names = { "--stats-interval" }, description = "Seconds between stats reports printed by the server, 0 prints none")
+        long statsInterval = 0;
+
+        @Option(names = { "--cluster-node" }, description = "Host and port this node listens to the other cluster nodes on, as host:port, none serves alone")
+        String clusterNode = null;
+
+        @Option(names = { "--cluster-peers" }, split = ",", description = "The other cluster nodes, as comma separated host:port")
+        List<String> clusterPeers = new ArrayList<>();
+
+        @Option(names = { "--cluster-timeout-millis" }, description = "Milliseconds to wait for the node deciding on a room or an identity")
+        long clusterTimeoutMillis = Cluster.DEFAULT_REQUEST_TIMEOUT_MILLIS;
+
+        @Option(names = { "--replication-port" }, description = "Port to stream the server's state to standbys on, 0 for none")
+        int replicationPort = 0;
+
+        @Option(names = { "--replication-address" }, description = "Address to stream the server's state to standbys on, the loopback address by default")
+        String replicationAddress = Replicator.DEFAULT_ADDRESS;
+
+        @Option(names = { "--replication-secret" }, defaultValue = "${env:CHAT_REPLICATION_SECRET}", description = "Secret a standby sends its primary before it is sent anything, required on both, by default from the CHAT_REPLICATION_SECRET environment variable")
+        String replicationSecret;
+
+        @Option(names = { "--standby-of" }, description = "Follow the primary server replicating on host:port, and serve once it is gone, its clients resuming here only with --resume-grace-millis set on both")
+        String standbyOf = null;
+
+        @Option(names = { "--failover-millis" }, description = "Milliseconds the primary may be silent before its standby takes over")
+        long failoverMillis = Standby.DEFAULT_FAILOVER_MILLIS;
+
         @Override
         public void run() {
+            OutboundLimits outboundLimits;
+            ScrollbackLimits scrollbackLimits;
+            ResumeLimits resumeLimits;
+            CompressionLimits compressionLimits;
+            try {
+                outboundLimits = new OutboundLimits(highWatermark, lowWatermark,
+                        maxQueuedBytes == null ? OutboundLimits.defaultMaxQueuedBytes(highWatermark) : maxQueuedBytes,
+                        policy, graceMillis, flushDelayMicros);
+                scrollbackLimits = new ScrollbackLimits(scrollback, scrollbackReplay, scrollbackBudget);
+                resumeLimits = new ResumeLimits(resumeGraceMillis, greetDelayMillis, resumeReplay);
+                compressionLimits = new CompressionLimits(compressionThreshold, compressionLevel);
+            } catch (IllegalArgumentException e) {
+                // a setting out of range or at odds with another, reported as the options' fault
+                throw new ParameterException(spec.commandLine(), e.getMessage());
+            }
             PORT = port;
+            ENGINE = engine;
+            THREADS = threads;
+            OUTBOUND_LIMITS = outboundLimits;
+            SCROLLBACK_LIMITS = scrollbackLimits;
+            RESUME_LIMITS = resumeLimits;
+            COMPRESSION_LIMITS = compressionLimits;
+            LOG_DIR = logDir;
+            LOG_SEGMENT_BYTES = logSegmentBytes;
+            LOG_FLUSH_MILLIS = logFlushMillis;
+            SEARCH = search;
+            SEARCH_QUEUE = searchQueue;
+            STATS_INTERVAL = statsInterval;
+            CLUSTER_NODE = clusterNode;
+            CLUSTER_PEERS = clusterPeers;
+            CLUSTER_TIMEOUT_MILLIS = clusterTimeoutMillis;
+            REPLICATION_PORT = replicationPort;
+            REPLICATION_ADDRESS = replicationAddress;
+            REPLICATION_SECRET = replicationSecret;
+            STANDBY_OF = standbyOf;
+            FAILOVER_MILLIS = failoverMillis;
         }
     }
 }
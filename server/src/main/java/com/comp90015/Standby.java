@@ -0,0 +1,221 @@
+package com.comp90015;
+
+import com.comp90015.base.Constant;
+import com.comp90015.base.Histogram;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A server following a primary server's state, ready to serve in its place.
+ * It holds the primary's rooms with their owners and scrollback, and a
+ * stand-in for each of the primary's guests with its identity, its room and
+ * its resume token. Nobody connects to it while it follows.
+ * <p>Once the primary has been silent for the failover time, the standby takes
+ * over: each stand-in becomes a dropped session, which its client resumes with
+ * its token as it would after a dropped connection, and the server starts
+ * listening for clients. A standby that never got the whole state never takes
+ * over, it would serve an empty server under the primary's name.
+ */
+public class Standby {
+
+    public static final long DEFAULT_FAILOVER_MILLIS = 3000;
+    // milliseconds between attempts to reach the primary
+    public static final long RETRY_MILLIS = 200;
+
+    private final Server server;
+    private final String primary;
+    private final String secret;
+    private final long failoverMillis;
+    private final long statsIntervalSeconds;
+
+    // stand-ins of the primary's guests, by identity
+    private final Map<String, ReplicaGuest> guests = new ConcurrentHashMap<>();
+    // microseconds from the primary sending a change to it being applied here, since the last report
+    private Histogram lag = new Histogram();
+    private boolean synced = false;
+
+    /**
+     * @param server the standby's server, not serving yet
+     * @param primary host and replication port of the primary, as host:port
+     * @param secret secret shared with the primary, sent before it sends anything
+     * @param failoverMillis milliseconds the primary may be silent before the standby takes over
+     * @param statsIntervalSeconds seconds between reports of the lag, 0 prints none
+     * @throws IllegalArgumentException if the secret is empty
+     */
+    public Standby(Server server, String primary, String secret, long failoverMillis, long statsIntervalSeconds) {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("Replication requires a secret shared with the primary");
+        }
+        this.server = server;
+        this.primary = primary;
+        this.secret = secret;
+        this.failoverMillis = failoverMillis;
+        this.statsIntervalSeconds = statsIntervalSeconds;
+    }
+
+    /**
+     * Follow the primary until it is gone, on the calling thread. Connecting
+     * again after the link drops starts over from a new snapshot.
+     * @throws IllegalArgumentException if the primary is not a host:port
+     */
+    public void follow() {
+        InetSocketAddress address = Cluster.address(primary);
+        long lastContact = System.nanoTime();
+        long lastReport = lastContact;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                // resolved on every attempt, the primary's host may have moved
+                socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), (int) failoverMillis);
+                // the primary pings while it has nothing to send, silence means it is gone
+                socket.setSoTimeout((int) failoverMillis);
+                Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                writer.write(ClusterMessage.standbyHello(secret).encode() + "\n");
+                writer.flush();
+                reset();
+                System.out.println("Following the primary at " + primary);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lastContact = System.nanoTime();
+                    apply(ClusterMessage.decode(line));
+                    if (statsIntervalSeconds > 0 && lastContact - lastReport >= TimeUnit.SECONDS.toNanos(statsIntervalSeconds)) {
+                        System.out.println(report());
+                        lastReport = lastContact;
+                    }
+                }
+            } catch (IOException e) {
+                // the primary is not up yet, or went away
+            } catch (RuntimeException e) {
+                // a change that could not be applied, start over from a new snapshot
+                System.err.println(e.getMessage());
+            }
+            if (synced && System.nanoTime() - lastContact >= TimeUnit.MILLISECONDS.toNanos(failoverMillis)) return;
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Serve the primary's guests in its place: their sessions are kept for
+     * the grace window, for their clients to resume here.
+     */
+    public void takeOver() {
+        for (ReplicaGuest guest : new ArrayList<>(guests.values())) {
+            // a guest whose session cannot be resumed leaves now
+            guest.restore(guest.getSessionToken());
+        }
+        guests.clear();
+        System.out.println("The primary at " + primary + " is gone, taking over");
+    }
+
+    /*
+     * Forget the state of the primary, before a new snapshot of it is applied
+     */
+    private void reset() {
+        // not ready to take over again until the whole of the new snapshot is in
+        synced = false;
+        for (ReplicaGuest guest : guests.values()) {
+            server.quit(guest.getRoomid(), guest);
+            server.releaseIdentity(guest.getIdentity(), guest);
+        }
+        guests.clear();
+        for (String roomid : new ArrayList<>(server.getRooms().keySet())) {
+            server.removeRoom(roomid);
+        }
+        Room mainHall = server.getRooms().get(Constant.MAINHALL);
+        if (mainHall != null) mainHall.getScrollback().clear();
+    }
+
+    /*
+     * Apply a change of the primary's state, in the order the primary made them
+     */
+    private void apply(ClusterMessage message) {
+        Long time = message.getTime();
+        if (time != null) {
+            Instant now = Instant.now();
+            lag.record(TimeUnit.SECONDS.toMicros(now.getEpochSecond()) + now.getNano() / 1000 - time);
+        }
+        switch (message.getType()) {
+            case ClusterMessage.ROOM:
+                server.addRoom(message.getRoomid(), message.getOwner() == null ? "" : message.getOwner());
+                break;
+            case ClusterMessage.DELETED:
+                ServerConn[] members = server.removeRoom(message.getRoomid());
+                if (members != null) server.evacuate(message.getRoomid(), members);
+                break;
+            case ClusterMessage.JOIN:
+                joined(message.getIdentity(), message.getRoomid(), message.getToken());
+                break;
+            case ClusterMessage.RENAME:
+                renamed(message.getFormer(), message.getIdentity());
+                break;
+            case ClusterMessage.LEAVE:
+                left(message.getIdentity());
+                break;
+            case ClusterMessage.RELAY:
+                server.deliver(message.getPacket(), message.getRoomid(), null);
+                break;
+            case ClusterMessage.SYNCED:
+                synced = true;
+                System.out.println("In sync with the primary, ready to take over");
+                break;
+            case ClusterMessage.PING:
+                break;
+            default:
+                // sent by a newer primary, nothing this one knows to do
+        }
+    }
+
+    private void joined(String identity, String roomid, String token) {
+        ReplicaGuest guest = guests.computeIfAbsent(identity, id -> new ReplicaGuest(server, id));
+        if (token != null) guest.setSessionToken(token);
+        if (server.getIdentities().get(identity) != guest) server.holdIdentity(identity, guest);
+        if (roomid != null && !roomid.equals(guest.getRoomid())) server.joinRoom(guest, roomid);
+    }
+
+    private void renamed(String former, String identity) {
+        ReplicaGuest guest = guests.get(former);
+        if (guest == null) return;
+        server.holdIdentity(identity, guest);
+        server.getOwners().rename(former, identity);
+        guest.setIdentity(identity);
+        server.renamed(former, guest);
+        server.releaseIdentity(former, guest);
+        guests.remove(former, guest);
+        guests.put(identity, guest);
+    }
+
+    private void left(String identity) {
+        ReplicaGuest guest = guests.remove(identity);
+        if (guest == null) return;
+        server.quit(guest.getRoomid(), guest);
+        server.releaseIdentity(identity, guest);
+    }
+
+    /**
+     * The standby's lag behind the primary since the last report, which starts over.
+     * @return a line for the report
+     */
+    public String report() {
+        Histogram.Snapshot snapshot = lag.snapshot();
+        lag = new Histogram();
+        return String.format("replication lag: %d changes, p50 %.1f ms, p99 %.1f ms, max %.1f ms, %d guests followed",
+                snapshot.getCount(), snapshot.percentile(50) / 1e3, snapshot.percentile(99) / 1e3,
+                snapshot.getMax() / 1e3, guests.size());
+    }
+}
@@ -0,0 +1,159 @@
+package com.comp90015;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClusterTest {
+
+    private static final String SELF = "localhost:7001";
+    private static final String PEER = "localhost:7002";
+
+    private Server server;
+    private Cluster cluster;
+    private PeerLink peer;
+
+    @BeforeEach
+    void setUp() {
+        server = new Server(0);
+        // not started, the peer's messages are handed to the cluster as its link would
+        cluster = new Cluster(server, SELF, List.of(PEER), 200);
+        server.setCluster(cluster);
+        peer = cluster.getLinks().get(PEER);
+    }
+
+    /*
+     * What this node sends the peer from now on
+     */
+    private BlockingQueue<String> linkUp() {
+        BlockingQueue<String> outbox = new LinkedBlockingQueue<>();
+        peer.setOutbox(outbox);
+        return outbox;
+    }
+
+    private static ClusterMessage next(BlockingQueue<String> outbox) throws InterruptedException {
+        String line = outbox.poll(5, TimeUnit.SECONDS);
+        assertNotNull(line);
+        return ClusterMessage.decode(line);
+    }
+
+    private String roomHomedOnThePeer() {
+        for (int i = 0; ; i++) {
+            if (!cluster.isHome("room" + i)) return "room" + i;
+        }
+    }
+
+    private String identityHomedOnThePeer() {
+        for (int i = 0; ; i++) {
+            if (!cluster.isIdentityHome("name" + i)) return "name" + i;
+        }
+    }
+
+    private boolean isIn(String identity, String roomid) {
+        Room room = server.getRooms().get(roomid);
+        if (room == null) return false;
+        for (ServerConn member : room.snapshot()) {
+            if (member.getIdentity().equals(identity)) return true;
+        }
+        return false;
+    }
+
+    @Test
+    void joinsAGuestToARoomAnnouncedAfterTheJoin() {
+        cluster.receive(peer, ClusterMessage.join("bob", "MainHall"));
+        assertTrue(isIn("bob", "MainHall"));
+        // the room's home node has not been heard from yet
+        cluster.receive(peer, ClusterMessage.join("bob", "comp90015"));
+        assertFalse(server.getRooms().containsKey("comp90015"));
+        cluster.receive(peer, ClusterMessage.room("comp90015", "bob"));
+        assertTrue(isIn("bob", "comp90015"));
+        assertFalse(isIn("bob", "MainHall"));
+        assertEquals(1, server.getRooms().get("comp90015").size());
+    }
+
+    @Test
+    void forgetsAWaitingJoinOnceTheGuestMovesOnOrLeaves() {
+        cluster.receive(peer, ClusterMessage.join("bob", "MainHall"));
+        cluster.receive(peer, ClusterMessage.join("bob", "comp90015"));
+        cluster.receive(peer, ClusterMessage.join("bob", "MainHall"));
+        cluster.receive(peer, ClusterMessage.join("carol", "comp90015"));
+        cluster.receive(peer, ClusterMessage.identity(ClusterMessage.LEAVE, "carol"));
+        cluster.receive(peer, ClusterMessage.room("comp90015", "bob"));
+        assertTrue(isIn("bob", "MainHall"));
+        assertTrue(server.getRooms().get("comp90015").isEmpty());
+        assertNull(server.getIdentities().get("carol"));
+    }
+
+    @Test
+    void joinsARenamedGuestUnderItsNewIdentity() {
+        cluster.receive(peer, ClusterMessage.join("bob", "MainHall"));
+        cluster.receive(peer, ClusterMessage.join("bob", "comp90015"));
+        cluster.receive(peer, ClusterMessage.rename("bob", "robert"));
+        cluster.receive(peer, ClusterMessage.room("comp90015", "robert"));
+        assertTrue(isIn("robert", "comp90015"));
+        assertFalse(isIn("bob", "comp90015"));
+    }
+
+    @Test
+    void claimsAnIdentityWithoutWaitingForTheHomeNode() throws Exception {
+        BlockingQueue<String> outbox = linkUp();
+        ServerConn alice = new ReplicaGuest(server, "alice");
+        String identity = identityHomedOnThePeer();
+        CompletableFuture<Boolean> claimed = server.claimIdentity(identity, alice);
+        assertFalse(claimed.isDone());
+        ClusterMessage claim = next(outbox);
+        assertEquals(ClusterMessage.CLAIM, claim.getType());
+        assertEquals(identity, claim.getIdentity());
+        cluster.receive(peer, ClusterMessage.reply(claim.getId(), true));
+        assertTrue(claimed.get(5, TimeUnit.SECONDS));
+        assertSame(alice, server.getIdentities().get(identity));
+    }
+
+    @Test
+    void givesBackAnIdentityTheHomeNodeDidNotAnswerFor() throws Exception {
+        BlockingQueue<String> outbox = linkUp();
+        String identity = identityHomedOnThePeer();
+        CompletableFuture<Boolean> claimed = server.claimIdentity(identity, new ReplicaGuest(server, "alice"));
+        assertEquals(ClusterMessage.CLAIM, next(outbox).getType());
+        assertFalse(claimed.get(5, TimeUnit.SECONDS));
+        // the home node may have held it anyway
+        ClusterMessage release = next(outbox);
+        assertEquals(ClusterMessage.RELEASE, release.getType());
+        assertEquals(identity, release.getIdentity());
+        assertNull(server.getIdentities().get(identity));
+    }
+
+    @Test
+    void createsARoomOnceItsHomeNodeAgrees() throws Exception {
+        BlockingQueue<String> outbox = linkUp();
+        String roomid = roomHomedOnThePeer();
+        CompletableFuture<Boolean> created = server.createRoom(roomid, "alice");
+        assertFalse(created.isDone());
+        ClusterMessage create = next(outbox);
+        assertEquals(ClusterMessage.CREATE, create.getType());
+        cluster.receive(peer, ClusterMessage.reply(create.getId(), true));
+        assertTrue(created.get(5, TimeUnit.SECONDS));
+        assertTrue(server.getRooms().containsKey(roomid));
+        assertEquals("alice", server.getOwners().get(roomid));
+    }
+
+    @Test
+    void answersAtOnceWhileTheHomeNodeIsDown() throws Exception {
+        CompletableFuture<Boolean> created = server.createRoom(roomHomedOnThePeer(), "alice");
+        assertTrue(created.isDone());
+        assertFalse(created.get());
+        assertFalse(server.claimIdentity(identityHomedOnThePeer(), new ReplicaGuest(server, "alice")).get());
+    }
+}
@@ -0,0 +1,156 @@
+package com.comp90015;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ColdSegmentTest {
+
+    private static final int RECORDS = 2000;
+
+    @TempDir
+    Path directory;
+
+    /*
+     * Records of a few hundred bytes each, half random so blocks do not shrink to nothing
+     */
+    private static byte[] record(int i) {
+        Random random = new Random(i);
+        byte[] data = new byte[100 + random.nextInt(200)];
+        for (int j = 0; j < data.length; j++) {
+            data[j] = j % 2 == 0 ? (byte) random.nextInt() : (byte) 'a';
+        }
+        return data;
+    }
+
+    private LogSegment full(long base) throws IOException {
+        LogSegment segment = LogSegment.open(directory.resolve(base + ".log"), base, 1024 * 1024);
+        for (int i = 0; i < RECORDS; i++) {
+            assertTrue(segment.append(record(i)));
+        }
+        return segment;
+    }
+
+    @Test
+    void keepsEveryRecordOfTheSegment() throws IOException {
+        LogSegment source = full(5);
+        Path path = directory.resolve("5.z");
+        ColdSegment written = ColdSegment.write(path, source);
+        assertFalse(Files.exists(directory.resolve("5.z.tmp")));
+        assertTrue(Files.size(path) < source.getSize());
+        ColdSegment opened = ColdSegment.open(path, 5);
+        for (ColdSegment cold : new ColdSegment[]{written, opened}) {
+            assertEquals(5, cold.getBaseSeq());
+            assertEquals(5 + RECORDS, cold.getNextSeq());
+            byte[][] all = cold.read(5, RECORDS);
+            assertEquals(RECORDS, all.length);
+            for (int i = 0; i < RECORDS; i++) {
+                assertArrayEquals(record(i), all[i]);
+            }
+        }
+    }
+
+    @Test
+    void readsFromTheMiddleOfABlock() throws IOException {
+        ColdSegment cold = ColdSegment.write(directory.resolve("1.z"), full(1));
+        // far enough in to be past the first blocks
+        byte[][] read = cold.read(1500, 300);
+        assertEquals(300, read.length);
+        for (int i = 0; i < 300; i++) {
+            assertArrayEquals(record(1499 + i), read[i]);
+        }
+        assertEquals(1, cold.read(RECORDS, 10).length);
+        assertEquals(0, cold.read(RECORDS + 1, 10).length);
+        // before the base starts at the base
+        assertArrayEquals(record(0), cold.read(0, 1)[0]);
+    }
+
+    @Test
+    void compressesAnEmptySegment() throws IOException {
+        LogSegment empty = LogSegment.open(directory.resolve("1.log"), 1, 4096);
+        ColdSegment cold = ColdSegment.write(directory.resolve("1.z"), empty);
+        assertEquals(1, cold.getNextSeq());
+        assertEquals(0, ColdSegment.open(directory.resolve("1.z"), 1).read(1, 10).length);
+    }
+
+    @Test
+    void writesBlocksOfLengthCountAndDeflatedRecords() throws IOException {
+        Path path = directory.resolve("1.z");
+        ColdSegment.write(path, full(1));
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(path));
+        int blocks = 0;
+        int records = 0;
+        while (file.hasRemaining()) {
+            int length = file.getInt();
+            int count = file.getInt();
+            byte[] compressed = new byte[length];
+            file.get(compressed);
+            Inflater inflater = new Inflater();
+            inflater.setInput(compressed);
+            byte[] raw = new byte[2 * ColdSegment.BLOCK_BYTES];
+            int inflated;
+            try {
+                inflated = inflater.inflate(raw);
+                assertTrue(inflater.finished());
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            } finally {
+                inflater.end();
+            }
+            // the records as a log segment holds them
+            ByteBuffer block = ByteBuffer.wrap(raw, 0, inflated);
+            for (int i = 0; i < count; i++) {
+                byte[] data = new byte[block.getInt()];
+                block.getInt();
+                block.get(data);
+                assertArrayEquals(record(records + i), data);
+            }
+            assertFalse(block.hasRemaining());
+            blocks++;
+            records += count;
+        }
+        assertEquals(RECORDS, records);
+        assertTrue(blocks > 1);
+    }
+
+    @Test
+    void detectsACorruptRecord() throws IOException {
+        byte[] data = {1, 2, 3};
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        DataOutputStream block = new DataOutputStream(raw);
+        block.writeInt(data.length);
+        // not the checksum of the data
+        block.writeInt(0);
+        block.write(data);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflating = new DeflaterOutputStream(compressed)) {
+            raw.writeTo(deflating);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream file = new DataOutputStream(bytes);
+        file.writeInt(compressed.size());
+        file.writeInt(1);
+        compressed.writeTo(file);
+        Path path = directory.resolve("1.z");
+        Files.write(path, bytes.toByteArray());
+        ColdSegment cold = ColdSegment.open(path, 1);
+        assertEquals(2, cold.getNextSeq());
+        assertThrows(IOException.class, () -> cold.read(1, 1));
+    }
+}
@@ -0,0 +1,109 @@
+package com.comp90015;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GuestIdAllocatorTest {
+
+    @Test
+    void handsOutTheSmallestFreeNumber() {
+        GuestIdAllocator allocator = new GuestIdAllocator();
+        for (int i = 1; i <= 200; i++) {
+            assertEquals(i, allocator.allocate());
+        }
+        allocator.release(70);
+        allocator.release(5);
+        allocator.release(130);
+        assertEquals(5, allocator.allocate());
+        assertEquals(70, allocator.allocate());
+        assertEquals(130, allocator.allocate());
+        assertEquals(201, allocator.allocate());
+    }
+
+    @Test
+    void handsOutNumbersPastManyFullWords() {
+        GuestIdAllocator allocator = new GuestIdAllocator();
+        // past the first summary word, 4096 numbers
+        for (int i = 1; i <= 10000; i++) {
+            assertEquals(i, allocator.allocate());
+        }
+        allocator.release(9000);
+        allocator.release(4097);
+        assertEquals(4097, allocator.allocate());
+        assertEquals(9000, allocator.allocate());
+        assertEquals(10001, allocator.allocate());
+    }
+
+    @Test
+    void skipsClaimedNumbers() {
+        GuestIdAllocator allocator = new GuestIdAllocator();
+        assertTrue(allocator.claim(1));
+        assertTrue(allocator.claim(3));
+        assertFalse(allocator.claim(3));
+        assertEquals(2, allocator.allocate());
+        assertEquals(4, allocator.allocate());
+        assertTrue(allocator.contains(3));
+        allocator.release(3);
+        assertFalse(allocator.contains(3));
+        assertEquals(3, allocator.allocate());
+    }
+
+    @Test
+    void neverHandsOutGuestZero() {
+        GuestIdAllocator allocator = new GuestIdAllocator();
+        assertFalse(allocator.claim(0));
+        allocator.release(0);
+        assertEquals(1, allocator.allocate());
+    }
+
+    @Test
+    void keepsNumbersFarAboveTheBitmapAside() {
+        GuestIdAllocator allocator = new GuestIdAllocator();
+        assertTrue(allocator.claim(99999999));
+        assertFalse(allocator.claim(99999999));
+        assertTrue(allocator.contains(99999999));
+        assertEquals(1, allocator.allocate());
+        allocator.release(99999999);
+        assertFalse(allocator.contains(99999999));
+        assertTrue(allocator.claim(99999999));
+    }
+
+    @Test
+    void handsOutOnlyItsResidueClass() {
+        GuestIdAllocator first = new GuestIdAllocator(0, 3);
+        GuestIdAllocator second = new GuestIdAllocator(1, 3);
+        GuestIdAllocator third = new GuestIdAllocator(2, 3);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(3 * (i + 1), first.allocate());
+            assertEquals(3 * i + 1, second.allocate());
+            assertEquals(3 * i + 2, third.allocate());
+        }
+        assertTrue(second.isOwned(4));
+        assertFalse(second.isOwned(5));
+        assertFalse(first.isOwned(0));
+    }
+
+    @Test
+    void ignoresNumbersOfOtherNodes() {
+        GuestIdAllocator allocator = new GuestIdAllocator(1, 2);
+        assertFalse(allocator.claim(2));
+        assertFalse(allocator.contains(2));
+        assertTrue(allocator.claim(3));
+        assertEquals(1, allocator.allocate());
+        assertEquals(5, allocator.allocate());
+        allocator.release(4);
+        allocator.release(3);
+        assertEquals(3, allocator.allocate());
+    }
+
+    @Test
+    void rejectsAnInvalidResidueClass() {
+        assertThrows(IllegalArgumentException.class, () -> new GuestIdAllocator(0, 0));
+        assertThrows(IllegalArgumentException.class, () -> new GuestIdAllocator(-1, 2));
+        assertThrows(IllegalArgumentException.class, () -> new GuestIdAllocator(2, 2));
+    }
+}
@@ -0,0 +1,66 @@
+package com.comp90015;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashRingTest {
+
+    private static final List<String> NODES = List.of("10.0.0.1:7000", "10.0.0.2:7000", "10.0.0.3:7000");
+
+    @Test
+    void everyNodeAgreesOnTheHomeOfAKey() {
+        HashRing ring = new HashRing(NODES, HashRing.DEFAULT_POINTS);
+        HashRing shuffled = new HashRing(List.of(NODES.get(2), NODES.get(0), NODES.get(1)), HashRing.DEFAULT_POINTS);
+        assertEquals(NODES, shuffled.getNodes());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(ring.nodeFor("room" + i), shuffled.nodeFor("room" + i));
+        }
+        // the same on any JVM, not taken from String.hashCode
+        assertEquals(HashRing.hash("MainHall"), HashRing.hash("MainHall"));
+        assertTrue(HashRing.hash("room1") != HashRing.hash("room2"));
+    }
+
+    @Test
+    void spreadsTheKeysEvenly() {
+        HashRing ring = new HashRing(NODES, HashRing.DEFAULT_POINTS);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 30_000; i++) {
+            counts.merge(ring.nodeFor("room" + i), 1, Integer::sum);
+        }
+        assertEquals(3, counts.size());
+        for (int count : counts.values()) {
+            assertTrue(count > 7_000 && count < 13_000, "keys on one node: " + count);
+        }
+    }
+
+    @Test
+    void aNewNodeTakesKeysOnlyForItself() {
+        HashRing ring = new HashRing(NODES, HashRing.DEFAULT_POINTS);
+        List<String> grown = List.of(NODES.get(0), NODES.get(1), NODES.get(2), "10.0.0.4:7000");
+        HashRing larger = new HashRing(grown, HashRing.DEFAULT_POINTS);
+        int moved = 0;
+        for (int i = 0; i < 10_000; i++) {
+            String before = ring.nodeFor("room" + i);
+            String after = larger.nodeFor("room" + i);
+            if (!before.equals(after)) {
+                assertEquals("10.0.0.4:7000", after);
+                moved++;
+            }
+        }
+        // about a quarter of the keys
+        assertTrue(moved > 1_500 && moved < 3_500, "keys moved: " + moved);
+    }
+
+    @Test
+    void needsNodesAndPoints() {
+        assertThrows(IllegalArgumentException.class, () -> new HashRing(List.of(), 1));
+        assertThrows(IllegalArgumentException.class, () -> new HashRing(NODES, 0));
+    }
+}
@@ -0,0 +1,100 @@
+package com.comp90015;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IdentityRegistryTest {
+
+    // a connection without a transport is enough to hold an identity
+    private static ServerConn guest(String identity) {
+        return new ReplicaGuest(null, identity);
+    }
+
+    @Test
+    void anIdentityHasOneHolder() {
+        IdentityRegistry registry = new IdentityRegistry();
+        ServerConn alice = guest("alice");
+        ServerConn other = guest("alice");
+        assertTrue(registry.claim("alice", alice));
+        assertFalse(registry.claim("alice", other));
+        assertSame(alice, registry.get("alice"));
+        assertTrue(registry.contains("alice"));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    void onlyTheHolderReleasesAnIdentity() {
+        IdentityRegistry registry = new IdentityRegistry();
+        ServerConn alice = guest("alice");
+        registry.claim("alice", alice);
+        registry.release("alice", guest("alice"));
+        assertSame(alice, registry.get("alice"));
+        registry.release(null, alice);
+        registry.release("alice", alice);
+        assertFalse(registry.contains("alice"));
+        assertNull(registry.get("alice"));
+        assertEquals(0, registry.size());
+        assertTrue(registry.claim("alice", guest("alice")));
+    }
+
+    @Test
+    void onlyTheHolderHandsAnIdentityOver() {
+        IdentityRegistry registry = new IdentityRegistry();
+        ServerConn alice = guest("alice");
+        ServerConn resumed = guest("alice");
+        registry.claim("alice", alice);
+        assertFalse(registry.transfer("alice", resumed, guest("alice")));
+        assertFalse(registry.transfer("bob", alice, resumed));
+        assertFalse(registry.transfer(null, alice, resumed));
+        assertTrue(registry.transfer("alice", alice, resumed));
+        assertSame(resumed, registry.get("alice"));
+        // the former holder lets go of nothing any more
+        registry.release("alice", alice);
+        assertSame(resumed, registry.get("alice"));
+    }
+
+    @Test
+    void oneOfManyRacingClaimsWins() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            for (int round = 0; round < 100; round++) {
+                IdentityRegistry registry = new IdentityRegistry();
+                CountDownLatch start = new CountDownLatch(1);
+                List<ServerConn> guests = new ArrayList<>();
+                List<Future<Boolean>> claims = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    ServerConn guest = guest("alice");
+                    guests.add(guest);
+                    claims.add(pool.submit(() -> {
+                        start.await();
+                        return registry.claim("alice", guest);
+                    }));
+                }
+                start.countDown();
+                int won = 0;
+                for (int i = 0; i < claims.size(); i++) {
+                    if (claims.get(i).get(5, TimeUnit.SECONDS)) {
+                        won++;
+                        assertSame(guests.get(i), registry.get("alice"));
+                    }
+                }
+                assertEquals(1, won);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
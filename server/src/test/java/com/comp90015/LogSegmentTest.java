@@ -0,0 +1,131 @@
+package com.comp90015;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogSegmentTest {
+
+    @TempDir
+    Path directory;
+
+    private static byte[] record(int i) {
+        return ("record " + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void writesLengthChecksumAndData() throws IOException {
+        Path path = directory.resolve("1.log");
+        LogSegment segment = LogSegment.open(path, 1, 4096);
+        byte[] data = record(1);
+        assertTrue(segment.append(data));
+        segment.force();
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(path));
+        assertEquals(4096, file.capacity());
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        assertEquals(data.length, file.getInt(0));
+        assertEquals((int) crc.getValue(), file.getInt(4));
+        byte[] written = new byte[data.length];
+        file.position(LogSegment.HEADER_BYTES);
+        file.get(written);
+        assertArrayEquals(data, written);
+        // the records end at a zero length
+        assertEquals(0, file.getInt(LogSegment.HEADER_BYTES + data.length));
+        assertEquals(LogSegment.HEADER_BYTES + data.length, segment.getSize());
+    }
+
+    @Test
+    void readsRecordsFromAnyPlace() throws IOException {
+        LogSegment segment = LogSegment.open(directory.resolve("10.log"), 10, 64 * 1024);
+        // several index entries
+        for (int i = 0; i < 3 * LogSegment.INDEX_INTERVAL + 5; i++) {
+            assertTrue(segment.append(record(i)));
+        }
+        assertEquals(10 + 3 * LogSegment.INDEX_INTERVAL + 5, segment.getNextSeq());
+        byte[][] read = segment.read(10 + LogSegment.INDEX_INTERVAL - 1, 3);
+        assertEquals(3, read.length);
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(record(LogSegment.INDEX_INTERVAL - 1 + i), read[i]);
+        }
+        // fewer than asked for at the end
+        assertEquals(2, segment.read(segment.getNextSeq() - 2, 10).length);
+        assertEquals(0, segment.read(segment.getNextSeq(), 10).length);
+    }
+
+    @Test
+    void refusesARecordThatDoesNotFit() throws IOException {
+        LogSegment segment = LogSegment.open(directory.resolve("1.log"), 1, 64);
+        // the record, its header and the zero length that ends the segment
+        assertFalse(segment.append(new byte[64 - LogSegment.HEADER_BYTES - 3]));
+        assertTrue(segment.append(new byte[64 - LogSegment.HEADER_BYTES - 4]));
+        assertFalse(segment.append(new byte[1]));
+        assertEquals(1, segment.getCount());
+    }
+
+    @Test
+    void recoversTheRecordsOfAnExistingFile() throws IOException {
+        Path path = directory.resolve("1.log");
+        LogSegment segment = LogSegment.open(path, 1, 4096);
+        for (int i = 0; i < 100; i++) {
+            segment.append(record(i));
+        }
+        segment.force();
+        // a segment size changed since keeps the file's size
+        LogSegment reopened = LogSegment.open(path, 1, 1024);
+        assertEquals(100, reopened.getCount());
+        assertEquals(segment.getSize(), reopened.getSize());
+        assertArrayEquals(record(99), reopened.read(100, 1)[0]);
+        assertEquals(4096, Files.size(path));
+    }
+
+    @Test
+    void endsAtARecordTornByACrash() throws IOException {
+        Path path = directory.resolve("1.log");
+        LogSegment segment = LogSegment.open(path, 1, 4096);
+        for (int i = 0; i < 3; i++) {
+            segment.append(record(i));
+        }
+        int third = 2 * (LogSegment.HEADER_BYTES + record(0).length);
+        segment.force();
+        // the third record's data was not all written
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{'X'}), third + LogSegment.HEADER_BYTES + 2);
+        }
+        LogSegment recovered = LogSegment.open(path, 1, 4096);
+        assertEquals(2, recovered.getCount());
+        assertEquals(3, recovered.getNextSeq());
+        // the next record takes its place
+        assertTrue(recovered.append(record(7)));
+        recovered.force();
+        LogSegment reopened = LogSegment.open(path, 1, 4096);
+        assertEquals(3, reopened.getCount());
+        assertArrayEquals(record(7), reopened.read(3, 1)[0]);
+    }
+
+    @Test
+    void endsAtALengthPastTheFile() throws IOException {
+        Path path = directory.resolve("1.log");
+        LogSegment segment = LogSegment.open(path, 1, 4096);
+        segment.append(record(0));
+        segment.force();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            ByteBuffer length = ByteBuffer.allocate(4).putInt(0, Integer.MAX_VALUE);
+            channel.write(length, segment.getSize());
+        }
+        assertEquals(1, LogSegment.open(path, 1, 4096).getCount());
+    }
+}
@@ -0,0 +1,189 @@
+package com.comp90015;
+
+import com.comp90015.base.Packet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageLogTest {
+
+    // small enough for a few dozen messages to fill several segments
+    private static final int SEGMENT_BYTES = 512;
+
+    @TempDir
+    Path directory;
+
+    private static EncodedPacket message(int i) {
+        return new EncodedPacket(new Packet.ToCMessage("message " + i, "alice", (long) i));
+    }
+
+    private static void assertMessages(List<Packet.ToClient> messages, int from, int to) {
+        assertEquals(to - from + 1, messages.size());
+        for (int i = from; i <= to; i++) {
+            Packet.ToCMessage message = (Packet.ToCMessage) messages.get(i - from);
+            assertEquals("message " + i, message.getContent());
+            assertEquals("alice", message.getIdentity());
+        }
+    }
+
+    private static List<String> files(Path room, String suffix) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(room, "*" + suffix)) {
+            for (Path file : files) {
+                names.add(file.getFileName().toString());
+            }
+        }
+        return names;
+    }
+
+    @Test
+    void numbersAndReadsTheMessagesOfEachRoom() throws IOException {
+        MessageLog log = new MessageLog(directory, SEGMENT_BYTES, 0);
+        for (int i = 1; i <= 50; i++) {
+            assertEquals(i, log.append("MainHall", message(i)));
+        }
+        assertEquals(1, log.append("other", message(1)));
+        assertEquals(51, log.nextSeq("MainHall"));
+        assertEquals(1, log.nextSeq("unknown"));
+        assertMessages(log.read("MainHall", 1, 100), 1, 50);
+        assertMessages(log.read("MainHall", 17, 5), 17, 21);
+        assertMessages(log.latest("MainHall", 10), 41, 50);
+        assertMessages(log.read("other", 1, 10), 1, 1);
+        assertTrue(log.latest("unknown", 10).isEmpty());
+        assertFalse(Files.exists(directory.resolve("unknown")));
+        // the messages span several segments
+        assertTrue(files(directory.resolve("MainHall"), ".log").size() > 1);
+        log.close();
+    }
+
+    @Test
+    void carriesOnWhereItStoppedWhenReopened() throws IOException {
+        MessageLog log = new MessageLog(directory, SEGMENT_BYTES, 0);
+        for (int i = 1; i <= 30; i++) {
+            log.append("MainHall", message(i));
+        }
+        log.close();
+        MessageLog reopened = new MessageLog(directory, SEGMENT_BYTES, 0);
+        assertEquals(31, reopened.nextSeq("MainHall"));
+        assertEquals(31, reopened.append("MainHall", message(31)));
+        assertMessages(reopened.read("MainHall", 1, 100), 1, 31);
+        reopened.close();
+    }
+
+    @Test
+    void readsAcrossCompressedSegments() throws IOException {
+        MessageLog log = new MessageLog(directory, SEGMENT_BYTES, 0);
+        for (int i = 1; i <= 60; i++) {
+            log.append("MainHall", message(i));
+        }
+        log.compact();
+        Path room = directory.resolve("MainHall");
+        // only the segment taking the appends is left uncompressed
+        assertEquals(1, files(room, ".log").size());
+        assertFalse(files(room, ".z").isEmpty());
+        assertMessages(log.read("MainHall", 1, 100), 1, 60);
+        assertMessages(log.read("MainHall", 33, 20), 33, 52);
+        log.close();
+        MessageLog reopened = new MessageLog(directory, SEGMENT_BYTES, 0);
+        assertEquals(61, reopened.append("MainHall", message(61)));
+        assertMessages(reopened.read("MainHall", 1, 100), 1, 61);
+        reopened.close();
+    }
+
+    @Test
+    void finishesACompressionCutShort() throws IOException {
+        Path room = directory.resolve("MainHall");
+        RoomLog log = RoomLog.open(room, SEGMENT_BYTES);
+        List<byte[]> records = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            byte[] record = ("record " + i).getBytes();
+            records.add(record);
+            log.append(record);
+        }
+        log.flush();
+        String first = files(room, ".log").stream().sorted().findFirst().get();
+        String base = first.substring(0, first.length() - ".log".length());
+        // compressed, then stopped before the segment was deleted, with a stray temporary file
+        ColdSegment.write(room.resolve(base + ".z"), LogSegment.open(room.resolve(first), 1, SEGMENT_BYTES));
+        Files.write(room.resolve(base + ".z.tmp"), new byte[]{1, 2, 3});
+        RoomLog reopened = RoomLog.open(room, SEGMENT_BYTES);
+        assertFalse(Files.exists(room.resolve(first)));
+        assertFalse(Files.exists(room.resolve(base + ".z.tmp")));
+        List<byte[]> read = reopened.read(1, 100);
+        assertEquals(records.size(), read.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertArrayEquals(records.get(i), read.get(i));
+        }
+        assertEquals(41, reopened.append("record 40".getBytes()));
+    }
+
+    @Test
+    void givesARecordLargerThanASegmentASegmentOfItsOwn() throws IOException {
+        RoomLog log = RoomLog.open(directory.resolve("MainHall"), SEGMENT_BYTES);
+        log.append(new byte[10]);
+        byte[] large = new byte[4 * SEGMENT_BYTES];
+        large[large.length - 1] = 7;
+        assertEquals(2, log.append(large));
+        assertEquals(3, log.append(new byte[10]));
+        assertArrayEquals(large, log.read(2, 1).get(0));
+        assertEquals(3, log.read(1, 10).size());
+    }
+
+    @Test
+    void logsMessagesUnderTheNumbersGivenElsewhere() throws IOException {
+        MessageLog log = new MessageLog(directory, SEGMENT_BYTES, 0);
+        // the first messages never reached this log
+        assertTrue(log.advanceSeq("MainHall", 40));
+        assertEquals(40, log.append("MainHall", message(40)));
+        assertTrue(log.advanceSeq("MainHall", 41));
+        assertEquals(41, log.append("MainHall", message(41)));
+        // sent again, logged once
+        assertFalse(log.advanceSeq("MainHall", 40));
+        assertTrue(log.advanceSeq("MainHall", 50));
+        assertEquals(50, log.append("MainHall", message(50)));
+        assertMessages(log.read("MainHall", 1, 100).subList(0, 2), 40, 41);
+        assertMessages(log.read("MainHall", 42, 100), 50, 50);
+        // a segment from each number on, the empty one from the first is not kept
+        assertEquals(List.of(String.format("%020d.log", 40), String.format("%020d.log", 50)),
+                files(directory.resolve("MainHall"), ".log").stream().sorted().collect(Collectors.toList()));
+        log.close();
+        MessageLog reopened = new MessageLog(directory, SEGMENT_BYTES, 0);
+        assertEquals(51, reopened.nextSeq("MainHall"));
+        assertEquals(3, reopened.read("MainHall", 1, 100).size());
+        reopened.close();
+    }
+
+    @Test
+    void forgetsADeletedRoom() throws IOException {
+        MessageLog log = new MessageLog(directory, SEGMENT_BYTES, 0);
+        for (int i = 1; i <= 20; i++) {
+            log.append("MainHall", message(i));
+        }
+        log.compact();
+        log.delete("MainHall");
+        assertFalse(Files.exists(directory.resolve("MainHall")));
+        assertEquals(1, log.nextSeq("MainHall"));
+        // a room of the same name starts over
+        assertEquals(1, log.append("MainHall", message(1)));
+        log.close();
+    }
+
+    @Test
+    void rejectsInvalidSettings() {
+        assertThrows(IllegalArgumentException.class, () -> new MessageLog(directory, LogSegment.HEADER_BYTES, 0));
+        assertThrows(IllegalArgumentException.class, () -> new MessageLog(directory, SEGMENT_BYTES, -1));
+    }
+}
@@ -0,0 +1,126 @@
+package com.comp90015;
+
+import com.comp90015.base.Constant;
+import com.comp90015.base.Packet;
+import com.comp90015.base.PacketCodec;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NioServerTest {
+
+    private NioServer nioServer;
+    private int port;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Server server = new Server(0);
+        // greeted at once, nobody here resumes
+        server.setResumeLimits(new ResumeLimits(0, 0, 0));
+        port = TestClient.freePort();
+        nioServer = new NioServer(server, port, 2);
+        Thread acceptor = new Thread(nioServer::handle);
+        acceptor.setDaemon(true);
+        acceptor.start();
+        // listening once a client gets in
+        for (int i = 0; i < 100; i++) {
+            try (TestClient probe = new TestClient(port)) {
+                probe.expect(Packet.NewIdentity.class);
+                return;
+            } catch (IOException e) {
+                Thread.yield();
+            }
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        nioServer.close();
+    }
+
+    @Test
+    void relaysChatBetweenConnectionsOfDifferentLoops() throws IOException {
+        try (TestClient alice = new TestClient(port); TestClient bob = new TestClient(port)) {
+            String aliceId = alice.expect(Packet.NewIdentity.class).getIdentity();
+            bob.expect(Packet.NewIdentity.class);
+            alice.expect(Packet.RoomList.class);
+            bob.expect(Packet.RoomList.class);
+            alice.send(new Packet.ToSMessage("hello"));
+            Packet.ToCMessage message = bob.expect(Packet.ToCMessage.class);
+            assertEquals("hello", message.getContent());
+            assertEquals(aliceId, message.getIdentity());
+        }
+    }
+
+    @Test
+    void putsTogetherAPacketSplitAcrossReads() throws Exception {
+        try (TestClient alice = new TestClient(port); TestClient bob = new TestClient(port)) {
+            alice.expect(Packet.RoomList.class);
+            bob.expect(Packet.RoomList.class);
+            byte[] line = (PacketCodec.encode(new Packet.ToSMessage("h\u00e9llo")) + "\n").getBytes(StandardCharsets.UTF_8);
+            // split inside the two bytes of the accented letter
+            int split = PacketCodec.encode(new Packet.ToSMessage("h")).length() - 2;
+            alice.write(Arrays.copyOfRange(line, 0, split));
+            Thread.sleep(100);
+            alice.write(Arrays.copyOfRange(line, split, line.length));
+            assertEquals("h\u00e9llo", bob.expect(Packet.ToCMessage.class).getContent());
+        }
+    }
+
+    @Test
+    void handlesSeveralPacketsInOneRead() throws IOException {
+        try (TestClient alice = new TestClient(port); TestClient bob = new TestClient(port)) {
+            alice.expect(Packet.RoomList.class);
+            bob.expect(Packet.RoomList.class);
+            String lines = PacketCodec.encode(new Packet.ToSMessage("one")) + "\n"
+                    + PacketCodec.encode(new Packet.ToSMessage("two")) + "\r\n";
+            alice.write(lines.getBytes(StandardCharsets.UTF_8));
+            assertEquals("one", bob.expect(Packet.ToCMessage.class).getContent());
+            assertEquals("two", bob.expect(Packet.ToCMessage.class).getContent());
+        }
+    }
+
+    @Test
+    void closesAConnectionThatNeverEndsItsLine() throws IOException {
+        try (TestClient flooder = new TestClient(port); TestClient bob = new TestClient(port)) {
+            flooder.expect(Packet.RoomList.class);
+            bob.expect(Packet.RoomList.class);
+            byte[] chunk = new byte[64 * 1024];
+            Arrays.fill(chunk, (byte) 'x');
+            // the server hangs up part way, the writes fail once it has
+            try {
+                for (int sent = 0; sent <= Constant.MAX_FRAME_LENGTH; sent += chunk.length) {
+                    flooder.write(chunk);
+                }
+            } catch (IOException e) {
+                // closed already
+            }
+            assertTrue(flooder.closedByServer());
+            // the other connections carry on
+            bob.send(new Packet.List());
+            bob.expect(Packet.RoomList.class);
+        }
+    }
+
+    @Test
+    void closesAConnectionSendingGarbage() throws IOException {
+        try (TestClient client = new TestClient(port)) {
+            client.expect(Packet.RoomList.class);
+            client.write("{\"type\":\"nonsense\"}\n".getBytes(StandardCharsets.UTF_8));
+            assertTrue(client.closedByServer());
+        }
+    }
+
+    @Test
+    void needsAnEventLoop() {
+        assertThrows(IllegalArgumentException.class, () -> new NioServer(new Server(0), 0, 0));
+    }
+}
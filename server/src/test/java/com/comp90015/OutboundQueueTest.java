@@ -0,0 +1,132 @@
+package com.comp90015;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboundQueueTest {
+
+    private static Frame frame(int length, boolean droppable) {
+        return Frame.wrap(new byte[length], droppable);
+    }
+
+    @Test
+    void keepsFramesInOrder() {
+        OutboundLimits limits = new OutboundLimits();
+        OutboundQueue queue = new OutboundQueue(limits);
+        Frame first = frame(10, true);
+        Frame second = frame(20, false);
+        assertTrue(queue.offer(first));
+        assertTrue(queue.offer(second));
+        assertEquals(30, queue.getBytes());
+        assertEquals(30, limits.getQueuedBytes());
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+        assertEquals(0, limits.getQueuedBytes());
+    }
+
+    @Test
+    void dropsTheOldestChatMessagesDownToTheLowWatermark() {
+        OutboundLimits limits = new OutboundLimits(100, 40, OutboundLimits.Policy.DROP_OLDEST, 60_000);
+        OutboundQueue queue = new OutboundQueue(limits);
+        Frame state = frame(10, false);
+        assertTrue(queue.offer(state));
+        for (int i = 0; i < 9; i++) {
+            assertTrue(queue.offer(frame(10, true)));
+        }
+        assertEquals(100, queue.getBytes());
+        assertEquals(0, limits.getDroppedFrames());
+        // one over the high watermark, chat messages go until the low one is reached
+        Frame newest = frame(10, true);
+        assertTrue(queue.offer(newest));
+        assertEquals(40, queue.getBytes());
+        assertEquals(7, limits.getDroppedFrames());
+        assertEquals(40, limits.getQueuedBytes());
+        // the packet the client's state depends on is kept, ahead of the newest messages
+        assertSame(state, queue.poll());
+        queue.poll();
+        queue.poll();
+        assertSame(newest, queue.poll());
+    }
+
+    @Test
+    void evictsAClientStillOverTheHighWatermarkAfterTheGracePeriod() {
+        OutboundLimits limits = new OutboundLimits(100, 40, OutboundLimits.Policy.DROP_OLDEST, 0);
+        OutboundQueue queue = new OutboundQueue(limits);
+        // nothing can be dropped
+        assertTrue(queue.offer(frame(100, false)));
+        assertFalse(queue.offer(frame(1, false)));
+        assertEquals(1, limits.getEvictions());
+        assertTrue(queue.isEmpty());
+        assertEquals(0, limits.getQueuedBytes());
+        assertFalse(queue.offer(frame(1, false)));
+        assertEquals(1, limits.getEvictions());
+    }
+
+    @Test
+    void givesAClientTheGracePeriodToCatchUp() {
+        OutboundLimits limits = new OutboundLimits(100, 40, OutboundLimits.Policy.DROP_OLDEST, 60_000);
+        OutboundQueue queue = new OutboundQueue(limits);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(queue.offer(frame(10, false)));
+        }
+        // nothing could be dropped, but the client is still within the grace period and the hard cap
+        assertEquals(200, queue.getBytes());
+        assertEquals(0, limits.getDroppedFrames());
+        assertEquals(0, limits.getEvictions());
+    }
+
+    @Test
+    void evictsAtTheHardCapWithinTheGracePeriod() {
+        OutboundLimits limits = new OutboundLimits(100, 40, 150, OutboundLimits.Policy.DROP_OLDEST, 60_000, 0);
+        OutboundQueue queue = new OutboundQueue(limits);
+        for (int i = 0; i < 15; i++) {
+            assertTrue(queue.offer(frame(10, false)));
+        }
+        assertFalse(queue.offer(frame(1, false)));
+        assertEquals(1, limits.getEvictions());
+        assertEquals(0, limits.getQueuedBytes());
+    }
+
+    @Test
+    void disconnectsWithoutDroppingUnderTheDisconnectPolicy() {
+        OutboundLimits limits = new OutboundLimits(100, 40, OutboundLimits.Policy.DISCONNECT, 60_000);
+        OutboundQueue queue = new OutboundQueue(limits);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(frame(10, true)));
+        }
+        // the grace period does not apply to a client that may not fall behind at all
+        assertFalse(queue.offer(frame(10, true)));
+        assertEquals(0, limits.getDroppedFrames());
+        assertEquals(1, limits.getEvictions());
+        assertEquals(0, limits.getQueuedBytes());
+    }
+
+    @Test
+    void rejectsAHardCapBelowTheHighWatermark() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new OutboundLimits(100, 40, 99, OutboundLimits.Policy.DROP_OLDEST, 0, 0));
+        assertEquals(400, OutboundLimits.defaultMaxQueuedBytes(100));
+        assertEquals(Integer.MAX_VALUE, OutboundLimits.defaultMaxQueuedBytes(Integer.MAX_VALUE));
+    }
+
+    @Test
+    void clearGivesBackTheQueuedBytes() {
+        OutboundLimits limits = new OutboundLimits();
+        OutboundQueue queue = new OutboundQueue(limits);
+        queue.offer(frame(10, true));
+        queue.offer(frame(15, false));
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.getBytes());
+        assertEquals(0, limits.getQueuedBytes());
+        assertTrue(queue.offer(frame(5, true)));
+    }
+}
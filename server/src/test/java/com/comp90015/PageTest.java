@@ -0,0 +1,62 @@
+package com.comp90015;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PageTest {
+
+    private static TreeMap<String, String> index(String... keys) {
+        TreeMap<String, String> index = new TreeMap<>();
+        for (String key : keys) {
+            index.put(key, key.toUpperCase());
+        }
+        return index;
+    }
+
+    @Test
+    void walksTheIndexPageByPage() {
+        TreeMap<String, String> index = index("alpha", "beta", "delta", "epsilon", "gamma");
+        Page<String> first = Page.of(index, null, 2, null);
+        assertEquals(List.of("ALPHA", "BETA"), first.getItems());
+        assertEquals("beta", first.getNext());
+        Page<String> second = Page.of(index, first.getNext(), 2, null);
+        assertEquals(List.of("DELTA", "EPSILON"), second.getItems());
+        Page<String> last = Page.of(index, second.getNext(), 2, null);
+        assertEquals(List.of("GAMMA"), last.getItems());
+        assertNull(last.getNext());
+    }
+
+    @Test
+    void endsWithoutACursorWhenThePageIsExactlyFull() {
+        Page<String> page = Page.of(index("alpha", "beta"), null, 2, null);
+        assertEquals(List.of("ALPHA", "BETA"), page.getItems());
+        assertNull(page.getNext());
+    }
+
+    @Test
+    void keepsToThePrefix() {
+        TreeMap<String, String> index = index("comp90015", "comp90041", "comp90048", "info", "MainHall");
+        Page<String> first = Page.of(index, null, 2, "comp");
+        assertEquals(List.of("COMP90015", "COMP90041"), first.getItems());
+        assertEquals("comp90041", first.getNext());
+        Page<String> second = Page.of(index, first.getNext(), 2, "comp");
+        assertEquals(List.of("COMP90048"), second.getItems());
+        assertNull(second.getNext());
+        // a cursor before the prefix starts at the prefix
+        assertEquals(List.of("INFO"), Page.of(index, "MainHall", 5, "i").getItems());
+        assertTrue(Page.of(index, null, 5, "zzz").getItems().isEmpty());
+    }
+
+    @Test
+    void startsAfterACursorThatIsNotAKey() {
+        TreeMap<String, String> index = index("alpha", "beta", "gamma");
+        assertEquals(List.of("BETA", "GAMMA"), Page.of(index, "b", 5, null).getItems());
+        assertTrue(Page.of(index, "gamma", 5, null).getItems().isEmpty());
+    }
+}
@@ -0,0 +1,68 @@
+package com.comp90015;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PostingListTest {
+
+    @Test
+    void decodesTheNumbersOfEachBlock() {
+        PostingList postings = new PostingList();
+        long[] seqs = new long[3 * PostingList.BLOCK_ENTRIES + 7];
+        long seq = 0;
+        for (int i = 0; i < seqs.length; i++) {
+            // gaps of one to several varint bytes
+            seq += 1 + (long) i * i * i;
+            seqs[i] = seq;
+            postings.add(seq);
+        }
+        assertEquals(seqs.length, postings.size());
+        assertEquals(4, postings.getBlocks());
+        for (int block = 0; block < postings.getBlocks(); block++) {
+            long[] decoded = postings.block(block);
+            for (int i = 0; i < decoded.length; i++) {
+                assertEquals(seqs[block * PostingList.BLOCK_ENTRIES + i], decoded[i]);
+            }
+            assertEquals(block == 0 ? 0 : seqs[block * PostingList.BLOCK_ENTRIES - 1], postings.blockBase(block));
+        }
+        assertEquals(7, postings.block(3).length);
+    }
+
+    @Test
+    void ignoresNumbersNotAfterTheLast() {
+        PostingList postings = new PostingList();
+        postings.add(5);
+        postings.add(5);
+        postings.add(3);
+        postings.add(0);
+        postings.add(9);
+        assertArrayEquals(new long[]{5, 9}, postings.block(0));
+    }
+
+    @Test
+    void takesOneByteForCloseNumbers() {
+        PostingList postings = new PostingList();
+        for (long seq = 1; seq <= 1000; seq++) {
+            postings.add(seq);
+        }
+        assertEquals(1000, postings.getLength());
+        postings.add(1000 + 200);
+        assertEquals(1002, postings.getLength());
+    }
+
+    @Test
+    void findsTheBlockOfANumber() {
+        PostingList postings = new PostingList();
+        for (long seq = 10; seq <= 10 * 3 * PostingList.BLOCK_ENTRIES; seq += 10) {
+            postings.add(seq);
+        }
+        assertEquals(-1, postings.blockOf(0));
+        assertEquals(0, postings.blockOf(1));
+        assertEquals(0, postings.blockOf(10 * PostingList.BLOCK_ENTRIES));
+        // between the last entry of a block and the first of the next
+        assertEquals(1, postings.blockOf(10 * PostingList.BLOCK_ENTRIES + 5));
+        assertEquals(2, postings.blockOf(Long.MAX_VALUE));
+    }
+}
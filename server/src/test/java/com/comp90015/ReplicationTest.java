@@ -0,0 +1,167 @@
+package com.comp90015;
+
+import com.comp90015.base.Constant;
+import com.comp90015.base.Packet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReplicationTest {
+
+    private static final String SECRET = "correct horse battery staple";
+
+    @TempDir
+    Path directory;
+
+    private final List<NioServer> nioServers = new ArrayList<>();
+    private final List<MessageLog> logs = new ArrayList<>();
+    private Replicator replicator;
+
+    /*
+     * Serve the server's clients, returning the port once a client gets in
+     */
+    private int start(Server server) throws IOException {
+        int port = TestClient.freePort();
+        NioServer nioServer = new NioServer(server, port, 1);
+        nioServers.add(nioServer);
+        Thread acceptor = new Thread(nioServer::handle);
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (int i = 0; i < 100; i++) {
+            try (TestClient probe = new TestClient(port)) {
+                probe.send(new Packet.Hello(Constant.ENCODING_JSON, Constant.PROTOCOL_V3));
+                probe.expect(Packet.NewIdentity.class);
+                return port;
+            } catch (IOException e) {
+                Thread.yield();
+            }
+        }
+        return port;
+    }
+
+    /*
+     * A server keeping two messages of scrollback, the rest only in its log
+     */
+    private Server server(String name) throws IOException {
+        Server server = new Server(0);
+        server.setScrollbackLimits(new ScrollbackLimits(2, 2, ScrollbackLimits.DEFAULT_BUDGET));
+        MessageLog log = new MessageLog(directory.resolve(name), MessageLog.DEFAULT_SEGMENT_BYTES, 0);
+        logs.add(log);
+        server.setMessageLog(log);
+        server.setResumeLimits(new ResumeLimits(10_000, 1000, 100));
+        return server;
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (replicator != null) replicator.close();
+        for (NioServer nioServer : nioServers) {
+            nioServer.close();
+        }
+        for (MessageLog log : logs) {
+            log.close();
+        }
+    }
+
+    private static Packet.Welcome hello(TestClient client, String token, Long seq) throws IOException {
+        client.send(new Packet.Hello(Constant.ENCODING_JSON, Constant.PROTOCOL_V3, token, seq));
+        return client.expect(Packet.Welcome.class);
+    }
+
+    private static void await(String what, BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 500 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean(), what);
+    }
+
+    @Test
+    void sendsNothingToAStandbyWithoutTheSecret() throws IOException {
+        assertThrows(IllegalArgumentException.class, () -> new Replicator(new Server(0), Replicator.DEFAULT_ADDRESS, 0, ""));
+        replicator = new Replicator(new Server(0), Replicator.DEFAULT_ADDRESS, 0, SECRET);
+        replicator.start();
+        try (Socket socket = new Socket(Replicator.DEFAULT_ADDRESS, replicator.getPort())) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write((ClusterMessage.standbyHello("guessed").encode() + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            // closed without a snapshot or even a ping
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    @Test
+    void takesOverWithTheMessagesNumberedAsThePrimaryDid() throws Exception {
+        Server primary = server("primary");
+        replicator = new Replicator(primary, Replicator.DEFAULT_ADDRESS, 0, SECRET);
+        primary.setReplicator(replicator);
+        replicator.start();
+        int primaryPort = start(primary);
+        MessageLog primaryLog = logs.get(0);
+
+        try (TestClient bob = new TestClient(primaryPort); TestClient alice = new TestClient(primaryPort)) {
+            hello(bob, null, null);
+            bob.expect(Packet.RoomList.class);
+            String token = hello(alice, null, null).getToken();
+            String aliceId = alice.expect(Packet.NewIdentity.class).getIdentity();
+            alice.expect(Packet.RoomList.class);
+            for (int i = 0; i <= 4; i++) {
+                bob.send(new Packet.ToSMessage("message " + i));
+            }
+            long seen = 0;
+            for (int i = 0; i <= 2; i++) {
+                seen = alice.expect(Packet.ToCMessage.class).getSeq();
+            }
+
+            // joins late, the first messages are only in the primary's log
+            Server standbyServer = server("standby");
+            MessageLog standbyLog = logs.get(1);
+            Standby standby = new Standby(standbyServer, Replicator.DEFAULT_ADDRESS + ":" + replicator.getPort(),
+                    SECRET, 2000, 0);
+            CountDownLatch tookOver = new CountDownLatch(1);
+            Thread follower = new Thread(() -> {
+                standby.follow();
+                standby.takeOver();
+                tookOver.countDown();
+            });
+            follower.setDaemon(true);
+            follower.start();
+            await("the standby has the guest", () -> standbyServer.getIdentities().get(aliceId) != null);
+            bob.send(new Packet.ToSMessage("message 5"));
+            bob.send(new Packet.ToSMessage("message 6"));
+            long last = seen + 4;
+            await("the standby has every message", () -> standbyLog.nextSeq(Constant.MAINHALL) == last + 1);
+            assertEquals(primaryLog.nextSeq(Constant.MAINHALL), standbyLog.nextSeq(Constant.MAINHALL));
+
+            nioServers.get(0).close();
+            replicator.close();
+            assertTrue(tookOver.await(10, TimeUnit.SECONDS));
+            int standbyPort = start(standbyServer);
+            try (TestClient resumed = new TestClient(standbyPort)) {
+                Packet.Welcome welcome = hello(resumed, token, seen);
+                assertEquals(aliceId, welcome.getIdentity());
+                // the standby's scrollback holds two, the rest is read from its log by the primary's numbers
+                for (int i = 3; i <= 6; i++) {
+                    Packet.ToCMessage missed = resumed.expect(Packet.ToCMessage.class);
+                    assertEquals("message " + i, missed.getContent());
+                    assertEquals(seen + i - 2, missed.getSeq());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.comp90015;
+
+import com.comp90015.base.Constant;
+import com.comp90015.base.Packet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ResumeTest {
+
+    @TempDir
+    Path directory;
+
+    private NioServer nioServer;
+    private MessageLog messageLog;
+    private int port;
+
+    private void start(Server server) throws IOException {
+        port = TestClient.freePort();
+        nioServer = new NioServer(server, port, 1);
+        Thread acceptor = new Thread(nioServer::handle);
+        acceptor.setDaemon(true);
+        acceptor.start();
+        // listening once a client gets in
+        for (int i = 0; i < 100; i++) {
+            try (TestClient probe = new TestClient(port)) {
+                probe.send(new Packet.Hello(Constant.ENCODING_JSON, Constant.PROTOCOL_V3));
+                probe.expect(Packet.NewIdentity.class);
+                return;
+            } catch (IOException e) {
+                Thread.yield();
+            }
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (nioServer != null) nioServer.close();
+        if (messageLog != null) messageLog.close();
+    }
+
+    /*
+     * Say hello in the third version, returning the welcome
+     */
+    private static Packet.Welcome hello(TestClient client, String token, Long seq) throws IOException {
+        client.send(new Packet.Hello(Constant.ENCODING_JSON, Constant.PROTOCOL_V3, token, seq));
+        return client.expect(Packet.Welcome.class);
+    }
+
+    @Test
+    void isOffUnlessAGraceWindowIsSet() throws IOException {
+        assertFalse(new ResumeLimits().isEnabled());
+        start(new Server(0));
+        try (TestClient alice = new TestClient(port)) {
+            // greeted without saying anything, and without waiting for the greet delay
+            alice.expect(Packet.NewIdentity.class);
+            alice.expect(Packet.RoomList.class);
+            assertNull(hello(alice, null, null).getToken());
+        }
+    }
+
+    @Test
+    void resumesADroppedSessionWithTheMessagesItMissed() throws IOException {
+        Server server = new Server(0);
+        server.setResumeLimits(new ResumeLimits(10_000, 1000, 100));
+        start(server);
+        try (TestClient bob = new TestClient(port)) {
+            hello(bob, null, null);
+            bob.expect(Packet.RoomList.class);
+            String token;
+            String aliceId;
+            long seen;
+            try (TestClient alice = new TestClient(port)) {
+                token = hello(alice, null, null).getToken();
+                assertNotNull(token);
+                aliceId = alice.expect(Packet.NewIdentity.class).getIdentity();
+                alice.expect(Packet.RoomList.class);
+                bob.send(new Packet.ToSMessage("one"));
+                seen = alice.expect(Packet.ToCMessage.class).getSeq();
+            }
+            bob.send(new Packet.ToSMessage("two"));
+            bob.send(new Packet.ToSMessage("three"));
+            try (TestClient alice = new TestClient(port)) {
+                Packet.Welcome welcome = hello(alice, token, seen);
+                assertEquals(aliceId, welcome.getIdentity());
+                assertEquals(Constant.MAINHALL, welcome.getRoomid());
+                Packet.ToCMessage missed = alice.expect(Packet.ToCMessage.class);
+                assertEquals("two", missed.getContent());
+                assertEquals(seen + 1, missed.getSeq());
+                assertEquals("three", alice.expect(Packet.ToCMessage.class).getContent());
+                // still in the room, under the same name
+                bob.send(new Packet.ToSMessage("four"));
+                assertEquals("four", alice.expect(Packet.ToCMessage.class).getContent());
+            }
+        }
+    }
+
+    @Test
+    void replaysFromTheLogWhatTheScrollbackNoLongerHolds() throws IOException {
+        Server server = new Server(0);
+        server.setScrollbackLimits(new ScrollbackLimits(2, 2, ScrollbackLimits.DEFAULT_BUDGET));
+        messageLog = new MessageLog(directory, MessageLog.DEFAULT_SEGMENT_BYTES, 0);
+        server.setMessageLog(messageLog);
+        server.setResumeLimits(new ResumeLimits(10_000, 1000, 100));
+        start(server);
+        try (TestClient bob = new TestClient(port)) {
+            hello(bob, null, null);
+            bob.expect(Packet.RoomList.class);
+            String token;
+            long seen;
+            try (TestClient alice = new TestClient(port)) {
+                token = hello(alice, null, null).getToken();
+                alice.expect(Packet.RoomList.class);
+                bob.send(new Packet.ToSMessage("message 0"));
+                seen = alice.expect(Packet.ToCMessage.class).getSeq();
+            }
+            for (int i = 1; i <= 5; i++) {
+                bob.send(new Packet.ToSMessage("message " + i));
+            }
+            // numbered by the time the next packet is answered
+            bob.send(new Packet.List());
+            bob.expect(Packet.RoomList.class);
+            try (TestClient alice = new TestClient(port)) {
+                hello(alice, token, seen);
+                // each missed message once and in order, though the scrollback holds only the last two
+                for (int i = 1; i <= 5; i++) {
+                    Packet.ToCMessage missed = alice.expect(Packet.ToCMessage.class);
+                    assertEquals("message " + i, missed.getContent());
+                    assertEquals(seen + i, missed.getSeq());
+                }
+                bob.send(new Packet.ToSMessage("message 6"));
+                assertEquals("message 6", alice.expect(Packet.ToCMessage.class).getContent());
+            }
+        }
+    }
+
+    @Test
+    void greetsAsANewGuestOnceTheGraceWindowIsOver() throws Exception {
+        Server server = new Server(0);
+        server.setResumeLimits(new ResumeLimits(100, 1000, 100));
+        start(server);
+        String token;
+        String aliceId;
+        try (TestClient alice = new TestClient(port)) {
+            token = hello(alice, null, null).getToken();
+            aliceId = alice.expect(Packet.NewIdentity.class).getIdentity();
+        }
+        Thread.sleep(500);
+        // the guest left with its session
+        assertFalse(server.getIdentities().contains(aliceId));
+        try (TestClient alice = new TestClient(port)) {
+            Packet.Welcome welcome = hello(alice, token, null);
+            assertNull(welcome.getIdentity());
+            assertNotEquals(token, welcome.getToken());
+            alice.expect(Packet.NewIdentity.class);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.comp90015;
+
+import com.comp90015.base.ChatRoom;
+import com.comp90015.base.Packet;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RoomDirectoryTest {
+
+    private ConcurrentSkipListMap<String, Room> rooms;
+    private RoomDirectory directory;
+
+    @BeforeEach
+    void setUp() {
+        rooms = new ConcurrentSkipListMap<>();
+        directory = new RoomDirectory(rooms);
+        for (String roomid : new String[]{"alpha", "beta", "gamma", "delta", "epsilon"}) {
+            create(roomid);
+        }
+    }
+
+    private void create(String roomid) {
+        rooms.put(roomid, new Room(roomid));
+        directory.changed(roomid);
+    }
+
+    private void delete(String roomid) {
+        rooms.remove(roomid);
+        directory.changed(roomid);
+    }
+
+    private static List<String> roomids(List<ChatRoom> rooms) {
+        List<String> roomids = new ArrayList<>();
+        for (ChatRoom room : rooms) {
+            roomids.add(room.getRoomid());
+        }
+        return roomids;
+    }
+
+    @Test
+    void snapshotIsRebuiltOnlyAfterAChange() {
+        RoomDirectory.Snapshot snapshot = directory.snapshot();
+        assertEquals(5, snapshot.getVersion());
+        assertEquals(List.of("alpha", "beta", "delta", "epsilon", "gamma"), roomids(snapshot.getRooms()));
+        assertSame(snapshot, directory.snapshot());
+        delete("beta");
+        RoomDirectory.Snapshot next = directory.snapshot();
+        assertEquals(6, next.getVersion());
+        assertFalse(next.contains("beta"));
+        assertTrue(next.contains("gamma"));
+    }
+
+    @Test
+    void deltaHoldsTheRoomsChangedSinceAVersion() {
+        directory.snapshot();
+        long since = directory.getVersion();
+        create("zeta");
+        delete("beta");
+        rooms.get("alpha").add(new ReplicaGuest(new Server(0), "alice"));
+        directory.changed("alpha");
+        Packet.RoomListDelta delta = directory.delta(since);
+        assertEquals(since, (long) delta.getSince());
+        assertEquals(since + 3, (long) delta.getVersion());
+        assertEquals(List.of("zeta", "alpha"), roomids(delta.getRooms()));
+        assertEquals(1, delta.getRooms().get(1).getCount());
+        assertEquals(List.of("beta"), delta.getRemoved());
+    }
+
+    @Test
+    void deltaOfTheCurrentVersionIsEmpty() {
+        Packet.RoomListDelta delta = directory.delta(directory.getVersion());
+        assertEquals(Collections.emptyList(), delta.getRooms());
+        assertEquals(Collections.emptyList(), delta.getRemoved());
+    }
+
+    @Test
+    void deltaIsRefusedForAnUnknownVersion() {
+        assertNull(directory.delta(-1));
+        assertNull(directory.delta(directory.getVersion() + 1));
+    }
+
+    @Test
+    void deltaIsRefusedOnceTheChangesAreForgotten() {
+        directory.snapshot();
+        long since = directory.getVersion();
+        for (int i = 0; i < 5000; i++) {
+            directory.changed("alpha");
+        }
+        assertNull(directory.delta(since));
+        // the latest changes are still known
+        assertEquals(List.of("alpha"), roomids(directory.delta(directory.getVersion() - 10).getRooms()));
+    }
+
+    @Test
+    void deltaIsRefusedWhenNoSmallerThanTheFullList() {
+        directory.snapshot();
+        long since = directory.getVersion();
+        for (String roomid : new String[]{"alpha", "beta", "gamma", "delta", "epsilon"}) {
+            directory.changed(roomid);
+        }
+        assertNull(directory.delta(since));
+    }
+
+    @Test
+    void pagesCarryTheVersionOnlyWhenComplete() {
+        Packet.RoomList first = directory.page(null, 2, null);
+        assertEquals(List.of("alpha", "beta"), roomids(first.getRooms()));
+        assertNull(first.getVersion());
+        Packet.RoomList second = directory.page(first.getNext(), 2, null);
+        assertEquals(List.of("delta", "epsilon"), roomids(second.getRooms()));
+        Packet.RoomList whole = directory.page(null, 10, null);
+        assertEquals(5, whole.getRooms().size());
+        assertNull(whole.getNext());
+        assertEquals(directory.getVersion(), (long) whole.getVersion());
+        Packet.RoomList prefixed = directory.page(null, 10, "e");
+        assertEquals(List.of("epsilon"), roomids(prefixed.getRooms()));
+        assertNull(prefixed.getVersion());
+    }
+}
@@ -0,0 +1,74 @@
+package com.comp90015;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RoomOwnershipTest {
+
+    private static Set<String> set(List<String> roomids) {
+        return new HashSet<>(roomids);
+    }
+
+    @Test
+    void looksUpOwnersBothWays() {
+        RoomOwnership ownership = new RoomOwnership();
+        ownership.put("comp90015", "alice");
+        ownership.put("comp90041", "alice");
+        ownership.put("MainHall", "");
+        assertEquals("alice", ownership.get("comp90015"));
+        assertEquals("", ownership.get("MainHall"));
+        assertNull(ownership.get("nowhere"));
+        assertEquals(Set.of("comp90015", "comp90041"), set(ownership.roomsOwnedBy("alice")));
+        // a room without an owner is not indexed under the empty string
+        assertTrue(ownership.roomsOwnedBy("").isEmpty());
+    }
+
+    @Test
+    void movesARoomToItsNewOwner() {
+        RoomOwnership ownership = new RoomOwnership();
+        ownership.put("comp90015", "alice");
+        ownership.put("comp90015", "bob");
+        assertTrue(ownership.roomsOwnedBy("alice").isEmpty());
+        assertEquals(List.of("comp90015"), ownership.roomsOwnedBy("bob"));
+        ownership.remove("comp90015");
+        assertNull(ownership.get("comp90015"));
+        assertTrue(ownership.roomsOwnedBy("bob").isEmpty());
+    }
+
+    @Test
+    void renamesAnOwnerInEveryRoomItHolds() {
+        RoomOwnership ownership = new RoomOwnership();
+        ownership.put("comp90015", "alice");
+        ownership.put("comp90041", "alice");
+        ownership.put("MainHall", "bob");
+        ownership.rename("alice", "zoe");
+        assertEquals("zoe", ownership.get("comp90015"));
+        assertEquals("zoe", ownership.get("comp90041"));
+        assertEquals("bob", ownership.get("MainHall"));
+        assertTrue(ownership.roomsOwnedBy("alice").isEmpty());
+        assertEquals(Set.of("comp90015", "comp90041"), set(ownership.roomsOwnedBy("zoe")));
+        // an identity holding no rooms has nothing to rename
+        ownership.rename("carol", "dave");
+        assertTrue(ownership.roomsOwnedBy("dave").isEmpty());
+    }
+
+    @Test
+    void leavesTheRoomsOfADepartedOwnerWithoutOne() {
+        RoomOwnership ownership = new RoomOwnership();
+        ownership.put("comp90015", "alice");
+        ownership.put("MainHall", "bob");
+        assertEquals(List.of("comp90015"), ownership.disown("alice"));
+        assertEquals("", ownership.get("comp90015"));
+        assertEquals("bob", ownership.get("MainHall"));
+        assertTrue(ownership.disown("alice").isEmpty());
+        // a new guest taking the identity does not inherit the room
+        assertTrue(ownership.roomsOwnedBy("alice").isEmpty());
+    }
+}
@@ -0,0 +1,172 @@
+package com.comp90015;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RoomTest {
+
+    // a connection without a transport is enough to be a member
+    private static ServerConn guest(String identity) {
+        return new ReplicaGuest(null, identity);
+    }
+
+    private static List<String> identities(List<ServerConn> members) {
+        List<String> identities = new ArrayList<>();
+        for (ServerConn member : members) {
+            identities.add(member.getIdentity());
+        }
+        return identities;
+    }
+
+    @Test
+    void snapshotIsRebuiltOnlyAfterAChange() {
+        Room room = new Room("MainHall");
+        ServerConn alice = guest("alice");
+        ServerConn bob = guest("bob");
+        assertEquals(0, room.snapshot().length);
+        assertTrue(room.add(alice));
+        ServerConn[] snapshot = room.snapshot();
+        assertArrayEquals(new ServerConn[]{alice}, snapshot);
+        assertSame(snapshot, room.snapshot());
+        // adding a member twice changes nothing
+        assertTrue(room.add(alice));
+        assertSame(snapshot, room.snapshot());
+        assertTrue(room.add(bob));
+        assertEquals(Set.of(alice, bob), new HashSet<>(Arrays.asList(room.snapshot())));
+        assertTrue(room.remove(alice));
+        assertFalse(room.remove(alice));
+        assertArrayEquals(new ServerConn[]{bob}, room.snapshot());
+        // a snapshot handed out is not changed afterwards
+        assertArrayEquals(new ServerConn[]{alice}, snapshot);
+    }
+
+    @Test
+    void aClosedRoomTakesNoMembers() {
+        Room room = new Room("MainHall");
+        room.close();
+        assertFalse(room.add(guest("alice")));
+        assertTrue(room.isEmpty());
+        assertEquals(0, room.snapshot().length);
+    }
+
+    @Test
+    void closesOnlyAnEmptyRoom() {
+        Room room = new Room("MainHall");
+        ServerConn alice = guest("alice");
+        assertTrue(room.add(alice));
+        assertFalse(room.closeIfEmpty());
+        assertFalse(room.isClosed());
+        assertTrue(room.add(guest("bob")));
+        room.remove(alice);
+        assertFalse(room.closeIfEmpty());
+        room.remove(room.snapshot()[0]);
+        assertTrue(room.closeIfEmpty());
+        assertFalse(room.add(alice));
+    }
+
+    @Test
+    void indexesMembersByIdentityThroughRenamesAndReplacements() {
+        Room room = new Room("MainHall");
+        ServerConn alice = guest("alice");
+        ServerConn bob = guest("bob");
+        room.add(alice);
+        room.add(bob);
+        alice.setIdentity("zoe");
+        room.rename("alice", alice);
+        assertEquals(List.of("bob", "zoe"), identities(room.page(null, 10, null).getItems()));
+        // renamed while out of the room's reach, still removed under its former identity
+        bob.setIdentity("carol");
+        assertTrue(room.remove(bob));
+        assertEquals(List.of("zoe"), identities(room.page(null, 10, null).getItems()));
+        ServerConn resumed = guest("zoe");
+        assertTrue(room.replace(alice, resumed));
+        assertFalse(room.replace(alice, resumed));
+        assertEquals(1, room.size());
+        assertArrayEquals(new ServerConn[]{resumed}, room.snapshot());
+        assertSame(resumed, room.page("a", 1, "z").getItems().get(0));
+        assertNull(room.page("a", 1, "z").getNext());
+    }
+
+    @Test
+    void aJoinRacingTheRoomsDeletionIsEitherInOrOut() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            for (int round = 0; round < 200; round++) {
+                Room room = new Room("MainHall");
+                CountDownLatch start = new CountDownLatch(1);
+                List<ServerConn> guests = new ArrayList<>();
+                List<Future<Boolean>> joined = new ArrayList<>();
+                for (int i = 0; i < 3; i++) {
+                    ServerConn guest = guest("guest" + i);
+                    guests.add(guest);
+                    joined.add(pool.submit(() -> {
+                        start.await();
+                        return room.add(guest);
+                    }));
+                }
+                Future<?> closed = pool.submit(() -> {
+                    start.await();
+                    room.close();
+                    return null;
+                });
+                start.countDown();
+                closed.get(5, TimeUnit.SECONDS);
+                List<Boolean> results = new ArrayList<>();
+                for (Future<Boolean> join : joined) {
+                    results.add(join.get(5, TimeUnit.SECONDS));
+                }
+                Set<ServerConn> members = new HashSet<>(Arrays.asList(room.snapshot()));
+                for (int i = 0; i < guests.size(); i++) {
+                    // a guest told it joined is a member, one turned away is not left behind
+                    assertEquals(results.get(i), members.contains(guests.get(i)));
+                }
+                assertEquals(room.size(), members.size());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void theSnapshotCatchesUpWithConcurrentJoins() throws Exception {
+        Room room = new Room("MainHall");
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> joins = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int first = t * 250;
+                joins.add(pool.submit(() -> {
+                    for (int i = first; i < first + 250; i++) {
+                        room.add(guest("guest" + i));
+                        // rebuilt while others keep joining
+                        room.snapshot();
+                    }
+                }));
+            }
+            for (Future<?> join : joins) {
+                join.get(5, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1000, room.size());
+        assertEquals(1000, room.snapshot().length);
+    }
+}
@@ -0,0 +1,136 @@
+package com.comp90015;
+
+import com.comp90015.base.Packet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ScrollbackTest {
+
+    // 96 bytes plus three per character of content and identity, 201 in all
+    private static final String CONTENT = "012345678901234567890123456789";
+    private static final long MESSAGE_BYTES = 201;
+
+    @TempDir
+    Path directory;
+
+    private static EncodedPacket message(long seq) {
+        return new EncodedPacket(new Packet.ToCMessage(CONTENT, "alice", seq));
+    }
+
+    private static long seqOf(EncodedPacket packet) {
+        return ((Packet.ToCMessage) packet.getPacket()).getSeq();
+    }
+
+    @Test
+    void keepsTheNewestMessagesInARing() {
+        ScrollbackLimits limits = new ScrollbackLimits(3, 2, Long.MAX_VALUE);
+        Scrollback scrollback = new Scrollback();
+        assertEquals(0, scrollback.latest(10).length);
+        for (long seq = 1; seq <= 5; seq++) {
+            scrollback.append(message(seq), limits);
+        }
+        assertEquals(3, scrollback.size());
+        EncodedPacket[] latest = scrollback.latest(10);
+        assertEquals(3, latest.length);
+        assertEquals(3, seqOf(latest[0]));
+        assertEquals(5, seqOf(latest[2]));
+        assertEquals(4, seqOf(scrollback.latest(2)[0]));
+        // only what was missed, and only what is still kept
+        assertEquals(1, scrollback.since(4, 10).length);
+        assertEquals(3, scrollback.since(0, 10).length);
+        assertEquals(0, scrollback.since(5, 10).length);
+        assertTrue(scrollback.getLastRead() > 0);
+    }
+
+    @Test
+    void accountsItsBytesAgainstTheLimits() {
+        ScrollbackLimits limits = new ScrollbackLimits(3, 2, Long.MAX_VALUE);
+        Scrollback first = new Scrollback();
+        Scrollback second = new Scrollback();
+        for (long seq = 1; seq <= 5; seq++) {
+            first.append(message(seq), limits);
+        }
+        second.append(message(1), limits);
+        assertEquals(3 * MESSAGE_BYTES, first.getBytes());
+        assertEquals(4 * MESSAGE_BYTES, limits.getUsedBytes());
+        assertEquals(2, limits.getRooms());
+        first.trim(MESSAGE_BYTES);
+        assertEquals(1, first.size());
+        assertEquals(2 * MESSAGE_BYTES, limits.getUsedBytes());
+        first.clear();
+        second.clear();
+        assertEquals(0, limits.getUsedBytes());
+        assertEquals(0, limits.getRooms());
+    }
+
+    @Test
+    void startsOverWithReplacedLimits() {
+        ScrollbackLimits former = new ScrollbackLimits(3, 2, Long.MAX_VALUE);
+        ScrollbackLimits limits = new ScrollbackLimits(5, 2, Long.MAX_VALUE);
+        Scrollback scrollback = new Scrollback();
+        scrollback.append(message(1), former);
+        scrollback.append(message(2), limits);
+        assertEquals(1, scrollback.size());
+        assertEquals(0, former.getUsedBytes());
+        assertEquals(MESSAGE_BYTES, limits.getUsedBytes());
+    }
+
+    @Test
+    void dropsTheScrollbackReadTheLongestAgoOnceOverBudget() {
+        Server server = new Server(0);
+        ScrollbackLimits limits = new ScrollbackLimits(10, 5, 10 * MESSAGE_BYTES);
+        server.setScrollbackLimits(limits);
+        assertTrue(server.createRoom("stale", "alice").join());
+        assertTrue(server.createRoom("busy", "alice").join());
+        for (long seq = 1; seq <= 5; seq++) {
+            server.deliver(message(seq).getPacket(), "stale", null);
+            server.deliver(message(seq).getPacket(), "busy", null);
+        }
+        assertEquals(10 * MESSAGE_BYTES, limits.getUsedBytes());
+        server.getRooms().get("busy").getScrollback().latest(1);
+        // one over the budget, the room nobody read goes until the low watermark is reached
+        server.deliver(message(6).getPacket(), "busy", null);
+        assertEquals(0, server.getRooms().get("stale").getScrollback().size());
+        assertEquals(6, server.getRooms().get("busy").getScrollback().size());
+        assertEquals(6 * MESSAGE_BYTES, limits.getUsedBytes());
+        assertTrue(limits.getUsedBytes() <= limits.getLowWatermark());
+        assertEquals(1, limits.getRooms());
+        // the room itself and its log are left alone
+        assertTrue(server.getRooms().containsKey("stale"));
+    }
+
+    @Test
+    void fillsTheScrollbackOfARoomOnceWhenItIsCreatedTwice() throws IOException {
+        MessageLog log = new MessageLog(directory, 4096, 0);
+        Server server = new Server(0);
+        server.setMessageLog(log);
+        assertTrue(server.createRoom("comp90015", "alice").join());
+        for (long seq = 1; seq <= 3; seq++) {
+            server.deliver(message(seq).getPacket(), "comp90015", null);
+        }
+        log.close();
+
+        MessageLog reopened = new MessageLog(directory, 4096, 0);
+        Server restarted = new Server(0);
+        ScrollbackLimits limits = new ScrollbackLimits();
+        restarted.setScrollbackLimits(limits);
+        restarted.setMessageLog(reopened);
+        assertTrue(restarted.createRoom("comp90015", "bob").join());
+        Room room = restarted.getRooms().get("comp90015");
+        assertEquals(3, room.getScrollback().size());
+        assertEquals(3 * MESSAGE_BYTES, limits.getUsedBytes());
+        // the losing call neither replaces the room nor counts a second copy of its history
+        assertFalse(restarted.createRoom("comp90015", "carol").join());
+        assertEquals(room, restarted.getRooms().get("comp90015"));
+        assertEquals(3 * MESSAGE_BYTES, limits.getUsedBytes());
+        assertEquals(1, limits.getRooms());
+        reopened.close();
+    }
+}
@@ -0,0 +1,123 @@
+package com.comp90015;
+
+import com.comp90015.base.Packet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SearchIndexTest {
+
+    @TempDir
+    Path directory;
+
+    private MessageLog log;
+    private SearchIndex index;
+
+    private void open() throws IOException {
+        log = new MessageLog(directory, MessageLog.DEFAULT_SEGMENT_BYTES, 0);
+        index = new SearchIndex(log, SearchIndex.DEFAULT_QUEUE_CAPACITY);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (index != null) index.close();
+        if (log != null) log.close();
+    }
+
+    /*
+     * The indexer runs on a thread of its own, wait for it to catch up
+     */
+    private void await(long indexed) throws InterruptedException {
+        for (int i = 0; i < 500 && index.getIndexed() < indexed; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(indexed, index.getIndexed());
+    }
+
+    /*
+     * The numbers of the messages whose content holds every token, newest last
+     */
+    private static long[] scan(List<String> contents, String query, int limit) {
+        List<Long> found = new ArrayList<>();
+        for (int i = contents.size() - 1; i >= 0 && found.size() < limit; i--) {
+            if (SearchIndex.tokens(contents.get(i)).containsAll(SearchIndex.tokens(query))) found.add(0, i + 1L);
+        }
+        long[] seqs = new long[found.size()];
+        for (int i = 0; i < seqs.length; i++) {
+            seqs[i] = found.get(i);
+        }
+        return seqs;
+    }
+
+    @Test
+    void splitsTextIntoTokens() {
+        assertEquals(Arrays.asList("hello", "world", "42"),
+                new ArrayList<>(SearchIndex.tokens("Hello, WORLD! hello a 42")));
+        assertTrue(SearchIndex.tokens(null).isEmpty());
+        assertTrue(SearchIndex.tokens("a b c").isEmpty());
+        String longest = new String(new char[SearchIndex.MAX_TOKEN_LENGTH]).replace('\0', 'x');
+        assertEquals(Arrays.asList(longest), new ArrayList<>(SearchIndex.tokens(longest + " " + longest + "x")));
+    }
+
+    @Test
+    void findsTheNewestMessagesHoldingEveryToken() throws Exception {
+        open();
+        String[] words = {"red", "green", "blue", "cyan"};
+        List<String> contents = new ArrayList<>();
+        // enough messages for the lists of the rarer words to skip whole blocks
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder content = new StringBuilder("msg");
+            for (int w = 0; w < words.length; w++) {
+                if (i % (w + 2) == 0) content.append(' ').append(words[w]);
+            }
+            contents.add(content.toString());
+            assertTrue(index.add("MainHall", i + 1, content.toString()));
+        }
+        await(contents.size());
+        for (String query : new String[]{"red", "red green", "GREEN blue", "red green blue cyan", "cyan msg", "blue red"}) {
+            for (int limit : new int[]{1, 10, 1000, 10000}) {
+                assertArrayEquals(scan(contents, query, limit), index.search("MainHall", query, limit), query);
+            }
+        }
+        assertEquals(0, index.search("MainHall", "red purple", 10).length);
+        assertEquals(0, index.search("MainHall", "a", 10).length);
+        assertEquals(0, index.search("other", "red", 10).length);
+    }
+
+    @Test
+    void indexesTheMessagesLoggedBeforeIt() throws Exception {
+        open();
+        for (int i = 1; i <= 30; i++) {
+            log.append("MainHall", new EncodedPacket(new Packet.ToCMessage(i % 3 == 0 ? "fizz " + i : "plain", "alice", (long) i)));
+        }
+        index.backfill("MainHall");
+        index.add("MainHall", 31, "fizz again");
+        await(31);
+        assertArrayEquals(new long[]{27, 30, 31}, index.search("MainHall", "fizz", 3));
+        assertArrayEquals(new long[]{15}, index.search("MainHall", "fizz 15", 10));
+    }
+
+    @Test
+    void forgetsARemovedRoom() throws Exception {
+        open();
+        index.add("MainHall", 1, "hello there");
+        index.remove("MainHall");
+        await(1);
+        // the room is dropped by the task after the message
+        for (int i = 0; i < 500 && index.getTokens() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, index.getTokens());
+        assertEquals(0, index.search("MainHall", "hello", 10).length);
+    }
+}
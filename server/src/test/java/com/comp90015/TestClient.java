@@ -0,0 +1,86 @@
+package com.comp90015;
+
+import com.comp90015.base.FrameReader;
+import com.comp90015.base.Packet;
+import com.comp90015.base.PacketCodec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A client speaking JSON lines to a server under test, waiting at most a few
+ * seconds for anything it expects.
+ */
+class TestClient implements AutoCloseable {
+
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    private final Socket socket;
+    private final FrameReader reader;
+    private final OutputStream out;
+
+    TestClient(int port) throws IOException {
+        socket = new Socket("localhost", port);
+        socket.setSoTimeout(TIMEOUT_MILLIS);
+        reader = new FrameReader(socket.getInputStream());
+        out = socket.getOutputStream();
+    }
+
+    void send(Packet.ToServer packet) throws IOException {
+        write((PacketCodec.encode(packet) + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    void write(byte[] bytes) throws IOException {
+        out.write(bytes);
+        out.flush();
+    }
+
+    /**
+     * Skip packets until one of the given type arrives.
+     * @param type class of the packet
+     * @param <T> type of the packet
+     * @return the packet
+     * @throws IOException if the connection ends or nothing arrives in time
+     */
+    <T extends Packet.ToClient> T expect(Class<T> type) throws IOException {
+        while (true) {
+            String line = reader.readLine();
+            if (line == null) throw new IOException("Connection closed waiting for " + type.getSimpleName());
+            Packet.ToClient packet = PacketCodec.decodeToClient(line);
+            if (type.isInstance(packet)) return type.cast(packet);
+        }
+    }
+
+    /**
+     * @return whether the server closed the connection, skipping what it sent before
+     */
+    boolean closedByServer() {
+        try {
+            while (reader.readLine() != null) { }
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            // reset by the server
+            return true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * @return a port nothing listens on right now
+     */
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}